@@ -0,0 +1,329 @@
+package org.jrd.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Transport independent view of one agent request.
+ * Commands read their arguments and write their answers only via this class, so the same command implementation
+ * serves both the legacy text protocol (one value per line, bodies Base64 encoded) and the binary protocol
+ * (opcode + length + raw bytes frames).
+ */
+abstract class AbstractAgentChannel {
+
+    /**
+     * First line the client sends to switch the connection to the binary protocol.
+     * The agent acknowledges it by the same line, so an old agent (which answers by ERROR) is easily detected.
+     */
+    static final String BINARY_HANDSHAKE = "BINARY";
+
+    static final byte FRAME_TEXT = 'T';
+    static final byte FRAME_BYTES = 'B';
+    static final byte FRAME_END = 'E';
+    /**
+     * Limit of request frame, the largest class or jar the agent accepts. The client has the same limit, so it does not send
+     * longer frames, and refuses longer response frames.
+     */
+    static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    // payloads are read by chunks, so the length claimed by the header is not allocated before the data really arrive
+    private static final int PAYLOAD_CHUNK = 64 * 1024;
+
+    /**
+     * Reads one argument of the request.
+     *
+     * @return the argument, or null if the request has no more arguments
+     */
+    abstract String readLine() throws IOException;
+
+    /**
+     * Reads uploaded body, optionally followed by the base64 encoded classloader it belongs to.
+     *
+     * @return body with its classloader, or null if the request has no more arguments
+     */
+    abstract BodyAndClassLoader readBody() throws IOException;
+
+    abstract void writeLine(String line) throws IOException;
+
+    abstract void writeBytes(byte[] body) throws IOException;
+
+    /**
+     * Marks end of list answer. In text protocol, the end of list is the end of stream.
+     */
+    abstract void writeEnd() throws IOException;
+
+    abstract void flush() throws IOException;
+
+    /**
+     * Closes the connection of the client, once the response written so far is delivered.
+     */
+    abstract void closeConnection() throws IOException;
+
+    /**
+     * Creates the channel according to the first line of connection.
+     *
+     * @param line first line, as read by {@link #readRawLine(InputStream)}
+     * @return the channel, and the command it carries
+     */
+    static ChannelAndCommand open(String line, BufferedInputStream in, OutputStream os) throws IOException {
+        if (BINARY_HANDSHAKE.equals(line)) {
+            BinaryChannel channel = new BinaryChannel(in, os);
+            channel.writeHandshake();
+            return new ChannelAndCommand(channel, channel.readLine());
+        }
+        TextChannel channel = new TextChannel(in, os);
+        return new ChannelAndCommand(channel, line);
+    }
+
+    /**
+     * The first line is read byte by byte, so no buffered data are lost when switching to the binary protocol.
+     */
+    static String readRawLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                break;
+            }
+            if (b == '\n') {
+                break;
+            }
+            line.write(b);
+        }
+        String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        if (s.endsWith("\r")) {
+            return s.substring(0, s.length() - 1);
+        }
+        return s;
+    }
+
+    static class ChannelAndCommand {
+        private final AbstractAgentChannel channel;
+        private final String command;
+
+        ChannelAndCommand(AbstractAgentChannel channel, String command) {
+            this.channel = channel;
+            this.command = command;
+        }
+
+        AbstractAgentChannel getChannel() {
+            return channel;
+        }
+
+        String getCommand() {
+            return command;
+        }
+    }
+
+    static class BodyAndClassLoader {
+        private final byte[] body;
+        private final String classloader;
+
+        BodyAndClassLoader(byte[] body, String classloader) {
+            this.body = body;
+            this.classloader = classloader;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        String getClassloader() {
+            return classloader;
+        }
+    }
+
+    /**
+     * Reads the payload of the frame, whose header was already read.
+     *
+     * @param length length from the header, not yet validated
+     */
+    static byte[] readPayload(DataInputStream in, int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (length <= PAYLOAD_CHUNK) {
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return payload;
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(PAYLOAD_CHUNK);
+        byte[] chunk = new byte[PAYLOAD_CHUNK];
+        int remaining = length;
+        while (remaining > 0) {
+            int read = in.read(chunk, 0, Math.min(chunk.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Frame ended after " + (length - remaining) + " of " + length + " bytes");
+            }
+            payload.write(chunk, 0, read);
+            remaining -= read;
+        }
+        return payload.toByteArray();
+    }
+
+    static String decodeClassloader(String base64) {
+        if (base64 == null || base64.isEmpty()) {
+            return null;
+        }
+        return AgentActionWorker.base64toSring(base64);
+    }
+
+    private static final class TextChannel extends AbstractAgentChannel {
+        private final BufferedReader in;
+        private final BufferedWriter out;
+
+        private TextChannel(InputStream is, OutputStream os) {
+            this.in = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        String readLine() throws IOException {
+            return in.readLine();
+        }
+
+        @Override
+        BodyAndClassLoader readBody() throws IOException {
+            String line = in.readLine();
+            if (line == null) {
+                return null;
+            }
+            String[] bodyAndLoader = line.split("\\s");
+            return new BodyAndClassLoader(
+                    Base64.getDecoder().decode(bodyAndLoader[0]), bodyAndLoader.length > 1 ? decodeClassloader(bodyAndLoader[1]) : null
+            );
+        }
+
+        @Override
+        void writeLine(String line) throws IOException {
+            out.write(line);
+            out.newLine();
+        }
+
+        @Override
+        void writeBytes(byte[] body) throws IOException {
+            writeLine(Base64.getEncoder().encodeToString(body));
+        }
+
+        @Override
+        void writeEnd() throws IOException {
+            //end of list is end of stream
+        }
+
+        @Override
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        void closeConnection() throws IOException {
+            // closes the socket too
+            out.close();
+        }
+    }
+
+    private static final class BinaryChannel extends AbstractAgentChannel {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private boolean endOfRequest;
+
+        private BinaryChannel(InputStream is, OutputStream os) {
+            this.in = new DataInputStream(is);
+            this.out = new DataOutputStream(new BufferedOutputStream(os));
+        }
+
+        private void writeHandshake() throws IOException {
+            out.write((BINARY_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @return payload of next frame of given type, or null, if the request ended
+         */
+        private byte[] readFrame(byte expectedType) throws IOException {
+            if (endOfRequest) {
+                return null;
+            }
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException ex) {
+                endOfRequest = true;
+                return null;
+            }
+            byte[] payload = readPayload(in, in.readInt());
+            if (type == FRAME_END) {
+                endOfRequest = true;
+                return null;
+            }
+            if (type != expectedType) {
+                throw new IOException("Expected frame " + (char) expectedType + " but got " + (char) type);
+            }
+            return payload;
+        }
+
+        @Override
+        String readLine() throws IOException {
+            byte[] payload = readFrame(FRAME_TEXT);
+            if (payload == null) {
+                return null;
+            }
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        BodyAndClassLoader readBody() throws IOException {
+            byte[] body = readFrame(FRAME_BYTES);
+            if (body == null) {
+                return null;
+            }
+            return new BodyAndClassLoader(body, decodeClassloader(readLine()));
+        }
+
+        private void writeFrame(byte type, byte[] payload) throws IOException {
+            out.writeByte(type);
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+
+        @Override
+        void writeLine(String line) throws IOException {
+            writeFrame(FRAME_TEXT, line.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        void writeBytes(byte[] body) throws IOException {
+            writeFrame(FRAME_BYTES, body);
+        }
+
+        @Override
+        void writeEnd() throws IOException {
+            writeFrame(FRAME_END, new byte[0]);
+        }
+
+        @Override
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        void closeConnection() throws IOException {
+            // closes the socket too
+            out.close();
+        }
+    }
+}
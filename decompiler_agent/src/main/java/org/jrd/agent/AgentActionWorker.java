@@ -2,34 +2,37 @@ package org.jrd.agent;
 
 import org.jrd.backend.data.MetadataProperties;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.Optional;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * This class handles the socket accepting and request processing from the
+ * This class handles the request processing from the
  * decompiler
  *
  * @author pmikova
  */
-public class AgentActionWorker extends Thread {
+public class AgentActionWorker implements Runnable {
 
+    private final Socket socket;
+    private final byte[] alreadyRead;
     private InstrumentationProvider provider;
-    private Boolean abort = false;
+    private final AtomicBoolean abort = new AtomicBoolean(false);
 
     private static final String AGENT_ERROR_ID = "ERROR";
+    // written to idle subscription, so the agent finds out the client is gone
+    private static final String HEARTBEAT = "HEARTBEAT";
+    private static final long HEARTBEAT_MILLIS = 5000;
 
-    private static String toError(String message) {
+    static String toError(String message) {
         return AGENT_ERROR_ID + " " + message;
     }
 
@@ -37,11 +40,21 @@ public class AgentActionWorker extends Thread {
         return toError(ex.toString());
     }
 
-    public AgentActionWorker(Socket socket, InstrumentationProvider provider) {
+    /**
+     * @param socket blocking socket of the client
+     * @param alreadyRead bytes already read from the socket by {@link ConnectionDelegator}
+     * @param provider provider to work with
+     */
+    public AgentActionWorker(Socket socket, byte[] alreadyRead, InstrumentationProvider provider) {
+        this.socket = socket;
+        this.alreadyRead = alreadyRead.clone();
         this.provider = provider;
+    }
 
+    @Override
+    public void run() {
         try {
-            executeRequest(socket, provider);
+            executeRequest();
         } catch (Exception e) {
             AgentLogger.getLogger().log(new RuntimeException("Error when trying to execute the request. Cause: ", e));
             try {
@@ -52,10 +65,10 @@ public class AgentActionWorker extends Thread {
         }
     }
 
-    private void executeRequest(Socket socket, InstrumentationProvider localProvider) {
+    private void executeRequest() {
         InputStream is = null;
         try {
-            is = socket.getInputStream();
+            is = new SequenceInputStream(new ByteArrayInputStream(alreadyRead), socket.getInputStream());
         } catch (IOException e) {
             AgentLogger.getLogger().log(new RuntimeException("Error when opening the socket input stream. Cause: ", e));
             try {
@@ -78,22 +91,12 @@ public class AgentActionWorker extends Thread {
             }
             return;
         }
-        BufferedReader inputStream = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-        BufferedWriter outputStream = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
 
-        String line = null;
-        try {
-            line = inputStream.readLine();
-        } catch (IOException e) {
-            AgentLogger.getLogger().log(new RuntimeException("Exception occurred during reading of the line: ", e));
-        }
         try {
-            if (null == line) {
-                outputStream.write(toError("Agent received no command.") + "\n");
-                outputStream.flush();
-            } else {
-                writeToStreamBasedOnLine(socket, localProvider, inputStream, outputStream, line);
-            }
+            BufferedInputStream in = new BufferedInputStream(is);
+            AbstractAgentChannel.ChannelAndCommand channelAndCommand =
+                    AbstractAgentChannel.open(AbstractAgentChannel.readRawLine(in), in, os);
+            handle(channelAndCommand.getChannel(), channelAndCommand.getCommand());
         } catch (IOException e) {
             AgentLogger.getLogger().log(new RuntimeException("Error when trying to process the request:", e));
         } finally {
@@ -105,105 +108,246 @@ public class AgentActionWorker extends Thread {
         }
     }
 
-    private void writeToStreamBasedOnLine(
-            Socket socket, InstrumentationProvider localProvider, BufferedReader inputStream, BufferedWriter outputStream, String origLine
-    ) throws IOException {
+    /**
+     * Stops all listings of this client. Used when the client can not receive them anymore.
+     */
+    void abort() {
+        abort.set(true);
+    }
+
+    /**
+     * Executes one request, reading its arguments from, and writing its answer to, the given channel.
+     * May be called concurrently by requests of one session.
+     *
+     * @param line the command
+     */
+    void handle(AbstractAgentChannel channel, String line) throws IOException {
+        if (null == line) {
+            channel.writeLine(toError("Agent received no command."));
+            channel.flush();
+        } else {
+            String command = new StringAndClassLoader(line).getLine();
+            AgentEvents.Operation event = AgentEvents.request(command);
+            long start = System.nanoTime();
+            boolean aborted = true;
+            try {
+                writeToStreamBasedOnLine(provider, channel, line);
+                aborted = false;
+            } finally {
+                provider.getStats().onCommand(command, System.nanoTime() - start, aborted);
+                event.finish(aborted);
+            }
+        }
+    }
+
+    @SuppressWarnings("JavaNCSS") // one case per command
+    private void writeToStreamBasedOnLine(InstrumentationProvider localProvider, AbstractAgentChannel channel, String origLine)
+            throws IOException {
         StringAndClassLoader cmdAndClasslaoder = new StringAndClassLoader(origLine);
         String line = cmdAndClasslaoder.getLine();
         String classloader = cmdAndClasslaoder.getClassloader();
         switch (line) {
             case "HALT":
                 AgentLogger.getLogger().log("Agent received HALT command, closing socket.");
-                closeSocket(outputStream, socket);
+                closeSocket(channel);
                 AgentLogger.getLogger().log("Agent received HALT command, removing instrumentation");
                 localProvider.detach();
                 break;
             case "SEARCH_CLASSES":
-                getAllFilteredClasses(inputStream, outputStream);
+                getAllFilteredClasses(channel);
                 break;
             case "CLASSES":
-                getAllLoadedClasses(outputStream, false, classloader);
+                getAllLoadedClasses(channel, false, classloader);
                 break;
             case "CLASSES_WITH_INFO":
-                getAllLoadedClasses(outputStream, true, classloader);
+                getAllLoadedClasses(channel, true, classloader);
+                break;
+            case "CLASSES_ENCODED":
+                getEncodedClasses(channel, classloader);
+                break;
+            case "CLASSES_QUERY":
+                getQueriedClasses(channel, classloader);
+                break;
+            case "CLASSES_SINCE":
+                getClassesSince(channel);
+                break;
+            case "REFERENCES":
+                getReferences(channel, classloader);
+                break;
+            case "CHECKSUMS":
+                getChecksums(channel, classloader);
                 break;
             case "OVERRIDES":
-                getAllOverridesClasses(outputStream);
+                getAllOverridesClasses(channel);
                 break;
             case "BYTES":
-                sendByteCode(inputStream, outputStream, classloader);
+                sendByteCode(channel, classloader);
+                break;
+            case "BYTES_IF_CHANGED":
+                sendByteCodeIfChanged(channel, classloader);
+                break;
+            case "BYTES_BATCH":
+                sendByteCodes(channel, classloader);
                 break;
             case "VERSION":
-                getVersion(outputStream);
+                getVersion(channel);
+                break;
+            case "STATS":
+                getStats(channel);
+                break;
+            case "BUDGET":
+                setBudget(channel);
+                break;
+            case "SUBSCRIBE":
+                subscribe(channel);
                 break;
             case "OVERWRITE":
-                receiveByteCode(inputStream, outputStream, ReceivedType.OVERWRITE_CLASS);
+                receiveByteCode(channel, ReceivedType.OVERWRITE_CLASS);
+                break;
+            case "OVERWRITE_BATCH":
+                receiveByteCodes(channel);
                 break;
             case "ADD_CLASS":
-                receiveByteCode(inputStream, outputStream, ReceivedType.ADD_CLASS);
+                receiveByteCode(channel, ReceivedType.ADD_CLASS);
                 break;
             case "ADD_JAR":
-                receiveByteCode(inputStream, outputStream, ReceivedType.ADD_JAR);
+                receiveByteCode(channel, ReceivedType.ADD_JAR);
                 break;
             case "INIT_CLASS":
-                initClass(inputStream, outputStream);
+                initClass(channel);
                 break;
             case "REMOVE_OVERRIDES":
-                removeOverrides(inputStream, outputStream);
+                removeOverrides(channel);
                 break;
             case "HELLO":
-                outputStream.write("Agent HELLO handshake: '" + line + "'." + "\n");
-                outputStream.flush();
+                channel.writeLine("Agent HELLO handshake: '" + line + "'.");
+                channel.flush();
                 break;
             default:
-                outputStream.write(toError("Agent received unknown command: '" + line + "'.") + "\n");
-                outputStream.flush();
+                channel.writeLine(toError("Agent received unknown command: '" + line + "'."));
+                channel.flush();
                 break;
         }
     }
 
-    private interface ListInjector<T> {
-        void inject(BlockingQueue<T> target) throws InterruptedException;
+    private interface ListInjector {
+        void inject(InstrumentationProvider.ListSink target) throws IOException;
     }
 
-    private void getList(BufferedWriter out, String id, ListInjector<String> injector) throws IOException {
-        out.write(id);
-        out.newLine();
-        BlockingQueue<String> classNames = new LinkedBlockingQueue<String>(1024);
-        new Thread(() -> {
-            try {
-                injector.inject(classNames);
-            } catch (InterruptedException e) {
-                AgentLogger.getLogger().log(e);
+    /**
+     * Items are written to the client as the injector produces them, so the listing blocks when the client does not keep up.
+     */
+    private void getList(AbstractAgentChannel channel, String id, ListInjector injector) throws IOException {
+        channel.writeLine(id);
+        try {
+            injector.inject(channel::writeLine);
+        } catch (IOException ex) {
+            // client is gone, nothing else will be delivered to it
+            abort();
+            throw ex;
+        }
+        channel.writeEnd();
+        channel.flush();
+    }
+
+    private void getAllLoadedClasses(AbstractAgentChannel channel, boolean doGetInfo, String classlaoder) throws IOException {
+        getList(channel, "CLASSES", new ListInjector() {
+            @Override
+            public void inject(InstrumentationProvider.ListSink target) throws IOException {
+                provider.getClasses(target, abort, doGetInfo, Optional.empty(), classlaoder);
             }
-        }).start();
-        while (true) {
-            String x = classNames.poll();
-            if (x == null) {
-                continue;
+        });
+    }
+
+    private void getEncodedClasses(AbstractAgentChannel channel, String classlaoder) throws IOException {
+        getList(channel, "CLASSES", new ListInjector() {
+            @Override
+            public void inject(InstrumentationProvider.ListSink target) throws IOException {
+                provider.getClasses(new ListingDictionary(target), abort, true, Optional.empty(), classlaoder);
             }
-            if ("---END---".equals(x)) {
-                break;
-            } else {
-                out.write(x);
-                out.newLine();
+        });
+    }
+
+    private void getQueriedClasses(AbstractAgentChannel channel, String classlaoder) throws IOException {
+        ClassQuery query = ClassQuery.parse(channel.readLine());
+        getList(channel, "CLASSES", new ListInjector() {
+            @Override
+            public void inject(InstrumentationProvider.ListSink target) throws IOException {
+                provider.queryClasses(target, abort, query, classlaoder);
             }
+        });
+    }
+
+    /**
+     * Argument is line of the referenced constant, see {@link ConstantPoolIndex.Query}.
+     * Response is listing of the referring classes, as CLASSES or CLASSES_WITH_INFO lists them.
+     */
+    private void getReferences(AbstractAgentChannel channel, String classlaoder) throws IOException {
+        ConstantPoolIndex.Query query;
+        try {
+            query = ConstantPoolIndex.Query.parse(channel.readLine());
+        } catch (IOException | IllegalArgumentException ex) {
+            AgentLogger.getLogger().log(ex);
+            channel.writeLine(toError(ex));
+            channel.flush();
+            return;
+        }
+        if (!query.isDrop() && provider.isReferencesOverflowed()) {
+            channel.writeLine(toError("Index of references grew over its limit, drop it to index again."));
+            channel.flush();
+            return;
         }
-        out.flush();
+        getList(channel, "CLASSES", new ListInjector() {
+            @Override
+            public void inject(InstrumentationProvider.ListSink target) throws IOException {
+                provider.getReferences(target, abort, query, classlaoder);
+            }
+        });
     }
 
-    private void getAllLoadedClasses(BufferedWriter out, boolean doGetInfo, String classlaoder) throws IOException {
-        getList(out, "CLASSES", new ListInjector<String>() {
+    /**
+     * Arguments are the checksum algorithm, and line of query parameters, as CLASSES_QUERY takes them.
+     * Response is listing of class name, classloader and checksum of its current bytecode, for each matching class.
+     */
+    private void getChecksums(AbstractAgentChannel channel, String classlaoder) throws IOException {
+        String algorithm = channel.readLine();
+        ClassQuery query;
+        try {
+            ClassChecksums.check(algorithm == null ? null : algorithm.trim());
+            query = ClassQuery.parse(channel.readLine());
+        } catch (IOException | IllegalArgumentException ex) {
+            AgentLogger.getLogger().log(ex);
+            channel.writeLine(toError(ex));
+            channel.flush();
+            return;
+        }
+        getList(channel, "CHECKSUMS", new ListInjector() {
             @Override
-            public void inject(BlockingQueue<String> target) throws InterruptedException {
-                provider.getClasses(target, abort, doGetInfo, Optional.empty(), classlaoder);
+            public void inject(InstrumentationProvider.ListSink target) throws IOException {
+                provider.getChecksums(target, abort, query, algorithm.trim(), classlaoder);
+            }
+        });
+    }
+
+    private void getClassesSince(AbstractAgentChannel channel) throws IOException {
+        String line = channel.readLine();
+        long sequence;
+        try {
+            sequence = Long.parseLong(line == null ? "" : line.trim());
+        } catch (NumberFormatException ex) {
+            throw new IOException("bad sequence " + line, ex);
+        }
+        getList(channel, "CLASSES_SINCE", new ListInjector() {
+            @Override
+            public void inject(InstrumentationProvider.ListSink target) throws IOException {
+                provider.getClassesSince(target, abort, sequence);
             }
         });
     }
 
     @SuppressWarnings("CyclomaticComplexity") // refactorable
-    private void getAllFilteredClasses(BufferedReader in, BufferedWriter out) throws IOException {
-        final String line = in.readLine();
+    private void getAllFilteredClasses(AbstractAgentChannel channel) throws IOException {
+        final String line = channel.readLine();
         //it can be  jsut  - "" - jsut nothing
         //it can be    regex
         //it can be    bodySubstring regex
@@ -285,9 +429,9 @@ public class AgentActionWorker extends Thread {
         final Optional<ClassFilter> finalFilter = filter;
         //really? always ecode? Only if filter is present?
         final String finalClassloader = classloader == null ? null : base64toSring(classloader);
-        getList(out, "SEARCH_CLASSES", new ListInjector<String>() {
+        getList(channel, "SEARCH_CLASSES", new ListInjector() {
             @Override
-            public void inject(BlockingQueue<String> target) throws InterruptedException {
+            public void inject(InstrumentationProvider.ListSink target) throws IOException {
                 provider.getClasses(target, abort, finalDoGetInfo, finalFilter, finalClassloader);
             }
         });
@@ -301,75 +445,221 @@ public class AgentActionWorker extends Thread {
         return new String(Base64.getDecoder().decode(item), StandardCharsets.UTF_8);
     }
 
-    private void getAllOverridesClasses(BufferedWriter out) throws IOException {
-        getList(out, "OVERRIDES", new ListInjector<String>() {
+    private void getAllOverridesClasses(AbstractAgentChannel channel) throws IOException {
+        getList(channel, "OVERRIDES", new ListInjector() {
             @Override
-            public void inject(BlockingQueue<String> target) throws InterruptedException {
+            public void inject(InstrumentationProvider.ListSink target) throws IOException {
                 provider.getOverrides(target);
             }
         });
     }
 
-    private void sendByteCode(BufferedReader in, BufferedWriter out, String classloader) throws IOException {
-        String className = in.readLine();
+    private void sendByteCode(AbstractAgentChannel channel, String classloader) throws IOException {
+        String className = channel.readLine();
         if (className == null) {
-            out.write(toError("No class name provided for the get bytes command.") + "\n");
-            out.flush();
+            channel.writeLine(toError("No class name provided for the get bytes command."));
+            channel.flush();
             return;
         }
         try {
             byte[] body = provider.findClassBody(className, classloader);
-            String encoded = Base64.getEncoder().encodeToString(body);
-            out.write("BYTES");
-            out.newLine();
-            out.write(encoded);
-            out.newLine();
+            channel.writeLine("BYTES");
+            writeBody(channel, body);
         } catch (Throwable ex) {
             AgentLogger.getLogger().log(ex);
-            out.write(toError(ex) + "\n");
+            channel.writeLine(toError(ex));
         }
-        out.flush();
+        channel.flush();
     }
 
-    private void getVersion(BufferedWriter out) throws IOException {
+    /**
+     * Arguments are class name and generation of its bytecode the client have, or nothing.
+     * Response is the current generation, followed by the bytes, or by UNCHANGED if the generation did not change.
+     */
+    private void sendByteCodeIfChanged(AbstractAgentChannel channel, String classloader) throws IOException {
+        String className = channel.readLine();
+        if (className == null) {
+            channel.writeLine(toError("No class name provided for the get bytes if changed command."));
+            channel.flush();
+            return;
+        }
         try {
-            out.write("VERSION");
-            out.newLine();
-            out.write(MetadataProperties.getInstance().toString());
-            out.newLine();
+            String since = channel.readLine();
+            long generation = since == null || since.trim().isEmpty() ? ClassBytesCache.NO_GENERATION : Long.parseLong(since.trim());
+            ClassBytesCache.Versioned body = provider.findClassBodySince(className, classloader, generation);
+            channel.writeLine("BYTES_IF_CHANGED");
+            channel.writeLine(String.valueOf(body.getGeneration()));
+            if (body.getBytes() == null) {
+                channel.writeLine("UNCHANGED");
+            } else {
+                writeBody(channel, body.getBytes());
+            }
         } catch (Throwable ex) {
             AgentLogger.getLogger().log(ex);
-            out.write(toError(ex) + "\n");
+            channel.writeLine(toError(ex));
         }
-        out.flush();
+        channel.flush();
+    }
+
+    /**
+     * Arguments are one line of class names, separated by white space.
+     * Each name can be followed by colon and base64 encoded classloader, otherwise the classloader of command is used.
+     * Response is, for each class, its name, followed by its bytes or by error.
+     */
+    private void sendByteCodes(AbstractAgentChannel channel, String classloader) throws IOException {
+        String classNames = channel.readLine();
+        if (classNames == null || classNames.trim().isEmpty()) {
+            channel.writeLine(toError("No class names provided for the get bytes batch command."));
+            channel.flush();
+            return;
+        }
+        String[] entries = classNames.trim().split("\\s+");
+        String[] names = new String[entries.length];
+        String[] loaders = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            int colon = entries[i].indexOf(':');
+            if (colon < 0) {
+                names[i] = entries[i];
+                loaders[i] = classloader;
+            } else {
+                names[i] = entries[i].substring(0, colon);
+                loaders[i] = base64toSring(entries[i].substring(colon + 1));
+            }
+        }
+        channel.writeLine("BYTES_BATCH");
+        try {
+            provider.findClassBodies(names, loaders, new InstrumentationProvider.BodySink() {
+                @Override
+                public void put(String className, byte[] body, Throwable error) throws IOException {
+                    channel.writeLine(className);
+                    if (body == null) {
+                        Throwable reason = error == null ? new RuntimeException("Bytecode of " + className + " not found.") : error;
+                        AgentLogger.getLogger().log(reason);
+                        channel.writeLine(toError(reason));
+                    } else {
+                        writeBody(channel, body);
+                    }
+                }
+            });
+        } catch (IOException ex) {
+            // client is gone, nothing else will be delivered to it
+            abort();
+            throw ex;
+        }
+        channel.writeEnd();
+        channel.flush();
+    }
+
+    private void writeBody(AbstractAgentChannel channel, byte[] body) throws IOException {
+        channel.writeBytes(body);
+        provider.getStats().onBodyServed(body.length);
+    }
+
+    private void getStats(AbstractAgentChannel channel) throws IOException {
+        getList(channel, "STATS", new ListInjector() {
+            @Override
+            public void inject(InstrumentationProvider.ListSink target) throws IOException {
+                provider.getStats(target);
+            }
+        });
+    }
+
+    /**
+     * Argument is line of budgets to change, as key=value pairs, possibly empty.
+     * Response is the whole budget, after the change.
+     */
+    private void setBudget(AbstractAgentChannel channel) throws IOException {
+        String settings = channel.readLine();
+        try {
+            provider.getBudget().set(settings == null ? "" : settings);
+        } catch (RuntimeException ex) {
+            AgentLogger.getLogger().log(ex);
+            channel.writeLine(toError(ex));
+            channel.flush();
+            return;
+        }
+        getList(channel, "BUDGET", new ListInjector() {
+            @Override
+            public void inject(InstrumentationProvider.ListSink target) throws IOException {
+                for (String line : provider.getBudget().toLines()) {
+                    target.put(line);
+                }
+            }
+        });
+    }
+
+    /**
+     * Streams events to the client, until it disconnects, or the agent is detached. Each event is flushed as it comes.
+     */
+    private void subscribe(AbstractAgentChannel channel) throws IOException {
+        AgentSubscribers.Subscriber subscriber;
+        try {
+            subscriber = provider.getSubscribers().subscribe();
+        } catch (RuntimeException ex) {
+            AgentLogger.getLogger().log(ex);
+            channel.writeLine(toError(ex));
+            channel.flush();
+            return;
+        }
+        ConnectionDelegator.beginLongRunning();
+        try {
+            channel.writeLine("SUBSCRIBE");
+            channel.flush();
+            while (!abort.get() && !subscriber.isClosed()) {
+                String event = subscriber.next(HEARTBEAT_MILLIS);
+                if (!subscriber.isClosed()) {
+                    channel.writeLine(event == null ? HEARTBEAT : event);
+                    channel.flush();
+                }
+            }
+            channel.writeEnd();
+            channel.flush();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            // client is gone, which is the usual end of subscription
+            abort();
+        } finally {
+            subscriber.close();
+            ConnectionDelegator.endLongRunning();
+        }
+    }
+
+    private void getVersion(AbstractAgentChannel channel) throws IOException {
+        try {
+            channel.writeLine("VERSION");
+            channel.writeLine(MetadataProperties.getInstance().toString());
+        } catch (Throwable ex) {
+            AgentLogger.getLogger().log(ex);
+            channel.writeLine(toError(ex));
+        }
+        channel.flush();
     }
 
     private interface ParametrisedRunner {
         void run(String arg1) throws Exception;
     }
 
-    private void executeParametrisedNoReturnCommand(
-            BufferedReader in, BufferedWriter out, String help, ParametrisedRunner parametrisedRunner
-    ) throws IOException {
-        String args = in.readLine();
+    private void executeParametrisedNoReturnCommand(AbstractAgentChannel channel, String help, ParametrisedRunner parametrisedRunner)
+            throws IOException {
+        String args = channel.readLine();
         if (args == null) {
-            out.write(toError(help) + "\n");
-            out.flush();
+            channel.writeLine(toError(help));
+            channel.flush();
             return;
         }
         try {
             parametrisedRunner.run(args);
-            out.write("DONE");
-            out.newLine();
+            channel.writeLine("DONE");
         } catch (Throwable ex) {
             AgentLogger.getLogger().log(ex);
-            out.write(toError(ex) + "\n");
+            channel.writeLine(toError(ex));
         }
-        out.flush();
+        channel.flush();
     }
 
-    private void initClass(BufferedReader in, BufferedWriter out) throws IOException {
-        executeParametrisedNoReturnCommand(in, out, "No FQN provided for the init class command.", new ParametrisedRunner() {
+    private void initClass(AbstractAgentChannel channel) throws IOException {
+        executeParametrisedNoReturnCommand(channel, "No FQN provided for the init class command.", new ParametrisedRunner() {
             @Override
             public void run(String arg) throws Exception {
                 Class.forName(arg);
@@ -377,8 +667,8 @@ public class AgentActionWorker extends Thread {
         });
     }
 
-    private void removeOverrides(BufferedReader in, BufferedWriter out) throws IOException {
-        executeParametrisedNoReturnCommand(in, out, "No regex provided for the remove override. Try .*", new ParametrisedRunner() {
+    private void removeOverrides(AbstractAgentChannel channel) throws IOException {
+        executeParametrisedNoReturnCommand(channel, "No regex provided for the remove override. Try .*", new ParametrisedRunner() {
             @Override
             public void run(String pattern) throws Exception {
                 int removed = provider.cleanOverrides(pattern);
@@ -389,22 +679,18 @@ public class AgentActionWorker extends Thread {
         });
     }
 
-    private void receiveByteCode(BufferedReader in, BufferedWriter out, ReceivedType rewroteAddJar) throws IOException {
-        executeParametrisedNoReturnCommand(in, out, "No class name provided for the overwrite command.", new ParametrisedRunner() {
+    private void receiveByteCode(AbstractAgentChannel channel, ReceivedType rewroteAddJar) throws IOException {
+        executeParametrisedNoReturnCommand(channel, "No class name provided for the overwrite command.", new ParametrisedRunner() {
             @Override
             public void run(String className) throws Exception {
-                String classBodyBase64AndMaybeClassLoader = in.readLine();
-                if (classBodyBase64AndMaybeClassLoader == null) {
-                    out.write(toError("No class body provided for the overwrite command.") + "\n");
-                    out.flush();
-                    return;
+                AbstractAgentChannel.BodyAndClassLoader bodyAndClassLoader = channel.readBody();
+                if (bodyAndClassLoader == null) {
+                    throw new IOException("No class body provided for the overwrite command.");
                 }
-                StringAndClassLoader classBodyBase64AndMaybeClassLoaderParsed =
-                        new StringAndClassLoader(classBodyBase64AndMaybeClassLoader);
-                byte[] body = Base64.getDecoder().decode(classBodyBase64AndMaybeClassLoaderParsed.getLine());
+                byte[] body = bodyAndClassLoader.getBody();
                 switch (rewroteAddJar) {
                     case OVERWRITE_CLASS:
-                        provider.setClassBody(className, body, classBodyBase64AndMaybeClassLoaderParsed.getClassloader());
+                        provider.setClassBody(className, body, bodyAndClassLoader.getClassloader());
                         break;
                     case ADD_CLASS:
                         provider.addClass(className, body);
@@ -420,10 +706,36 @@ public class AgentActionWorker extends Thread {
         });
     }
 
-    private void closeSocket(BufferedWriter out, Socket socket) throws IOException {
-        out.write("GOODBYE");
-        out.flush();
-        socket.close();
+    /**
+     * Reads count of classes, then name and body of each of them, and overwrites all of them at once.
+     */
+    private void receiveByteCodes(AbstractAgentChannel channel) throws IOException {
+        executeParametrisedNoReturnCommand(channel, "No class count provided for the overwrite batch command.", new ParametrisedRunner() {
+            @Override
+            public void run(String count) throws Exception {
+                int size = Integer.parseInt(count.trim());
+                String[] names = new String[size];
+                byte[][] bodies = new byte[size][];
+                String[] loaders = new String[size];
+                for (int i = 0; i < size; i++) {
+                    names[i] = channel.readLine();
+                    AbstractAgentChannel.BodyAndClassLoader bodyAndClassLoader = names[i] == null ? null : channel.readBody();
+                    if (bodyAndClassLoader == null) {
+                        throw new IOException("Only " + i + " of " + size + " classes provided for the overwrite batch command.");
+                    }
+                    bodies[i] = bodyAndClassLoader.getBody();
+                    loaders[i] = bodyAndClassLoader.getClassloader();
+                }
+                provider.setClassBodies(names, bodies, loaders);
+            }
+        });
+    }
+
+    private void closeSocket(AbstractAgentChannel channel) throws IOException {
+        channel.writeLine("GOODBYE");
+        channel.flush();
+        // session socket is owned by the selector thread, so it is not closed here
+        channel.closeConnection();
         ConnectionDelegator.gracefulShutdown();
         AgentLogger.getLogger().log("done");
     }
@@ -0,0 +1,168 @@
+package org.jrd.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Budget of the heavy work of the agent, so listing and searching of classes in a busy target does not take the CPU from the target.
+ * Classes retransformed to obtain their bytecode are limited per second; walks over all loaded classes pause after each slice of
+ * scanned classes, and search batches pause after each batch. Overwrites of classes are not limited, as they are never bulk.
+ * <p>
+ * Zero means unlimited, which is the default. The budget is set by agent arguments, and can be changed by BUDGET command.
+ */
+final class AgentBudget {
+
+    static final String RETRANSFORMS = "retransforms";
+    static final String SCAN_SLICE = "scanslice";
+    static final String SCAN_PAUSE = "scanpause";
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // classes per second
+    private volatile int retransforms;
+    // classes scanned between pauses
+    private volatile int scanSlice;
+    // milliseconds of each pause; without pause the walk only yields
+    private volatile int scanPause;
+    // nanoTime when next retransformation may start
+    private long nextRetransform = System.nanoTime();
+    private final AtomicLong waitedNanos = new AtomicLong();
+
+    /**
+     * @throws IllegalArgumentException if the key is unknown, or the value negative
+     */
+    void set(String key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Budget can not be negative: " + key + "=" + value);
+        }
+        checkKey(key);
+        switch (key) {
+            case RETRANSFORMS:
+                retransforms = value;
+                synchronized (this) {
+                    nextRetransform = System.nanoTime();
+                }
+                break;
+            case SCAN_SLICE:
+                scanSlice = value;
+                break;
+            default:
+                scanPause = value;
+                break;
+        }
+    }
+
+    /**
+     * @param settings white space separated key=value pairs; budgets not mentioned are kept
+     * @throws IllegalArgumentException if the settings are malformed; nothing is changed then
+     */
+    void set(String settings) {
+        List<String[]> parsed = new ArrayList<>();
+        for (String setting : settings.trim().split("\\s+")) {
+            if (setting.isEmpty()) {
+                continue;
+            }
+            String[] keyAndValue = setting.split("=", 2);
+            if (keyAndValue.length != 2) {
+                throw new IllegalArgumentException("Budget must be set as key=value, not " + setting);
+            }
+            // validates the setting before anything is changed
+            checkKey(keyAndValue[0]);
+            Integer.parseInt(keyAndValue[1]);
+            parsed.add(keyAndValue);
+        }
+        for (String[] keyAndValue : parsed) {
+            set(keyAndValue[0], Integer.parseInt(keyAndValue[1]));
+        }
+    }
+
+    private static void checkKey(String key) {
+        if (!RETRANSFORMS.equals(key) && !SCAN_SLICE.equals(key) && !SCAN_PAUSE.equals(key)) {
+            throw new IllegalArgumentException(
+                    "Unknown budget: " + key + ". Known are " + RETRANSFORMS + ", " + SCAN_SLICE + " and " + SCAN_PAUSE
+            );
+        }
+    }
+
+    /**
+     * Blocks the caller until the classes fit into the retransformation budget.
+     * The budget is reserved at once, so even batch bigger than the budget passes, and the next one waits longer.
+     */
+    void acquireRetransforms(int classes) {
+        int perSecond = retransforms;
+        if (perSecond <= 0 || classes <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = nextRetransform - now > 0 ? nextRetransform : now;
+            nextRetransform = start + classes * NANOS_PER_SECOND / perSecond;
+            wait = start - now;
+        }
+        pauseNanos(wait);
+    }
+
+    /**
+     * Pause between batches of heavy work, eg. searches of class bodies.
+     */
+    void betweenBatches() {
+        pauseNanos(TimeUnit.MILLISECONDS.toNanos(scanPause));
+    }
+
+    /**
+     * @return pacer for one walk over classes
+     */
+    Scan startScan() {
+        return new Scan(scanSlice);
+    }
+
+    void putGauges(Map<String, Long> gauges) {
+        gauges.put("budget." + RETRANSFORMS, (long) retransforms);
+        gauges.put("budget." + SCAN_SLICE, (long) scanSlice);
+        gauges.put("budget." + SCAN_PAUSE, (long) scanPause);
+        gauges.put("budget.waited.ms", TimeUnit.NANOSECONDS.toMillis(waitedNanos.get()));
+    }
+
+    List<String> toLines() {
+        List<String> lines = new ArrayList<>(3);
+        lines.add(RETRANSFORMS + "=" + retransforms);
+        lines.add(SCAN_SLICE + "=" + scanSlice);
+        lines.add(SCAN_PAUSE + "=" + scanPause);
+        return lines;
+    }
+
+    private void pauseNanos(long nanos) {
+        if (nanos <= 0) {
+            Thread.yield();
+            return;
+        }
+        waitedNanos.addAndGet(nanos);
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Counts scanned classes of one walk, and pauses after each slice of them.
+     */
+    final class Scan {
+        private final int slice;
+        private int scanned;
+
+        private Scan(int slice) {
+            this.slice = slice;
+        }
+
+        void next() {
+            if (slice > 0 && ++scanned % slice == 0) {
+                betweenBatches();
+            }
+        }
+    }
+}
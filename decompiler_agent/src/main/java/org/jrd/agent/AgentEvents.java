@@ -0,0 +1,52 @@
+package org.jrd.agent;
+
+/**
+ * Flight Recorder events of the agent, so its work can be correlated with the rest of the target's recording.
+ * Targets without the jdk.jfr module get no-op events, and never load any JFR class;
+ * events not recorded right now are not even created.
+ */
+final class AgentEvents {
+
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+    // also returned by JFR events not recorded right now
+    static final Operation NOOP = new Operation() {
+        @Override
+        public void finish(boolean failed) {
+        }
+    };
+
+    private AgentEvents() {
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, AgentEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Operation, whose duration is recorded from its start until it is finished.
+     */
+    interface Operation {
+        void finish(boolean failed);
+    }
+
+    static Operation request(String command) {
+        return JFR_AVAILABLE ? JfrEvents.request(command) : NOOP;
+    }
+
+    static Operation retransform(int classes) {
+        return JFR_AVAILABLE ? JfrEvents.retransform(classes) : NOOP;
+    }
+
+    static Operation overwrite(int classes, long bytes) {
+        return JFR_AVAILABLE ? JfrEvents.overwrite(classes, bytes) : NOOP;
+    }
+
+    static Operation addJar(String jar, long bytes) {
+        return JFR_AVAILABLE ? JfrEvents.addJar(jar, bytes) : NOOP;
+    }
+}
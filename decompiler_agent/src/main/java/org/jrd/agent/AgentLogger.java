@@ -36,7 +36,7 @@ public class AgentLogger {
         if (cl == null) {
             return "unknown";
         } else {
-            return cl.toString();
+            return ClassLoaderIds.get(cl);
         }
     }
 
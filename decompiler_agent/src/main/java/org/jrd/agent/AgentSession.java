@@ -0,0 +1,376 @@
+package org.jrd.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long living connection, carrying many requests of one client.
+ * Each frame is prefixed by the id of request it belongs to: one byte opcode, four bytes request id,
+ * four bytes length and the payload. Request is complete when its end frame arrives. Requests are then executed
+ * concurrently, and frames of their responses are interleaved on the socket, each response terminated by end frame.
+ * <p>
+ * The socket is non-blocking and served by the selector thread of {@link ConnectionDelegator}, which parses the
+ * incoming frames and writes the queued responses. Requests are executed in its worker pool. Worker producing the
+ * response faster than the client reads it, is blocked once too much data is queued.
+ * <p>
+ * Requests of one session are limited: client with too many incomplete requests, or too much data in them, is disconnected,
+ * and requests over the limit of executed ones are refused.
+ */
+final class AgentSession {
+
+    static final String SESSION_HANDSHAKE = "SESSION";
+
+    private static final int HEADER_LENGTH = 9;
+    private static final int INITIAL_BUFFER = 64 * 1024;
+    private static final int HIGH_WATERMARK = 4 * 1024 * 1024;
+    private static final int LOW_WATERMARK = 1024 * 1024;
+    // client sends frames of one request together, so it has rarely more than one incomplete
+    private static final int MAX_INCOMPLETE_REQUESTS = 16;
+    private static final long MAX_INCOMPLETE_BYTES = 2L * AbstractAgentChannel.MAX_FRAME_LENGTH;
+    private static final int MAX_ACTIVE_REQUESTS = 64;
+
+    private final ConnectionDelegator delegator;
+    private final SocketChannel channel;
+    private final AgentActionWorker worker;
+    // only touched by the selector thread
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_BUFFER);
+    private final Map<Integer, List<Frame>> incompleteRequests = new HashMap<>();
+    private long incompleteBytes;
+    // dispatched and not finished yet
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    // guarded by this
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    private long outboundBytes;
+    private boolean closed;
+    private boolean closeWhenWritten;
+
+    AgentSession(ConnectionDelegator delegator, SocketChannel channel, InstrumentationProvider provider) throws IOException {
+        this.delegator = delegator;
+        this.channel = channel;
+        this.worker = new AgentActionWorker(channel.socket(), new byte[0], provider);
+        send(ByteBuffer.wrap((SESSION_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8)), false);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Called by selector thread, when there are data to read.
+     *
+     * @return false if client closed the connection
+     */
+    boolean onReadable() throws IOException {
+        if (channel.read(inbound) < 0) {
+            return false;
+        }
+        inbound.flip();
+        int needed = 0;
+        while (inbound.remaining() >= HEADER_LENGTH) {
+            int start = inbound.position();
+            int length = inbound.getInt(start + 5);
+            if (length < 0 || length > AbstractAgentChannel.MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (inbound.remaining() < HEADER_LENGTH + length) {
+                needed = HEADER_LENGTH + length;
+                break;
+            }
+            byte type = inbound.get(start);
+            int id = inbound.getInt(start + 1);
+            inbound.position(start + HEADER_LENGTH);
+            byte[] payload = new byte[length];
+            inbound.get(payload);
+            onFrame(type, id, payload);
+        }
+        inbound.compact();
+        if (!inbound.hasRemaining() && needed > inbound.capacity()) {
+            // grown only as the data arrive, not to the length the header claims
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(needed, inbound.capacity() * 2));
+            inbound.flip();
+            bigger.put(inbound);
+            inbound = bigger;
+        } else if (inbound.position() == 0 && inbound.capacity() > INITIAL_BUFFER) {
+            inbound = ByteBuffer.allocate(INITIAL_BUFFER);
+        }
+        return true;
+    }
+
+    private void onFrame(byte type, int id, byte[] payload) throws IOException {
+        if (type == AbstractAgentChannel.FRAME_END) {
+            List<Frame> request = incompleteRequests.remove(id);
+            if (request == null) {
+                request = Collections.emptyList();
+            }
+            for (Frame frame : request) {
+                incompleteBytes -= frame.payload.length;
+            }
+            dispatch(id, request);
+            return;
+        }
+        List<Frame> request = incompleteRequests.get(id);
+        if (request == null) {
+            if (incompleteRequests.size() >= MAX_INCOMPLETE_REQUESTS) {
+                throw new IOException("Too many incomplete requests, at most " + MAX_INCOMPLETE_REQUESTS + " are allowed");
+            }
+            request = new ArrayList<>();
+            incompleteRequests.put(id, request);
+        }
+        incompleteBytes += payload.length;
+        if (incompleteBytes > MAX_INCOMPLETE_BYTES) {
+            throw new IOException("Incomplete requests are too large, at most " + MAX_INCOMPLETE_BYTES + " bytes are allowed");
+        }
+        request.add(new Frame(type, payload));
+    }
+
+    private void dispatch(int id, List<Frame> request) throws IOException {
+        if (activeRequests.incrementAndGet() > MAX_ACTIVE_REQUESTS) {
+            activeRequests.decrementAndGet();
+            refuse(id, "Agent refused request, too many requests of this session (" + MAX_ACTIVE_REQUESTS + ").");
+            return;
+        }
+        try {
+            delegator.execute(() -> execute(id, request));
+        } catch (RejectedExecutionException ex) {
+            activeRequests.decrementAndGet();
+            refuse(id, "Agent refused request, too many queued requests.");
+        }
+    }
+
+    private void refuse(int id, String reason) throws IOException {
+        // selector thread must not block on full queue
+        SessionChannel refused = new SessionChannel(id, Collections.emptyList(), false);
+        refused.writeLine(AgentActionWorker.toError(reason));
+        refused.finish();
+    }
+
+    private void execute(int id, List<Frame> request) {
+        SessionChannel sessionChannel = new SessionChannel(id, request, true);
+        try {
+            worker.handle(sessionChannel, sessionChannel.readLine());
+        } catch (IOException | RuntimeException ex) {
+            AgentLogger.getLogger().log(new RuntimeException("Error when trying to process the session request:", ex));
+        } finally {
+            try {
+                sessionChannel.finish();
+                if (sessionChannel.closeRequested) {
+                    closeWhenWritten();
+                }
+            } catch (IOException ex) {
+                AgentLogger.getLogger().log(new RuntimeException("Error when finishing the session request:", ex));
+            } finally {
+                activeRequests.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Queues data for the selector thread.
+     *
+     * @param mayBlock whether the caller can wait, if too much data is already queued
+     */
+    private synchronized void send(ByteBuffer data, boolean mayBlock) throws IOException {
+        try {
+            while (mayBlock && outboundBytes > HIGH_WATERMARK && !closed) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        if (closed) {
+            throw new IOException("Session is closed");
+        }
+        boolean wasEmpty = outbound.isEmpty();
+        outbound.add(data);
+        outboundBytes += data.remaining();
+        if (wasEmpty) {
+            delegator.wantsToWrite(this);
+        }
+    }
+
+    /**
+     * Asks the selector thread to close the session, once all queued data are written.
+     */
+    private synchronized void closeWhenWritten() {
+        if (closed) {
+            return;
+        }
+        closeWhenWritten = true;
+        delegator.wantsToWrite(this);
+    }
+
+    /**
+     * Called by selector thread, when the socket can accept more data.
+     *
+     * @return false if the session is to be closed, as all its data are written
+     */
+    synchronized boolean onWritable(SelectionKey key) throws IOException {
+        writeQueued();
+        if (outboundBytes <= LOW_WATERMARK) {
+            notifyAll();
+        }
+        if (outbound.isEmpty()) {
+            if (closeWhenWritten) {
+                return false;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        return true;
+    }
+
+    /**
+     * Writes as much of the queued data, as the socket accepts without blocking.
+     */
+    synchronized void writeQueued() throws IOException {
+        while (!outbound.isEmpty()) {
+            ByteBuffer head = outbound.peek();
+            outboundBytes -= channel.write(head);
+            if (head.hasRemaining()) {
+                break;
+            }
+            outbound.poll();
+        }
+    }
+
+    synchronized void close() {
+        closed = true;
+        worker.abort();
+        notifyAll();
+    }
+
+    private static final class Frame {
+        private final byte type;
+        private final byte[] payload;
+
+        private Frame(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Response frames are collected, and passed to the session in chunks, or when flushed.
+     */
+    private final class SessionChannel extends AbstractAgentChannel {
+        private static final int CHUNK = 64 * 1024;
+
+        private final int id;
+        private final Iterator<Frame> request;
+        private final boolean mayBlock;
+        private final ByteArrayOutputStream collected = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(collected);
+        private boolean closeRequested;
+        private boolean finished;
+
+        private SessionChannel(int id, List<Frame> request, boolean mayBlock) {
+            this.id = id;
+            this.request = request.iterator();
+            this.mayBlock = mayBlock;
+        }
+
+        private byte[] readFrame(byte expectedType) throws IOException {
+            if (!request.hasNext()) {
+                return null;
+            }
+            Frame frame = request.next();
+            if (frame.type != expectedType) {
+                throw new IOException("Expected frame " + (char) expectedType + " but got " + (char) frame.type);
+            }
+            return frame.payload;
+        }
+
+        @Override
+        String readLine() throws IOException {
+            byte[] payload = readFrame(FRAME_TEXT);
+            if (payload == null) {
+                return null;
+            }
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        BodyAndClassLoader readBody() throws IOException {
+            byte[] body = readFrame(FRAME_BYTES);
+            if (body == null) {
+                return null;
+            }
+            return new BodyAndClassLoader(body, decodeClassloader(readLine()));
+        }
+
+        private void writeFrame(byte type, byte[] payload) throws IOException {
+            out.writeByte(type);
+            out.writeInt(id);
+            out.writeInt(payload.length);
+            out.write(payload);
+            if (collected.size() >= CHUNK) {
+                sendCollected();
+            }
+        }
+
+        private void sendCollected() throws IOException {
+            if (collected.size() > 0) {
+                send(ByteBuffer.wrap(collected.toByteArray()), mayBlock);
+                collected.reset();
+            }
+        }
+
+        @Override
+        void writeLine(String line) throws IOException {
+            writeFrame(FRAME_TEXT, line.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        void writeBytes(byte[] body) throws IOException {
+            writeFrame(FRAME_BYTES, body);
+        }
+
+        @Override
+        void writeEnd() throws IOException {
+            //end of list is the end of response, written by finish
+        }
+
+        /**
+         * Hands the collected frames to the session. It does not wait until they are written, the worker is only blocked
+         * by the watermark of the queue, not by responses of other requests of the session.
+         */
+        @Override
+        void flush() throws IOException {
+            sendCollected();
+        }
+
+        /**
+         * The response is finished at once, as the closing may stop the selector before the request returns.
+         * The session is closed by the selector thread, once the response is written.
+         */
+        @Override
+        void closeConnection() throws IOException {
+            finish();
+            closeRequested = true;
+        }
+
+        private void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            writeFrame(FRAME_END, new byte[0]);
+            sendCollected();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.jrd.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of what the agent does in the target, as listed by STATS command.
+ * Everything is lock free and of fixed size, so it can stay enabled in long running targets.
+ */
+final class AgentStats {
+
+    // commands are named by the client, so unknown ones share one histogram
+    private static final int MAX_COMMANDS = 64;
+    private static final String OTHER_COMMAND = "OTHER";
+
+    private final Map<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+    private final LatencyHistogram retransforms = new LatencyHistogram();
+    private final AtomicLong retransformedClasses = new AtomicLong();
+    private final AtomicLong failedRetransforms = new AtomicLong();
+    private final AtomicLong servedBodies = new AtomicLong();
+    private final AtomicLong servedBytes = new AtomicLong();
+    private final AtomicLong abortedCommands = new AtomicLong();
+    private final AtomicLong refusedClients = new AtomicLong();
+
+    /**
+     * @param aborted whether the command did not finish, eg. because the client was gone
+     */
+    void onCommand(String command, long nanos, boolean aborted) {
+        LatencyHistogram histogram = commands.get(command);
+        if (histogram == null) {
+            if (commands.size() >= MAX_COMMANDS) {
+                histogram = commands.computeIfAbsent(OTHER_COMMAND, c -> new LatencyHistogram());
+            } else {
+                histogram = commands.computeIfAbsent(command, c -> new LatencyHistogram());
+            }
+        }
+        histogram.add(nanos);
+        if (aborted) {
+            abortedCommands.incrementAndGet();
+        }
+    }
+
+    void onRetransform(int classes, long nanos, boolean failed) {
+        retransforms.add(nanos);
+        retransformedClasses.addAndGet(classes);
+        if (failed) {
+            failedRetransforms.incrementAndGet();
+        }
+    }
+
+    void onClientRefused() {
+        refusedClients.incrementAndGet();
+    }
+
+    void onBodyServed(int length) {
+        servedBodies.incrementAndGet();
+        servedBytes.addAndGet(length);
+    }
+
+    /**
+     * @param gauges current values of things the stats do not count themselves, eg. number of overrides
+     * @return one line per counter, gauge and histogram
+     */
+    List<String> toLines(Map<String, Long> gauges) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Long> gauge : gauges.entrySet()) {
+            lines.add(gauge.getKey() + " " + gauge.getValue());
+        }
+        lines.add("served.bodies " + servedBodies.get());
+        lines.add("served.bytes " + servedBytes.get());
+        lines.add("commands.aborted " + abortedCommands.get());
+        lines.add("clients.refused " + refusedClients.get());
+        lines.add("retransform.classes " + retransformedClasses.get());
+        lines.add("retransform.failed " + failedRetransforms.get());
+        lines.add("latency.retransform " + retransforms);
+        commands.entrySet().stream().sorted(Map.Entry.comparingByKey())
+                .forEach(command -> lines.add("latency.command." + command.getKey() + " " + command.getValue()));
+        return lines;
+    }
+
+    /**
+     * Histogram of durations in power of two buckets of nanoseconds. Percentiles are the upper bounds of their buckets,
+     * so they are overestimated by at most twice.
+     */
+    static final class LatencyHistogram {
+        // 2^40 ns is about 18 minutes, longer durations fall in the last bucket
+        private static final int BUCKETS = 41;
+        private static final long NANOS_PER_MICRO = 1000;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void add(long nanos) {
+            long duration = Math.max(0, nanos);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(duration));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            total.addAndGet(duration);
+            max.accumulateAndGet(duration, Math::max);
+        }
+
+        /**
+         * @param fraction eg. 0.99 for 99th percentile
+         * @return upper bound of the percentile in nanoseconds
+         */
+        long percentile(double fraction) {
+            long all = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                all += snapshot[i];
+            }
+            long wanted = (long) Math.ceil(all * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= wanted && seen > 0) {
+                    return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            long n = count.get();
+            return "count=" + n + " mean=" + micros(n == 0 ? 0 : total.get() / n) + " p50=" + micros(percentile(0.5)) + " p90=" +
+                    micros(percentile(0.9)) + " p99=" + micros(percentile(0.99)) + " max=" + micros(max.get());
+        }
+
+        private static String micros(long nanos) {
+            return nanos / NANOS_PER_MICRO + "us";
+        }
+    }
+}
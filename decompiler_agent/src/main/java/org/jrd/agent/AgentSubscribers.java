@@ -0,0 +1,158 @@
+package org.jrd.agent;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clients subscribed by SUBSCRIBE command, and the events they are told about: class defined, class redefined, and override added
+ * or removed. Event is published from the thread defining or retransforming the class, so publishing never blocks;
+ * each subscriber has bounded queue, and once it overflows, the subscriber is told so, and has to list the classes again.
+ * <p>
+ * Each event is one line: kind, class name and classloader, separated by '|'.
+ */
+final class AgentSubscribers {
+
+    static final String DEFINED = "DEFINED";
+    static final String REDEFINED = "REDEFINED";
+    static final String OVERRIDE_ADDED = "OVERRIDE_ADDED";
+    static final String OVERRIDE_REMOVED = "OVERRIDE_REMOVED";
+    static final String OVERFLOW = "OVERFLOW";
+
+    static final int MAX_SUBSCRIBERS = 16;
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final String DELIMITER = "|";
+    // returned to the subscriber, when the agent is being detached
+    private static final Event CLOSED = new Event(null, null, null, null);
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Publishes event of loaded class. Its name and classloader id are resolved by the subscribers, not by the publishing thread.
+     *
+     * @param kind one of the event kinds
+     * @param className name of the class, with dots or slashes
+     * @param loader classloader of the class, null for bootstrap one
+     */
+    void publish(String kind, String className, ClassLoader loader) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        offer(new Event(kind, className, loader == null ? null : ClassLoaderIds.key(loader), null));
+    }
+
+    /**
+     * @param kind one of the event kinds
+     * @param className binary name of the class, with dots
+     * @param classloader id of the classloader, null if unknown
+     */
+    void publish(String kind, String className, String classloader) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        offer(new Event(kind, className, null, classloader));
+    }
+
+    private void offer(Event event) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(event);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if there are too many subscribers already
+     */
+    synchronized Subscriber subscribe() {
+        if (subscribers.size() >= MAX_SUBSCRIBERS) {
+            throw new IllegalStateException("Too many subscribers, at most " + MAX_SUBSCRIBERS + " are allowed");
+        }
+        Subscriber subscriber = new Subscriber();
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    /**
+     * Ends all subscriptions, eg. when the agent is detached.
+     */
+    void closeAll() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    int getCount() {
+        return subscribers.size();
+    }
+
+    final class Subscriber implements AutoCloseable {
+        private final BlockingQueue<Event> events = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private volatile boolean overflowed;
+        private volatile boolean closed;
+
+        private Subscriber() {
+        }
+
+        private void offer(Event event) {
+            if (!events.offer(event)) {
+                overflowed = true;
+            }
+        }
+
+        /**
+         * @return next event, {@link #OVERFLOW} if some events were dropped, or null if nothing happened within the timeout
+         * @throws InterruptedException if interrupted while waiting
+         */
+        String next(long timeoutMillis) throws InterruptedException {
+            if (overflowed) {
+                // events queued before the overflow are useless, the client lists everything again
+                overflowed = false;
+                events.clear();
+                return OVERFLOW;
+            }
+            Event event = events.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            return event == null || event == CLOSED ? null : event.toLine();
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        @SuppressFBWarnings(
+                value = "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE", justification = "Full queue does not let the subscription wait."
+        )
+        public void close() {
+            closed = true;
+            subscribers.remove(this);
+            // wakes up the waiting subscription
+            events.offer(CLOSED);
+        }
+    }
+
+    /**
+     * Event as published; the line sent to the client is made by the subscriber.
+     */
+    private static final class Event {
+        private final String kind;
+        private final String className;
+        // key of the classloader, whose id is not resolved yet
+        private final ClassLoaderIds.Key loader;
+        private final String loaderId;
+
+        private Event(String kind, String className, ClassLoaderIds.Key loader, String loaderId) {
+            this.kind = kind;
+            this.className = className;
+            this.loader = loader;
+            this.loaderId = loaderId;
+        }
+
+        private String toLine() {
+            String id = loader == null ? loaderId : loader.getId();
+            return kind + DELIMITER + className.replace('/', '.') + DELIMITER + (id == null ? "unknown" : id);
+        }
+    }
+}
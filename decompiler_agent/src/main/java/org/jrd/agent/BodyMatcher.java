@@ -0,0 +1,172 @@
+package org.jrd.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Searches bytecode for a substring, directly in its bytes, without decoding them to strings.
+ * Strings are stored in class file in modified UTF-8, which differs from UTF-8 for NUL and supplementary characters,
+ * so the substring is searched in both encodings, each by Boyer-Moore-Horspool.
+ * <p>
+ * Search can be restricted to constant pool strings; the substring then must be part of one of them.
+ */
+final class BodyMatcher {
+
+    private static final int CONSTANT_POOL_START = 10;
+
+    private final byte[][] patterns;
+    private final int[][] shifts;
+    private final boolean constantPoolOnly;
+
+    BodyMatcher(String substring, boolean constantPoolOnly) {
+        List<byte[]> encodings = new ArrayList<>(2);
+        byte[] utf8 = substring.getBytes(StandardCharsets.UTF_8);
+        encodings.add(utf8);
+        byte[] modifiedUtf8 = toModifiedUtf8(substring);
+        if (modifiedUtf8 != null && !Arrays.equals(utf8, modifiedUtf8)) {
+            encodings.add(modifiedUtf8);
+        }
+        this.patterns = encodings.toArray(new byte[0][]);
+        this.shifts = new int[patterns.length][];
+        for (int i = 0; i < patterns.length; i++) {
+            shifts[i] = shifts(patterns[i]);
+        }
+        this.constantPoolOnly = constantPoolOnly;
+    }
+
+    private static byte[] toModifiedUtf8(String s) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(s.length() + 2);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(s);
+        } catch (IOException ex) {
+            // too long to be in constant pool
+            return null;
+        }
+        byte[] withLength = bytes.toByteArray();
+        return Arrays.copyOfRange(withLength, 2, withLength.length);
+    }
+
+    private static int[] shifts(byte[] pattern) {
+        int[] shift = new int[256];
+        Arrays.fill(shift, pattern.length);
+        for (int i = 0; i < pattern.length - 1; i++) {
+            shift[pattern[i] & 0xff] = pattern.length - 1 - i;
+        }
+        return shift;
+    }
+
+    boolean matches(byte[] body) {
+        if (constantPoolOnly) {
+            int[] strings = constantPoolStrings(body);
+            if (strings != null) {
+                for (int i = 0; i < strings.length; i += 2) {
+                    if (contains(body, strings[i], strings[i + 1])) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            // not parseable, eg. of newer class file version; search it whole
+        }
+        return contains(body, 0, body.length);
+    }
+
+    private boolean contains(byte[] body, int from, int to) {
+        for (int i = 0; i < patterns.length; i++) {
+            if (indexOf(body, from, to, patterns[i], shifts[i]) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] body, int from, int to, byte[] pattern, int[] shift) {
+        if (pattern.length == 0) {
+            return from;
+        }
+        int last = pattern.length - 1;
+        int i = from;
+        while (i + last < to) {
+            int j = last;
+            while (body[i + j] == pattern[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += shift[body[i + last] & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * @return pairs of start and end of each CONSTANT_Utf8 in the body, or null, if the constant pool can not be parsed
+     */
+    @SuppressWarnings({"CyclomaticComplexity", "ReturnCount"}) // switch over constant tags
+    private static int[] constantPoolStrings(byte[] body) {
+        if (body.length < CONSTANT_POOL_START) {
+            return null;
+        }
+        int count = u2(body, CONSTANT_POOL_START - 2);
+        int[] strings = new int[count * 2];
+        int found = 0;
+        int offset = CONSTANT_POOL_START;
+        int index = 1;
+        while (index < count) {
+            if (offset >= body.length) {
+                return null;
+            }
+            int tag = body[offset];
+            switch (tag) {
+                case 1: // Utf8
+                    if (offset + 3 > body.length) {
+                        return null;
+                    }
+                    int length = u2(body, offset + 1);
+                    strings[found++] = offset + 3;
+                    strings[found++] = Math.min(body.length, offset + 3 + length);
+                    offset += 3 + length;
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    offset += 3;
+                    break;
+                case 15: // MethodHandle
+                    offset += 4;
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    offset += 5;
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    offset += 9;
+                    // takes two entries
+                    index++;
+                    break;
+                default:
+                    return null;
+            }
+            index++;
+        }
+        return Arrays.copyOf(strings, found);
+    }
+
+    private static int u2(byte[] body, int offset) {
+        return ((body[offset] & 0xff) << 8) | (body[offset + 1] & 0xff);
+    }
+}
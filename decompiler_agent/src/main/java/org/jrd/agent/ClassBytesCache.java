@@ -0,0 +1,200 @@
+package org.jrd.agent;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Bytecode of classes, as last seen by the {@link Transformer}, so it does not need to be retransformed again.
+ * The transformer updates the cache whenever the class is retransformed or redefined, by anyone.
+ * Each change of bytecode is stamped by new generation, so the client can ask whether the class changed since.
+ * <p>
+ * Classes are weakly keyed, so they can be unloaded; bytecode of unloaded classes is subtracted from the total once they
+ * are collected. Total size of cached bytecode is bounded; least recently used bytecode is dropped first, but its generation
+ * is remembered.
+ * With zero bound, no bytecode is cached, only the generations are.
+ */
+final class ClassBytesCache {
+
+    static final long NO_GENERATION = -1;
+    private static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private long maxBytes;
+    private final Map<Class<?>, Entry> entries = new WeakHashMap<>();
+    private final ReferenceQueue<Class<?>> collected = new ReferenceQueue<>();
+    // generations of agent started later are higher, so generation known by client from previous agent is never current
+    private long lastGeneration = System.currentTimeMillis() * 1000;
+    private long lastUse;
+    private long cachedBytes;
+
+    ClassBytesCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    ClassBytesCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Called by transformer, with bytecode the class have after the transformation.
+     */
+    synchronized void onTransformed(Class<?> clazz, byte[] bytes) {
+        expunge();
+        Entry entry = entries.get(clazz);
+        if (entry == null) {
+            entry = new Entry(clazz, collected);
+            entries.put(clazz, entry);
+        } else if (entry.bytes != null) {
+            if (Arrays.equals(entry.bytes, bytes)) {
+                entry.lastUse = ++lastUse;
+                return;
+            }
+            cachedBytes -= entry.bytes.length;
+            entry.bytes = null;
+        }
+        entry.generation = ++lastGeneration;
+        entry.lastUse = ++lastUse;
+        if (maxBytes == 0) {
+            return;
+        }
+        entry.bytes = bytes;
+        cachedBytes += bytes.length;
+        evict(entry);
+    }
+
+    /**
+     * @return cached bytecode with its generation, or null if the class was never seen.
+     * Bytes of returned value are null, if they were dropped from cache
+     */
+    synchronized Versioned get(Class<?> clazz) {
+        expunge();
+        Entry entry = entries.get(clazz);
+        if (entry == null) {
+            return null;
+        }
+        entry.lastUse = ++lastUse;
+        return new Versioned(entry.bytes, entry.generation);
+    }
+
+    /**
+     * @param newMaxBytes bound of cached bytecode, zero to cache none; bytecode over the new bound is dropped at once
+     */
+    synchronized void setMaxBytes(long newMaxBytes) {
+        if (newMaxBytes < 0) {
+            throw new IllegalArgumentException("Cache size can not be negative: " + newMaxBytes);
+        }
+        maxBytes = newMaxBytes;
+        expunge();
+        evict(null);
+    }
+
+    synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    synchronized int size() {
+        expunge();
+        return entries.size();
+    }
+
+    synchronized long getCachedBytes() {
+        expunge();
+        return cachedBytes;
+    }
+
+    /**
+     * Forgets the bytecode of class, whose transformation did not take effect, eg. because its redefinition was rejected.
+     * The generation is changed, so clients re-read the class.
+     */
+    synchronized void invalidate(Class<?> clazz) {
+        Entry entry = entries.get(clazz);
+        if (entry == null) {
+            return;
+        }
+        if (entry.bytes != null) {
+            cachedBytes -= entry.bytes.length;
+            entry.bytes = null;
+        }
+        entry.generation = ++lastGeneration;
+    }
+
+    /**
+     * Subtracts bytecode of collected classes. Their entries are removed from the map by the map itself.
+     */
+    private void expunge() {
+        Reference<? extends Class<?>> reference;
+        while ((reference = collected.poll()) != null) {
+            Entry entry = (Entry) reference;
+            if (entry.bytes != null) {
+                cachedBytes -= entry.bytes.length;
+                entry.bytes = null;
+            }
+        }
+    }
+
+    /**
+     * Once over the limit, drops more than needed, so the eviction, sorting all entries, is not repeated by each transformation.
+     */
+    private void evict(Entry keep) {
+        if (cachedBytes <= maxBytes) {
+            return;
+        }
+        List<Entry> candidates = new ArrayList<>();
+        for (Entry candidate : entries.values()) {
+            if (candidate != keep && candidate.bytes != null) {
+                candidates.add(candidate);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(e -> e.lastUse));
+        for (Entry oldest : candidates) {
+            if (cachedBytes <= maxBytes / 4 * 3) {
+                return;
+            }
+            cachedBytes -= oldest.bytes.length;
+            oldest.bytes = null;
+        }
+    }
+
+    /**
+     * Refers the class weakly, so it is enqueued once the class is collected, and its bytecode can be subtracted.
+     */
+    private static final class Entry extends WeakReference<Class<?>> {
+        private byte[] bytes;
+        private long generation;
+        private long lastUse;
+
+        private Entry(Class<?> clazz, ReferenceQueue<Class<?>> queue) {
+            super(clazz, queue);
+        }
+    }
+
+    /**
+     * Bytecode of class together with generation in which it was seen.
+     */
+    static final class Versioned {
+        private final byte[] bytes;
+        private final long generation;
+
+        Versioned(byte[] bytes, long generation) {
+            this.bytes = bytes;
+            this.generation = generation;
+        }
+
+        /**
+         * @return the bytecode, or null if not known
+         */
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        long getGeneration() {
+            return generation;
+        }
+    }
+}
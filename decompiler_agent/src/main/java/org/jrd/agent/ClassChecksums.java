@@ -0,0 +1,56 @@
+package org.jrd.agent;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * Checksums of bytecode, so the client can compare classes of many targets without transferring their bytecode.
+ * CRC32C is cheap and good enough to detect drift; SHA-256 is there, when the checksums must not collide.
+ */
+final class ClassChecksums {
+
+    static final String CRC32C = "crc32c";
+    static final String SHA256 = "sha256";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ClassChecksums() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if the algorithm is not known
+     */
+    static void check(String algorithm) {
+        if (!CRC32C.equals(algorithm) && !SHA256.equals(algorithm)) {
+            throw new IllegalArgumentException("Unknown checksum algorithm: " + algorithm + ". Known are " + CRC32C + " and " + SHA256);
+        }
+    }
+
+    /**
+     * @return lowercase hexadecimal checksum of the body
+     */
+    static String checksum(byte[] body, String algorithm) {
+        if (CRC32C.equals(algorithm)) {
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            return String.format("%08x", crc.getValue());
+        }
+        check(algorithm);
+        try {
+            return toHex(MessageDigest.getInstance("SHA-256").digest(body));
+        } catch (NoSuchAlgorithmException ex) {
+            // every java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
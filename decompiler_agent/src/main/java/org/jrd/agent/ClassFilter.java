@@ -1,6 +1,5 @@
 package org.jrd.agent;
 
-import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 import java.util.regex.Pattern;
 
@@ -8,10 +7,16 @@ public class ClassFilter {
 
     private final Pattern nameFilter;
     private final String bodySubstring;
+    private final BodyMatcher bodyMatcher;
 
     public ClassFilter(Optional<String> nameFilter, Optional<String> bodySubstring) {
+        this(nameFilter, bodySubstring, false);
+    }
+
+    ClassFilter(Optional<String> nameFilter, Optional<String> bodySubstring, boolean constantPoolOnly) {
         this.nameFilter = Pattern.compile(nameFilter.orElseGet(() -> ".*"));
         this.bodySubstring = bodySubstring.orElseGet(() -> "");
+        this.bodyMatcher = new BodyMatcher(this.bodySubstring, constantPoolOnly);
     }
 
     public static Optional<ClassFilter> create(String substringAndRegexLine) {
@@ -29,23 +34,18 @@ public class ClassFilter {
                 .of(new ClassFilter(Optional.of(substringAndRegex[0]), Optional.of(AgentActionWorker.base64toSring(substringAndRegex[1]))));
     }
 
-    public boolean match(InstrumentationProvider instrumentationProvider, Class loadedClass, String classLoader) {
-        try {
-            if (nameFilter.matcher(loadedClass.getName()).matches()) {
-                byte[] b = instrumentationProvider.getClassBody(loadedClass, classLoader);
-                String ascii = new String(b, StandardCharsets.US_ASCII);
-                if (ascii.contains(bodySubstring)) {
-                    return true;
-                } else {
-                    String utf8 = new String(b, StandardCharsets.UTF_8);
-                    if (utf8.contains(bodySubstring)) {
-                        return true;
-                    }
-                }
-            }
-            return false;
-        } catch (Exception ex) {
-            return false;
-        }
+    boolean matchesName(Class<?> loadedClass) {
+        return nameFilter.matcher(loadedClass.getName()).matches();
+    }
+
+    /**
+     * @return whether the body must be searched at all
+     */
+    boolean hasBodySubstring() {
+        return !bodySubstring.isEmpty();
+    }
+
+    boolean matchesBody(byte[] body) {
+        return bodyMatcher.matches(body);
     }
 }
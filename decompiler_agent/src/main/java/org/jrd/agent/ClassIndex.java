@@ -0,0 +1,136 @@
+package org.jrd.agent;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Index of loaded classes by their names, so the class can be found without scanning all the loaded classes.
+ * Classes are held weakly, so they can still be unloaded.
+ * The index is built lazily, and rebuilt when the class is not found in it, which picks up the classes loaded since.
+ * It is stamped by the count of class definitions seen by the transformer, so a miss rebuilds it only if some class was defined
+ * since the last build. The count and the listed classes can disagree, eg. for class whose definition is in progress while
+ * the index is built, so the miss of up to date index is confirmed by scanning the loaded classes, without building the index.
+ */
+final class ClassIndex {
+
+    private final Instrumentation instrumentation;
+    private final LongSupplier definitions;
+    // never modified once published; null until first lookup
+    private volatile Snapshot index;
+
+    /**
+     * @param definitions count of classes defined so far, never decreasing
+     */
+    ClassIndex(Instrumentation instrumentation, LongSupplier definitions) {
+        this.instrumentation = instrumentation;
+        this.definitions = definitions;
+    }
+
+    /**
+     * @param className name of the class
+     * @param matches additional condition, eg. on classloader
+     * @return first loaded class of given name matching the condition, or null
+     */
+    Class<?> find(String className, Predicate<Class<?>> matches) {
+        Snapshot seen = index;
+        if (seen != null) {
+            Class<?> found = find(seen, className, matches);
+            if (found != null) {
+                return found;
+            }
+        }
+        Snapshot rebuilt = rebuild(seen, false);
+        if (rebuilt != seen) {
+            Class<?> found = find(rebuilt, className, matches);
+            if (found != null) {
+                return found;
+            }
+        }
+        return scan(rebuilt, className, matches);
+    }
+
+    private static Class<?> find(Snapshot from, String className, Predicate<Class<?>> matches) {
+        List<WeakReference<Class<?>>> candidates = from.classes.get(className);
+        if (candidates == null) {
+            return null;
+        }
+        for (WeakReference<Class<?>> candidate : candidates) {
+            Class<?> clazz = candidate.get();
+            if (clazz != null && matches.test(clazz)) {
+                return clazz;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Authoritative lookup, in case the index missed the class. If it did, the index is rebuilt, so the class is not scanned for again.
+     * Names never loaded, or rejected by the condition, are scanned for on each lookup, but that is still cheaper than the rebuild.
+     */
+    private Class<?> scan(Snapshot missed, String className, Predicate<Class<?>> matches) {
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (clazz.getName().equals(className) && matches.test(clazz)) {
+                rebuild(missed, true);
+                return clazz;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Unlike {@link #find}, never rebuilds the index.
+     *
+     * @return first class of given name matching the condition, as of last rebuild of the index, or null
+     */
+    Class<?> findIndexed(String className, Predicate<Class<?>> matches) {
+        Snapshot seen = index;
+        return seen == null ? null : find(seen, className, matches);
+    }
+
+    /**
+     * Rebuilds the index, if any class was defined since it was built, so it contains all the classes loaded until now.
+     */
+    void refresh() {
+        rebuild(index, false);
+    }
+
+    /**
+     * @param seen the index in which the class was not found
+     * @param force whether to rebuild even if no class was defined since, as the index is known to miss some
+     * @return new index, or the current one, if it was already rebuilt by someone else since the miss, or no class was defined since
+     */
+    private synchronized Snapshot rebuild(Snapshot seen, boolean force) {
+        if (index != seen) {
+            return index;
+        }
+        if (!force && seen != null && seen.definitions == definitions.getAsLong()) {
+            return seen;
+        }
+        Class<?>[] classes = instrumentation.getAllLoadedClasses();
+        // read after listing the classes, so all the counted definitions had the chance to be listed; the rest is found by scan
+        long stamp = definitions.getAsLong();
+        Map<String, List<WeakReference<Class<?>>>> rebuilt = new HashMap<>(classes.length * 4 / 3 + 1);
+        for (Class<?> clazz : classes) {
+            rebuilt.computeIfAbsent(clazz.getName(), k -> new ArrayList<>(1)).add(new WeakReference<>(clazz));
+        }
+        index = new Snapshot(rebuilt, stamp);
+        return index;
+    }
+
+    private static final class Snapshot {
+        private final Map<String, List<WeakReference<Class<?>>>> classes;
+        // count of definitions after the classes were listed
+        private final long definitions;
+
+        private Snapshot(Map<String, List<WeakReference<Class<?>>>> classes, long definitions) {
+            this.classes = classes;
+            this.definitions = definitions;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.jrd.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Journal of class definitions, as seen by the {@link Transformer}, and of class unloads, so the client can refresh its listing
+ * by what changed since it listed the classes last time.
+ * <p>
+ * Classes are unloaded only together with their classloader, so the unload is recorded once per collected classloader.
+ * Each event is stamped by a sequence number. The journal is bounded; once the client's sequence is no longer covered by it,
+ * the client has to list all the classes again.
+ * <p>
+ * Classes are defined by many threads at once, so the events are written into a ring without locking. Ids of classloaders are
+ * resolved only when the events are read, as the toString of foreign classloader must not run on the class loading path.
+ */
+final class ClassJournal {
+
+    private static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    private final AtomicReferenceArray<Event> events;
+    // sequences of agent started later are higher, so sequence known by client from previous agent is never covered
+    private final long firstSequence = System.currentTimeMillis() * 1000;
+    // last sequence taken by a writer, its event may not be written yet
+    private final AtomicLong lastSequence = new AtomicLong(firstSequence);
+    // last sequence up to which all events are written, the readers see only those
+    private final AtomicLong published = new AtomicLong(firstSequence);
+    // classloaders of recorded classes, the readers record unloads of those collected since
+    private final Set<ClassLoaderIds.Key> loaders = ConcurrentHashMap.newKeySet();
+
+    ClassJournal() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    ClassJournal(int capacity) {
+        this.events = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Called by transformer, when class is being defined.
+     *
+     * @param className internal name of the class
+     * @param loader defining classloader, null for bootstrap one
+     */
+    void onDefined(String className, ClassLoader loader) {
+        if (className == null) {
+            return;
+        }
+        ClassLoaderIds.Key loaderKey = null;
+        if (loader != null) {
+            loaderKey = ClassLoaderIds.key(loader);
+            if (!loaders.contains(loaderKey)) {
+                loaders.add(loaderKey);
+            }
+        }
+        append(className, loaderKey);
+    }
+
+    /**
+     * @return sequence of the last recorded event
+     */
+    long getLastSequence() {
+        pollCollectedLoaders();
+        return published.get();
+    }
+
+    /**
+     * @param sequence sequence of the last event the client knows about
+     * @return events after the sequence, or null, if some of them are no longer in the journal
+     */
+    List<Event> since(long sequence) {
+        pollCollectedLoaders();
+        long last = published.get();
+        long oldestCovered = Math.max(firstSequence, last - events.length());
+        if (sequence < oldestCovered || sequence > last) {
+            return null;
+        }
+        List<Event> result = new ArrayList<>((int) (last - sequence));
+        for (long s = sequence + 1; s <= last; s++) {
+            Event event = events.get(index(s));
+            if (event.sequence != s) {
+                // overwritten by writers meanwhile
+                return null;
+            }
+            result.add(event);
+        }
+        return result;
+    }
+
+    private void pollCollectedLoaders() {
+        for (ClassLoaderIds.Key loader : loaders) {
+            // removal decides which of the concurrent readers records the unload
+            if (loader.get() == null && loaders.remove(loader)) {
+                append(null, loader);
+            }
+        }
+    }
+
+    private void append(String className, ClassLoaderIds.Key loader) {
+        long sequence = lastSequence.incrementAndGet();
+        events.set(index(sequence), new Event(sequence, className, loader));
+        publish();
+    }
+
+    /**
+     * Moves the published sequence over all the written events, including those written by other threads meanwhile.
+     * Event whose writer did not finish yet stops it; that writer moves it further once it finishes.
+     */
+    private void publish() {
+        long last;
+        while ((last = published.get()) < lastSequence.get()) {
+            Event next = events.get(index(last + 1));
+            if (next == null || next.sequence <= last) {
+                return;
+            }
+            published.compareAndSet(last, last + 1);
+        }
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % events.length());
+    }
+
+    /**
+     * Definition of class, or unload of all classes of classloader.
+     */
+    static final class Event {
+        private final long sequence;
+        private final String className;
+        private final ClassLoaderIds.Key classloader;
+
+        private Event(long sequence, String className, ClassLoaderIds.Key classloader) {
+            this.sequence = sequence;
+            this.className = className;
+            this.classloader = classloader;
+        }
+
+        boolean isUnload() {
+            return className == null;
+        }
+
+        /**
+         * @return name of defined class, null for unload
+         */
+        String getClassName() {
+            return className == null ? null : className.replace('/', '.');
+        }
+
+        /**
+         * @return id of the classloader, or null if it was collected before anyone asked for its id, so no client knows it
+         */
+        String getClassloader() {
+            return classloader == null ? AgentLogger.classLoaderId(null) : classloader.getId();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.jrd.agent;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ids of classloaders, as the clients see them, computed once per classloader. The id is {@link ClassLoader#toString()}, which
+ * may be expensive for some application classloaders, while it is needed for every transformed or listed class, and every
+ * classloader check.
+ * <p>
+ * Classloaders are held weakly and compared by identity, as they may override equals. Once computed, the id of the classloader
+ * does not change, even if its toString would. Each classloader has single {@link Key}, so the id computed by anyone is known
+ * to everyone holding the key, even after the classloader is collected.
+ */
+final class ClassLoaderIds {
+
+    // keyed by Key, looked up by Lookup, so no reference is created just to find the key
+    private static final Map<Object, Key> KEYS = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<ClassLoader> COLLECTED = new ReferenceQueue<>();
+
+    private ClassLoaderIds() {
+    }
+
+    static String get(ClassLoader loader) {
+        return key(loader).getId();
+    }
+
+    /**
+     * @return key of the classloader, without computing its id
+     */
+    static Key key(ClassLoader loader) {
+        Key key = KEYS.get(new Lookup(loader));
+        if (key != null) {
+            return key;
+        }
+        expunge();
+        Key created = new Key(loader);
+        Key previous = KEYS.putIfAbsent(created, created);
+        return previous == null ? created : previous;
+    }
+
+    static int size() {
+        return KEYS.size();
+    }
+
+    private static void expunge() {
+        Reference<? extends ClassLoader> collected;
+        while ((collected = COLLECTED.poll()) != null) {
+            KEYS.remove(collected);
+        }
+    }
+
+    private interface LoaderKey {
+        ClassLoader getLoader();
+    }
+
+    /**
+     * Equal to other key of the same classloader. Once the classloader is collected, equal to itself only.
+     */
+    private static boolean equals(LoaderKey key, Object obj) {
+        if (key == obj) {
+            return true;
+        }
+        if (!(obj instanceof LoaderKey)) {
+            return false;
+        }
+        ClassLoader loader = key.getLoader();
+        return loader != null && loader == ((LoaderKey) obj).getLoader();
+    }
+
+    static final class Key extends WeakReference<ClassLoader> implements LoaderKey {
+        private final int hash;
+        private volatile String id;
+
+        private Key(ClassLoader loader) {
+            super(loader, COLLECTED);
+            this.hash = System.identityHashCode(loader);
+        }
+
+        /**
+         * @return id of the classloader, computed by the first call; null if the classloader was collected before anyone asked
+         */
+        String getId() {
+            String known = id;
+            if (known != null) {
+                return known;
+            }
+            ClassLoader loader = get();
+            if (loader == null) {
+                return null;
+            }
+            // computed outside of any lock, toString of the classloader may load classes, and so call back here
+            String computed = loader.toString();
+            synchronized (this) {
+                if (id == null) {
+                    id = computed;
+                }
+                return id;
+            }
+        }
+
+        @Override
+        public ClassLoader getLoader() {
+            return get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return ClassLoaderIds.equals(this, obj);
+        }
+    }
+
+    private static final class Lookup implements LoaderKey {
+        private final ClassLoader loader;
+
+        private Lookup(ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public ClassLoader getLoader() {
+            return loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(loader);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return ClassLoaderIds.equals(this, obj);
+        }
+    }
+}
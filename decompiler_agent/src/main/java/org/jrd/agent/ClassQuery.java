@@ -0,0 +1,150 @@
+package org.jrd.agent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Predicates and paging of the class listing, so only the classes the client asked for are sent to it.
+ * Parsed from one line of whitespace separated key=value pairs, any of which can be omitted:
+ * <ul>
+ * <li>name=base64 regex - class name must match at least one of them; repeatable</li>
+ * <li>module=base64 module name or regex</li>
+ * <li>lambdas=true/false - whether to list lambda classes</li>
+ * <li>arrays=true/false - whether to list array classes</li>
+ * <li>body=base64 substring - class body must contain it, as in SEARCH_CLASSES</li>
+ * <li>constantpool=true/false - whether to search the body substring only in constant pool strings</li>
+ * <li>info=true/false - whether to list details, as CLASSES_WITH_INFO does</li>
+ * <li>offset=number, limit=number - page of the listing; paged listing is sorted by class name</li>
+ * </ul>
+ */
+final class ClassQuery {
+
+    private static final String UNNAMED_MODULE = "unnamed";
+
+    private final List<Pattern> names = new ArrayList<>();
+    private String module;
+    private String body;
+    private boolean constantPool;
+    private boolean lambdas = true;
+    private boolean arrays = true;
+    private boolean info;
+    private int offset;
+    private int limit = -1;
+
+    private ClassQuery() {
+    }
+
+    static ClassQuery parse(String line) throws IOException {
+        ClassQuery query = new ClassQuery();
+        if (line == null) {
+            return query;
+        }
+        for (String param : line.trim().split("\\s+")) {
+            if (!param.isEmpty()) {
+                query.set(param);
+            }
+        }
+        return query;
+    }
+
+    @SuppressWarnings("CyclomaticComplexity") // switch over keys
+    private void set(String param) throws IOException {
+        String[] keyAndValue = param.split("=", 2);
+        if (keyAndValue.length != 2) {
+            throw new IOException("bad query parameter " + param);
+        }
+        String value = keyAndValue[1];
+        try {
+            switch (keyAndValue[0]) {
+                case "name":
+                    names.add(Pattern.compile(AgentActionWorker.base64toSring(value)));
+                    break;
+                case "module":
+                    module = AgentActionWorker.base64toSring(value);
+                    break;
+                case "body":
+                    body = AgentActionWorker.base64toSring(value);
+                    break;
+                case "constantpool":
+                    constantPool = Boolean.parseBoolean(value);
+                    break;
+                case "lambdas":
+                    lambdas = Boolean.parseBoolean(value);
+                    break;
+                case "arrays":
+                    arrays = Boolean.parseBoolean(value);
+                    break;
+                case "info":
+                    info = Boolean.parseBoolean(value);
+                    break;
+                case "offset":
+                    offset = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "limit":
+                    limit = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IOException("unknown query parameter " + keyAndValue[0]);
+            }
+        } catch (IllegalArgumentException ex) {
+            // also bad base64, number or regex
+            throw new IOException("bad query parameter " + param, ex);
+        }
+    }
+
+    /**
+     * @return filter searching in bodies of classes, or null if the bodies are not searched
+     */
+    ClassFilter getBodyFilter() {
+        if (body == null || body.isEmpty()) {
+            return null;
+        }
+        return new ClassFilter(Optional.empty(), Optional.of(body), constantPool);
+    }
+
+    boolean isInfo() {
+        return info;
+    }
+
+    /**
+     * @return whether the listing is paged, and so the matching classes must be collected and sorted before sending
+     */
+    boolean isPaged() {
+        return offset > 0 || limit >= 0;
+    }
+
+    boolean matches(Class<?> clazz) {
+        if (!arrays && clazz.isArray()) {
+            return false;
+        }
+        String name = clazz.getName();
+        if (!lambdas && name.contains("$$Lambda")) {
+            return false;
+        }
+        if (!names.isEmpty() && names.stream().noneMatch(pattern -> pattern.matcher(name).matches())) {
+            return false;
+        }
+        return module == null || Main.equalsOrMatching(moduleName(clazz), module);
+    }
+
+    private static String moduleName(Class<?> clazz) {
+        String name = AgentLogger.moduleId(clazz.getModule());
+        return name == null ? UNNAMED_MODULE : name;
+    }
+
+    /**
+     * @param sorted all matching items, sorted
+     * @return requested page of them
+     */
+    <T> List<T> page(List<T> sorted) {
+        if (offset >= sorted.size()) {
+            return Collections.emptyList();
+        }
+        int end = limit < 0 ? sorted.size() : (int) Math.min(sorted.size(), (long) offset + limit);
+        return sorted.subList(offset, end);
+    }
+}
@@ -2,22 +2,69 @@ package org.jrd.agent;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Single selector thread accepting the clients and waiting for their first bytes.
+ * One-shot requests are then handed, as blocking sockets, to small bounded pool of daemon worker threads.
+ * Sessions stay registered in the selector, which reads their frames and writes their responses;
+ * only the execution of their requests is done by the worker pool.
+ * Number of connected clients is capped, clients over the cap are refused by an error line.
+ */
 public final class ConnectionDelegator extends Thread {
 
     private static ConnectionDelegator connectionDelegator;
     public static final int DEFAULT_PORT = 5395;
     public static final String DEFAULT_ADDRESS = "localhost";
+    public static final int DEFAULT_WORKERS = 2;
+    public static final int DEFAULT_MAX_CLIENTS = 16;
+    // requests waiting for worker. Sessions may pipeline, so this is larger than max clients
+    private static final int MAX_QUEUED_REQUESTS = 1024;
+    private static final long IDLE_WORKER_SECONDS = 60;
+    // client not deciding between session and one-shot request in time is disconnected, so it does not hold its slot forever
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 5000;
 
-    private ServerSocket theServerSocket;
+    private final ServerSocketChannel theServerSocket;
+    private final Selector selector;
+    private final ThreadPoolExecutor workers;
+    private final int maxClients;
+    private final AtomicInteger clients = new AtomicInteger();
+    private final Queue<AgentSession> sessionsWantingToWrite = new ConcurrentLinkedQueue<>();
     private InstrumentationProvider provider;
     private static boolean running;
 
-    private ConnectionDelegator(InstrumentationProvider provider, ServerSocket serverSocket) {
+    private ConnectionDelegator(
+            InstrumentationProvider provider, ServerSocketChannel serverSocket, Selector selector, int workerCount, int maxClients
+    ) {
+        super("JRD agent selector");
         this.provider = provider;
         this.theServerSocket = serverSocket;
+        this.selector = selector;
+        this.maxClients = maxClients;
+        this.workers = new ThreadPoolExecutor(
+                workerCount, workerCount, IDLE_WORKER_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(MAX_QUEUED_REQUESTS),
+                new WorkerThreadFactory()
+        );
+        // idle agent should not keep any worker thread alive
+        this.workers.allowCoreThreadTimeOut(true);
         setDaemon(true);
     }
 
@@ -29,12 +76,15 @@ public final class ConnectionDelegator extends Thread {
      * @param port on which open socket
      * @param provider this is where instrumentation and transformer objects are
      * stored
-     *
-     * @return boolean true if ran correctly, else false
+     * @param workerCount size of pool executing the requests, null for default
+     * @param maxClients maximum number of concurrently connected clients, null for default
+     * @return port the agent listens on, which differs from the given one, if that was 0
      */
-    public static synchronized void initialize(String hostname, Integer port, InstrumentationProvider provider, String loneliness)
-            throws IOException {
-        ServerSocket initServerSocket = null;
+    public static synchronized int initialize(
+            String hostname, Integer port, InstrumentationProvider provider, String loneliness, Integer workerCount, Integer maxClients
+    ) throws IOException {
+        ServerSocketChannel initServerSocket = null;
+        Selector initSelector = null;
         try {
             if (port == null) {
                 port = DEFAULT_PORT;
@@ -42,10 +92,19 @@ public final class ConnectionDelegator extends Thread {
             if (hostname == null) {
                 hostname = DEFAULT_ADDRESS;
             }
-            initServerSocket = new ServerSocket();
+            initSelector = Selector.open();
+            initServerSocket = ServerSocketChannel.open();
             initServerSocket.bind(new InetSocketAddress(hostname, port));
+            initServerSocket.configureBlocking(false);
+            initServerSocket.register(initSelector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
             try {
+                if (initServerSocket != null) {
+                    initServerSocket.close();
+                }
+                if (initSelector != null) {
+                    initSelector.close();
+                }
                 Main.deregister(loneliness, port + "");
             } finally {
                 AgentLogger.getLogger().log(new RuntimeException("Exception occurred when opening the socket: ", e));
@@ -53,41 +112,260 @@ public final class ConnectionDelegator extends Thread {
             }
         }
 
-        connectionDelegator = new ConnectionDelegator(provider, initServerSocket);
+        connectionDelegator = new ConnectionDelegator(
+                provider, initServerSocket, initSelector, workerCount == null ? DEFAULT_WORKERS : workerCount,
+                maxClients == null ? DEFAULT_MAX_CLIENTS : maxClients
+        );
         connectionDelegator.start();
+        return initServerSocket.socket().getLocalPort();
     }
 
     /**
-     * Waits for new connection.
-     * When client connects starts new worker thread and delegates connection to it
+     * Waits for new connections and for data on the connected ones.
+     * When client sends first bytes, decides whether it is a session, or one-shot request, which is delegated to worker.
      */
     @Override
     public void run() {
         setRunning(true);
+        try {
+            while (running) {
+                // times out, so stale pending clients are closed even if nothing else happens
+                selector.select(HANDSHAKE_TIMEOUT_MILLIS);
+                registerWriters();
+                List<PendingClient> handedOver = new ArrayList<>();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        handleKey(key, handedOver);
+                    }
+                }
+                if (!handedOver.isEmpty()) {
+                    // flushes the cancelled keys, so the channels can be switched back to blocking mode
+                    selector.selectNow();
+                    for (PendingClient client : handedOver) {
+                        delegate(client);
+                    }
+                }
+                closeStalePendingClients();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            AgentLogger.getLogger().log(new RuntimeException("The selector failed, killing the thread.", e));
+        } finally {
+            shutdown();
+        }
+    }
 
-        while (running) {
-            if (theServerSocket.isClosed()) {
-                return;
+    private void handleKey(SelectionKey key, List<PendingClient> handedOver) {
+        try {
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.attachment() instanceof PendingClient) {
+                PendingClient client = (PendingClient) key.attachment();
+                if (!client.onReadable()) {
+                    return;
+                }
+                if (client.isSession()) {
+                    key.attach(new AgentSession(this, client.getChannel(), provider));
+                } else {
+                    key.cancel();
+                    handedOver.add(client);
+                }
+            } else if (key.attachment() instanceof AgentSession) {
+                serveSession(key, (AgentSession) key.attachment());
             }
-            Socket clientSocket = null;
-            try {
-                clientSocket = theServerSocket.accept();
-            } catch (IOException e) {
-                if (!theServerSocket.isClosed()) {
-                    AgentLogger.getLogger().log(new RuntimeException("The server socket is closed, killing the thread.", e));
+        } catch (IOException | RuntimeException ex) {
+            AgentLogger.getLogger().log(new RuntimeException("Error when serving the client", ex));
+            if (key.attachment() instanceof AgentSession) {
+                ((AgentSession) key.attachment()).close();
+            }
+            if (key.channel() instanceof SocketChannel) {
+                key.cancel();
+                closeClient((SocketChannel) key.channel());
+            }
+        }
+    }
+
+    private void closeStalePendingClients() {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof PendingClient) {
+                PendingClient client = (PendingClient) key.attachment();
+                if (now - client.getAcceptedAt() > TimeUnit.MILLISECONDS.toNanos(HANDSHAKE_TIMEOUT_MILLIS)) {
+                    AgentLogger.getLogger().log("Client sent no request in " + HANDSHAKE_TIMEOUT_MILLIS + "ms, disconnecting it.");
+                    key.cancel();
+                    closeClient(client.getChannel());
                 }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel clientSocket = theServerSocket.accept();
+        if (clientSocket == null) {
+            return;
+        }
+        if (clients.incrementAndGet() > maxClients) {
+            provider.getStats().onClientRefused();
+            refuse(clientSocket, "Agent refused connection, too many clients (" + maxClients + ").");
+            return;
+        }
+        clientSocket.configureBlocking(false);
+        clientSocket.register(selector, SelectionKey.OP_READ, new PendingClient(clientSocket));
+    }
+
+    private void refuse(SocketChannel clientSocket, String reason) {
+        try {
+            // best effort, socket buffer of fresh connection is empty
+            clientSocket.write(ByteBuffer.wrap(("ERROR " + reason + "\n").getBytes(StandardCharsets.UTF_8)));
+            clientSocket.shutdownOutput();
+            // unread request would make the close to reset the connection, and the client could lose the error
+            clientSocket.configureBlocking(false);
+            ByteBuffer unread = ByteBuffer.allocate(PendingClient.SESSION_LINE.length);
+            while (clientSocket.read(unread) > 0) {
+                unread.clear();
+            }
+        } catch (IOException ex) {
+            AgentLogger.getLogger().log(ex);
+        } finally {
+            closeClient(clientSocket);
+        }
+    }
+
+    private void closeClient(SocketChannel clientSocket) {
+        clients.decrementAndGet();
+        try {
+            clientSocket.close();
+        } catch (IOException ex) {
+            AgentLogger.getLogger().log(new RuntimeException("Error when closing the client socket", ex));
+        }
+    }
+
+    private void delegate(PendingClient client) {
+        SocketChannel clientSocket = client.getChannel();
+        try {
+            clientSocket.configureBlocking(true);
+            AgentActionWorker worker = new AgentActionWorker(clientSocket.socket(), client.getAlreadyRead(), provider);
+            workers.execute(() -> {
+                try {
+                    worker.run();
+                } finally {
+                    closeClient(clientSocket);
+                }
+            });
+        } catch (IOException ex) {
+            AgentLogger.getLogger().log(new RuntimeException("Error when delegating the client", ex));
+            closeClient(clientSocket);
+        } catch (RejectedExecutionException ex) {
+            refuse(clientSocket, "Agent refused request, too many queued requests.");
+        }
+    }
+
+    private void serveSession(SelectionKey key, AgentSession session) throws IOException {
+        if (key.isWritable() && !session.onWritable(key)) {
+            closeSession(key, session);
+            return;
+        }
+        if (key.isReadable() && !session.onReadable()) {
+            closeSession(key, session);
+        }
+    }
+
+    private void closeSession(SelectionKey key, AgentSession session) {
+        key.cancel();
+        session.close();
+        closeClient((SocketChannel) key.channel());
+    }
+
+    private void registerWriters() {
+        while (true) {
+            AgentSession session = sessionsWantingToWrite.poll();
+            if (session == null) {
                 return;
             }
-            new Thread(new AgentActionWorker(clientSocket, provider)).start();
+            SelectionKey key = session.getChannel().keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
         }
+    }
+
+    /**
+     * Called by workers, when they have queued some response for the session.
+     */
+    void wantsToWrite(AgentSession session) {
+        sessionsWantingToWrite.add(session);
+        selector.wakeup();
+    }
 
-        if (!theServerSocket.isClosed()) {
+    /**
+     * Executes request of session in the worker pool
+     *
+     * @throws RejectedExecutionException if there is too much requests queued
+     */
+    void execute(Runnable request) {
+        workers.execute(request);
+    }
+
+    private void shutdown() {
+        workers.shutdown();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof AgentSession) {
+                AgentSession session = (AgentSession) key.attachment();
+                try {
+                    // best effort, eg. answer of the HALT, which stopped the selector
+                    session.writeQueued();
+                } catch (IOException e) {
+                    AgentLogger.getLogger().log(e);
+                }
+                session.close();
+            }
             try {
-                theServerSocket.close();
+                key.channel().close();
             } catch (IOException e) {
-                AgentLogger.getLogger().log(new RuntimeException("Error when closing the server socket", e));
+                AgentLogger.getLogger().log(new RuntimeException("Error when closing the socket", e));
             }
         }
+        try {
+            theServerSocket.close();
+            selector.close();
+        } catch (IOException e) {
+            AgentLogger.getLogger().log(new RuntimeException("Error when closing the server socket", e));
+        }
+    }
+
+    /**
+     * Adds current numbers of clients and requests, as STATS command lists them.
+     */
+    static synchronized void putGauges(Map<String, Long> gauges) {
+        if (connectionDelegator == null) {
+            return;
+        }
+        gauges.put("clients.connected", (long) connectionDelegator.clients.get());
+        gauges.put("requests.active", (long) connectionDelegator.workers.getActiveCount());
+        gauges.put("requests.queued", (long) connectionDelegator.workers.getQueue().size());
+    }
+
+    /**
+     * Request holding its worker for long, as subscription does, grows the pool by one worker for its whole life,
+     * so the other requests are not starved by it. Must be paired with {@link #endLongRunning()}.
+     */
+    static synchronized void beginLongRunning() {
+        if (connectionDelegator != null) {
+            ThreadPoolExecutor pool = connectionDelegator.workers;
+            // maximum first, core size can never exceed it
+            pool.setMaximumPoolSize(pool.getMaximumPoolSize() + 1);
+            pool.setCorePoolSize(pool.getCorePoolSize() + 1);
+        }
+    }
+
+    static synchronized void endLongRunning() {
+        if (connectionDelegator != null) {
+            ThreadPoolExecutor pool = connectionDelegator.workers;
+            pool.setCorePoolSize(pool.getCorePoolSize() - 1);
+            pool.setMaximumPoolSize(pool.getMaximumPoolSize() - 1);
+        }
     }
 
     private static synchronized void setRunning(boolean isRunning) {
@@ -96,11 +374,79 @@ public final class ConnectionDelegator extends Thread {
 
     /**
      * Closes server socket
-     * Already connected clients can finish their work but no new clients can connect.
+     * Already running requests can finish their work but no new clients can connect.
      */
     public static void gracefulShutdown() {
         if (/*Agent was created by client*/true) {
             setRunning(false);
+            if (connectionDelegator != null) {
+                connectionDelegator.selector.wakeup();
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "JRD agent worker " + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Connection which did not yet send enough bytes to decide, whether it is session or not.
+     */
+    private static final class PendingClient {
+        private static final byte[] SESSION_LINE = (AgentSession.SESSION_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8);
+
+        private final SocketChannel channel;
+        private final ByteBuffer alreadyRead = ByteBuffer.allocate(SESSION_LINE.length);
+        private final long acceptedAt = System.nanoTime();
+        private boolean session;
+
+        private PendingClient(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private long getAcceptedAt() {
+            return acceptedAt;
+        }
+
+        /**
+         * @return true, if it is already decided
+         */
+        private boolean onReadable() throws IOException {
+            int read = channel.read(alreadyRead);
+            boolean prefixOfSession = true;
+            for (int i = 0; i < alreadyRead.position(); i++) {
+                if (alreadyRead.get(i) != SESSION_LINE[i]) {
+                    prefixOfSession = false;
+                    break;
+                }
+            }
+            if (prefixOfSession && alreadyRead.hasRemaining() && read >= 0) {
+                return false;
+            }
+            session = prefixOfSession && !alreadyRead.hasRemaining();
+            return true;
+        }
+
+        private SocketChannel getChannel() {
+            return channel;
+        }
+
+        private boolean isSession() {
+            return session;
+        }
+
+        private byte[] getAlreadyRead() {
+            byte[] r = new byte[alreadyRead.position()];
+            alreadyRead.flip();
+            alreadyRead.get(r);
+            return r;
         }
     }
 }
@@ -0,0 +1,551 @@
+package org.jrd.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index from constants the classes refer to, to the classes referring to them, as read from their constant pools.
+ * Referenced are classes, methods and fields (by owner and name, without descriptor) and string literals, eg.
+ * method:java.util.HashMap.put, field:java.lang.System.out, class:java.util.HashMap or string:hello.
+ * <p>
+ * Once enabled, the index is kept up to date by the {@link Transformer}, which indexes each class being defined,
+ * and each class retransformed with different bytecode. Classes are forgotten together with their classloader.
+ * Classes loaded before the index was enabled are indexed by {@link InstrumentationProvider}, once asked.
+ * Index growing over its limit is dropped, and stays disabled until dropped explicitly.
+ */
+final class ConstantPoolIndex {
+
+    static final String CLASS = "class";
+    static final String METHOD = "method";
+    static final String FIELD = "field";
+    static final String STRING = "string";
+
+    // link of class to constant it refers to takes about 50 bytes; big applications have few millions of them
+    static final long DEFAULT_MAX_LINKS = 2_000_000;
+
+    private static final int CONSTANT_POOL_START = 10;
+
+    private final long maxLinks;
+    private final Map<String, Referrers> referencing = new ConcurrentHashMap<>();
+    // keys compare the classloaders by identity, as they may override equals
+    private final Map<ClassLoaderIds.Key, LoaderReference> loaders = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ClassLoader> collectedLoaders = new ReferenceQueue<>();
+    private final LoaderReference bootLoader = new LoaderReference(null, null, null);
+    // shared by indexing classes, which lock only the classloader of the class; exclusive for drop
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean enabled;
+    // whether also the classes loaded before enabling are indexed
+    private volatile boolean complete;
+    // whether the index was dropped, as it grew over the limit; it can not be enabled again, until dropped explicitly
+    private volatile boolean overflowed;
+    // changed by each drop, so indexing started before the drop can not mark the index complete
+    private int generation;
+    private final AtomicInteger classes = new AtomicInteger();
+    private final AtomicLong links = new AtomicLong();
+
+    ConstantPoolIndex() {
+        this(DEFAULT_MAX_LINKS);
+    }
+
+    /**
+     * @param maxLinks limit of links between classes and constants they refer to, the index is dropped once over it
+     */
+    ConstantPoolIndex(long maxLinks) {
+        this.maxLinks = maxLinks;
+    }
+
+    /**
+     * @return generation of the index, to be passed to {@link #setComplete(int)} once the loaded classes are indexed
+     */
+    synchronized int enable() {
+        if (!overflowed) {
+            enabled = true;
+        }
+        return generation;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * @param enabledGeneration generation returned by {@link #enable()} before the loaded classes were indexed
+     * @return false if the index was dropped meanwhile, and so stays incomplete
+     */
+    synchronized boolean setComplete(int enabledGeneration) {
+        if (!enabled || generation != enabledGeneration) {
+            return false;
+        }
+        complete = true;
+        return true;
+    }
+
+    /**
+     * Disables the index, and forgets everything in it.
+     */
+    synchronized void drop() {
+        lock.writeLock().lock();
+        try {
+            clear();
+            overflowed = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private synchronized void overflow() {
+        lock.writeLock().lock();
+        try {
+            if (enabled) {
+                AgentLogger.getLogger().log("Index of references has over " + maxLinks + " links, dropping it.");
+                clear();
+                overflowed = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void clear() {
+        enabled = false;
+        complete = false;
+        generation++;
+        referencing.clear();
+        for (LoaderReference loaderReference : loaders.values()) {
+            loaderReference.classes.clear();
+        }
+        bootLoader.classes.clear();
+        loaders.clear();
+        classes.set(0);
+        links.set(0);
+    }
+
+    /**
+     * Called by transformer, when class is being defined.
+     *
+     * @param className internal name of the class
+     * @param loader defining classloader, null for bootstrap one
+     */
+    void onDefined(String className, ClassLoader loader, byte[] body) {
+        if (enabled && className != null) {
+            index(className.replace('/', '.'), loader, body, false);
+        }
+    }
+
+    /**
+     * Called by transformer, when class is retransformed. Index is updated only if the bytecode may differ from the indexed one.
+     *
+     * @param overridden whether the body is override of the class
+     */
+    void onTransformed(String className, ClassLoader loader, byte[] body, boolean overridden) {
+        if (enabled && (overridden || !isIndexedAsLoaded(className, loader))) {
+            index(className, loader, body, overridden);
+        }
+    }
+
+    boolean isIndexedAsLoaded(String className, ClassLoader loader) {
+        LoaderReference loaderReference = loader == null ? bootLoader : loaders.get(ClassLoaderIds.key(loader));
+        Entry entry = loaderReference == null ? null : loaderReference.classes.get(className);
+        return entry != null && !entry.overridden;
+    }
+
+    /**
+     * Indexes the class, replacing what was indexed for it before. Class whose constant pool can not be parsed is not indexed.
+     * Classes of different classloaders are indexed concurrently.
+     *
+     * @param overridden whether the body is override of the class
+     */
+    void index(String className, ClassLoader loader, byte[] body, boolean overridden) {
+        if (!enabled) {
+            return;
+        }
+        Set<String> references = references(className, body);
+        boolean over = false;
+        lock.readLock().lock();
+        try {
+            if (!enabled) {
+                return;
+            }
+            pollCollectedLoaders();
+            LoaderReference loaderReference = getLoaderReference(loader);
+            synchronized (loaderReference) {
+                Entry previous = loaderReference.classes.remove(className);
+                if (previous != null) {
+                    unlink(previous);
+                }
+                if (references == null) {
+                    return;
+                }
+                Entry entry = new Entry(className, loaderReference, overridden, new String[references.size()]);
+                int i = 0;
+                for (String reference : references) {
+                    // classes referring to the same constant share its string
+                    Referrers referrers = referencing.compute(reference, (key, existing) -> {
+                        Referrers linked = existing == null ? new Referrers(reference) : existing;
+                        linked.classes.add(entry);
+                        return linked;
+                    });
+                    entry.references[i++] = referrers.reference;
+                }
+                loaderReference.classes.put(className, entry);
+                classes.incrementAndGet();
+                over = links.addAndGet(references.size()) > maxLinks;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (over) {
+            overflow();
+        }
+    }
+
+    private LoaderReference getLoaderReference(ClassLoader loader) {
+        if (loader == null) {
+            return bootLoader;
+        }
+        return loaders.computeIfAbsent(ClassLoaderIds.key(loader), key -> new LoaderReference(loader, key, collectedLoaders));
+    }
+
+    private void unlink(Entry entry) {
+        for (String reference : entry.references) {
+            referencing.computeIfPresent(reference, (key, referrers) -> {
+                referrers.classes.remove(entry);
+                return referrers.classes.isEmpty() ? null : referrers;
+            });
+        }
+        classes.decrementAndGet();
+        links.addAndGet(-entry.references.length);
+    }
+
+    private void pollCollectedLoaders() {
+        LoaderReference collected;
+        while ((collected = (LoaderReference) collectedLoaders.poll()) != null) {
+            loaders.remove(collected.key, collected);
+            synchronized (collected) {
+                for (Entry entry : collected.classes.values()) {
+                    unlink(entry);
+                }
+                collected.classes.clear();
+            }
+        }
+    }
+
+    /**
+     * @param kind one of {@link #CLASS}, {@link #METHOD}, {@link #FIELD} or {@link #STRING}
+     * @param value the referenced constant, eg. java.util.HashMap.put for method
+     * @return pairs of name and classloader id of classes referring to the constant
+     */
+    List<String[]> find(String kind, String value) {
+        List<Entry> entries;
+        lock.readLock().lock();
+        try {
+            pollCollectedLoaders();
+            Referrers referrers = referencing.get(kind + ":" + value);
+            if (referrers == null) {
+                return new ArrayList<>(0);
+            }
+            entries = new ArrayList<>(referrers.classes);
+        } finally {
+            lock.readLock().unlock();
+        }
+        // ids are resolved outside of the lock, toString of the classloader may load classes, and so call back here
+        List<String[]> found = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            String id = entry.loader.getId();
+            if (id != null) {
+                found.add(new String[]{entry.className, id});
+            }
+        }
+        return found;
+    }
+
+    void putGauges(Map<String, Long> gauges) {
+        lock.readLock().lock();
+        try {
+            pollCollectedLoaders();
+        } finally {
+            lock.readLock().unlock();
+        }
+        gauges.put("references.classes", (long) classes.get());
+        gauges.put("references.constants", (long) referencing.size());
+        gauges.put("references.links", links.get());
+        gauges.put("references.overflowed", overflowed ? 1L : 0L);
+    }
+
+    /**
+     * @return references from the constant pool of the class, except to the class itself, or null if the pool can not be parsed
+     */
+    @SuppressWarnings({"CyclomaticComplexity", "ReturnCount"}) // switch over constant tags
+    static Set<String> references(String className, byte[] body) {
+        if (body == null || body.length < CONSTANT_POOL_START) {
+            return null;
+        }
+        int count = u2(body, CONSTANT_POOL_START - 2);
+        int[] offsets = new int[count];
+        int offset = CONSTANT_POOL_START;
+        int index = 1;
+        while (index < count) {
+            if (offset >= body.length) {
+                return null;
+            }
+            offsets[index] = offset;
+            switch (body[offset]) {
+                case 1: // Utf8
+                    if (offset + 3 > body.length) {
+                        return null;
+                    }
+                    offset += 3 + u2(body, offset + 1);
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    offset += 3;
+                    break;
+                case 15: // MethodHandle
+                    offset += 4;
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    offset += 5;
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    offset += 9;
+                    // takes two entries
+                    index++;
+                    break;
+                default:
+                    return null;
+            }
+            index++;
+        }
+        if (offset > body.length) {
+            return null;
+        }
+        try {
+            return new ConstantPool(body, offsets).references(className);
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private static int u2(byte[] body, int offset) {
+        return ((body[offset] & 0xff) << 8) | (body[offset + 1] & 0xff);
+    }
+
+    /**
+     * Parsed constant pool, whose strings are decoded lazily, as they are referenced.
+     */
+    private static final class ConstantPool {
+        private final byte[] body;
+        private final int[] offsets;
+        private final String[] strings;
+
+        ConstantPool(byte[] body, int[] offsets) {
+            this.body = body;
+            this.offsets = offsets;
+            this.strings = new String[offsets.length];
+        }
+
+        Set<String> references(String className) throws IOException {
+            Set<String> references = new LinkedHashSet<>();
+            for (int i = 1; i < offsets.length; i++) {
+                int offset = offsets[i];
+                if (offset == 0) {
+                    // second entry of long or double
+                    continue;
+                }
+                switch (body[offset]) {
+                    case 7:
+                        references.add(CLASS + ":" + className(i));
+                        break;
+                    case 8:
+                        references.add(STRING + ":" + utf8(u2(body, offset + 1)));
+                        break;
+                    case 9:
+                        references.add(FIELD + ":" + member(offset));
+                        break;
+                    case 10:
+                    case 11:
+                        references.add(METHOD + ":" + member(offset));
+                        break;
+                    default:
+                        break;
+                }
+            }
+            references.remove(CLASS + ":" + className);
+            return references;
+        }
+
+        private String className(int classIndex) throws IOException {
+            return utf8(u2(body, offsets[classIndex] + 1)).replace('/', '.');
+        }
+
+        private String member(int offset) throws IOException {
+            int nameAndType = offsets[u2(body, offset + 3)];
+            return className(u2(body, offset + 1)) + "." + utf8(u2(body, nameAndType + 1));
+        }
+
+        private String utf8(int index) throws IOException {
+            String s = strings[index];
+            if (s == null) {
+                int offset = offsets[index];
+                int length = u2(body, offset + 1);
+                // readUTF expects the length first, so it reads it again
+                s = new DataInputStream(new ByteArrayInputStream(body, offset + 1, length + 2)).readUTF();
+                strings[index] = s;
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Which referenced constant to look for, parsed from line of whitespace separated key=value pairs:
+     * one of class, method, field or string with base64 encoded value, and optional info=true/false,
+     * whether to list details of classes, as CLASSES_WITH_INFO does. Alternatively drop=true forgets the whole index.
+     */
+    static final class Query {
+        private String kind;
+        private String value;
+        private boolean info;
+        private boolean drop;
+
+        private Query() {
+        }
+
+        static Query parse(String line) throws IOException {
+            Query query = new Query();
+            if (line != null) {
+                for (String param : line.trim().split("\\s+")) {
+                    if (!param.isEmpty()) {
+                        query.set(param);
+                    }
+                }
+            }
+            if (query.kind == null && !query.drop) {
+                throw new IOException("No referenced " + CLASS + ", " + METHOD + ", " + FIELD + " or " + STRING + " given.");
+            }
+            return query;
+        }
+
+        private void set(String param) throws IOException {
+            String[] keyAndValue = param.split("=", 2);
+            if (keyAndValue.length != 2) {
+                throw new IOException("bad references parameter " + param);
+            }
+            switch (keyAndValue[0]) {
+                case CLASS:
+                case METHOD:
+                case FIELD:
+                case STRING:
+                    if (kind != null) {
+                        throw new IOException("Only one referenced constant can be given, not " + kind + " and " + keyAndValue[0]);
+                    }
+                    kind = keyAndValue[0];
+                    value = new String(Base64.getDecoder().decode(keyAndValue[1]), StandardCharsets.UTF_8);
+                    break;
+                case "info":
+                    info = Boolean.parseBoolean(keyAndValue[1]);
+                    break;
+                case "drop":
+                    drop = Boolean.parseBoolean(keyAndValue[1]);
+                    break;
+                default:
+                    throw new IOException("unknown references parameter " + keyAndValue[0]);
+            }
+        }
+
+        String getKind() {
+            return kind;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        boolean isInfo() {
+            return info;
+        }
+
+        boolean isDrop() {
+            return drop;
+        }
+    }
+
+    /**
+     * Classes referring to one constant. Changed only within {@link Map#compute} of its constant.
+     */
+    private static final class Referrers {
+        private final String reference;
+        private final Set<Entry> classes = ConcurrentHashMap.newKeySet(2);
+
+        private Referrers(String reference) {
+            this.reference = reference;
+        }
+    }
+
+    /**
+     * Indexed class, with the references it was indexed by, so it can be removed from the index.
+     */
+    private static final class Entry {
+        private final String className;
+        private final LoaderReference loader;
+        private final boolean overridden;
+        private final String[] references;
+
+        private Entry(String className, LoaderReference loader, boolean overridden, String[] references) {
+            this.className = className;
+            this.loader = loader;
+            this.overridden = overridden;
+            this.references = references;
+        }
+    }
+
+    /**
+     * Classes of one classloader. Guarded by itself; read without lock.
+     */
+    private static final class LoaderReference extends WeakReference<ClassLoader> {
+        private final Map<String, Entry> classes = new ConcurrentHashMap<>();
+        // null for bootstrap classloader
+        private final ClassLoaderIds.Key key;
+
+        LoaderReference(ClassLoader loader, ClassLoaderIds.Key key, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            this.key = key;
+        }
+
+        /**
+         * @return id of the classloader, or null if it was collected meanwhile
+         */
+        String getId() {
+            return key == null ? AgentLogger.classLoaderId(null) : key.getId();
+        }
+    }
+}
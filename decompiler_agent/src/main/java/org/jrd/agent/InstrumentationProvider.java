@@ -7,10 +7,25 @@ import java.lang.instrument.UnmodifiableClassException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Optional;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 
@@ -24,49 +39,148 @@ public class InstrumentationProvider {
 
     private final Transformer transformer;
     private final Instrumentation instrumentation;
+    private final ClassIndex classIndex;
+    private final AgentStats stats = new AgentStats();
+    private final AgentBudget budget = new AgentBudget();
+    // concurrent requests would only index the same classes twice
+    private final Object referencesIndexing = new Object();
     private final String loneliness;
     private final String origArgs;
-    private static final String INFO_DELIMITER = "|";
+    // system property where the bound port was published, cleared on detach
+    private volatile String portProperty;
+    static final String INFO_DELIMITER = "|";
+    private static final String CLASSES_RESET = "RESET";
+    private static final int SEARCH_BATCH = 256;
 
     InstrumentationProvider(Instrumentation inst, Transformer transformer, String loneliness, String origArgs) {
         this.transformer = transformer;
         this.instrumentation = inst;
+        this.classIndex = new ClassIndex(inst, transformer::getDefinitions);
         this.loneliness = loneliness;
         this.origArgs = origArgs;
     }
 
-    public void setClassBody(String cname, byte[] nwBody, String classloader) throws UnmodifiableClassException {
-        Class clazz = findClass(cname, classloader);
-        transformer.allowToSaveBytecode();
+    AgentStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Lists counters of the agent, and its current state, as STATS command returns it.
+     */
+    void getStats(ListSink sink) throws IOException {
+        Map<String, Long> gauges = new LinkedHashMap<>();
+        ConnectionDelegator.putGauges(gauges);
+        gauges.put("overrides", (long) transformer.getOverriddenFqns().size());
+        gauges.put("captures.classes", (long) transformer.getCapturingClasses());
+        gauges.put("cache.classes", (long) transformer.getBytesCache().size());
+        gauges.put("cache.bytes", transformer.getBytesCache().getCachedBytes());
+        gauges.put("cache.bytes.max", transformer.getBytesCache().getMaxBytes());
+        budget.putGauges(gauges);
+        transformer.getReferences().putGauges(gauges);
+        gauges.put("subscribers", (long) transformer.getSubscribers().getCount());
+        gauges.put("classloaders.ids", (long) ClassLoaderIds.size());
+        for (String line : stats.toLines(gauges)) {
+            sink.put(line);
+        }
+    }
+
+    void setPortProperty(String portProperty) {
+        this.portProperty = portProperty;
+    }
+
+    AgentBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return whether the index of references grew over its limit, and so can not be used until dropped
+     */
+    boolean isReferencesOverflowed() {
+        return transformer.getReferences().isOverflowed();
+    }
+
+    AgentSubscribers getSubscribers() {
+        return transformer.getSubscribers();
+    }
+
+    private void retransform(Class<?>... classes) throws UnmodifiableClassException {
+        AgentEvents.Operation event = AgentEvents.retransform(classes.length);
+        long start = System.nanoTime();
+        boolean failed = true;
         try {
-            transformer.setOverride(clazz.getName(), nwBody, AgentLogger.classLoaderId(clazz.getClassLoader()));
-            try {
-                instrumentation.retransformClasses(clazz);
-            } catch (Throwable ex) {
-                transformer.removeOverride(clazz.getName(), AgentLogger.classLoaderId(clazz.getClassLoader()));
-                throw ex;
-            }
+            instrumentation.retransformClasses(classes);
+            failed = false;
         } finally {
-            transformer.denyToSaveBytecode();
-            transformer.resetLastValidResult();
+            stats.onRetransform(classes.length, System.nanoTime() - start, failed);
+            event.finish(failed);
         }
     }
 
-    byte[] getClassBody(Class clazz, String classloader) throws UnmodifiableClassException {
-        byte[] result;
-        transformer.allowToSaveBytecode();
+    public void setClassBody(String cname, byte[] nwBody, String classloader) throws UnmodifiableClassException {
+        setClassBodies(new String[]{cname}, new byte[][]{nwBody}, new String[]{classloader});
+    }
+
+    /**
+     * Overrides all the classes, and retransforms them by single retransformation, so the application sees either all of them
+     * changed, or none. If the retransformation fails, overrides the classes had before are set back.
+     *
+     * @param cnames names of classes to override
+     * @param nwBodies new bytecode of each class
+     * @param classloaders classloader of each class, or nulls
+     * @throws UnmodifiableClassException if any of the classes can not be re-transformed
+     */
+    void setClassBodies(String[] cnames, byte[][] nwBodies, String[] classloaders) throws UnmodifiableClassException {
+        // all classes must be found before any override is set
+        Class<?>[] classes = new Class<?>[cnames.length];
+        String[] loaderIds = new String[cnames.length];
+        for (int i = 0; i < cnames.length; i++) {
+            classes[i] = findClass(cnames[i], classloaders[i]);
+            loaderIds[i] = AgentLogger.classLoaderId(classes[i].getClassLoader());
+        }
+        long bytes = 0;
+        for (byte[] nwBody : nwBodies) {
+            bytes += nwBody.length;
+        }
+        AgentEvents.Operation event = AgentEvents.overwrite(classes.length, bytes);
+        byte[][] previous = new byte[cnames.length][];
+        synchronized (transformer) {
+            for (int i = 0; i < classes.length; i++) {
+                previous[i] = transformer.getOverride(classes[i].getName(), loaderIds[i]);
+                transformer.setOverride(classes[i].getName(), nwBodies[i], loaderIds[i]);
+            }
+        }
         try {
+            retransform(classes);
+        } catch (Throwable ex) {
+            // failed retransformation changes none of the classes
+            synchronized (transformer) {
+                for (int i = classes.length - 1; i >= 0; i--) {
+                    transformer.restoreOverride(classes[i].getName(), previous[i], loaderIds[i]);
+                }
+            }
+            for (Class<?> clazz : classes) {
+                transformer.getBytesCache().invalidate(clazz);
+            }
+            event.finish(true);
+            throw ex;
+        }
+        event.finish(false);
+    }
+
+    byte[] getClassBody(Class<?> clazz, String classloader) throws UnmodifiableClassException {
+        ClassBytesCache.Versioned cached = transformer.getBytesCache().get(clazz);
+        if (cached != null && cached.getBytes() != null) {
+            return cached.getBytes();
+        }
+        budget.acquireRetransforms(1);
+        try (Transformer.Capture capture = transformer.capture(clazz)) {
             try {
-                instrumentation.retransformClasses(clazz);
+                retransform(clazz);
             } catch (Throwable ex) {
                 transformer.removeOverride(clazz.getName(), classloader);
             }
-            result = transformer.getResult(clazz.getName(), classloader);
-        } finally {
-            transformer.denyToSaveBytecode();
-            transformer.resetLastValidResult();
+            return capture.get(clazz);
         }
-        return result;
     }
 
     /**
@@ -82,88 +196,507 @@ public class InstrumentationProvider {
 
     }
 
-    private Class findClass(String className, String classLoader) {
-        Class[] classes = instrumentation.getAllLoadedClasses();
-        if (classLoader == null || "unknown".equals(classLoader)) {
-            for (Class clazz : classes) {
-                if (clazz.getName().equals(className)) {
-                    return clazz;
+    /**
+     * Returns bytecode of class only if it changed since given generation.
+     * If the class was not transformed since, its bytecode is known without retransformation.
+     *
+     * @param since generation the client already have, or {@link ClassBytesCache#NO_GENERATION}
+     * @return bytecode and its generation. The bytecode is null, if the class did not change since the given generation
+     * @throws UnmodifiableClassException if the class can not be re-transformed
+     */
+    ClassBytesCache.Versioned findClassBodySince(String className, String classloader, long since) throws UnmodifiableClassException {
+        Class<?> clazz = findClass(className, classloader);
+        ClassBytesCache.Versioned cached = transformer.getBytesCache().get(clazz);
+        if (cached != null && since != ClassBytesCache.NO_GENERATION && cached.getGeneration() <= since) {
+            return new ClassBytesCache.Versioned(null, cached.getGeneration());
+        }
+        if (cached != null && cached.getBytes() != null) {
+            return cached;
+        }
+        byte[] body = getClassBody(clazz, classloader);
+        // the generation is known even if the cache is disabled
+        ClassBytesCache.Versioned captured = transformer.getBytesCache().get(clazz);
+        if (body == null || captured == null) {
+            throw new RuntimeException("Bytecode of " + className + " was not captured.");
+        }
+        return new ClassBytesCache.Versioned(body, captured.getGeneration());
+    }
+
+    /**
+     * Receives bytecode of classes, one by one.
+     */
+    public interface BodySink {
+        /**
+         * @param body the bytecode, or null if the class was not obtained
+         * @param error reason why the class was not obtained, or null
+         */
+        void put(String className, byte[] body, Throwable error) throws IOException;
+    }
+
+    /**
+     * Finds all the classes, and obtains their bytecode by single retransformation.
+     * Classes which were not found, or can not be retransformed, are reported to the sink with error,
+     * rest of the batch is not affected by them.
+     *
+     * @param classNames names of classes
+     * @param classloaders classloader for each class, null for any
+     * @param sink receives the bodies in order of the class names
+     * @throws IOException if the sink fails
+     */
+    public void findClassBodies(String[] classNames, String[] classloaders, BodySink sink) throws IOException {
+        Class<?>[] classes = new Class<?>[classNames.length];
+        Map<Class<?>, Throwable> errors = new IdentityHashMap<>();
+        Throwable[] notFound = new Throwable[classNames.length];
+        for (int i = 0; i < classNames.length; i++) {
+            try {
+                classes[i] = findClass(classNames[i], classloaders[i]);
+            } catch (RuntimeException ex) {
+                notFound[i] = ex;
+            }
+        }
+        Map<Class<?>, byte[]> bodies = getClassBodies(classes, errors);
+        for (int i = 0; i < classNames.length; i++) {
+            if (classes[i] == null) {
+                sink.put(classNames[i], null, notFound[i]);
+            } else {
+                sink.put(classNames[i], bodies.get(classes[i]), errors.get(classes[i]));
+            }
+        }
+    }
+
+    private Map<Class<?>, byte[]> getClassBodies(Class<?>[] classes, Map<Class<?>, Throwable> errors) {
+        Map<Class<?>, byte[]> bodies = new IdentityHashMap<>();
+        Set<Class<?>> modifiable = new LinkedHashSet<>();
+        for (Class<?> clazz : classes) {
+            if (clazz != null && !bodies.containsKey(clazz)) {
+                ClassBytesCache.Versioned cached = transformer.getBytesCache().get(clazz);
+                if (cached != null && cached.getBytes() != null) {
+                    bodies.put(clazz, cached.getBytes());
+                } else if (instrumentation.isModifiableClass(clazz)) {
+                    modifiable.add(clazz);
+                } else {
+                    errors.put(clazz, new UnmodifiableClassException(clazz.getName()));
+                }
+            }
+        }
+        if (modifiable.isEmpty()) {
+            return bodies;
+        }
+        Class<?>[] toRetransform = modifiable.toArray(new Class<?>[0]);
+        budget.acquireRetransforms(toRetransform.length);
+        try (Transformer.Capture capture = transformer.capture(toRetransform)) {
+            try {
+                retransform(toRetransform);
+            } catch (Throwable ex) {
+                // one broken class fails whole retransformation, so the rest is tried one by one
+                retransformOneByOne(modifiable, errors);
+            }
+            for (Class<?> clazz : modifiable) {
+                byte[] body = capture.get(clazz);
+                if (body != null) {
+                    bodies.put(clazz, body);
+                } else if (!errors.containsKey(clazz)) {
+                    errors.put(clazz, new RuntimeException("Bytecode of " + clazz.getName() + " was not captured."));
                 }
             }
+        }
+        return bodies;
+    }
+
+    private void retransformOneByOne(Set<Class<?>> classes, Map<Class<?>, Throwable> errors) {
+        for (Class<?> clazz : classes) {
+            try {
+                retransform(clazz);
+            } catch (Throwable ex) {
+                errors.put(clazz, ex);
+            }
+        }
+    }
+
+    private Class<?> findClass(String className, String classLoader) {
+        Class<?> found;
+        if (classLoader == null || "unknown".equals(classLoader)) {
+            found = classIndex.find(className, clazz -> true);
         } else {
-            for (Class clazz : classes) {
-                if (clazz.getName().equals(className) && Main.equalsOrMatching(clazz.getClassLoader(), classLoader)) {
-                    return clazz;
+            found = classIndex.find(className, clazz -> Main.equalsOrMatching(clazz.getClassLoader(), classLoader));
+        }
+        if (found == null) {
+            throw new RuntimeException("Class " + className + " not found in loaded classes. In classloader " + classLoader);
+        }
+        return found;
+    }
+
+    /**
+     * Receives items of listing, one by one.
+     */
+    public interface ListSink {
+        void put(String item) throws IOException;
+
+        /**
+         * Puts the class as its name, or with details, separated by {@link #INFO_DELIMITER}:
+         * name, location, classloader, module and classloader of the module.
+         */
+        default void putClass(Class<?> clazz, boolean doGetInfo) throws IOException {
+            put(toListItem(clazz, doGetInfo));
+        }
+    }
+
+    /**
+     * Puts names of classes into sink.
+     * Stops execution when it receives abort signal.
+     *
+     * @param sink where to put the names
+     * @param abort abort signal
+     * @throws IOException if the sink fails
+     */
+    public void getClasses(ListSink sink, AtomicBoolean abort, boolean doGetInfo, Optional<ClassFilter> filter, String classlaoder)
+            throws IOException {
+        if (filter.isPresent()) {
+            searchClasses(sink, abort, doGetInfo, filter.get(), classlaoder);
+            return;
+        }
+        Class<?>[] loadedClasses = instrumentation.getAllLoadedClasses();
+        AgentBudget.Scan scan = budget.startScan();
+        for (Class<?> loadedClass : loadedClasses) {
+            scan.next();
+            if (classloaderMatches(classlaoder, loadedClass)) {
+                sink.putClass(loadedClass, doGetInfo);
+            }
+            if (abort.get()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Searches bodies of classes matching by name. Found classes are put into sink in order in which they are loaded.
+     */
+    private void searchClasses(ListSink sink, AtomicBoolean abort, boolean doGetInfo, ClassFilter filter, String classlaoder)
+            throws IOException {
+        List<Class<?>> candidates = new ArrayList<>();
+        AgentBudget.Scan scan = budget.startScan();
+        for (Class<?> loadedClass : instrumentation.getAllLoadedClasses()) {
+            scan.next();
+            // unmodifiable classes have no body to search in
+            if (classloaderMatches(classlaoder, loadedClass) && filter.matchesName(loadedClass) &&
+                    instrumentation.isModifiableClass(loadedClass)) {
+                candidates.add(loadedClass);
+            }
+        }
+        if (!filter.hasBodySubstring()) {
+            for (Class<?> found : candidates) {
+                if (abort.get()) {
+                    return;
+                }
+                sink.putClass(found, doGetInfo);
+            }
+            return;
+        }
+        searchBodies(candidates, filter, abort, found -> sink.putClass(found, doGetInfo));
+    }
+
+    private interface ClassSink {
+        void put(Class<?> clazz) throws IOException;
+    }
+
+    /**
+     * Candidates are retransformed in batches, and the batches are searched in parallel by the search pool.
+     *
+     * @param found receives the classes whose body matches, in order of the candidates
+     */
+    private void searchBodies(List<Class<?>> candidates, ClassFilter filter, AtomicBoolean abort, ClassSink found) throws IOException {
+        List<Future<List<Class<?>>>> batches = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i += SEARCH_BATCH) {
+            Class<?>[] batch = candidates.subList(i, Math.min(candidates.size(), i + SEARCH_BATCH)).toArray(new Class<?>[0]);
+            batches.add(SearchPoolHolder.POOL.submit(() -> searchBatch(batch, filter, abort)));
+        }
+        try {
+            for (Future<List<Class<?>>> batch : batches) {
+                if (abort.get()) {
+                    return;
+                }
+                for (Class<?> clazz : batch.get()) {
+                    found.put(clazz);
                 }
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            for (Future<List<Class<?>>> batch : batches) {
+                batch.cancel(false);
+            }
+        }
+    }
+
+    private List<Class<?>> searchBatch(Class<?>[] batch, ClassFilter filter, AtomicBoolean abort) {
+        if (abort.get()) {
+            return Collections.emptyList();
+        }
+        Map<Class<?>, byte[]> bodies = getClassBodies(batch, new IdentityHashMap<>());
+        List<Class<?>> found = new ArrayList<>();
+        for (Class<?> clazz : batch) {
+            byte[] body = bodies.get(clazz);
+            if (body != null && filter.matchesBody(body)) {
+                found.add(clazz);
+            }
         }
-        throw new RuntimeException("Class " + className + " not found in loaded classes. In classloader " + classLoader);
+        budget.betweenBatches();
+        return found;
     }
 
     /**
-     * Inserts names of classes into queue.
+     * Puts names of classes matching the query into sink.
      * Stops execution when it receives abort signal.
      *
-     * @param queue output queue
+     * @param sink where to put the names
+     * @param abort abort signal
+     * @param query which classes to list, and how
+     * @throws IOException if the sink fails
+     */
+    void queryClasses(ListSink sink, AtomicBoolean abort, ClassQuery query, String classlaoder) throws IOException {
+        List<Class<?>> matching = selectClasses(abort, query, classlaoder);
+        if (matching == null) {
+            return;
+        }
+        for (Class<?> clazz : matching) {
+            if (abort.get()) {
+                return;
+            }
+            sink.putClass(clazz, query.isInfo());
+        }
+    }
+
+    /**
+     * @return classes matching the query, paged; null if aborted
+     */
+    private List<Class<?>> selectClasses(AtomicBoolean abort, ClassQuery query, String classlaoder) throws IOException {
+        List<Class<?>> matching = new ArrayList<>();
+        AgentBudget.Scan scan = budget.startScan();
+        for (Class<?> loadedClass : instrumentation.getAllLoadedClasses()) {
+            if (abort.get()) {
+                return null;
+            }
+            scan.next();
+            if (classloaderMatches(classlaoder, loadedClass) && query.matches(loadedClass)) {
+                matching.add(loadedClass);
+            }
+        }
+        ClassFilter bodyFilter = query.getBodyFilter();
+        if (bodyFilter != null) {
+            List<Class<?>> found = new ArrayList<>();
+            searchBodies(matching, bodyFilter, abort, found::add);
+            matching = found;
+        }
+        if (query.isPaged()) {
+            matching.sort(Comparator.comparing(Class::getName));
+            matching = query.page(matching);
+        }
+        return matching;
+    }
+
+    /**
+     * Puts checksums of current bytecode of classes matching the query into sink, as class name, classloader and checksum,
+     * separated by {@link #INFO_DELIMITER}. The bytecode is obtained in batches, within the budget, and never leaves the agent.
+     * Classes without bytecode, eg. arrays, are skipped.
+     *
+     * @param sink where to put the checksums
      * @param abort abort signal
-     * @throws InterruptedException interrupted exception
+     * @param query which classes to sum
+     * @param algorithm one of {@link ClassChecksums} algorithms
+     * @throws IOException if the sink fails
      */
-    public void getClasses(BlockingQueue<String> queue, Boolean abort, boolean doGetInfo, Optional<ClassFilter> filter, String classlaoder)
-            throws InterruptedException {
-        Class[] loadedClasses = instrumentation.getAllLoadedClasses();
-        for (Class loadedClass : loadedClasses) {
-            String className = loadedClass.getName();
-            boolean found = false;
-            if (filter.isPresent()) {
-                found = classloaderMatches(classlaoder, loadedClass);
-                if (found) {
-                    found = filter.get().match(this, loadedClass, classlaoder);
+    void getChecksums(ListSink sink, AtomicBoolean abort, ClassQuery query, String algorithm, String classlaoder) throws IOException {
+        List<Class<?>> matching = selectClasses(abort, query, classlaoder);
+        if (matching == null) {
+            return;
+        }
+        for (int i = 0; i < matching.size(); i += SEARCH_BATCH) {
+            if (abort.get()) {
+                return;
+            }
+            Class<?>[] batch = matching.subList(i, Math.min(matching.size(), i + SEARCH_BATCH)).toArray(new Class<?>[0]);
+            Map<Class<?>, byte[]> bodies = getClassBodies(batch, new IdentityHashMap<>());
+            for (Class<?> clazz : batch) {
+                byte[] body = bodies.get(clazz);
+                if (body != null) {
+                    sink.put(
+                            clazz.getName() + INFO_DELIMITER + AgentLogger.classLoaderId(clazz.getClassLoader()) + INFO_DELIMITER +
+                                    ClassChecksums.checksum(body, algorithm)
+                    );
                 }
+            }
+            budget.betweenBatches();
+        }
+    }
+
+    /**
+     * Puts the journal of class definitions and unloads since given sequence into sink.
+     * First item is the sequence of the last event. It is followed by {@link #CLASSES_RESET} if the journal do not cover the given
+     * sequence anymore, and the client must list all the classes. Otherwise it is followed by "+" and class details for defined
+     * classes, and "-" and classloader for unloaded classloaders. Class defined just now may be listed by both.
+     *
+     * @param sink where to put the events
+     * @param abort abort signal
+     * @param sequence sequence of the last event known to the client
+     * @throws IOException if the sink fails
+     */
+    public void getClassesSince(ListSink sink, AtomicBoolean abort, long sequence) throws IOException {
+        ClassJournal journal = transformer.getJournal();
+        List<ClassJournal.Event> events = journal.since(sequence);
+        if (events == null) {
+            sink.put(Long.toString(journal.getLastSequence()));
+            sink.put(CLASSES_RESET);
+            return;
+        }
+        sink.put(Long.toString(sequence + events.size()));
+        boolean refreshed = false;
+        for (ClassJournal.Event event : events) {
+            if (abort.get()) {
+                return;
+            }
+            String loaderId = event.getClassloader();
+            if (loaderId == null) {
+                // classloader collected before its id was known, so the client cannot know its classes
+                continue;
+            }
+            if (event.isUnload()) {
+                sink.put("-" + loaderId);
+                continue;
+            }
+            Predicate<Class<?>> inLoader = clazz -> loaderId.equals(AgentLogger.classLoaderId(clazz.getClassLoader()));
+            Class<?> clazz = classIndex.findIndexed(event.getClassName(), inLoader);
+            if (clazz == null && !refreshed) {
+                // index is rebuilt at most once, classes still not found were not defined yet or are unloaded already
+                classIndex.refresh();
+                refreshed = true;
+                clazz = classIndex.findIndexed(event.getClassName(), inLoader);
+            }
+            if (clazz == null) {
+                sink.put("+" + event.getClassName() + INFO_DELIMITER + "unknown" + INFO_DELIMITER + loaderId);
             } else {
-                found = classloaderMatches(classlaoder, loadedClass);
+                sink.put("+" + toListItem(clazz, true));
             }
-            if (found) {
-                if (doGetInfo) {
-                    String location;
-                    String module;
-                    String moduleloader;
-                    try {
-                        location = loadedClass.getProtectionDomain().getCodeSource().getLocation().getPath();
-                    } catch (Throwable ex) {
-                        location = "unknown";
-                    }
-                    try {
-                        module = AgentLogger.moduleId(loadedClass.getModule());
-                    } catch (Throwable ex) {
-                        module = "unknown";
-                    }
-                    try {
-                        if (loadedClass.getModule() != null) {
-                            moduleloader = AgentLogger.classLoaderId(loadedClass.getModule().getClassLoader());
-                        } else {
-                            moduleloader = "unknown";
-                        }
-                    } catch (Throwable ex) {
-                        moduleloader = "unknown";
-                    }
-                    String classLoader;
-                    classLoader = AgentLogger.classLoaderId(loadedClass.getClassLoader());
-                    queue.put(
-                            className + INFO_DELIMITER + location + INFO_DELIMITER + classLoader + INFO_DELIMITER + module +
-                                    INFO_DELIMITER + moduleloader
-                    );
-                } else {
-                    queue.put(className);
+        }
+    }
+
+    /**
+     * Puts classes referring to the constant into sink. First such request indexes all the loaded classes, in batches,
+     * within the budget; classes loaded since then are indexed as they are loaded.
+     *
+     * @param sink where to put the classes
+     * @param abort abort signal; aborted indexing continues by next request
+     * @param query the referenced constant
+     * @throws IOException if the sink fails
+     */
+    void getReferences(ListSink sink, AtomicBoolean abort, ConstantPoolIndex.Query query, String classlaoder) throws IOException {
+        ConstantPoolIndex references = transformer.getReferences();
+        if (query.isDrop()) {
+            references.drop();
+            return;
+        }
+        if (!references.isComplete()) {
+            indexReferences(references, abort);
+            if (abort.get()) {
+                return;
+            }
+        }
+        boolean refreshed = false;
+        for (String[] nameAndLoader : references.find(query.getKind(), query.getValue())) {
+            if (abort.get()) {
+                return;
+            }
+            Predicate<Class<?>> inLoader = clazz -> nameAndLoader[1].equals(AgentLogger.classLoaderId(clazz.getClassLoader()));
+            Class<?> clazz = classIndex.findIndexed(nameAndLoader[0], inLoader);
+            if (clazz == null && !refreshed) {
+                // index is rebuilt at most once, classes still not found were not defined yet or are unloaded already
+                classIndex.refresh();
+                refreshed = true;
+                clazz = classIndex.findIndexed(nameAndLoader[0], inLoader);
+            }
+            if (clazz != null && classloaderMatches(classlaoder, clazz)) {
+                sink.putClass(clazz, query.isInfo());
+            }
+        }
+    }
+
+    private void indexReferences(ConstantPoolIndex references, AtomicBoolean abort) {
+        synchronized (referencesIndexing) {
+            if (references.isComplete()) {
+                return;
+            }
+            // classes loaded from now on are indexed by the transformer
+            int generation = references.enable();
+            List<Class<?>> missing = new ArrayList<>();
+            AgentBudget.Scan scan = budget.startScan();
+            for (Class<?> loadedClass : instrumentation.getAllLoadedClasses()) {
+                scan.next();
+                if (instrumentation.isModifiableClass(loadedClass) &&
+                        !references.isIndexedAsLoaded(loadedClass.getName(), loadedClass.getClassLoader())) {
+                    missing.add(loadedClass);
                 }
             }
-            if (abort) {
-                break;
+            for (int i = 0; i < missing.size(); i += SEARCH_BATCH) {
+                if (abort.get()) {
+                    return;
+                }
+                Class<?>[] batch = missing.subList(i, Math.min(missing.size(), i + SEARCH_BATCH)).toArray(new Class<?>[0]);
+                // bodies served from cache do not pass the transformer, so all are indexed here
+                Map<Class<?>, byte[]> bodies = getClassBodies(batch, new IdentityHashMap<>());
+                for (Map.Entry<Class<?>, byte[]> body : bodies.entrySet()) {
+                    Class<?> clazz = body.getKey();
+                    boolean overridden =
+                            transformer.getOverride(clazz.getName(), AgentLogger.classLoaderId(clazz.getClassLoader())) != null;
+                    references.index(clazz.getName(), clazz.getClassLoader(), body.getValue(), overridden);
+                }
+                budget.betweenBatches();
+            }
+            if (!references.setComplete(generation)) {
+                AgentLogger.getLogger().log("Index of references was dropped while indexing, it stays incomplete.");
             }
         }
-        queue.put("---END---");
     }
 
-    private static boolean classloaderMatches(String classlaoder, Class loadedClass) {
+    private static String toListItem(Class<?> loadedClass, boolean doGetInfo) {
+        if (!doGetInfo) {
+            return loadedClass.getName();
+        }
+        return loadedClass.getName() + INFO_DELIMITER + String.join(INFO_DELIMITER, getDetails(loadedClass));
+    }
+
+    /**
+     * @return location, classloader, module and classloader of the module of the class
+     */
+    static String[] getDetails(Class<?> loadedClass) {
+        String location;
+        String module;
+        String moduleloader;
+        try {
+            location = loadedClass.getProtectionDomain().getCodeSource().getLocation().getPath();
+        } catch (Throwable ex) {
+            location = "unknown";
+        }
+        try {
+            module = AgentLogger.moduleId(loadedClass.getModule());
+        } catch (Throwable ex) {
+            module = "unknown";
+        }
+        try {
+            if (loadedClass.getModule() != null) {
+                moduleloader = AgentLogger.classLoaderId(loadedClass.getModule().getClassLoader());
+            } else {
+                moduleloader = "unknown";
+            }
+        } catch (Throwable ex) {
+            moduleloader = "unknown";
+        }
+        String classLoader = AgentLogger.classLoaderId(loadedClass.getClassLoader());
+        return new String[]{location, classLoader, module, moduleloader};
+    }
+
+    private static boolean classloaderMatches(String classlaoder, Class<?> loadedClass) {
         boolean found;
         if (classlaoder == null) {
             found = true;
@@ -177,17 +710,16 @@ public class InstrumentationProvider {
         return found;
     }
 
-    public void getOverrides(BlockingQueue<String> queue) throws InterruptedException {
+    public void getOverrides(ListSink sink) throws IOException {
         for (String override : transformer.getOverriddenFqns()) {
-            queue.put(override);
+            sink.put(override);
         }
-        queue.put("---END---");
     }
 
     public int cleanOverrides(String pattern) {
         List<String[]> removed = transformer.cleanOverrides(pattern);
         try {
-            instrumentation.retransformClasses(removed.stream().map(a -> {
+            retransform(removed.stream().map(a -> {
                 return this.findClass(a[0], a[1]);
             }).toArray(Class[]::new));
         } catch (RuntimeException | UnmodifiableClassException e) {
@@ -199,8 +731,12 @@ public class InstrumentationProvider {
 
     public void detach() {
         Main.deregister(loneliness, origArgs);
+        if (portProperty != null) {
+            System.clearProperty(portProperty);
+        }
         cleanOverrides(".*"); //optional?
         instrumentation.removeTransformer(transformer);
+        transformer.getSubscribers().closeAll();
         int loader = Integer.parseInt(System.getProperty(Main.JRD_AGENT_LOADED, "0")) - 1;
         System.setProperty(Main.JRD_AGENT_LOADED, String.valueOf(loader));
         AgentLogger.getLogger().log("done");
@@ -228,6 +764,17 @@ public class InstrumentationProvider {
     }
 
     public void addJar(String jarOrigName, byte[] decoded) throws IOException {
+        AgentEvents.Operation event = AgentEvents.addJar(jarOrigName, decoded.length);
+        boolean failed = true;
+        try {
+            loadJar(jarOrigName, decoded);
+            failed = false;
+        } finally {
+            event.finish(failed);
+        }
+    }
+
+    private void loadJar(String jarOrigName, byte[] decoded) throws IOException {
         File tmp = File.createTempFile("jrdagent", ".jar");
         Files.write(tmp.toPath(), decoded);
         tmp.deleteOnExit();
@@ -263,4 +810,25 @@ public class InstrumentationProvider {
         }
         AgentLogger.getLogger().log("total classes loaded: " + loaded + "; skipped: " + skipped + "; failed to load:" + failed);
     }
+
+    /**
+     * Threads searching bodies of classes, shared by all searches; created on first search, and ended when idle.
+     */
+    private static final class SearchPoolHolder {
+        private static final int IDLE_SECONDS = 30;
+        private static final ThreadPoolExecutor POOL = createPool();
+
+        private static ThreadPoolExecutor createPool() {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            AtomicInteger counter = new AtomicInteger();
+            ThreadPoolExecutor pool =
+                    new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, "JRD agent search " + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
 }
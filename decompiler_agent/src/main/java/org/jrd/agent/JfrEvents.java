@@ -0,0 +1,145 @@
+package org.jrd.agent;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Flight Recorder events. Used only through {@link AgentEvents}, which loads this class only if JFR is present.
+ * Event is created only if some recording enables its type, otherwise the shared no-op operation is returned.
+ */
+final class JfrEvents {
+
+    private static final EventType REQUEST = typeOf(RequestEvent.class);
+    private static final EventType RETRANSFORM = typeOf(RetransformEvent.class);
+    private static final EventType OVERWRITE = typeOf(OverwriteEvent.class);
+    private static final EventType ADD_JAR = typeOf(AddJarEvent.class);
+
+    private JfrEvents() {
+    }
+
+    /**
+     * @return type of the event, null if the recorder can not be used in this VM
+     */
+    private static EventType typeOf(Class<? extends Event> eventClass) {
+        try {
+            return EventType.getEventType(eventClass);
+        } catch (RuntimeException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    private static boolean isRecorded(EventType type) {
+        return type != null && type.isEnabled();
+    }
+
+    static AgentEvents.Operation request(String command) {
+        if (!isRecorded(REQUEST)) {
+            return AgentEvents.NOOP;
+        }
+        RequestEvent event = new RequestEvent();
+        event.command = command;
+        event.begin();
+        return event;
+    }
+
+    static AgentEvents.Operation retransform(int classes) {
+        if (!isRecorded(RETRANSFORM)) {
+            return AgentEvents.NOOP;
+        }
+        RetransformEvent event = new RetransformEvent();
+        event.classes = classes;
+        event.begin();
+        return event;
+    }
+
+    static AgentEvents.Operation overwrite(int classes, long bytes) {
+        if (!isRecorded(OVERWRITE)) {
+            return AgentEvents.NOOP;
+        }
+        OverwriteEvent event = new OverwriteEvent();
+        event.classes = classes;
+        event.bytes = bytes;
+        event.begin();
+        return event;
+    }
+
+    static AgentEvents.Operation addJar(String jar, long bytes) {
+        if (!isRecorded(ADD_JAR)) {
+            return AgentEvents.NOOP;
+        }
+        AddJarEvent event = new AddJarEvent();
+        event.jar = jar;
+        event.bytes = bytes;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Fields of the events are read by the recorder, which requires them, and the events, not to be private.
+     */
+    @Category({"JRD", "Agent"})
+    @StackTrace(false)
+    @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "Read by the recorder.")
+    abstract static class AbstractAgentEvent extends Event implements AgentEvents.Operation {
+        @Label("Failed")
+        boolean failed;
+
+        @Override
+        public void finish(boolean hasFailed) {
+            end();
+            if (shouldCommit()) {
+                this.failed = hasFailed;
+                commit();
+            }
+        }
+    }
+
+    @Name("org.jrd.agent.Request")
+    @Label("JRD Agent Request")
+    @Description("Request of JRD client, executed by the agent")
+    @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "Read by the recorder.")
+    static final class RequestEvent extends AbstractAgentEvent {
+        @Label("Command")
+        String command;
+    }
+
+    @Name("org.jrd.agent.Retransform")
+    @Label("JRD Agent Retransform")
+    @Description("Retransformation of classes, to get or to change their bytecode")
+    @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "Read by the recorder.")
+    static final class RetransformEvent extends AbstractAgentEvent {
+        @Label("Classes")
+        int classes;
+    }
+
+    @Name("org.jrd.agent.Overwrite")
+    @Label("JRD Agent Overwrite")
+    @Description("Installation of overrides of classes, including their retransformation")
+    @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "Read by the recorder.")
+    static final class OverwriteEvent extends AbstractAgentEvent {
+        @Label("Classes")
+        int classes;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("org.jrd.agent.AddJar")
+    @Label("JRD Agent Add Jar")
+    @Description("Jar added to classpath of the target, including loading of its classes")
+    @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "Read by the recorder.")
+    static final class AddJarEvent extends AbstractAgentEvent {
+        @Label("Jar")
+        String jar;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
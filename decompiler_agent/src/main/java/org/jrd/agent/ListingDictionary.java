@@ -0,0 +1,53 @@
+package org.jrd.agent;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Listing of classes with details, in which each location, classloader and module is sent only once, as CLASSES_ENCODED lists them.
+ * Hundreds of thousands of classes share few hundreds of such values, so repeating them in every item makes most of the listing.
+ * <p>
+ * Value seen for the first time is sent as its own item, {@link #DEFINITION} followed by the value, and gets the next id,
+ * starting from 0. Class is then sent as its name and ids of its details, separated by {@link InstrumentationProvider#INFO_DELIMITER}.
+ * Ids are valid within single listing only.
+ */
+final class ListingDictionary implements InstrumentationProvider.ListSink {
+
+    static final String DEFINITION = "=";
+
+    private final InstrumentationProvider.ListSink target;
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    ListingDictionary(InstrumentationProvider.ListSink target) {
+        this.target = target;
+    }
+
+    @Override
+    public void put(String item) throws IOException {
+        target.put(item);
+    }
+
+    @Override
+    public void putClass(Class<?> clazz, boolean doGetInfo) throws IOException {
+        if (!doGetInfo) {
+            target.put(clazz.getName());
+            return;
+        }
+        StringBuilder item = new StringBuilder(clazz.getName());
+        for (String detail : InstrumentationProvider.getDetails(clazz)) {
+            item.append(InstrumentationProvider.INFO_DELIMITER).append(getId(detail));
+        }
+        target.put(item.toString());
+    }
+
+    private int getId(String value) throws IOException {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = ids.size();
+            ids.put(value, id);
+            target.put(DEFINITION + value);
+        }
+        return id;
+    }
+}
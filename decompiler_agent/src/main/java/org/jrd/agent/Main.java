@@ -6,6 +6,7 @@ import org.jrd.agent.api.Variables;
 import java.lang.instrument.Instrumentation;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -18,9 +19,22 @@ import java.util.regex.Pattern;
 public final class Main {
 
     public static final String JRD_AGENT_LOADED = "org.jrd.agent.loaded";
+    /**
+     * Prefix of system property, where the agent publishes the port it listens on. Completed by the token the client sent by
+     * porttoken argument, so the client attaching with port:0 reads the port the system chose via attach api. Cleared on detach.
+     */
+    public static final String PORT_PROPERTY_PREFIX = "org.jrd.agent.port.";
 
     private static final String ADDRESS_STRING = "address:";
     private static final String PORT_STRING = "port:";
+    private static final String PORT_TOKEN_STRING = "porttoken:";
+    private static final String WORKERS_STRING = "workers:";
+    private static final String MAX_CLIENTS_STRING = "maxclients:";
+    // indexes constant pools of classes since attach, not only after first REFERENCES command
+    private static final String CP_INDEX_STRING = "cpindex:";
+    // megabytes of bytecode cached by the agent, zero disables the cache
+    private static final String CACHE_MB_STRING = "cachemb:";
+    private static final String[] BUDGET_KEYS = {AgentBudget.RETRANSFORMS, AgentBudget.SCAN_SLICE, AgentBudget.SCAN_PAUSE};
 
     private static final String LONELINESS_STRING = "loneliness:";
     private static final String LONELINESS_VAL_S = "SINGLE_INSTANCE";
@@ -29,7 +43,8 @@ public final class Main {
     private static final String LONELINESS_VAL_AF = "AF";
     private static int confirmedAttaches = 0;
 
-    private static final Map<String, Pattern> COMPILED_LOADERS_PATTERNS = new HashMap();
+    // requests are executed concurrently, and the null values (not compilable patterns) are needed, so no ConcurrentHashMap
+    private static final Map<String, Pattern> COMPILED_LOADERS_PATTERNS = Collections.synchronizedMap(new HashMap<>());
 
     private Main() {
     }
@@ -44,6 +59,9 @@ public final class Main {
     public static void premain(final String agentArgs, Instrumentation inst) throws Exception {
         String hostname = null;
         Integer port = null;
+        Integer workers = null;
+        Integer maxClients = null;
+        String portToken = null;
         final String loneliness;
         // guard against the agent being loaded twice
         synchronized (Main.class) {
@@ -69,20 +87,90 @@ public final class Main {
                     hostname = arg.substring(ADDRESS_STRING.length());
 
                 } else if (arg.startsWith(PORT_STRING)) {
-                    try {
-                        port = Integer.valueOf(arg.substring(PORT_STRING.length()));
-                        if (port <= 0) {
-                            AgentLogger.getLogger().log(new RuntimeException("The port value is negative:" + port));
-                            port = null;
-
-                        }
-                    } catch (Exception e) {
-                        AgentLogger.getLogger().log(new RuntimeException("The port value is invalid: " + arg + " . Exception: ", e));
-                    }
+                    port = parsePort(arg);
+                } else if (arg.startsWith(PORT_TOKEN_STRING)) {
+                    portToken = arg.substring(PORT_TOKEN_STRING.length());
+                } else if (arg.startsWith(WORKERS_STRING)) {
+                    workers = parsePositive(arg, WORKERS_STRING);
+                } else if (arg.startsWith(MAX_CLIENTS_STRING)) {
+                    maxClients = parsePositive(arg, MAX_CLIENTS_STRING);
+                } else if (arg.startsWith(CP_INDEX_STRING) && Boolean.parseBoolean(arg.substring(CP_INDEX_STRING.length()))) {
+                    transformer.getReferences().enable();
+                } else if (arg.startsWith(CACHE_MB_STRING)) {
+                    setCacheSize(arg, transformer.getBytesCache());
+                } else {
+                    setBudget(arg, p.getBudget());
                 }
             }
         }
-        ConnectionDelegator.initialize(hostname, port, p, loneliness);
+        int boundPort = ConnectionDelegator.initialize(hostname, port, p, loneliness, workers, maxClients);
+        if (portToken != null) {
+            System.setProperty(PORT_PROPERTY_PREFIX + portToken, String.valueOf(boundPort));
+            p.setPortProperty(PORT_PROPERTY_PREFIX + portToken);
+        }
+    }
+
+    /**
+     * @return the port, where zero is any free port, or null if invalid
+     */
+    private static Integer parsePort(String arg) {
+        try {
+            int port = Integer.parseInt(arg.substring(PORT_STRING.length()));
+            if (port >= 0) {
+                return port;
+            }
+            AgentLogger.getLogger().log(new RuntimeException("The port value is negative:" + port));
+        } catch (Exception e) {
+            AgentLogger.getLogger().log(new RuntimeException("The port value is invalid: " + arg + " . Exception: ", e));
+        }
+        return null;
+    }
+
+    private static Integer parsePositive(String arg, String prefix) {
+        try {
+            int value = Integer.parseInt(arg.substring(prefix.length()));
+            if (value > 0) {
+                return value;
+            }
+            AgentLogger.getLogger().log(new RuntimeException("The value is not positive: " + arg));
+        } catch (NumberFormatException e) {
+            AgentLogger.getLogger().log(new RuntimeException("The value is invalid: " + arg + " . Exception: ", e));
+        }
+        return null;
+    }
+
+    /**
+     * @return the value, where zero is unlimited, or null if invalid
+     */
+    private static Integer parseNonNegative(String arg, String prefix) {
+        try {
+            int value = Integer.parseInt(arg.substring(prefix.length()));
+            if (value >= 0) {
+                return value;
+            }
+            AgentLogger.getLogger().log(new RuntimeException("The value is negative: " + arg));
+        } catch (NumberFormatException e) {
+            AgentLogger.getLogger().log(new RuntimeException("The value is invalid: " + arg + " . Exception: ", e));
+        }
+        return null;
+    }
+
+    private static void setBudget(String arg, AgentBudget budget) {
+        for (String key : BUDGET_KEYS) {
+            if (arg.startsWith(key + ":")) {
+                Integer value = parseNonNegative(arg, key + ":");
+                if (value != null) {
+                    budget.set(key, value);
+                }
+            }
+        }
+    }
+
+    private static void setCacheSize(String arg, ClassBytesCache cache) {
+        Integer megabytes = parseNonNegative(arg, CACHE_MB_STRING);
+        if (megabytes != null) {
+            cache.setMaxBytes(megabytes * 1024L * 1024L);
+        }
     }
 
     /**
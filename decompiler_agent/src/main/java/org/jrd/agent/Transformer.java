@@ -1,5 +1,7 @@
 package org.jrd.agent;
 
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
 import org.jrd.agent.api.ClassClassLoaderMap;
 
 import java.lang.instrument.ClassFileTransformer;
@@ -7,7 +9,11 @@ import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This class represent our transformer for retrieving bytecode.
@@ -16,71 +22,124 @@ import java.util.List;
  */
 public class Transformer implements ClassFileTransformer {
 
-    private boolean allowToSaveBytecode = false;
-    private ClassClassLoaderMap results = new ClassClassLoaderMap();
-    private ClassClassLoaderMap overrides = new ClassClassLoaderMap();
+    private final ClassClassLoaderMap overrides = new ClassClassLoaderMap();
+    private final ClassBytesCache bytesCache = new ClassBytesCache();
+    private final ClassJournal journal = new ClassJournal();
+    private final AgentSubscribers subscribers = new AgentSubscribers();
+    private final ConstantPoolIndex references = new ConstantPoolIndex();
+    // retransformation calls the transformer in the thread which requested it, so each request captures only its own classes
+    private final ThreadLocal<Capture> captures = new ThreadLocal<>();
+    private final AtomicInteger capturingClasses = new AtomicInteger();
+    // counted by many loading threads at once, read only when a class is not found
+    private final LongAdder definitions = new LongAdder();
 
     @Override
     public byte[] transform(ClassLoader loader, String className, Class<?> clazz, ProtectionDomain domain, byte[] classfileBuffer)
             throws IllegalClassFormatException {
-        if (allowToSaveBytecode) {
-            byte[] b = null;
-            //some parts of instrumentation works on p/k/g/class some on p.l.g.class, lets unify that
-            String nameWithoutSlashes = clazz.getName().replace("/", ".");
-            synchronized (this) {
-                b = overrides.getStrict(nameWithoutSlashes, AgentLogger.classLoaderId(loader));
-            }
-            if (b != null) {
-                results.put(nameWithoutSlashes, b, AgentLogger.classLoaderId(loader));
-                return b;
-            } else {
-                results.put(nameWithoutSlashes, classfileBuffer, AgentLogger.classLoaderId(loader));
+        if (clazz == null) {
+            // class is being loaded, not retransformed nor redefined
+            definitions.increment();
+            journal.onDefined(className, loader);
+            references.onDefined(className, loader, classfileBuffer);
+            if (className != null) {
+                subscribers.publish(AgentSubscribers.DEFINED, className, loader);
             }
+            return null;
         }
-        return null;
+        //some parts of instrumentation works on p/k/g/class some on p.l.g.class, lets unify that
+        String nameWithoutSlashes = clazz.getName().replace("/", ".");
+        // classes are transformed by many threads at once, the overrides are read without locking
+        byte[] b = overrides.getStrict(nameWithoutSlashes, AgentLogger.classLoaderId(loader));
+        byte[] result = b != null ? b : classfileBuffer;
+        Capture capture = captures.get();
+        if (capture != null) {
+            capture.offer(clazz, result);
+        } else {
+            // retransformation not capturing the bytecode is not a mere read of it
+            subscribers.publish(AgentSubscribers.REDEFINED, nameWithoutSlashes, loader);
+        }
+        bytesCache.onTransformed(clazz, result);
+        references.onTransformed(clazz.getName(), loader, result, b != null);
+        return b;
+    }
+
+    ClassBytesCache getBytesCache() {
+        return bytesCache;
     }
 
     /**
-     * Returns bytecode of transformed class.
-     *
-     * @param name name of class we want to get
-     * @return bytes of given class
+     * @return count of classes defined since the transformer was added
      */
-    public byte[] getResult(String name, String classloader) {
-        return results.get(name, classloader);
+    long getDefinitions() {
+        return definitions.sum();
     }
 
-    public void setOverride(String name, byte[] body, String classloader) {
-        overrides.put(name, body, classloader);
+    ClassJournal getJournal() {
+        return journal;
     }
 
-    public List<String> getOverriddenFqns() {
-        return Collections.unmodifiableList(new ArrayList<>(overrides.keySet()));
+    AgentSubscribers getSubscribers() {
+        return subscribers;
     }
 
-    public List<String[]> getOverriddenFqnPairs() {
-        return Collections.unmodifiableList(new ArrayList<>(overrides.keySetPairs()));
+    ConstantPoolIndex getReferences() {
+        return references;
+    }
+
+    /**
+     * Starts capturing of bytecode of given classes, as they are seen by retransformations done by current thread.
+     * Classes retransformed or redefined by other threads, or not asked for, are not captured.
+     * The capture must be closed in the same thread.
+     *
+     * @param classes classes whose bytecode to capture
+     * @return the capture, holding the bytecode once the classes are retransformed
+     */
+    Capture capture(Class<?>... classes) {
+        Capture capture = new Capture(classes, captures.get());
+        captures.set(capture);
+        return capture;
     }
 
     /**
-     * Resets the map with results to empty map
+     * @return how many classes are being captured by all threads now
      */
-    public void resetLastValidResult() {
-        results.reset();
+    int getCapturingClasses() {
+        return capturingClasses.get();
+    }
+
+    public synchronized void setOverride(String name, byte[] body, String classloader) {
+        overrides.put(name, body, classloader);
+        subscribers.publish(AgentSubscribers.OVERRIDE_ADDED, name, classloader);
     }
 
     /**
-     * This method allows saving of bytecode
+     * @return override of the class in exactly the given classloader, or null
      */
-    public void allowToSaveBytecode() {
-        allowToSaveBytecode = true;
+    @SuppressFBWarnings(
+            value = "UG_SYNC_SET_UNSYNC_GET",
+            justification = "The map is concurrent, the lock only keeps the events in order of the changes."
+    )
+    byte[] getOverride(String name, String classloader) {
+        return overrides.getStrict(name, classloader);
     }
 
     /**
-     * This method denies the bytecode to be saved during transformation.
+     * Sets back the override the class had before, or removes it, if it had none.
      */
-    public void denyToSaveBytecode() {
-        allowToSaveBytecode = false;
+    synchronized void restoreOverride(String name, byte[] previous, String classloader) {
+        if (previous == null) {
+            removeOverride(name, classloader);
+        } else {
+            setOverride(name, previous, classloader);
+        }
+    }
+
+    public List<String> getOverriddenFqns() {
+        return Collections.unmodifiableList(new ArrayList<>(overrides.keySet()));
+    }
+
+    public List<String[]> getOverriddenFqnPairs() {
+        return Collections.unmodifiableList(new ArrayList<>(overrides.keySetPairs()));
     }
 
     synchronized void removeOverride(String clazz) {
@@ -89,6 +148,7 @@ public class Transformer implements ClassFileTransformer {
 
     synchronized void removeOverride(String clazz, String classloader) {
         overrides.remove(clazz, classloader);
+        subscribers.publish(AgentSubscribers.OVERRIDE_REMOVED, clazz, classloader);
     }
 
     public synchronized List<String[]> cleanOverrides(String patterns) {
@@ -115,4 +175,43 @@ public class Transformer implements ClassFileTransformer {
         }
         return removed;
     }
+
+    /**
+     * Bytecode of classes asked for by one request.
+     */
+    final class Capture implements AutoCloseable {
+        private final Map<Class<?>, byte[]> bodies = new IdentityHashMap<>();
+        private final Capture previous;
+
+        private Capture(Class<?>[] classes, Capture previous) {
+            for (Class<?> clazz : classes) {
+                bodies.put(clazz, null);
+            }
+            this.previous = previous;
+            capturingClasses.addAndGet(bodies.size());
+        }
+
+        private void offer(Class<?> clazz, byte[] body) {
+            if (bodies.containsKey(clazz)) {
+                bodies.put(clazz, body);
+            }
+        }
+
+        /**
+         * @return captured bytecode of the class, or null, if it was not retransformed during this capture
+         */
+        byte[] get(Class<?> clazz) {
+            return bodies.get(clazz);
+        }
+
+        @Override
+        public void close() {
+            capturingClasses.addAndGet(-bodies.size());
+            if (previous == null) {
+                captures.remove();
+            } else {
+                captures.set(previous);
+            }
+        }
+    }
 }
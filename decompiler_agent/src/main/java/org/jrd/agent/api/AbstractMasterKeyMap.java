@@ -4,8 +4,17 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+/**
+ * Variables of the injected code, grouped by their owner. Each operation on single variable is atomic, if the maps created by
+ * the subclass are concurrent, so the patched code running in many threads does not serialize on any lock.
+ */
 public abstract class AbstractMasterKeyMap<T> {
 
+    /**
+     * Stands for null value, and null owner where the subclass allows it, as the concurrent maps can not hold nulls.
+     */
+    protected static final Object NULL = new Object();
+
     protected final Map<T, Map<String, Object>> values;
 
     public AbstractMasterKeyMap() {
@@ -16,66 +25,56 @@ public abstract class AbstractMasterKeyMap<T> {
 
     protected abstract Map<String, Object> getSubMap(T mainKey);
 
+    private static Object mask(Object value) {
+        return value == null ? NULL : value;
+    }
+
+    private static Object unmask(Object value) {
+        return value == NULL ? null : value;
+    }
+
     public Object set(T key, String name, Object value) {
-        Map<String, Object> subMap = getSubMap(key);
-        Object old = subMap.put(name, value);
-        if ("jrd.debug".equals(old)) {
-            System.err.println("We do not care about old.");
-        }
+        getSubMap(key).put(name, mask(value));
         return value;
     }
 
     public Object setNoReplace(T key, String name, Object value) throws Variables.FakeVariableAlreadyDeclaredException {
         Map<String, Object> subMap = getSubMap(key);
-        if (subMap.containsKey(name)) {
+        if (subMap.putIfAbsent(name, mask(value)) != null) {
             throw new Variables.FakeVariableAlreadyDeclaredException();
-        } else {
-            Object old = subMap.put(name, value);
-            if (old != null) {
-                throw new IllegalStateException("Map is broken!");
-            }
-            return value;
         }
+        return value;
     }
 
     public Object get(T key, String name) throws Variables.NoSuchFakeVariableException {
-        Map<String, Object> subMap = getSubMap(key);
-        if (subMap.containsKey(name)) {
-            return subMap.get(name);
-        } else {
+        Object value = getSubMap(key).get(name);
+        if (value == null) {
             throw new Variables.NoSuchFakeVariableException();
         }
+        return unmask(value);
     }
 
     public Object getOrCreate(T key, String name, Object defaultValue) {
-        Map<String, Object> subMap = getSubMap(key);
-        if (subMap.containsKey(name)) {
-            return subMap.get(name);
-        } else {
-            Object old = subMap.put(name, defaultValue);
-            if (old != null) {
-                throw new IllegalStateException("Map is broken!");
-            }
+        Object old = getSubMap(key).putIfAbsent(name, mask(defaultValue));
+        if (old == null) {
             return defaultValue;
         }
+        return unmask(old);
     }
 
     public Object create(T key, String name, Object defaultValue) throws Variables.FakeVariableAlreadyDeclaredException {
-        Map<String, Object> subMap = getSubMap(key);
-        if (subMap.containsKey(name)) {
+        if (getSubMap(key).putIfAbsent(name, mask(defaultValue)) != null) {
             throw new Variables.FakeVariableAlreadyDeclaredException();
-        } else {
-            return subMap.put(name, defaultValue);
         }
+        return null;
     }
 
     public Object remove(T key, String name) throws Variables.NoSuchFakeVariableException {
-        Map<String, Object> subMap = getSubMap(key);
-        if (subMap.containsKey(name)) {
-            return subMap.remove(name);
-        } else {
+        Object old = getSubMap(key).remove(name);
+        if (old == null) {
             throw new Variables.NoSuchFakeVariableException();
         }
+        return unmask(old);
     }
 
     public void removeAll(T key) {
@@ -91,11 +90,12 @@ public abstract class AbstractMasterKeyMap<T> {
         Set<Map.Entry<T, Map<String, Object>>> mainFull = values.entrySet();
         Set<Map.Entry<T, Map<String, Object>>> main = new HashSet<>();
         for (Map.Entry<T, Map<String, Object>> subtable : mainFull) {
+            Object owner = toOwner(subtable.getKey());
             for (T select : selection) {
-                if (select == null && subtable.getKey() == null) {
+                if (select == null && owner == null) {
                     main.add(subtable);
                 } else {
-                    if (subtable.getKey() != null && subtable.getKey().equals(select)) {
+                    if (owner != null && owner.equals(select)) {
                         main.add(subtable);
                     }
                 }
@@ -123,16 +123,25 @@ public abstract class AbstractMasterKeyMap<T> {
 
     private void iterateMainToSb(Set<Map.Entry<T, Map<String, Object>>> main, StringBuilder sb) {
         for (Map.Entry<T, Map<String, Object>> subtable : main) {
-            sb.append("  " + dumpKey(subtable.getKey()) + ": " + subtable.getValue().entrySet().size() + " items");
+            String owner = dumpKey(toOwner(subtable.getKey()));
+            sb.append("  " + owner + ": " + subtable.getValue().entrySet().size() + " items");
             sb.append("\n");
             for (Map.Entry<String, Object> leaf : subtable.getValue().entrySet()) {
-                sb.append("    " + dumpKey(subtable.getKey()) + "/" + leaf.getKey() + "=" + leaf.getValue());
+                sb.append("    " + owner + "/" + leaf.getKey() + "=" + unmask(leaf.getValue()));
                 sb.append("\n");
             }
         }
     }
 
-    protected String dumpKey(T key) {
+    /**
+     * @param key key of the main map
+     * @return the owner of the variables, as it was given to {@link #getSubMap(Object)}
+     */
+    protected Object toOwner(T key) {
+        return key == NULL ? null : key;
+    }
+
+    protected String dumpKey(Object key) {
         if (key == null) {
             return null;
         }
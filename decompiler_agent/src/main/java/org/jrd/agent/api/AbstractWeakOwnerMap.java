@@ -0,0 +1,118 @@
+package org.jrd.agent.api;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+
+/**
+ * Owners of local variables, held weakly and compared by identity. Variables of an object are dropped once the object is collected,
+ * and objects with mutable or expensive hashCode may own variables too. Owners already collected are removed from the map
+ * by the next access to it.
+ * <p>
+ * The variables themselves are held strongly, so a variable referring back to its owner keeps the owner alive.
+ * Subclasses only choose the maps, concurrent ones for the thread safe variables.
+ */
+abstract class AbstractWeakOwnerMap extends AbstractMasterKeyMap<Object> {
+
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+    /**
+     * @return empty map for variables of new owner
+     */
+    protected abstract Map<String, Object> createSubMap();
+
+    @Override
+    protected final Map<String, Object> getSubMap(Object owner) {
+        expunge(values);
+        Object nonNullOwner = owner == null ? NULL : owner;
+        Map<String, Object> thisOnes = values.get(new Lookup(nonNullOwner));
+        if (thisOnes == null) {
+            thisOnes = values.computeIfAbsent(new Key(nonNullOwner, collected), key -> createSubMap());
+        }
+        return thisOnes;
+    }
+
+    /**
+     * @return owner of key of the main map, null if it was collected already
+     */
+    @Override
+    protected final Object toOwner(Object key) {
+        return super.toOwner(key instanceof Key ? ((Key) key).get() : key);
+    }
+
+    private void expunge(Map<Object, Map<String, Object>> values) {
+        Reference<?> owner;
+        while ((owner = collected.poll()) != null) {
+            values.remove(owner);
+        }
+    }
+
+    private interface OwnerKey {
+        Object getOwner();
+    }
+
+    /**
+     * Equal to other key of the same owner. Once the owner is collected, equal to itself only.
+     */
+    private static boolean equals(OwnerKey key, Object obj) {
+        if (key == obj) {
+            return true;
+        }
+        if (!(obj instanceof OwnerKey)) {
+            return false;
+        }
+        Object owner = key.getOwner();
+        return owner != null && owner == ((OwnerKey) obj).getOwner();
+    }
+
+    private static final class Key extends WeakReference<Object> implements OwnerKey {
+        private final int hash;
+
+        private Key(Object owner, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.hash = System.identityHashCode(owner);
+        }
+
+        @Override
+        public Object getOwner() {
+            return get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return AbstractWeakOwnerMap.equals(this, obj);
+        }
+    }
+
+    /**
+     * Looks the owner up without creating a reference to it.
+     */
+    private static final class Lookup implements OwnerKey {
+        private final Object owner;
+
+        private Lookup(Object owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public Object getOwner() {
+            return owner;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(owner);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return AbstractWeakOwnerMap.equals(this, obj);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.jrd.agent.api;
+
+import java.util.Iterator;
+
+/**
+ * Finds the class calling this api, as the owner of its class variables. The stack is walked lazily, only up to the first frame
+ * outside of this package, and the class is taken from the frame, so nothing is loaded by name.
+ * <p>
+ * The result is not cached: the call site is only known from the stack itself, so any cache key would need the same walk.
+ */
+final class Caller {
+
+    private static final String API_PACKAGE = "org.jrd.agent.api.";
+    private static final StackWalker WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+    private Caller() {
+    }
+
+    /**
+     * @return class of the first frame outside of this api, or of the outermost frame, if there is none
+     */
+    static Class<?> find() {
+        return WALKER.walk(frames -> {
+            Class<?> clazz = null;
+            Iterator<StackWalker.StackFrame> outwards = frames.iterator();
+            while (outwards.hasNext()) {
+                clazz = outwards.next().getDeclaringClass();
+                if (!clazz.getName().startsWith(API_PACKAGE)) {
+                    break;
+                }
+            }
+            return clazz;
+        });
+    }
+}
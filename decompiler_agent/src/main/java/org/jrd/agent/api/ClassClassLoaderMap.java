@@ -1,17 +1,23 @@
 package org.jrd.agent.api;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
+/**
+ * Bodies of classes by class name and classloader. Safe for concurrent use; it is read by the transformer from any thread
+ * loading or retransforming a class, so the lookups neither lock nor allocate.
+ */
 public class ClassClassLoaderMap {
     // class->classlaoder->byte[]
-    private Map<String, Map<String, byte[]>> map = new HashMap<>();
+    private volatile Map<String, Bodies> map = new ConcurrentHashMap<>();
 
     public void reset() {
-        map = new HashMap<>();
+        map = new ConcurrentHashMap<>();
     }
 
     public void remove(String clazz) {
@@ -19,57 +25,44 @@ public class ClassClassLoaderMap {
     }
 
     public void remove(String clazz, String classloader) {
-        Map<String, byte[]> submap = map.get(clazz);
-        if (submap == null) {
-            //FIXME is this correct?
-            return;
-        }
-        submap.remove(classloader);
-        if (submap.isEmpty()) {
-            map.remove(clazz);
-        }
+        map.computeIfPresent(clazz, (name, bodies) -> bodies.without(classloader));
     }
 
     public byte[] get(String classname) {
-        Map<String, byte[]> classes = map.get(classname);
-        if (classes == null || classes.isEmpty()) {
+        Bodies classes = map.get(classname);
+        if (classes == null) {
             return null;
         }
-        byte[] nullLoader = classes.get(null);
+        byte[] nullLoader = classes.byLoader.get(null);
         if (nullLoader != null) {
             return nullLoader;
         }
-        return new ArrayList<byte[]>(classes.values()).get(0);
+        return classes.any;
     }
 
     public byte[] get(String classname, String classlaoder) {
-        Map<String, byte[]> classes = map.get(classname);
-        if (classes == null || classes.isEmpty()) {
+        Bodies classes = map.get(classname);
+        if (classes == null) {
             return null;
         }
-        byte[] targettedReturn = classes.get(classlaoder);
-        if (targettedReturn == null && !classes.isEmpty()) {
-            return new ArrayList<>(classes.values()).get(0);
+        byte[] targettedReturn = classes.byLoader.get(classlaoder);
+        if (targettedReturn == null) {
+            return classes.any;
         } else {
             return targettedReturn;
         }
     }
 
     public byte[] getStrict(String classname, String classlaoder) {
-        Map<String, byte[]> classes = map.get(classname);
-        if (classes == null || classes.isEmpty()) {
+        Bodies classes = map.get(classname);
+        if (classes == null) {
             return null;
         }
-        return classes.get(classlaoder);
+        return classes.byLoader.get(classlaoder);
     }
 
     public void put(String nameWithoutSlashes, byte[] classfileBuffer, String loader) {
-        Map<String, byte[]> classes = map.get(nameWithoutSlashes);
-        if (classes == null) {
-            classes = new HashMap<>();
-            map.put(nameWithoutSlashes, classes);
-        }
-        classes.put(loader, classfileBuffer);
+        map.compute(nameWithoutSlashes, (name, bodies) -> Bodies.with(bodies, loader, classfileBuffer));
     }
 
     public List<String> keySet() {
@@ -78,8 +71,8 @@ public class ClassClassLoaderMap {
 
     public List<String[]> keySetPairs() {
         List<String[]> r = new ArrayList<>();
-        for (Map.Entry<String, Map<String, byte[]>> fqn : map.entrySet()) {
-            for (String classloader : fqn.getValue().keySet()) {
+        for (Map.Entry<String, Bodies> fqn : map.entrySet()) {
+            for (String classloader : fqn.getValue().byLoader.keySet()) {
                 r.add(new String[]{fqn.getKey(), nullClassloaderToUnknown(classloader)});
             }
         }
@@ -93,4 +86,37 @@ public class ClassClassLoaderMap {
     public static String unknownToNullClasslaoder(String unknown) {
         return "unknown".equals(unknown) ? null : unknown;
     }
+
+    /**
+     * Bodies of one class, never modified, each change creates new instance. There are rarely more classloaders with the same class.
+     */
+    private static final class Bodies {
+        // may contain null classloader
+        private final Map<String, byte[]> byLoader;
+        // body of any classloader, returned when the asked one has none
+        private final byte[] any;
+
+        private Bodies(Map<String, byte[]> byLoader) {
+            this.byLoader = Collections.unmodifiableMap(byLoader);
+            this.any = byLoader.values().iterator().next();
+        }
+
+        private static Bodies with(Bodies bodies, String loader, byte[] body) {
+            Map<String, byte[]> byLoader = bodies == null ? new HashMap<>(2) : new HashMap<>(bodies.byLoader);
+            byLoader.put(loader, body);
+            return new Bodies(byLoader);
+        }
+
+        /**
+         * @return bodies without the classloader, or null if no other is left
+         */
+        private Bodies without(String loader) {
+            if (!byLoader.containsKey(loader)) {
+                return this;
+            }
+            Map<String, byte[]> rest = new HashMap<>(byLoader);
+            rest.remove(loader);
+            return rest.isEmpty() ? null : new Bodies(rest);
+        }
+    }
 }
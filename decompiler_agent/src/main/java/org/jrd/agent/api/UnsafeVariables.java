@@ -1,12 +1,7 @@
 package org.jrd.agent.api;
 
-import org.jrd.agent.AgentLogger;
-
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import static org.jrd.agent.api.Variables.NoSuchFakeVariableException;
 import static org.jrd.agent.api.Variables.FakeVariableException;
@@ -20,6 +15,7 @@ public class UnsafeVariables {
     public static void init() {
         Global.init();
         Local.init();
+        WeakLocal.init();
         Clazzs.init();
     }
 
@@ -27,6 +23,7 @@ public class UnsafeVariables {
         StringBuilder sb = new StringBuilder();
         sb.append(Global.dump());
         sb.append(Local.dump());
+        sb.append(WeakLocal.dump());
         sb.append(Clazzs.dump());
         return sb.toString();
     }
@@ -157,6 +154,73 @@ public class UnsafeVariables {
         }
     }
 
+    /**
+     * Same as {@link Local}, except for how the owners are kept.
+     * The owners are held weakly and compared by identity, so their variables are dropped once the owners are collected,
+     * and the owners may have mutable or expensive hashCode. A variable referring back to its owner keeps the owner alive.
+     */
+    public static class WeakLocal {
+
+        protected WeakLocal() {
+        }
+
+        private static final AbstractMasterKeyMap<Object> WEAK_LOCALS = new AbstractWeakOwnerMap() {
+
+            @Override
+            protected Map<Object, Map<String, Object>> createMainMap() {
+                return new HashMap<>();
+            }
+
+            @Override
+            protected Map<String, Object> createSubMap() {
+                return new HashMap<>();
+            }
+        };
+
+        public static void init() {
+        }
+
+        public static Object set(Object owner, String name, Object value) {
+            return WEAK_LOCALS.set(owner, name, value);
+        }
+
+        public static Object setNoReplace(Object owner, String name, Object value) throws FakeVariableAlreadyDeclaredException {
+            return WEAK_LOCALS.setNoReplace(owner, name, value);
+        }
+
+        public static Object get(Object owner, String name) throws NoSuchFakeVariableException {
+            return WEAK_LOCALS.get(owner, name);
+        }
+
+        public static Object getOrCreate(Object owner, String name, Object defaultValue) {
+            return WEAK_LOCALS.getOrCreate(owner, name, defaultValue);
+        }
+
+        public static Object create(Object owner, String name, Object defaultValue) throws FakeVariableAlreadyDeclaredException {
+            return WEAK_LOCALS.create(owner, name, defaultValue);
+        }
+
+        public static Object remove(Object owner, String name) throws NoSuchFakeVariableException {
+            return WEAK_LOCALS.remove(owner, name);
+        }
+
+        public static void removeAll(Object owner) {
+            WEAK_LOCALS.removeAll(owner);
+        }
+
+        public static void destroy() {
+            WEAK_LOCALS.destroy();
+        }
+
+        public static String dump() {
+            return WEAK_LOCALS.dump();
+        }
+
+        public static String dump(Object... owner) {
+            return WEAK_LOCALS.dump(owner);
+        }
+    }
+
     public static class Clazzs {
 
         protected Clazzs() {
@@ -172,7 +236,7 @@ public class UnsafeVariables {
             @Override
             protected Map<String, Object> getSubMap(Class owner) {
                 if (owner == null) {
-                    owner = findCaller();
+                    owner = Caller.find();
                 }
                 Map<String, Object> thisOnes = values.get(owner);
                 if (thisOnes == null) {
@@ -181,22 +245,6 @@ public class UnsafeVariables {
                 }
                 return thisOnes;
             }
-
-            private Class findCaller() throws FakeVariableException {
-                List<String> classes =
-                        Arrays.stream(Thread.currentThread().getStackTrace()).map(a -> a.getClassName()).collect(Collectors.toList());
-                //0 is alwways java.lang.Thread
-                for (int x = 1; x < classes.size(); x++) {
-                    String clazz = classes.get(x);
-                    if (!clazz.startsWith("org.jrd.agent.api.")) {
-                        AgentLogger.getLogger().log("Found: " + clazz);
-                        return classForName(clazz);
-                    }
-                }
-                String clazz = classes.get(classes.size() - 1);
-                AgentLogger.getLogger().log("Notfound, fallback: " + clazz);
-                return classForName(clazz);
-            }
         };
 
         public static void init() {
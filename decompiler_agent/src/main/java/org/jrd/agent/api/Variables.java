@@ -1,13 +1,7 @@
 package org.jrd.agent.api;
 
-import org.jrd.agent.AgentLogger;
-
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Variables {
 
@@ -20,6 +14,7 @@ public class Variables {
         FakeVariableAlreadyDeclaredException.init();
         Global.init();
         Local.init();
+        WeakLocal.init();
         Clazzs.init();
     }
 
@@ -27,6 +22,7 @@ public class Variables {
         StringBuilder sb = new StringBuilder();
         sb.append(Global.dump());
         sb.append(Local.dump());
+        sb.append(WeakLocal.dump());
         sb.append(Clazzs.dump());
         return sb.toString();
     }
@@ -34,6 +30,17 @@ public class Variables {
     protected Variables() {
     }
 
+    /**
+     * Looks the existing variables up first, as computeIfAbsent may lock even when there is nothing to compute.
+     */
+    private static <T> Map<String, Object> getOrCreateSubMap(Map<T, Map<String, Object>> values, T owner) {
+        Map<String, Object> thisOnes = values.get(owner);
+        if (thisOnes == null) {
+            thisOnes = values.computeIfAbsent(owner, o -> new ConcurrentHashMap<>());
+        }
+        return thisOnes;
+    }
+
     public static class FakeVariableException extends RuntimeException {
 
         public FakeVariableException() {
@@ -86,14 +93,14 @@ public class Variables {
             private static final String THE_KEY = "GLOBALS";
 
             @Override
-            protected synchronized Map<String, Map<String, Object>> createMainMap() {
-                Map<String, Map<String, Object>> mapWithSingleMaster = Collections.synchronizedMap(new HashMap<>());
-                mapWithSingleMaster.put(THE_KEY, Collections.synchronizedMap(new HashMap<>()));
+            protected Map<String, Map<String, Object>> createMainMap() {
+                Map<String, Map<String, Object>> mapWithSingleMaster = new ConcurrentHashMap<>();
+                mapWithSingleMaster.put(THE_KEY, new ConcurrentHashMap<>());
                 return mapWithSingleMaster;
             }
 
             @Override
-            protected synchronized Map<String, Object> getSubMap(String mainKey) {
+            protected Map<String, Object> getSubMap(String mainKey) {
                 return values.get(THE_KEY);
             }
         };
@@ -142,18 +149,13 @@ public class Variables {
         private static final AbstractMasterKeyMap<Object> LOCALS = new AbstractMasterKeyMap<Object>() {
 
             @Override
-            protected synchronized Map<Object, Map<String, Object>> createMainMap() {
-                return Collections.synchronizedMap(new HashMap<>());
+            protected Map<Object, Map<String, Object>> createMainMap() {
+                return new ConcurrentHashMap<>();
             }
 
             @Override
-            protected synchronized Map<String, Object> getSubMap(Object owner) {
-                Map<String, Object> thisOnes = values.get(owner);
-                if (thisOnes == null) {
-                    thisOnes = Collections.synchronizedMap(new HashMap<>());
-                    values.put(owner, thisOnes);
-                }
-                return thisOnes;
+            protected Map<String, Object> getSubMap(Object owner) {
+                return getOrCreateSubMap(values, owner == null ? NULL : owner);
             }
         };
 
@@ -201,6 +203,73 @@ public class Variables {
         }
     }
 
+    /**
+     * Same as {@link Local}, except for how the owners are kept.
+     * The owners are held weakly and compared by identity, so their variables are dropped once the owners are collected,
+     * and the owners may have mutable or expensive hashCode. A variable referring back to its owner keeps the owner alive.
+     */
+    public static class WeakLocal {
+
+        protected WeakLocal() {
+        }
+
+        private static final AbstractMasterKeyMap<Object> WEAK_LOCALS = new AbstractWeakOwnerMap() {
+
+            @Override
+            protected Map<Object, Map<String, Object>> createMainMap() {
+                return new ConcurrentHashMap<>();
+            }
+
+            @Override
+            protected Map<String, Object> createSubMap() {
+                return new ConcurrentHashMap<>();
+            }
+        };
+
+        public static void init() {
+        }
+
+        public static Object set(Object owner, String name, Object value) {
+            return WEAK_LOCALS.set(owner, name, value);
+        }
+
+        public static Object setNoReplace(Object owner, String name, Object value) throws FakeVariableAlreadyDeclaredException {
+            return WEAK_LOCALS.setNoReplace(owner, name, value);
+        }
+
+        public static Object get(Object owner, String name) throws NoSuchFakeVariableException {
+            return WEAK_LOCALS.get(owner, name);
+        }
+
+        public static Object getOrCreate(Object owner, String name, Object defaultValue) {
+            return WEAK_LOCALS.getOrCreate(owner, name, defaultValue);
+        }
+
+        public static Object create(Object owner, String name, Object defaultValue) throws FakeVariableAlreadyDeclaredException {
+            return WEAK_LOCALS.create(owner, name, defaultValue);
+        }
+
+        public static Object remove(Object owner, String name) throws NoSuchFakeVariableException {
+            return WEAK_LOCALS.remove(owner, name);
+        }
+
+        public static void removeAll(Object owner) {
+            WEAK_LOCALS.removeAll(owner);
+        }
+
+        public static void destroy() {
+            WEAK_LOCALS.destroy();
+        }
+
+        public static String dump() {
+            return WEAK_LOCALS.dump();
+        }
+
+        public static String dump(Object... owner) {
+            return WEAK_LOCALS.dump(owner);
+        }
+    }
+
     public static class Clazzs {
 
         protected Clazzs() {
@@ -209,37 +278,16 @@ public class Variables {
         private static final AbstractMasterKeyMap<Class> CLAZZS = new AbstractMasterKeyMap<Class>() {
 
             @Override
-            protected synchronized Map<Class, Map<String, Object>> createMainMap() {
-                return Collections.synchronizedMap(new HashMap<>());
+            protected Map<Class, Map<String, Object>> createMainMap() {
+                return new ConcurrentHashMap<>();
             }
 
             @Override
-            protected synchronized Map<String, Object> getSubMap(Class owner) {
+            protected Map<String, Object> getSubMap(Class owner) {
                 if (owner == null) {
-                    owner = findCaller();
-                }
-                Map<String, Object> thisOnes = values.get(owner);
-                if (thisOnes == null) {
-                    thisOnes = Collections.synchronizedMap(new HashMap<>());
-                    values.put(owner, thisOnes);
-                }
-                return thisOnes;
-            }
-
-            private Class findCaller() throws FakeVariableException {
-                List<String> classes =
-                        Arrays.stream(Thread.currentThread().getStackTrace()).map(a -> a.getClassName()).collect(Collectors.toList());
-                //0 is alwways java.lang.Thread
-                for (int x = 1; x < classes.size(); x++) {
-                    String clazz = classes.get(x);
-                    if (!clazz.startsWith("org.jrd.agent.api.")) {
-                        AgentLogger.getLogger().log("Found: " + clazz);
-                        return classForName(clazz);
-                    }
+                    owner = Caller.find();
                 }
-                String clazz = classes.get(classes.size() - 1);
-                AgentLogger.getLogger().log("Notfound, fallback: " + clazz);
-                return classForName(clazz);
+                return getOrCreateSubMap(values, owner);
             }
         };
 
@@ -0,0 +1,74 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AgentBudgetTest {
+
+    @Test
+    void testUnlimitedByDefault() {
+        AgentBudget budget = new AgentBudget();
+
+        assertEquals(List.of("retransforms=0", "scanslice=0", "scanpause=0"), budget.toLines());
+    }
+
+    @Test
+    void testSetSettings() {
+        AgentBudget budget = new AgentBudget();
+
+        budget.set(" retransforms=100  scanslice=500 ");
+
+        assertEquals(List.of("retransforms=100", "scanslice=500", "scanpause=0"), budget.toLines());
+    }
+
+    @Test
+    void testMalformedSettingsChangeNothing() {
+        AgentBudget budget = new AgentBudget();
+
+        assertThrows(IllegalArgumentException.class, () -> budget.set("retransforms=100 bogus=1"));
+        assertThrows(IllegalArgumentException.class, () -> budget.set("retransforms=100 scanslice=many"));
+        assertThrows(IllegalArgumentException.class, () -> budget.set("retransforms=100 scanslice"));
+        assertThrows(IllegalArgumentException.class, () -> budget.set("retransforms=-1"));
+
+        assertEquals(List.of("retransforms=0", "scanslice=0", "scanpause=0"), budget.toLines());
+    }
+
+    @Test
+    void testRetransformsArePaced() {
+        AgentBudget budget = new AgentBudget();
+        budget.set(AgentBudget.RETRANSFORMS, 10);
+
+        long start = System.nanoTime();
+        // the first batch passes at once, and makes the next one wait for it
+        budget.acquireRetransforms(2);
+        budget.acquireRetransforms(1);
+        long waitedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(waitedMillis >= 150, "waited " + waitedMillis + "ms");
+        Map<String, Long> gauges = new HashMap<>();
+        budget.putGauges(gauges);
+        assertTrue(gauges.get("budget.waited.ms") >= 150, gauges.toString());
+    }
+
+    @Test
+    void testScanPausesAfterSlice() {
+        AgentBudget budget = new AgentBudget();
+        budget.set("scanslice=2 scanpause=50");
+        AgentBudget.Scan scan = budget.startScan();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            scan.next();
+        }
+        long waitedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(waitedMillis >= 100, "waited " + waitedMillis + "ms");
+    }
+}
@@ -0,0 +1,158 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AgentSessionTest {
+
+    private static int port;
+
+    @BeforeAll
+    static void startAgent() throws IOException {
+        Instrumentation nothingLoaded = (Instrumentation) Proxy.newProxyInstance(
+                AgentSessionTest.class.getClassLoader(), new Class<?>[]{Instrumentation.class},
+                (proxy, method, args) -> defaultValue(method.getReturnType())
+        );
+        InstrumentationProvider provider = new InstrumentationProvider(nothingLoaded, new Transformer(), "", "");
+        port = ConnectionDelegator.initialize("localhost", 0, provider, "", 2, 4);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type.isArray()) {
+            return Array.newInstance(type.getComponentType(), 0);
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    @AfterAll
+    static void stopAgent() {
+        ConnectionDelegator.gracefulShutdown();
+    }
+
+    private static Socket openSession() throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setSoTimeout(10000);
+        socket.getOutputStream().write((AgentSession.SESSION_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+        assertEquals(AgentSession.SESSION_HANDSHAKE, AbstractAgentChannel.readRawLine(socket.getInputStream()));
+        return socket;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte type, int id, byte[] payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(id);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    private static void writeRequest(DataOutputStream out, int id, String command) throws IOException {
+        writeFrame(out, AbstractAgentChannel.FRAME_TEXT, id, command.getBytes(StandardCharsets.UTF_8));
+        writeFrame(out, AbstractAgentChannel.FRAME_END, id, new byte[0]);
+    }
+
+    /**
+     * @return text frames of responses, by request id, until all expected requests are answered
+     */
+    private static Map<Integer, List<String>> readResponses(DataInputStream in, int expected) throws IOException {
+        Map<Integer, List<String>> responses = new HashMap<>();
+        int ended = 0;
+        while (ended < expected) {
+            byte type = in.readByte();
+            int id = in.readInt();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            List<String> response = responses.computeIfAbsent(id, i -> new ArrayList<>());
+            if (type == AbstractAgentChannel.FRAME_END) {
+                response.add(null);
+                ended++;
+            } else {
+                response.add(new String(payload, StandardCharsets.UTF_8));
+            }
+        }
+        return responses;
+    }
+
+    @Test
+    void testRequestsAreAnsweredByTheirIds() throws IOException {
+        try (Socket socket = openSession()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            writeRequest(out, 7, "VERSION");
+            writeRequest(out, 3, "NO_SUCH_COMMAND");
+            // frames of different requests may interleave
+            writeFrame(out, AbstractAgentChannel.FRAME_TEXT, 9, "VER".getBytes(StandardCharsets.UTF_8));
+            writeRequest(out, 5, "VERSION");
+            writeFrame(out, AbstractAgentChannel.FRAME_END, 9, new byte[0]);
+
+            Map<Integer, List<String>> responses = readResponses(new DataInputStream(new BufferedInputStream(socket.getInputStream())), 4);
+
+            assertEquals(4, responses.size());
+            assertEquals(responses.get(7), responses.get(5));
+            assertTrue(responses.get(7).get(1).startsWith("java-runtime-decompiler"), responses.get(7).toString());
+            assertTrue(responses.get(3).get(0).startsWith("ERROR"), responses.get(3).toString());
+            assertTrue(responses.get(9).get(0).startsWith("ERROR"), responses.get(9).toString());
+            for (List<String> response : responses.values()) {
+                assertEquals(null, response.get(response.size() - 1));
+            }
+        }
+    }
+
+    @Test
+    void testInvalidFrameLengthDisconnects() throws IOException {
+        try (Socket socket = openSession()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeByte(AbstractAgentChannel.FRAME_TEXT);
+            out.writeInt(1);
+            out.writeInt(AbstractAgentChannel.MAX_FRAME_LENGTH + 1);
+
+            assertThrows(EOFException.class, () -> new DataInputStream(socket.getInputStream()).readByte());
+        }
+    }
+
+    @Test
+    void testTooManyIncompleteRequestsDisconnect() throws IOException {
+        try (Socket socket = openSession()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            for (int id = 0; id < 17; id++) {
+                writeFrame(out, AbstractAgentChannel.FRAME_TEXT, id, "VERSION".getBytes(StandardCharsets.UTF_8));
+            }
+
+            assertThrows(EOFException.class, () -> new DataInputStream(socket.getInputStream()).readByte());
+        }
+    }
+
+    @Test
+    void testSilentClientIsDisconnected() throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(20000);
+            long start = System.nanoTime();
+
+            assertEquals(-1, socket.getInputStream().read());
+            assertTrue(System.nanoTime() - start < 15_000_000_000L);
+        }
+    }
+}
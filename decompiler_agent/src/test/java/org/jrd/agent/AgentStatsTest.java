@@ -0,0 +1,70 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AgentStatsTest {
+
+    @Test
+    void testPercentilesAreUpperBoundsOfBuckets() {
+        AgentStats.LatencyHistogram histogram = new AgentStats.LatencyHistogram();
+        for (int i = 0; i < 100; i++) {
+            histogram.add(1000);
+        }
+        histogram.add(1_000_000);
+
+        assertEquals(1023, histogram.percentile(0.5));
+        assertEquals(1023, histogram.percentile(0.99));
+        // the last bucket is bounded by the maximum
+        assertEquals(1_000_000, histogram.percentile(1));
+    }
+
+    @Test
+    void testEmptyHistogram() {
+        AgentStats.LatencyHistogram histogram = new AgentStats.LatencyHistogram();
+        histogram.add(-5);
+
+        assertEquals(0, histogram.percentile(0.99));
+        assertEquals("count=0 mean=0us p50=0us p90=0us p99=0us max=0us", new AgentStats.LatencyHistogram().toString());
+    }
+
+    @Test
+    void testCountersAreListed() {
+        AgentStats stats = new AgentStats();
+        stats.onBodyServed(10);
+        stats.onBodyServed(20);
+        stats.onRetransform(3, 5000, true);
+        stats.onCommand("BYTES", 2000, true);
+        stats.onClientRefused();
+
+        List<String> lines = stats.toLines(Collections.singletonMap("overrides", 4L));
+
+        assertEquals("overrides 4", lines.get(0));
+        assertTrue(lines.contains("served.bodies 2"), lines.toString());
+        assertTrue(lines.contains("served.bytes 30"), lines.toString());
+        assertTrue(lines.contains("commands.aborted 1"), lines.toString());
+        assertTrue(lines.contains("clients.refused 1"), lines.toString());
+        assertTrue(lines.contains("retransform.classes 3"), lines.toString());
+        assertTrue(lines.contains("retransform.failed 1"), lines.toString());
+        assertTrue(lines.contains("latency.command.BYTES count=1 mean=2us p50=2us p90=2us p99=2us max=2us"), lines.toString());
+    }
+
+    @Test
+    void testUnknownCommandsShareHistogram() {
+        AgentStats stats = new AgentStats();
+        for (int i = 0; i < 100; i++) {
+            stats.onCommand("COMMAND" + i, 1000, false);
+        }
+
+        List<String> lines = stats.toLines(Collections.emptyMap());
+
+        long commands = lines.stream().filter(line -> line.startsWith("latency.command.")).count();
+        assertEquals(65, commands);
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("latency.command.OTHER count=36 ")), lines.toString());
+    }
+}
@@ -0,0 +1,65 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class AgentSubscribersTest {
+
+    @Test
+    void testEventIsResolvedBySubscriber() throws IOException, InterruptedException {
+        AgentSubscribers subscribers = new AgentSubscribers();
+        try (AgentSubscribers.Subscriber subscriber = subscribers.subscribe(); URLClassLoader loader = new URLClassLoader(new URL[0])) {
+            subscribers.publish(AgentSubscribers.DEFINED, "com/example/Foo", loader);
+            subscribers.publish(AgentSubscribers.REDEFINED, "com.example.Foo", (ClassLoader) null);
+            subscribers.publish(AgentSubscribers.OVERRIDE_ADDED, "com.example.Foo", "app");
+
+            assertEquals("DEFINED|com.example.Foo|" + loader, subscriber.next(0));
+            assertEquals("REDEFINED|com.example.Foo|unknown", subscriber.next(0));
+            assertEquals("OVERRIDE_ADDED|com.example.Foo|app", subscriber.next(0));
+            assertNull(subscriber.next(0));
+        }
+    }
+
+    @Test
+    void testNoSubscriberNoKey() throws IOException {
+        AgentSubscribers subscribers = new AgentSubscribers();
+        try (URLClassLoader loader = new URLClassLoader(new URL[0])) {
+            int keys = ClassLoaderIds.size();
+
+            subscribers.publish(AgentSubscribers.DEFINED, "com/example/Foo", loader);
+
+            assertEquals(keys, ClassLoaderIds.size());
+        }
+    }
+
+    @Test
+    void testOverflowDropsQueuedEvents() throws InterruptedException {
+        AgentSubscribers subscribers = new AgentSubscribers();
+        try (AgentSubscribers.Subscriber subscriber = subscribers.subscribe()) {
+            for (int i = 0; i <= 4096; i++) {
+                subscribers.publish(AgentSubscribers.DEFINED, "com/example/Foo" + i, (ClassLoader) null);
+            }
+
+            assertEquals(AgentSubscribers.OVERFLOW, subscriber.next(0));
+            assertNull(subscriber.next(0));
+        }
+    }
+
+    @Test
+    void testClosedSubscriberGetsNothing() throws InterruptedException {
+        AgentSubscribers subscribers = new AgentSubscribers();
+        AgentSubscribers.Subscriber subscriber = subscribers.subscribe();
+        subscribers.closeAll();
+
+        subscribers.publish(AgentSubscribers.DEFINED, "com/example/Foo", (ClassLoader) null);
+
+        assertNull(subscriber.next(0));
+        assertEquals(0, subscribers.getCount());
+    }
+}
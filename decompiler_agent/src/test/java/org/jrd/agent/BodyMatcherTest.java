@@ -0,0 +1,75 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BodyMatcherTest {
+
+    @SuppressWarnings("unused")
+    static class Fixture {
+        String text() {
+            return "needle in \u0000 haystack \uD83D\uDE00";
+        }
+    }
+
+    private static byte[] fixtureBody() throws IOException {
+        String resource = "/" + Fixture.class.getName().replace('.', '/') + ".class";
+        try (InputStream in = Fixture.class.getResourceAsStream(resource)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] withTrailing(byte[] body, String trailing) {
+        byte[] bytes = trailing.getBytes(StandardCharsets.UTF_8);
+        byte[] result = Arrays.copyOf(body, body.length + bytes.length);
+        System.arraycopy(bytes, 0, result, body.length, bytes.length);
+        return result;
+    }
+
+    @Test
+    void testSubstringOfString() throws IOException {
+        assertTrue(new BodyMatcher("needle in", false).matches(fixtureBody()));
+        assertTrue(new BodyMatcher("needle in", true).matches(fixtureBody()));
+        assertFalse(new BodyMatcher("needle out", false).matches(fixtureBody()));
+    }
+
+    @Test
+    void testModifiedUtf8() throws IOException {
+        // class files encode NUL and supplementary characters differently from UTF-8
+        assertTrue(new BodyMatcher("in \u0000 hay", true).matches(fixtureBody()));
+        assertTrue(new BodyMatcher("haystack \uD83D\uDE00", true).matches(fixtureBody()));
+    }
+
+    @Test
+    void testConstantPoolOnly() throws IOException {
+        byte[] body = withTrailing(fixtureBody(), "outside of pool");
+
+        assertTrue(new BodyMatcher("outside of pool", false).matches(body));
+        assertFalse(new BodyMatcher("outside of pool", true).matches(body));
+    }
+
+    @Test
+    void testUnparsableBodyIsSearchedWhole() {
+        byte[] body = "not a class file at all".getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(new BodyMatcher("class file", true).matches(body));
+        assertFalse(new BodyMatcher("missing", true).matches(body));
+    }
+
+    @Test
+    void testPatternAtBoundaries() {
+        byte[] body = "abcabd".getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(new BodyMatcher("abc", false).matches(body));
+        assertTrue(new BodyMatcher("abd", false).matches(body));
+        assertFalse(new BodyMatcher("abcabda", false).matches(body));
+        assertTrue(new BodyMatcher("", false).matches(body));
+    }
+}
@@ -0,0 +1,161 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClassBytesCacheTest {
+
+    private static byte[] bytes(int length, int fill) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) fill);
+        return bytes;
+    }
+
+    /**
+     * Loaded by its own classloader, so it can be unloaded.
+     */
+    static final class Unloadable {
+    }
+
+    /**
+     * Caches class of classloader, which is not reachable once this returns.
+     */
+    private static WeakReference<Class<?>> cacheUnloadable(ClassBytesCache cache, int length) throws ReflectiveOperationException {
+        URL classes = Unloadable.class.getProtectionDomain().getCodeSource().getLocation();
+        ClassLoader loader = new URLClassLoader(new URL[]{classes}, null);
+        Class<?> clazz = loader.loadClass(Unloadable.class.getName());
+        cache.onTransformed(clazz, bytes(length, 1));
+        return new WeakReference<>(clazz);
+    }
+
+    @Test
+    void testUnseenClass() {
+        assertNull(new ClassBytesCache().get(String.class));
+    }
+
+    @Test
+    void testGenerationChangesOnlyWithBytes() {
+        ClassBytesCache cache = new ClassBytesCache();
+        cache.onTransformed(String.class, bytes(10, 1));
+        ClassBytesCache.Versioned first = cache.get(String.class);
+
+        cache.onTransformed(String.class, bytes(10, 1));
+        assertEquals(first.getGeneration(), cache.get(String.class).getGeneration());
+
+        cache.onTransformed(String.class, bytes(10, 2));
+        ClassBytesCache.Versioned changed = cache.get(String.class);
+        assertTrue(changed.getGeneration() > first.getGeneration());
+        assertArrayEquals(bytes(10, 2), changed.getBytes());
+        assertEquals(10, cache.getCachedBytes());
+    }
+
+    @Test
+    void testGenerationsAreNewerThanPreviousCache() throws InterruptedException {
+        ClassBytesCache previous = new ClassBytesCache();
+        previous.onTransformed(String.class, bytes(10, 1));
+        long known = previous.get(String.class).getGeneration();
+        // generations start by the time the cache was created, agents are never restarted within a millisecond
+        Thread.sleep(2);
+
+        ClassBytesCache cache = new ClassBytesCache();
+        cache.onTransformed(String.class, bytes(10, 1));
+
+        assertTrue(cache.get(String.class).getGeneration() > known);
+    }
+
+    @Test
+    void testLeastRecentlyUsedIsEvicted() {
+        ClassBytesCache cache = new ClassBytesCache(100);
+        cache.onTransformed(String.class, bytes(20, 1));
+        cache.onTransformed(Integer.class, bytes(40, 2));
+        // String is used, so Integer is the least recently used one
+        cache.get(String.class);
+
+        // over the limit, so bytes are dropped until they take at most three quarters of it
+        cache.onTransformed(Long.class, bytes(50, 3));
+
+        assertNotNull(cache.get(String.class).getBytes());
+        assertNotNull(cache.get(Long.class).getBytes());
+        ClassBytesCache.Versioned evicted = cache.get(Integer.class);
+        assertNull(evicted.getBytes());
+        assertTrue(evicted.getGeneration() != ClassBytesCache.NO_GENERATION);
+        assertEquals(70, cache.getCachedBytes());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    void testInvalidateChangesGeneration() {
+        ClassBytesCache cache = new ClassBytesCache();
+        cache.onTransformed(String.class, bytes(10, 1));
+        long generation = cache.get(String.class).getGeneration();
+
+        cache.invalidate(String.class);
+
+        ClassBytesCache.Versioned invalidated = cache.get(String.class);
+        assertNull(invalidated.getBytes());
+        assertTrue(invalidated.getGeneration() > generation);
+        assertEquals(0, cache.getCachedBytes());
+    }
+
+    @Test
+    void testDisabledCacheKeepsOnlyGenerations() {
+        ClassBytesCache cache = new ClassBytesCache();
+        cache.onTransformed(String.class, bytes(10, 1));
+        final long generation = cache.get(String.class).getGeneration();
+
+        cache.setMaxBytes(0);
+        assertEquals(0, cache.getCachedBytes());
+
+        cache.onTransformed(String.class, bytes(10, 1));
+        ClassBytesCache.Versioned seen = cache.get(String.class);
+        assertNull(seen.getBytes());
+        assertTrue(seen.getGeneration() > generation);
+        assertEquals(0, cache.getCachedBytes());
+    }
+
+    @Test
+    void testShrinkEvictsAtOnce() {
+        ClassBytesCache cache = new ClassBytesCache(100);
+        cache.onTransformed(String.class, bytes(40, 1));
+        cache.onTransformed(Integer.class, bytes(40, 2));
+
+        cache.setMaxBytes(60);
+
+        assertNull(cache.get(String.class).getBytes());
+        assertNotNull(cache.get(Integer.class).getBytes());
+        assertEquals(40, cache.getCachedBytes());
+        assertEquals(60, cache.getMaxBytes());
+        assertThrows(IllegalArgumentException.class, () -> cache.setMaxBytes(-1));
+    }
+
+    @Test
+    void testUnloadedClassIsSubtracted() throws ReflectiveOperationException, InterruptedException {
+        ClassBytesCache cache = new ClassBytesCache(100);
+        cache.onTransformed(String.class, bytes(10, 1));
+        WeakReference<Class<?>> unloaded = cacheUnloadable(cache, 80);
+        assertEquals(90, cache.getCachedBytes());
+        for (int i = 0; i < 100 && unloaded.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(unloaded.get(), "class was not unloaded");
+
+        assertEquals(1, cache.size());
+        assertEquals(10, cache.getCachedBytes());
+        // unloaded bytes no longer count, so nothing is evicted
+        cache.onTransformed(Integer.class, bytes(80, 2));
+        assertNotNull(cache.get(String.class).getBytes());
+        assertEquals(90, cache.getCachedBytes());
+    }
+}
@@ -0,0 +1,33 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ClassChecksumsTest {
+
+    private static final byte[] CHECK = "123456789".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ABC = "abc".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    void testCrc32cIsPaddedHex() {
+        assertEquals("e3069283", ClassChecksums.checksum(CHECK, ClassChecksums.CRC32C));
+        assertEquals("00000000", ClassChecksums.checksum(new byte[0], ClassChecksums.CRC32C));
+    }
+
+    @Test
+    void testSha256IsLowercaseHex() {
+        assertEquals(
+                "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", ClassChecksums.checksum(ABC, ClassChecksums.SHA256)
+        );
+    }
+
+    @Test
+    void testUnknownAlgorithmIsRefused() {
+        assertThrows(IllegalArgumentException.class, () -> ClassChecksums.check("md5"));
+        assertThrows(IllegalArgumentException.class, () -> ClassChecksums.checksum(ABC, "md5"));
+    }
+}
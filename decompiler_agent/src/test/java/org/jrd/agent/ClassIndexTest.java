@@ -0,0 +1,81 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ClassIndexTest {
+
+    private final List<Class<?>> loaded = new ArrayList<>();
+    private final AtomicLong definitions = new AtomicLong();
+    private final AtomicInteger listings = new AtomicInteger();
+    private final ClassIndex index = new ClassIndex(instrumentation(), definitions::get);
+
+    private Instrumentation instrumentation() {
+        return (Instrumentation) Proxy
+                .newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Instrumentation.class}, (proxy, method, args) -> {
+                    if (!"getAllLoadedClasses".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    listings.incrementAndGet();
+                    return loaded.toArray(new Class<?>[0]);
+                });
+    }
+
+    private void define(Class<?> clazz) {
+        definitions.incrementAndGet();
+        loaded.add(clazz);
+    }
+
+    @Test
+    void testFoundClassIsIndexed() {
+        define(String.class);
+        define(HashMap.class);
+
+        assertEquals(String.class, index.find(String.class.getName(), clazz -> true));
+        assertEquals(HashMap.class, index.find(HashMap.class.getName(), clazz -> true));
+        assertEquals(1, listings.get());
+    }
+
+    @Test
+    void testNewClassRebuildsIndex() {
+        define(String.class);
+        assertEquals(String.class, index.find(String.class.getName(), clazz -> true));
+
+        define(HashMap.class);
+
+        assertEquals(HashMap.class, index.find(HashMap.class.getName(), clazz -> true));
+        assertEquals(HashMap.class, index.findIndexed(HashMap.class.getName(), clazz -> true));
+    }
+
+    @Test
+    void testUnknownClassIsMiss() {
+        define(String.class);
+
+        assertNull(index.find("com.example.Never", clazz -> true));
+        assertNull(index.find(String.class.getName(), clazz -> false));
+    }
+
+    @Test
+    void testCountedClassListedLaterIsFound() {
+        define(String.class);
+        // counted by the transformer, but not yet listed when the index is built
+        definitions.incrementAndGet();
+        assertEquals(String.class, index.find(String.class.getName(), clazz -> true));
+
+        loaded.add(HashMap.class);
+
+        assertEquals(HashMap.class, index.find(HashMap.class.getName(), clazz -> true));
+        // the missed class is indexed now
+        assertEquals(HashMap.class, index.findIndexed(HashMap.class.getName(), clazz -> true));
+    }
+}
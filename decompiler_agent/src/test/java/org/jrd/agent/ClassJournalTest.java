@@ -0,0 +1,132 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClassJournalTest {
+
+    private static List<String> names(List<ClassJournal.Event> events) {
+        List<String> names = new ArrayList<>(events.size());
+        for (ClassJournal.Event event : events) {
+            names.add(event.getClassName());
+        }
+        return names;
+    }
+
+    /**
+     * Records class of classloader, which is not reachable once this returns.
+     */
+    private static WeakReference<ClassLoader> defineInUnreachableLoader(ClassJournal journal, String[] loaderId) {
+        ClassLoader loader = new URLClassLoader(new URL[0]);
+        loaderId[0] = ClassLoaderIds.get(loader);
+        journal.onDefined("com/example/Gone", loader);
+        return new WeakReference<>(loader);
+    }
+
+    @Test
+    void testEventsSinceSequence() {
+        ClassJournal journal = new ClassJournal();
+        journal.onDefined("com/example/First", null);
+        long first = journal.getLastSequence();
+        journal.onDefined("com/example/Second", null);
+        journal.onDefined("com/example/Third", ClassLoader.getSystemClassLoader());
+
+        List<ClassJournal.Event> events = journal.since(first);
+
+        assertEquals(List.of("com.example.Second", "com.example.Third"), names(events));
+        assertEquals(AgentLogger.classLoaderId(null), events.get(0).getClassloader());
+        assertEquals(ClassLoaderIds.get(ClassLoader.getSystemClassLoader()), events.get(1).getClassloader());
+        assertFalse(events.get(0).isUnload());
+        assertTrue(journal.since(journal.getLastSequence()).isEmpty());
+    }
+
+    @Test
+    void testUnknownSequenceIsNotCovered() {
+        ClassJournal journal = new ClassJournal();
+        long start = journal.getLastSequence();
+        journal.onDefined("com/example/First", null);
+
+        assertNull(journal.since(journal.getLastSequence() + 1));
+        // sequence of previous agent
+        assertNull(journal.since(start - 1));
+        assertEquals(1, journal.since(start).size());
+    }
+
+    @Test
+    void testOverwrittenEventsAreNotCovered() {
+        ClassJournal journal = new ClassJournal(4);
+        long start = journal.getLastSequence();
+        for (int i = 0; i < 6; i++) {
+            journal.onDefined("com/example/C" + i, null);
+        }
+        long last = journal.getLastSequence();
+
+        assertNull(journal.since(start));
+        assertNull(journal.since(last - 5));
+        assertEquals(List.of("com.example.C2", "com.example.C3", "com.example.C4", "com.example.C5"), names(journal.since(last - 4)));
+    }
+
+    @Test
+    void testUnloadOfCollectedLoader() throws InterruptedException {
+        ClassJournal journal = new ClassJournal();
+        String[] loaderId = new String[1];
+        WeakReference<ClassLoader> loader = defineInUnreachableLoader(journal, loaderId);
+        long defined = journal.getLastSequence();
+        for (int i = 0; i < 100 && loader.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(loader.get(), "classloader was not collected");
+
+        List<ClassJournal.Event> events = journal.since(defined);
+
+        assertEquals(1, events.size());
+        assertTrue(events.get(0).isUnload());
+        assertNull(events.get(0).getClassName());
+        assertEquals(loaderId[0], events.get(0).getClassloader());
+        // recorded only once
+        assertTrue(journal.since(journal.getLastSequence()).isEmpty());
+    }
+
+    @Test
+    void testConcurrentWritersPublishAllEvents() throws InterruptedException {
+        ClassJournal journal = new ClassJournal(64 * 1024);
+        long start = journal.getLastSequence();
+        int threads = 8;
+        int perThread = 2000;
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String prefix = "com/example/T" + t + "C";
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    journal.onDefined(prefix + i, null);
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        List<ClassJournal.Event> events = journal.since(start);
+
+        assertEquals(start + threads * perThread, journal.getLastSequence());
+        assertEquals(threads * perThread, events.size());
+        Set<String> distinct = new HashSet<>(names(events));
+        assertEquals(threads * perThread, distinct.size());
+    }
+}
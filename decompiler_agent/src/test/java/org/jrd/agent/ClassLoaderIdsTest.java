@@ -0,0 +1,97 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ClassLoaderIdsTest {
+
+    /**
+     * Classloader equal to any other, whose toString changes with each call.
+     */
+    private static final class ChangingLoader extends ClassLoader {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public String toString() {
+            return "changing@" + calls.incrementAndGet();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ChangingLoader;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+    }
+
+    @Test
+    void testIdIsComputedOnce() {
+        ChangingLoader loader = new ChangingLoader();
+
+        String id = ClassLoaderIds.get(loader);
+
+        assertEquals("changing@1", id);
+        assertEquals(id, ClassLoaderIds.get(loader));
+        assertEquals(1, loader.calls.get());
+    }
+
+    @Test
+    void testLoadersAreComparedByIdentity() {
+        ChangingLoader first = new ChangingLoader();
+        ChangingLoader second = new ChangingLoader();
+
+        assertSame(ClassLoaderIds.key(first), ClassLoaderIds.key(first));
+        assertNotEquals(ClassLoaderIds.key(first), ClassLoaderIds.key(second));
+    }
+
+    @Test
+    void testKeyDoesNotComputeId() {
+        ChangingLoader loader = new ChangingLoader();
+
+        ClassLoaderIds.Key key = ClassLoaderIds.key(loader);
+
+        assertEquals(0, loader.calls.get());
+        assertEquals("changing@1", key.getId());
+    }
+
+    @Test
+    void testIdOfLoaderCollectedBeforeAsked() throws InterruptedException {
+        ChangingLoader loader = new ChangingLoader();
+        ClassLoaderIds.Key key = ClassLoaderIds.key(loader);
+        WeakReference<ChangingLoader> reference = new WeakReference<>(loader);
+        loader = null;
+        for (int i = 0; i < 100 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get(), "classloader was not collected");
+
+        assertNull(key.getId());
+    }
+
+    @Test
+    void testIdOfCollectedLoaderIsKept() throws InterruptedException {
+        ChangingLoader loader = new ChangingLoader();
+        ClassLoaderIds.Key key = ClassLoaderIds.key(loader);
+        String id = key.getId();
+        WeakReference<ChangingLoader> reference = new WeakReference<>(loader);
+        loader = null;
+        for (int i = 0; i < 100 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get(), "classloader was not collected");
+
+        assertEquals(id, key.getId());
+    }
+}
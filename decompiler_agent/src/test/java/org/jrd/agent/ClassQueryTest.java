@@ -0,0 +1,87 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClassQueryTest {
+
+    private static String base64(String s) {
+        return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testEmptyQueryMatchesAll() throws IOException {
+        ClassQuery query = ClassQuery.parse(null);
+
+        assertTrue(query.matches(String.class));
+        assertTrue(query.matches(String[].class));
+        assertFalse(query.isPaged());
+        assertFalse(query.isInfo());
+        assertNull(query.getBodyFilter());
+    }
+
+    @Test
+    void testNamesAndArrays() throws IOException {
+        ClassQuery query = ClassQuery.parse("name=" + base64("java\\.util\\..*") + " name=" + base64(".*String") + " arrays=false");
+
+        assertTrue(query.matches(HashMap.class));
+        assertTrue(query.matches(String.class));
+        assertFalse(query.matches(Integer.class));
+        assertFalse(query.matches(HashMap[].class));
+    }
+
+    @Test
+    void testModule() throws IOException {
+        assertTrue(ClassQuery.parse("module=" + base64("java.base")).matches(String.class));
+        assertFalse(ClassQuery.parse("module=" + base64("java.base")).matches(ClassQueryTest.class));
+        assertTrue(ClassQuery.parse("module=" + base64("unnamed")).matches(ClassQueryTest.class));
+    }
+
+    @Test
+    void testLambdas() throws IOException {
+        Runnable lambda = () -> {
+        };
+
+        assertTrue(ClassQuery.parse("").matches(lambda.getClass()));
+        assertFalse(ClassQuery.parse("lambdas=false").matches(lambda.getClass()));
+    }
+
+    @Test
+    void testBodyFilter() throws IOException {
+        assertNotNull(ClassQuery.parse("body=" + base64("needle") + " constantpool=true").getBodyFilter());
+        assertTrue(ClassQuery.parse("info=true").isInfo());
+    }
+
+    @Test
+    void testPage() throws IOException {
+        List<Integer> sorted = List.of(0, 1, 2, 3, 4);
+
+        assertEquals(List.of(1, 2), ClassQuery.parse("offset=1 limit=2").page(sorted));
+        assertEquals(List.of(3, 4), ClassQuery.parse("offset=3").page(sorted));
+        assertEquals(List.of(0, 1, 2, 3, 4), ClassQuery.parse("limit=10").page(sorted));
+        assertTrue(ClassQuery.parse("offset=5").page(sorted).isEmpty());
+        assertTrue(ClassQuery.parse("limit=0").isPaged());
+        assertEquals(4, ClassQuery.parse("offset=1 limit=" + Integer.MAX_VALUE).page(sorted).size());
+    }
+
+    @Test
+    void testMalformedQuery() {
+        assertThrows(IOException.class, () -> ClassQuery.parse("name"));
+        assertThrows(IOException.class, () -> ClassQuery.parse("bogus=true"));
+        assertThrows(IOException.class, () -> ClassQuery.parse("limit=many"));
+        assertThrows(IOException.class, () -> ClassQuery.parse("name=" + base64("[unclosed")));
+        assertThrows(IOException.class, () -> ClassQuery.parse("name=not*base64"));
+    }
+}
@@ -0,0 +1,53 @@
+package org.jrd.agent;
+
+import org.jrd.agent.api.UnsafeVariables;
+import org.jrd.agent.api.Variables;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Class variables set without owner belong to the class calling the api. It lives outside of the api package,
+ * as classes of the api are skipped when looking for the caller.
+ */
+class ClassVariablesOwnerTest {
+
+    private static final class Nested {
+        private static void set(String name, Object value) {
+            Variables.Clazzs.set(name, value);
+        }
+    }
+
+    @AfterEach
+    void removeVariables() {
+        Variables.Clazzs.removeAll(ClassVariablesOwnerTest.class);
+        Variables.Clazzs.removeAll(Nested.class);
+        UnsafeVariables.Clazzs.removeAll(ClassVariablesOwnerTest.class);
+    }
+
+    @Test
+    void testCallerOwnsVariable() {
+        Variables.Clazzs.set("x", "value");
+
+        assertEquals("value", Variables.Clazzs.get(ClassVariablesOwnerTest.class, "x"));
+        assertEquals("value", Variables.Clazzs.get("x"));
+    }
+
+    @Test
+    void testDeclaringClassOfFrameOwnsVariable() {
+        Nested.set("x", "nested");
+
+        assertEquals("nested", Variables.Clazzs.get(Nested.class, "x"));
+        assertThrows(Variables.NoSuchFakeVariableException.class, () -> Variables.Clazzs.get(ClassVariablesOwnerTest.class, "x"));
+    }
+
+    @Test
+    void testUnsafeCallerOwnsVariable() {
+        UnsafeVariables.Clazzs.set("x", 1);
+
+        assertEquals(1, UnsafeVariables.Clazzs.get(ClassVariablesOwnerTest.class, "x"));
+        assertEquals(1, UnsafeVariables.Clazzs.get("x"));
+    }
+}
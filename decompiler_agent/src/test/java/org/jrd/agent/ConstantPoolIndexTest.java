@@ -0,0 +1,265 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConstantPoolIndexTest {
+
+    private static final String FIXTURE = Fixture.class.getName();
+
+    @SuppressWarnings("unused")
+    static class Fixture {
+        // long and double constants take two entries of the pool, the entries after them must still be found
+        private static final long BIG = System.nanoTime() > 0 ? 1234567890123L : 0;
+        private static final double RATIO = System.nanoTime() > 0 ? 0.123456789 : 0;
+
+        Map<String, String> use() {
+            Map<String, String> map = new HashMap<>();
+            map.put("key", "hello fixture");
+            System.out.println(map);
+            return map;
+        }
+    }
+
+    private static byte[] fixtureBody() throws IOException {
+        String resource = "/" + FIXTURE.replace('.', '/') + ".class";
+        try (InputStream in = Fixture.class.getResourceAsStream(resource)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static String base64(String s) {
+        return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testReferencesOfClass() throws IOException {
+        Set<String> references = ConstantPoolIndex.references(FIXTURE, fixtureBody());
+
+        assertTrue(references.contains("class:java.util.HashMap"), references.toString());
+        assertTrue(references.contains("method:java.util.HashMap.<init>"), references.toString());
+        assertTrue(references.contains("method:java.util.Map.put"), references.toString());
+        assertTrue(references.contains("field:java.lang.System.out"), references.toString());
+        assertTrue(references.contains("method:java.io.PrintStream.println"), references.toString());
+        assertTrue(references.contains("string:hello fixture"), references.toString());
+        assertTrue(references.contains("string:key"), references.toString());
+    }
+
+    @Test
+    void testOwnClassIsNotReference() throws IOException {
+        Set<String> references = ConstantPoolIndex.references(FIXTURE, fixtureBody());
+
+        assertFalse(references.contains("class:" + FIXTURE));
+        assertTrue(references.contains("field:" + FIXTURE + ".BIG"), references.toString());
+        assertTrue(references.contains("field:" + FIXTURE + ".RATIO"), references.toString());
+    }
+
+    @Test
+    void testMalformedBodyIsNotParsed() throws IOException {
+        byte[] body = fixtureBody();
+
+        assertNull(ConstantPoolIndex.references(FIXTURE, null));
+        assertNull(ConstantPoolIndex.references(FIXTURE, new byte[5]));
+        assertNull(ConstantPoolIndex.references(FIXTURE, Arrays.copyOf(body, body.length / 4)));
+        byte[] unknownTag = Arrays.copyOf(body, body.length);
+        unknownTag[10] = 99;
+        assertNull(ConstantPoolIndex.references(FIXTURE, unknownTag));
+    }
+
+    @Test
+    void testFindIndexedClass() throws IOException {
+        ConstantPoolIndex index = new ConstantPoolIndex();
+        index.enable();
+        try (URLClassLoader loader = new URLClassLoader(new URL[0])) {
+            index.index(FIXTURE, loader, fixtureBody(), false);
+
+            List<String[]> found = index.find(ConstantPoolIndex.STRING, "hello fixture");
+
+            assertEquals(1, found.size());
+            assertArrayEquals(new String[]{FIXTURE, loader.toString()}, found.get(0));
+            assertTrue(index.isIndexedAsLoaded(FIXTURE, loader));
+            assertFalse(index.isIndexedAsLoaded(FIXTURE, null));
+            assertTrue(index.find(ConstantPoolIndex.STRING, "no such string").isEmpty());
+        }
+    }
+
+    @Test
+    void testReindexReplacesReferences() throws IOException {
+        ConstantPoolIndex index = new ConstantPoolIndex();
+        index.enable();
+        index.index(FIXTURE, null, fixtureBody(), false);
+        index.index(FIXTURE, null, fixtureBody(), true);
+
+        assertEquals(1, index.find(ConstantPoolIndex.CLASS, "java.util.HashMap").size());
+        assertFalse(index.isIndexedAsLoaded(FIXTURE, null));
+
+        // unparsable body removes the class from the index
+        index.index(FIXTURE, null, new byte[5], true);
+
+        assertTrue(index.find(ConstantPoolIndex.CLASS, "java.util.HashMap").isEmpty());
+        Map<String, Long> gauges = new HashMap<>();
+        index.putGauges(gauges);
+        assertEquals(0L, gauges.get("references.classes"));
+        assertEquals(0L, gauges.get("references.constants"));
+    }
+
+    @Test
+    void testDisabledIndexIgnoresClasses() throws IOException {
+        ConstantPoolIndex index = new ConstantPoolIndex();
+        index.onDefined(FIXTURE.replace('.', '/'), null, fixtureBody());
+
+        assertTrue(index.find(ConstantPoolIndex.CLASS, "java.util.HashMap").isEmpty());
+
+        index.enable();
+        index.onDefined(FIXTURE.replace('.', '/'), null, fixtureBody());
+
+        assertEquals(1, index.find(ConstantPoolIndex.CLASS, "java.util.HashMap").size());
+    }
+
+    @Test
+    void testDropKeepsIndexIncomplete() throws IOException {
+        ConstantPoolIndex index = new ConstantPoolIndex();
+        int generation = index.enable();
+        index.index(FIXTURE, null, fixtureBody(), false);
+        index.drop();
+
+        assertTrue(index.find(ConstantPoolIndex.CLASS, "java.util.HashMap").isEmpty());
+        assertFalse(index.setComplete(generation));
+        assertFalse(index.isComplete());
+
+        int enabledAgain = index.enable();
+        assertFalse(index.setComplete(generation));
+        assertTrue(index.setComplete(enabledAgain));
+        assertTrue(index.isComplete());
+    }
+
+    /**
+     * Equal to any other such classloader.
+     */
+    private static final class EqualLoader extends URLClassLoader {
+        private EqualLoader() {
+            super(new URL[0]);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof EqualLoader;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+    }
+
+    @Test
+    void testLoadersAreComparedByIdentity() throws IOException {
+        ConstantPoolIndex index = new ConstantPoolIndex();
+        index.enable();
+        try (URLClassLoader first = new EqualLoader(); URLClassLoader second = new EqualLoader()) {
+            index.index(FIXTURE, first, fixtureBody(), false);
+            index.index(FIXTURE, second, fixtureBody(), false);
+
+            assertEquals(2, index.find(ConstantPoolIndex.CLASS, "java.util.HashMap").size());
+            assertTrue(index.isIndexedAsLoaded(FIXTURE, first));
+            assertTrue(index.isIndexedAsLoaded(FIXTURE, second));
+        }
+    }
+
+    @Test
+    void testOverflowDisablesIndexUntilDropped() throws IOException {
+        ConstantPoolIndex index = new ConstantPoolIndex(10);
+        int generation = index.enable();
+        index.index(FIXTURE, null, fixtureBody(), false);
+
+        assertTrue(index.isOverflowed());
+        assertFalse(index.setComplete(generation));
+        assertTrue(index.find(ConstantPoolIndex.CLASS, "java.util.HashMap").isEmpty());
+        index.enable();
+        index.onDefined(FIXTURE.replace('.', '/'), null, fixtureBody());
+        assertTrue(index.find(ConstantPoolIndex.CLASS, "java.util.HashMap").isEmpty());
+
+        index.drop();
+
+        assertFalse(index.isOverflowed());
+        index.enable();
+        index.index(FIXTURE, null, new byte[5], false);
+        Map<String, Long> gauges = new HashMap<>();
+        index.putGauges(gauges);
+        assertEquals(0L, gauges.get("references.overflowed"));
+    }
+
+    @Test
+    void testConcurrentIndexing() throws Exception {
+        ConstantPoolIndex index = new ConstantPoolIndex();
+        index.enable();
+        byte[] body = fixtureBody();
+        ExecutorService indexers = Executors.newFixedThreadPool(4);
+        try (URLClassLoader loader = new URLClassLoader(new URL[0])) {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                ClassLoader indexedBy = t % 2 == 0 ? null : loader;
+                int thread = t;
+                done.add(indexers.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        index.index(FIXTURE + thread + "x" + i, indexedBy, body, false);
+                    }
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get();
+            }
+
+            assertEquals(400, index.find(ConstantPoolIndex.STRING, "hello fixture").size());
+            Map<String, Long> gauges = new HashMap<>();
+            index.putGauges(gauges);
+            assertEquals(400L, gauges.get("references.classes"));
+        } finally {
+            indexers.shutdown();
+        }
+    }
+
+    @Test
+    void testQueryParse() throws IOException {
+        ConstantPoolIndex.Query query = ConstantPoolIndex.Query.parse("method=" + base64("java.util.HashMap.put") + " info=true");
+
+        assertEquals(ConstantPoolIndex.METHOD, query.getKind());
+        assertEquals("java.util.HashMap.put", query.getValue());
+        assertTrue(query.isInfo());
+        assertFalse(query.isDrop());
+        assertTrue(ConstantPoolIndex.Query.parse("drop=true").isDrop());
+    }
+
+    @Test
+    void testQueryParseRejectsMalformed() {
+        assertThrows(IOException.class, () -> ConstantPoolIndex.Query.parse(""));
+        assertThrows(IOException.class, () -> ConstantPoolIndex.Query.parse("info=true"));
+        assertThrows(IOException.class, () -> ConstantPoolIndex.Query.parse("class"));
+        assertThrows(IOException.class, () -> ConstantPoolIndex.Query.parse("bogus=" + base64("x")));
+        assertThrows(
+                IOException.class, () -> ConstantPoolIndex.Query.parse("class=" + base64("java.lang.String") + " string=" + base64("x"))
+        );
+    }
+}
@@ -0,0 +1,200 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InstrumentationProviderTest {
+
+    private static final byte[] STRING_BYTES = {1};
+    private static final byte[] INTEGER_BYTES = {2};
+
+    private final Transformer transformer = new Transformer();
+    // retransformation of this class fails
+    private volatile Class<?> broken;
+    private final List<List<Class<?>>> retransformations = new CopyOnWriteArrayList<>();
+    private final InstrumentationProvider provider = new InstrumentationProvider(
+            (Instrumentation) Proxy.newProxyInstance(
+                    getClass().getClassLoader(), new Class<?>[]{Instrumentation.class}, (proxy, method, args) -> invoke(method, args)
+            ), transformer, "", ""
+    );
+
+    /**
+     * String and Integer are loaded and modifiable, Long is loaded, but can not be retransformed.
+     */
+    private Object invoke(Method method, Object[] args) throws Exception {
+        switch (method.getName()) {
+            case "getAllLoadedClasses":
+                return new Class<?>[]{String.class, Integer.class, Long.class};
+            case "isModifiableClass":
+                return args[0] != Long.class;
+            case "retransformClasses":
+                retransform((Class<?>[]) args[0]);
+                return null;
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    private void retransform(Class<?>[] classes) throws Exception {
+        retransformations.add(Arrays.asList(classes));
+        if (Arrays.asList(classes).contains(broken)) {
+            throw new UnmodifiableClassException(broken.getName());
+        }
+        for (Class<?> clazz : classes) {
+            byte[] original = clazz == String.class ? STRING_BYTES : INTEGER_BYTES;
+            transformer.transform(clazz.getClassLoader(), clazz.getName().replace('.', '/'), clazz, null, original);
+        }
+    }
+
+    private Map<String, Object> findClassBodies(String... names) throws Exception {
+        Map<String, Object> found = new LinkedHashMap<>();
+        provider.findClassBodies(
+                names, new String[names.length], (className, body, error) -> found.put(className, body != null ? body : error)
+        );
+        return found;
+    }
+
+    @Test
+    void testClassesAreRetransformedAtOnce() throws Exception {
+        Map<String, Object> found = findClassBodies("java.lang.String", "java.lang.Integer", "a.Missing", "java.lang.Long");
+
+        assertArrayEquals(STRING_BYTES, (byte[]) found.get("java.lang.String"));
+        assertArrayEquals(INTEGER_BYTES, (byte[]) found.get("java.lang.Integer"));
+        assertTrue(found.get("a.Missing") instanceof RuntimeException, found.toString());
+        assertTrue(found.get("java.lang.Long") instanceof UnmodifiableClassException, found.toString());
+        assertEquals(Arrays.asList(Arrays.asList(String.class, Integer.class)), retransformations);
+    }
+
+    @Test
+    void testBrokenClassIsRetriedAlone() throws Exception {
+        broken = Integer.class;
+
+        Map<String, Object> found = findClassBodies("java.lang.String", "java.lang.Integer");
+
+        assertArrayEquals(STRING_BYTES, (byte[]) found.get("java.lang.String"));
+        assertTrue(found.get("java.lang.Integer") instanceof UnmodifiableClassException, found.toString());
+        assertEquals(3, retransformations.size());
+    }
+
+    @Test
+    void testCachedBodyIsNotRetransformed() throws Exception {
+        findClassBodies("java.lang.String");
+
+        Map<String, Object> found = findClassBodies("java.lang.String");
+
+        assertArrayEquals(STRING_BYTES, (byte[]) found.get("java.lang.String"));
+        assertEquals(1, retransformations.size());
+    }
+
+    @Test
+    void testUnknownLoaderIsMiss() throws Exception {
+        Map<String, Object> found = new HashMap<>();
+        provider.findClassBodies(
+                new String[]{"java.lang.String"}, new String[]{"no.such.Loader@1"}, (className, body, error) -> found.put(className, error)
+        );
+
+        assertTrue(found.get("java.lang.String") instanceof RuntimeException, found.toString());
+        assertTrue(retransformations.isEmpty());
+    }
+
+    @Test
+    void testFailedOverwriteRestoresOverrides() {
+        byte[] previous = {9};
+        transformer.setOverride("java.lang.Integer", previous, AgentLogger.classLoaderId(null));
+        broken = Integer.class;
+
+        assertThrows(
+                UnmodifiableClassException.class,
+                () -> provider.setClassBodies(new String[]{"java.lang.String", "java.lang.Integer"}, new byte[][]{{3}, {4}}, new String[2])
+        );
+
+        assertNull(transformer.getOverride("java.lang.String", AgentLogger.classLoaderId(null)));
+        assertArrayEquals(previous, transformer.getOverride("java.lang.Integer", AgentLogger.classLoaderId(null)));
+        assertEquals(Arrays.asList(Arrays.asList(String.class, Integer.class)), retransformations);
+    }
+
+    @Test
+    void testOverwriteOfMissingClassSetsNoOverride() {
+        assertThrows(
+                RuntimeException.class,
+                () -> provider.setClassBodies(new String[]{"java.lang.String", "a.Missing"}, new byte[][]{{3}, {4}}, new String[2])
+        );
+
+        assertNull(transformer.getOverride("java.lang.String", AgentLogger.classLoaderId(null)));
+        assertTrue(retransformations.isEmpty());
+    }
+
+    @Test
+    void testOverwriteRetransformsClassesAtOnce() throws Exception {
+        provider.setClassBodies(new String[]{"java.lang.String", "java.lang.Integer"}, new byte[][]{{3}, {4}}, new String[2]);
+
+        assertArrayEquals(new byte[]{3}, transformer.getOverride("java.lang.String", AgentLogger.classLoaderId(null)));
+        assertArrayEquals(new byte[]{4}, transformer.getOverride("java.lang.Integer", AgentLogger.classLoaderId(null)));
+        assertEquals(1, retransformations.size());
+    }
+
+    @Test
+    void testClassesAreListedAsLoaded() throws Exception {
+        List<String> items = new ArrayList<>();
+
+        provider.getClasses(items::add, new AtomicBoolean(), false, Optional.empty(), null);
+
+        assertEquals(Arrays.asList("java.lang.String", "java.lang.Integer", "java.lang.Long"), items);
+    }
+
+    @Test
+    void testAbortedListingStops() throws Exception {
+        AtomicBoolean abort = new AtomicBoolean();
+        List<String> items = new ArrayList<>();
+
+        provider.getClasses(item -> {
+            items.add(item);
+            abort.set(true);
+        }, abort, false, Optional.empty(), null);
+
+        assertEquals(Arrays.asList("java.lang.String"), items);
+    }
+
+    @Test
+    void testFailingSinkStopsListing() {
+        List<String> items = new ArrayList<>();
+
+        assertThrows(IOException.class, () -> provider.getClasses(item -> {
+            items.add(item);
+            throw new IOException("client is gone");
+        }, new AtomicBoolean(), false, Optional.empty(), null));
+
+        assertEquals(1, items.size());
+    }
+
+    @Test
+    void testOverridesAreListed() throws Exception {
+        transformer.setOverride("java.lang.String", STRING_BYTES, AgentLogger.classLoaderId(null));
+        List<String> items = new ArrayList<>();
+
+        provider.getOverrides(items::add);
+
+        // with the classloader, unknown for the bootstrap one
+        assertEquals(Arrays.asList("java.lang.String:unknown"), items);
+    }
+}
@@ -0,0 +1,36 @@
+package org.jrd.agent;
+
+import jdk.jfr.Recording;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JfrEventsTest {
+
+    @Test
+    void testNotRecordedEventIsNoop() {
+        assertSame(AgentEvents.NOOP, JfrEvents.request("VERSION"));
+        assertSame(AgentEvents.NOOP, JfrEvents.retransform(1));
+        assertSame(AgentEvents.NOOP, JfrEvents.overwrite(1, 10));
+        assertSame(AgentEvents.NOOP, JfrEvents.addJar("some.jar", 10));
+    }
+
+    @Test
+    void testRecordedEventIsCreated() {
+        try (Recording recording = new Recording()) {
+            recording.enable("org.jrd.agent.Request");
+            recording.disable("org.jrd.agent.Retransform");
+            recording.start();
+
+            AgentEvents.Operation operation = JfrEvents.request("VERSION");
+
+            assertNotSame(AgentEvents.NOOP, operation);
+            assertTrue(operation instanceof JfrEvents.RequestEvent);
+            operation.finish(false);
+            // disabled type is not created, even while recording
+            assertSame(AgentEvents.NOOP, JfrEvents.retransform(1));
+        }
+    }
+}
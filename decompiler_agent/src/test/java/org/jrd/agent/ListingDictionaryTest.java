@@ -0,0 +1,89 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ListingDictionaryTest {
+
+    private final List<String> items = new ArrayList<>();
+    private final ListingDictionary dictionary = new ListingDictionary(items::add);
+
+    /**
+     * @return name and details of each listed class, resolved by the definitions preceding it
+     */
+    private List<String[]> decode() {
+        List<String> values = new ArrayList<>();
+        List<String[]> classes = new ArrayList<>();
+        for (String item : items) {
+            if (item.startsWith(ListingDictionary.DEFINITION)) {
+                values.add(item.substring(ListingDictionary.DEFINITION.length()));
+            } else {
+                String[] nameAndIds = item.split(Pattern.quote(InstrumentationProvider.INFO_DELIMITER));
+                String[] clazz = new String[nameAndIds.length];
+                clazz[0] = nameAndIds[0];
+                for (int i = 1; i < nameAndIds.length; i++) {
+                    clazz[i] = values.get(Integer.parseInt(nameAndIds[i]));
+                }
+                classes.add(clazz);
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * @return name and details of the class, as plain listing has them, so the module of unnamed one is "null"
+     */
+    private static String[] nameAndDetails(Class<?> clazz) {
+        List<String> expected = new ArrayList<>();
+        expected.add(clazz.getName());
+        for (String detail : InstrumentationProvider.getDetails(clazz)) {
+            expected.add(String.valueOf(detail));
+        }
+        return expected.toArray(new String[0]);
+    }
+
+    @Test
+    void testDecodedListingHasDetailsOfClasses() throws IOException {
+        dictionary.putClass(String.class, true);
+        dictionary.putClass(ListingDictionaryTest.class, true);
+        dictionary.putClass(Integer.class, true);
+
+        List<String[]> classes = decode();
+
+        assertEquals(3, classes.size());
+        assertArrayEquals(nameAndDetails(String.class), classes.get(0));
+        assertArrayEquals(nameAndDetails(ListingDictionaryTest.class), classes.get(1));
+        assertArrayEquals(nameAndDetails(Integer.class), classes.get(2));
+    }
+
+    @Test
+    void testEachValueIsDefinedOnce() throws IOException {
+        dictionary.putClass(String.class, true);
+        int afterFirst = items.size();
+        dictionary.putClass(Integer.class, true);
+        dictionary.putClass(Long.class, true);
+
+        // classes of java.base share all their details
+        assertEquals(afterFirst + 2, items.size());
+        long definitions = items.stream().filter(item -> item.startsWith(ListingDictionary.DEFINITION)).count();
+        assertEquals(items.stream().filter(item -> item.startsWith(ListingDictionary.DEFINITION)).distinct().count(), definitions);
+        assertTrue(items.get(0).startsWith(ListingDictionary.DEFINITION), items.toString());
+    }
+
+    @Test
+    void testClassWithoutInfoIsItsName() throws IOException {
+        dictionary.putClass(String.class, false);
+        dictionary.put("plain");
+
+        assertEquals(Arrays.asList(String.class.getName(), "plain"), items);
+    }
+}
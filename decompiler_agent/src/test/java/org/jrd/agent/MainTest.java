@@ -0,0 +1,94 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MainTest {
+
+    private static final String TOKEN = "main-test";
+
+    private static Object defaultValue(Class<?> type) {
+        if (type.isArray()) {
+            return Array.newInstance(type.getComponentType(), 0);
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private static void halt(int port) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write((AgentSession.SESSION_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+            assertEquals(AgentSession.SESSION_HANDSHAKE, AbstractAgentChannel.readRawLine(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            byte[] halt = "HALT".getBytes(StandardCharsets.UTF_8);
+            out.writeByte(AbstractAgentChannel.FRAME_TEXT);
+            out.writeInt(1);
+            out.writeInt(halt.length);
+            out.write(halt);
+            out.writeByte(AbstractAgentChannel.FRAME_END);
+            out.writeInt(1);
+            out.writeInt(0);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // the response, until the agent closes the session
+            assertThrows(EOFException.class, () -> {
+                while (true) {
+                    in.readByte();
+                }
+            });
+        }
+    }
+
+    @Test
+    void testBoundPortIsPublishedUntilDetach() throws Exception {
+        Instrumentation nothingLoaded = (Instrumentation) Proxy.newProxyInstance(
+                MainTest.class.getClassLoader(), new Class<?>[]{Instrumentation.class},
+                (proxy, method, args) -> defaultValue(method.getReturnType())
+        );
+
+        Main.premain("loneliness:AF,address:localhost,port:0,porttoken:" + TOKEN, nothingLoaded);
+
+        String published = System.getProperty(Main.PORT_PROPERTY_PREFIX + TOKEN);
+        int port = Integer.parseInt(published);
+        assertTrue(port > 0, published);
+
+        halt(port);
+
+        // the session is closed before the agent is detached
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.getProperty(Main.PORT_PROPERTY_PREFIX + TOKEN) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertNull(System.getProperty(Main.PORT_PROPERTY_PREFIX + TOKEN));
+        boolean closed = false;
+        while (!closed && System.currentTimeMillis() < deadline) {
+            try (Socket socket = new Socket("localhost", port)) {
+                Thread.sleep(50);
+            } catch (ConnectException ex) {
+                closed = true;
+            }
+        }
+        assertTrue(closed, "port " + port + " is still open");
+    }
+}
@@ -0,0 +1,80 @@
+package org.jrd.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.instrument.IllegalClassFormatException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TransformerTest {
+
+    private static final byte[] STRING_BYTES = {1};
+    private static final byte[] INTEGER_BYTES = {2};
+
+    private final Transformer transformer = new Transformer();
+
+    /**
+     * Calls the transformer as retransformation of the class does.
+     */
+    private void retransform(Class<?> clazz, byte[] body) throws IllegalClassFormatException {
+        transformer.transform(clazz.getClassLoader(), clazz.getName().replace('.', '/'), clazz, null, body);
+    }
+
+    @Test
+    void testOnlyAskedClassesAreCaptured() throws Exception {
+        try (Transformer.Capture capture = transformer.capture(String.class)) {
+            retransform(String.class, STRING_BYTES);
+            retransform(Integer.class, INTEGER_BYTES);
+
+            assertArrayEquals(STRING_BYTES, capture.get(String.class));
+            assertNull(capture.get(Integer.class));
+            assertEquals(1, transformer.getCapturingClasses());
+        }
+        assertEquals(0, transformer.getCapturingClasses());
+    }
+
+    @Test
+    void testRetransformationsOfOtherThreadsAreNotCaptured() throws Exception {
+        try (Transformer.Capture capture = transformer.capture(String.class)) {
+            Thread other = new Thread(() -> {
+                try {
+                    retransform(String.class, STRING_BYTES);
+                } catch (IllegalClassFormatException ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            other.start();
+            other.join();
+
+            assertNull(capture.get(String.class));
+        }
+    }
+
+    @Test
+    void testNestedCaptureRestoresOuterOne() throws Exception {
+        try (Transformer.Capture outer = transformer.capture(String.class)) {
+            try (Transformer.Capture inner = transformer.capture(Integer.class)) {
+                retransform(Integer.class, INTEGER_BYTES);
+
+                assertArrayEquals(INTEGER_BYTES, inner.get(Integer.class));
+                assertEquals(2, transformer.getCapturingClasses());
+            }
+            retransform(String.class, STRING_BYTES);
+
+            assertArrayEquals(STRING_BYTES, outer.get(String.class));
+        }
+    }
+
+    @Test
+    void testOverrideIsCaptured() throws Exception {
+        byte[] override = {3};
+        transformer.setOverride(String.class.getName(), override, AgentLogger.classLoaderId(null));
+        try (Transformer.Capture capture = transformer.capture(String.class)) {
+            retransform(String.class, STRING_BYTES);
+
+            assertArrayEquals(override, capture.get(String.class));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.jrd.agent.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClassClassLoaderMapTest {
+
+    private static final byte[] APP = {1};
+    private static final byte[] PLUGIN = {2};
+    private static final byte[] BOOT = {3};
+
+    @Test
+    void testStrictLookupByLoader() {
+        ClassClassLoaderMap map = new ClassClassLoaderMap();
+        map.put("com.example.Foo", APP, "app");
+        map.put("com.example.Foo", PLUGIN, "plugin");
+
+        assertSame(APP, map.getStrict("com.example.Foo", "app"));
+        assertSame(PLUGIN, map.getStrict("com.example.Foo", "plugin"));
+        assertNull(map.getStrict("com.example.Foo", "other"));
+        assertNull(map.getStrict("com.example.Bar", "app"));
+    }
+
+    @Test
+    void testLookupFallsBackToAnyLoader() {
+        ClassClassLoaderMap map = new ClassClassLoaderMap();
+        map.put("com.example.Foo", APP, "app");
+
+        assertSame(APP, map.get("com.example.Foo", "other"));
+        assertSame(APP, map.get("com.example.Foo"));
+        assertNull(map.get("com.example.Bar"));
+    }
+
+    @Test
+    void testNullLoaderIsPreferredWithoutLoader() {
+        ClassClassLoaderMap map = new ClassClassLoaderMap();
+        map.put("com.example.Foo", APP, "app");
+        map.put("com.example.Foo", BOOT, null);
+
+        assertSame(BOOT, map.get("com.example.Foo"));
+        assertSame(APP, map.get("com.example.Foo", "app"));
+    }
+
+    @Test
+    void testPutReplacesBody() {
+        ClassClassLoaderMap map = new ClassClassLoaderMap();
+        map.put("com.example.Foo", APP, "app");
+        map.put("com.example.Foo", PLUGIN, "app");
+
+        assertSame(PLUGIN, map.getStrict("com.example.Foo", "app"));
+        assertEquals(1, map.keySetPairs().size());
+    }
+
+    @Test
+    void testRemoveOfLoader() {
+        ClassClassLoaderMap map = new ClassClassLoaderMap();
+        map.put("com.example.Foo", APP, "app");
+        map.put("com.example.Foo", PLUGIN, "plugin");
+
+        map.remove("com.example.Foo", "app");
+
+        assertNull(map.getStrict("com.example.Foo", "app"));
+        assertSame(PLUGIN, map.get("com.example.Foo", "app"));
+
+        map.remove("com.example.Foo", "plugin");
+
+        assertNull(map.get("com.example.Foo"));
+        assertTrue(map.keySetPairs().isEmpty());
+    }
+
+    @Test
+    void testKeysNameUnknownLoader() {
+        ClassClassLoaderMap map = new ClassClassLoaderMap();
+        map.put("com.example.Foo", BOOT, null);
+
+        List<String[]> pairs = map.keySetPairs();
+
+        assertEquals(1, pairs.size());
+        assertArrayEquals(new String[]{"com.example.Foo", "unknown"}, pairs.get(0));
+        assertEquals(List.of("com.example.Foo:unknown"), map.keySet());
+        assertNull(ClassClassLoaderMap.unknownToNullClasslaoder("unknown"));
+    }
+
+    @Test
+    void testRemoveAndReset() {
+        ClassClassLoaderMap map = new ClassClassLoaderMap();
+        map.put("com.example.Foo", APP, "app");
+        map.put("com.example.Bar", APP, "app");
+
+        map.remove("com.example.Foo");
+
+        assertNull(map.get("com.example.Foo"));
+        assertSame(APP, map.get("com.example.Bar"));
+
+        map.reset();
+
+        assertNull(map.get("com.example.Bar"));
+    }
+}
@@ -0,0 +1,128 @@
+package org.jrd.agent.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MasterKeyMapTest {
+
+    private static final int THREADS = 8;
+
+    private static final class Owners extends AbstractMasterKeyMap<String> {
+        @Override
+        protected Map<String, Map<String, Object>> createMainMap() {
+            return new ConcurrentHashMap<>();
+        }
+
+        @Override
+        protected Map<String, Object> getSubMap(String owner) {
+            return values.computeIfAbsent(owner, o -> new ConcurrentHashMap<>());
+        }
+    }
+
+    private final Owners owners = new Owners();
+
+    private interface Task {
+        Object call(int thread);
+    }
+
+    /**
+     * Starts the task in all threads at once.
+     *
+     * @return result of the task in each thread, the exception where it failed
+     */
+    private static List<Object> concurrently(Task task) throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                int thread = i;
+                futures.add(threads.submit((Callable<Object>) () -> call(task, thread, start)));
+            }
+            start.countDown();
+            List<Object> results = new ArrayList<>();
+            for (Future<Object> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    private static Object call(Task task, int thread, CountDownLatch start) throws InterruptedException {
+        start.await();
+        try {
+            return task.call(thread);
+        } catch (Variables.FakeVariableException ex) {
+            return ex;
+        }
+    }
+
+    @Test
+    void testNullValueIsDeclared() {
+        owners.set("owner", "x", null);
+
+        assertNull(owners.get("owner", "x"));
+        assertThrows(Variables.FakeVariableAlreadyDeclaredException.class, () -> owners.create("owner", "x", "value"));
+        assertNull(owners.getOrCreate("owner", "x", "value"));
+        assertTrue(owners.dump().contains("owner/x=null"), owners.dump());
+        assertNull(owners.remove("owner", "x"));
+        assertThrows(Variables.NoSuchFakeVariableException.class, () -> owners.get("owner", "x"));
+    }
+
+    @Test
+    void testNullDefaultIsCreated() {
+        assertNull(owners.getOrCreate("owner", "x", null));
+        assertThrows(Variables.FakeVariableAlreadyDeclaredException.class, () -> owners.setNoReplace("owner", "x", null));
+
+        owners.set("owner", "x", "value");
+
+        assertEquals("value", owners.get("owner", "x"));
+    }
+
+    @Test
+    void testOnlyOneThreadCreatesVariable() throws Exception {
+        List<Object> results = concurrently(thread -> owners.getOrCreate("owner", "x", thread));
+
+        assertEquals(1, new HashSet<>(results).size(), results.toString());
+        assertEquals(results.get(0), owners.get("owner", "x"));
+    }
+
+    @Test
+    void testOnlyOneThreadDeclaresVariable() throws Exception {
+        List<Object> results = concurrently(thread -> owners.setNoReplace("owner", "x", thread));
+
+        long declared = results.stream().filter(result -> result instanceof Integer).count();
+        assertEquals(1, declared, results.toString());
+        assertEquals(
+                THREADS - 1, results.stream().filter(result -> result instanceof Variables.FakeVariableAlreadyDeclaredException).count()
+        );
+        assertTrue(results.contains(owners.get("owner", "x")));
+    }
+
+    @Test
+    void testOwnersDoNotShareVariables() {
+        owners.set("first", "x", 1);
+        owners.set("second", "x", 2);
+        owners.removeAll("first");
+
+        assertThrows(Variables.NoSuchFakeVariableException.class, () -> owners.get("first", "x"));
+        assertEquals(2, owners.get("second", "x"));
+    }
+}
@@ -0,0 +1,102 @@
+package org.jrd.agent.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WeakOwnerMapTest {
+
+    private static final class Owners extends AbstractWeakOwnerMap {
+        @Override
+        protected Map<Object, Map<String, Object>> createMainMap() {
+            return new ConcurrentHashMap<>();
+        }
+
+        @Override
+        protected Map<String, Object> createSubMap() {
+            return new ConcurrentHashMap<>();
+        }
+
+        int getOwnerCount() {
+            return values.size();
+        }
+    }
+
+    /**
+     * Sets variable of owner, which is not reachable once this returns.
+     */
+    private static WeakReference<Object> setOfUnreachableOwner(Owners owners) {
+        Object owner = new Object();
+        owners.set(owner, "x", "value");
+        return new WeakReference<>(owner);
+    }
+
+    private static void awaitCollection(WeakReference<?> reference) throws InterruptedException {
+        for (int i = 0; i < 100 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get(), "owner was not collected");
+    }
+
+    @Test
+    void testOwnersAreComparedByIdentity() {
+        Owners owners = new Owners();
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+
+        owners.set(first, "x", 1);
+        owners.set(second, "x", 2);
+
+        assertEquals(1, owners.get(first, "x"));
+        assertEquals(2, owners.get(second, "x"));
+        assertEquals(2, owners.getOwnerCount());
+    }
+
+    @Test
+    void testOwnerWithChangedHashCodeKeepsVariables() {
+        Owners owners = new Owners();
+        List<String> owner = new ArrayList<>();
+        owners.set(owner, "x", 1);
+
+        owner.add("changes hashCode");
+
+        assertEquals(1, owners.get(owner, "x"));
+        assertEquals(1, owners.getOwnerCount());
+    }
+
+    @Test
+    void testNullOwner() {
+        Owners owners = new Owners();
+        owners.set(null, "x", 1);
+
+        assertEquals(1, owners.get(null, "x"));
+        assertThrows(Variables.NoSuchFakeVariableException.class, () -> owners.get(new Object(), "x"));
+    }
+
+    @Test
+    void testCollectedOwnerIsExpunged() throws InterruptedException {
+        Owners owners = new Owners();
+        Object alive = new Object();
+        owners.set(alive, "x", "kept");
+        WeakReference<Object> collected = setOfUnreachableOwner(owners);
+        assertEquals(2, owners.getOwnerCount());
+
+        awaitCollection(collected);
+        // expunged by the next access to the map
+        owners.get(alive, "x");
+
+        assertEquals(1, owners.getOwnerCount());
+        assertEquals("kept", owners.get(alive, "x"));
+        assertTrue(owners.dump().contains("kept"));
+    }
+}
@@ -0,0 +1,58 @@
+package org.jrd.backend.communication;
+
+/**
+ * Change in the remote vm, pushed by the agent to its subscribers. See {@link AgentSubscription}.
+ */
+public final class AgentEvent {
+
+    public enum Kind {
+        DEFINED,
+        REDEFINED,
+        OVERRIDE_ADDED,
+        OVERRIDE_REMOVED
+    }
+
+    private final Kind kind;
+    private final String className;
+    private final String classloader;
+
+    public AgentEvent(Kind kind, String className, String classloader) {
+        this.kind = kind;
+        this.className = className;
+        this.classloader = classloader;
+    }
+
+    /**
+     * @param line event as the agent sends it: kind, class name and classloader, separated by '|'
+     * @return the event, or null, if it is of kind unknown to this client
+     */
+    static AgentEvent parse(String line) {
+        String[] parts = line.split("\\|", 3);
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            return new AgentEvent(Kind.valueOf(parts[0]), parts[1], parts[2]);
+        } catch (IllegalArgumentException ex) {
+            // newer agent may send events this client does not understand yet
+            return null;
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getClassloader() {
+        return classloader;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + className + " " + classloader;
+    }
+}
@@ -0,0 +1,23 @@
+package org.jrd.backend.communication;
+
+/**
+ * Receives events of {@link AgentSubscription}. All methods are called from the thread of the subscription, never from the
+ * Swing event thread, and must not block for long, or the agent drops the events.
+ */
+public interface AgentEventListener {
+
+    void onEvent(AgentEvent event);
+
+    /**
+     * The agent dropped some events, as they were not read fast enough. Everything the listener knows may be outdated,
+     * and should be listed again.
+     */
+    void onOverflow();
+
+    /**
+     * The subscription ended, other than by {@link AgentSubscription#close()}.
+     *
+     * @param cause why, or null, if the agent ended it, eg. when detached
+     */
+    void onClosed(Exception cause);
+}
@@ -0,0 +1,213 @@
+package org.jrd.backend.communication;
+
+import org.jrd.backend.core.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long living connection to the agent, carrying many requests at once.
+ * Every frame is tagged by id of the request it belongs to, so requests can be sent from many threads,
+ * and responses may come back in any order. One daemon thread reads the socket and routes the frames to the waiting requests.
+ */
+public final class AgentSession {
+
+    /**
+     * First line of the session connection. Agent supporting sessions answers by the same line.
+     */
+    public static final String SESSION_HANDSHAKE = "SESSION";
+    /**
+     * Session without requests for this long is closed, so it does not hold the connection slot of the agent.
+     */
+    static final int IDLE_TIMEOUT_MILLIS = 60_000;
+
+    private final String key;
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final Map<Integer, BlockingQueue<Communicate.Frame>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger lastId = new AtomicInteger();
+    private final int idleTimeoutMillis;
+    private volatile long lastUse = System.nanoTime();
+    private volatile boolean closed;
+
+    private AgentSession(String key, Socket socket, int idleTimeoutMillis) throws IOException {
+        this.key = key;
+        this.socket = socket;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Connects to the agent and does the handshake.
+     *
+     * @return opened session, or null if the agent does not support sessions
+     * @throws IOException if the connection fails
+     */
+    public static AgentSession open(String host, int port) throws IOException {
+        return open(host, port, IDLE_TIMEOUT_MILLIS);
+    }
+
+    static AgentSession open(String host, int port, int idleTimeoutMillis) throws IOException {
+        Socket socket = new Socket(host, port);
+        AgentSession session;
+        try {
+            session = new AgentSession(host + ":" + port, socket, idleTimeoutMillis);
+            session.output.write((SESSION_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+            session.output.flush();
+            if (!Communicate.isHandshakeAccepted(SESSION_HANDSHAKE, Communicate.readRawLine(session.input))) {
+                socket.close();
+                return null;
+            }
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        // the reader wakes up, so it can close the idle session
+        socket.setSoTimeout(idleTimeoutMillis);
+        Thread reader = new Thread(session::readResponses, "JRD agent session " + session.key);
+        reader.setDaemon(true);
+        reader.start();
+        return session;
+    }
+
+    /**
+     * Sends the request and waits for its response. Can be called concurrently.
+     *
+     * @param request request as for text protocol, see {@link Communicate#sendRequest(String)}
+     * @return agents response
+     * @throws IOException if the session is broken
+     */
+    public String submitRequest(String request) throws IOException {
+        return submit(Communicate.toFrames(request), Communicate::readResponse);
+    }
+
+    /**
+     * Sends the request frames and waits for its response, read by given reader. Can be called concurrently.
+     *
+     * @param frames request frames, terminated by end frame
+     * @throws IOException if the session is broken
+     */
+    <T> T submit(List<Communicate.Frame> frames, Communicate.ResponseReader<T> reader) throws IOException {
+        if (closed) {
+            throw new NotSentException("Session to " + key + " is closed");
+        }
+        for (Communicate.Frame frame : frames) {
+            frame.checkLength();
+        }
+        int id = lastId.incrementAndGet();
+        BlockingQueue<Communicate.Frame> response = new LinkedBlockingQueue<>();
+        pending.put(id, response);
+        lastUse = System.nanoTime();
+        try {
+            synchronized (output) {
+                if (closed) {
+                    throw new NotSentException("Session to " + key + " is closed");
+                }
+                for (Communicate.Frame frame : frames) {
+                    output.writeByte(frame.type);
+                    output.writeInt(id);
+                    output.writeInt(frame.payload.length);
+                    output.write(frame.payload);
+                }
+                output.flush();
+            }
+            if (closed) {
+                // reader may have finished before this request was registered
+                response.add(Communicate.Frame.CONNECTION_LOST);
+            }
+            return reader.read(new Communicate(response));
+        } finally {
+            pending.remove(id);
+            lastUse = System.nanoTime();
+        }
+    }
+
+    /**
+     * Decided under the lock of output, so no request is being sent meanwhile; request sent later finds the session closed.
+     */
+    private boolean closeIfIdle() {
+        synchronized (output) {
+            if (pending.isEmpty() && System.nanoTime() - lastUse >= TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis)) {
+                closed = true;
+            }
+            return closed;
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            Logger.getLogger().log(Logger.Level.DEBUG, ex);
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                byte type;
+                try {
+                    type = input.readByte();
+                } catch (EOFException ex) {
+                    break;
+                } catch (SocketTimeoutException ex) {
+                    if (closeIfIdle()) {
+                        Logger.getLogger().log(Logger.Level.DEBUG, "Closed idle session to " + key);
+                        break;
+                    }
+                    continue;
+                }
+                int id = input.readInt();
+                byte[] payload = Communicate.Frame.readPayload(input);
+                BlockingQueue<Communicate.Frame> response = pending.get(id);
+                if (response == null) {
+                    Logger.getLogger().log(Logger.Level.DEBUG, "Dropping frame of unknown request " + id + " from " + key);
+                } else {
+                    response.add(new Communicate.Frame(type, payload));
+                }
+            }
+        } catch (IOException ex) {
+            if (!closed) {
+                Logger.getLogger().log(Logger.Level.DEBUG, ex);
+            }
+        } finally {
+            close();
+            // wake up everybody still waiting; their response is truncated, so they fail
+            for (BlockingQueue<Communicate.Frame> response : pending.values()) {
+                response.add(Communicate.Frame.CONNECTION_LOST);
+            }
+        }
+    }
+
+    /**
+     * The session was closed before the request was sent, so the request can be sent again over another connection.
+     */
+    static final class NotSentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NotSentException(String message) {
+            super(message);
+        }
+    }
+}
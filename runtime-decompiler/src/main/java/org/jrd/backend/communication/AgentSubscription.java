@@ -0,0 +1,104 @@
+package org.jrd.backend.communication;
+
+import org.jrd.backend.core.AgentRequestAction;
+import org.jrd.backend.core.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Long living connection to the agent, over which the agent pushes the changes of the vm as they happen,
+ * so the listing does not need to be repeated to find them.
+ * The events are read by own daemon thread, and passed to the {@link AgentEventListener}.
+ */
+public final class AgentSubscription implements AutoCloseable {
+
+    private static final String HEARTBEAT = "HEARTBEAT";
+    private static final String OVERFLOW = "OVERFLOW";
+
+    private final Socket socket;
+    private final BufferedReader input;
+    private final AgentEventListener listener;
+    private volatile boolean closed;
+
+    private AgentSubscription(Socket socket, BufferedReader input, AgentEventListener listener) {
+        this.socket = socket;
+        this.input = input;
+        this.listener = listener;
+    }
+
+    /**
+     * @param host host of the agent
+     * @param port port of the agent
+     * @param listener receiver of the events
+     * @return running subscription
+     * @throws IOException if the agent can not be reached, or refuses the subscription, eg. as it is too old to know it
+     */
+    public static AgentSubscription subscribe(String host, int port, AgentEventListener listener) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            Writer output = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            output.write(AgentRequestAction.RequestAction.SUBSCRIBE + "\n");
+            output.flush();
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String header = input.readLine();
+            if (!AgentRequestAction.RequestAction.SUBSCRIBE.toString().equals(header)) {
+                throw new IOException("Agent refused subscription: " + header);
+            }
+            AgentSubscription subscription = new AgentSubscription(socket, input, listener);
+            Thread reader = new Thread(subscription::readEvents, "JRD subscription " + host + ":" + port);
+            reader.setDaemon(true);
+            reader.start();
+            return subscription;
+        } catch (IOException | RuntimeException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void readEvents() {
+        IOException cause = null;
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                if (OVERFLOW.equals(line)) {
+                    listener.onOverflow();
+                } else if (!HEARTBEAT.equals(line)) {
+                    AgentEvent event = AgentEvent.parse(line);
+                    if (event != null) {
+                        listener.onEvent(event);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            cause = ex;
+        }
+        // closed by us is not reported
+        if (!closed) {
+            if (cause != null) {
+                Logger.getLogger().log(Logger.Level.DEBUG, cause);
+            }
+            close();
+            listener.onClosed(cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            Logger.getLogger().log(Logger.Level.DEBUG, ex);
+        }
+    }
+}
@@ -1,8 +1,16 @@
 package org.jrd.backend.communication;
 
+import org.jrd.backend.core.AgentRequestAction;
 import org.jrd.backend.core.Logger;
 
 import java.io.IOException;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * This class is handling opening of communication socket and request submitting.
@@ -12,6 +20,46 @@ public class CallDecompilerAgent implements DelegatingJrdAgent {
     public static final String DEFAULT_ADDRESS = "localhost";
     public static final int DEFAULT_PORT = 5395;
 
+    /**
+     * Remembers which agents do not understand the binary protocol, so they are not asked again.
+     * Keyed by address:port, as the instances of this class are usually short living.
+     */
+    private static final Map<String, Boolean> BINARY_SUPPORT = new ConcurrentHashMap<>();
+    private static final Map<String, Boolean> SESSION_SUPPORT = new ConcurrentHashMap<>();
+    /**
+     * Opened sessions, shared by all instances talking to the same address:port.
+     * Each address:port has its own holder, so connecting to one agent does not block requests to the others.
+     * Sessions are closed by {@link #forget(String, int)}, or by themselves, once idle.
+     */
+    private static final Map<String, SessionHolder> SESSIONS = new ConcurrentHashMap<>();
+    /**
+     * Requests not changing the target, so they can be sent again over new connection, once the session fails while sending them.
+     */
+    private static final Set<AgentRequestAction.RequestAction> REPEATABLE = EnumSet.of(
+            AgentRequestAction.RequestAction.HELLO, AgentRequestAction.RequestAction.VERSION, AgentRequestAction.RequestAction.CLASSES,
+            AgentRequestAction.RequestAction.SEARCH_CLASSES, AgentRequestAction.RequestAction.BYTES,
+            AgentRequestAction.RequestAction.BYTES_IF_CHANGED, AgentRequestAction.RequestAction.BYTES_BATCH,
+            AgentRequestAction.RequestAction.OVERRIDES, AgentRequestAction.RequestAction.CLASSES_WITH_INFO,
+            AgentRequestAction.RequestAction.CLASSES_ENCODED, AgentRequestAction.RequestAction.CLASSES_QUERY,
+            AgentRequestAction.RequestAction.CLASSES_SINCE, AgentRequestAction.RequestAction.STATS,
+            AgentRequestAction.RequestAction.CHECKSUMS
+    );
+    private static final Map<String, Boolean> IF_CHANGED_SUPPORT = new ConcurrentHashMap<>();
+    private static final Map<String, Boolean> ENCODED_SUPPORT = new ConcurrentHashMap<>();
+    private static final int MAX_KNOWN_BYTES = 256;
+    private static final String UNCHANGED = "UNCHANGED";
+    private static final String NO_GENERATION = "-1";
+    /**
+     * Last bytes obtained for address:port, classloader and class name, with their generation on the agent side.
+     * Guarded by itself.
+     */
+    private static final Map<String, String[]> KNOWN_BYTES = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > MAX_KNOWN_BYTES;
+        }
+    };
+
     private final int port;
     private final String address;
     private final DelegatingHelper delegationCandidates = new DelegatingHelper();
@@ -35,19 +83,246 @@ public class CallDecompilerAgent implements DelegatingJrdAgent {
     }
 
     /**
-     * Opens a socket and sends the request to the agent via socket.
+     * Forgets everything known about agent on address:port, and closes its session.
+     * Called once the agent is halted or detached, so another agent, listening later on the same port, is not mistaken for it.
+     */
+    public static void forget(String host, int port) {
+        String key = (host == null ? DEFAULT_ADDRESS : host) + ":" + (port <= 0 ? DEFAULT_PORT : port);
+        SessionHolder holder = SESSIONS.remove(key);
+        if (holder != null) {
+            synchronized (holder) {
+                if (holder.session != null) {
+                    holder.session.close();
+                    holder.session = null;
+                }
+            }
+        }
+        forgetSupport(key);
+        synchronized (KNOWN_BYTES) {
+            KNOWN_BYTES.keySet().removeIf(known -> known.startsWith(key + " "));
+        }
+    }
+
+    /**
+     * Forgets which protocols the agent does not support. Once the agent can not be reached, it may be replaced by newer one.
+     */
+    private static void forgetSupport(String key) {
+        BINARY_SUPPORT.remove(key);
+        SESSION_SUPPORT.remove(key);
+        IF_CHANGED_SUPPORT.remove(key);
+        ENCODED_SUPPORT.remove(key);
+    }
+
+    /**
+     * Sends the request to the agent.
+     * If the agent supports sessions, the request goes via long living {@link AgentSession},
+     * otherwise a socket is opened for this request only.
      * @param request either "CLASSES" or "BYTES \n className", other formats
      * are refused
      * @return agents response or null
      */
     @Override
     public String submitRequest(final String request) {
+        String key = this.address + ":" + this.port;
+        String[] lines = request.split("\n");
+        String[] command = lines[0].split("\\s+");
+        if (lines.length == 2 && AgentRequestAction.RequestAction.BYTES.toString().equals(command[0]) &&
+                IF_CHANGED_SUPPORT.getOrDefault(key, true)) {
+            return submitBytesIfChanged(key, command.length > 1 ? command[1] : null, lines[1]);
+        }
+        if (lines.length == 1 && AgentRequestAction.RequestAction.CLASSES_WITH_INFO.toString().equals(command[0]) &&
+                ENCODED_SUPPORT.getOrDefault(key, true)) {
+            return submitEncodedClasses(key, command.length > 1 ? command[1] : null);
+        }
+        return submitPlainRequest(key, request);
+    }
+
+    /**
+     * Asks for classes with details, in which repeated details are sent only once, see {@link org.jrd.backend.core.ClassesListing}.
+     * Agent which do not support it is detected, and the plain listing is requested instead.
+     */
+    private String submitEncodedClasses(String key, String classloader) {
+        String loaderParam = classloader == null ? "" : " " + classloader;
+        String reply = submitPlainRequest(key, AgentRequestAction.RequestAction.CLASSES_ENCODED + loaderParam);
+        if (reply == null || !new ErrorCandidate(reply).isError() || !reply.contains("unknown command")) {
+            return reply;
+        }
+        Logger.getLogger().log(Logger.Level.DEBUG, "Agent on " + key + " do not support encoded listing");
+        ENCODED_SUPPORT.put(key, false);
+        return submitPlainRequest(key, AgentRequestAction.RequestAction.CLASSES_WITH_INFO + loaderParam);
+    }
+
+    /**
+     * Asks for bytes of class only if they changed since they were obtained last time.
+     * Agent which do not support it is detected, and the plain bytes request is sent instead.
+     */
+    private String submitBytesIfChanged(String key, String classloader, String className) {
+        String knownKey = key + " " + classloader + " " + className;
+        String[] known;
+        synchronized (KNOWN_BYTES) {
+            known = KNOWN_BYTES.get(knownKey);
+        }
+        String loaderParam = classloader == null ? "" : " " + classloader;
+        String reply = submitPlainRequest(
+                key,
+                AgentRequestAction.RequestAction.BYTES_IF_CHANGED + loaderParam + "\n" + className + "\n" +
+                        (known == null ? NO_GENERATION : known[0])
+        );
+        if (reply == null) {
+            return null;
+        }
+        if (new ErrorCandidate(reply).isError()) {
+            if (!reply.contains("unknown command")) {
+                return reply;
+            }
+            Logger.getLogger().log(Logger.Level.DEBUG, "Agent on " + key + " do not support conditional bytes");
+            IF_CHANGED_SUPPORT.put(key, false);
+            return submitPlainRequest(key, AgentRequestAction.RequestAction.BYTES + loaderParam + "\n" + className);
+        }
+        String[] generationAndBytes = reply.split(" ", 2);
+        if (generationAndBytes.length < 2 || new ErrorCandidate(generationAndBytes[1]).isError()) {
+            return generationAndBytes[generationAndBytes.length - 1];
+        }
+        if (UNCHANGED.equals(generationAndBytes[1])) {
+            if (known != null) {
+                return known[1];
+            }
+            return submitPlainRequest(key, AgentRequestAction.RequestAction.BYTES + loaderParam + "\n" + className);
+        }
+        synchronized (KNOWN_BYTES) {
+            KNOWN_BYTES.put(knownKey, generationAndBytes);
+        }
+        return generationAndBytes[1];
+    }
+
+    private String submitPlainRequest(String key, String request) {
+        try {
+            return submit(key, request, Communicate.toFrames(request), () -> request, Communicate::readResponse);
+        } catch (IOException ex) {
+            return ErrorCandidate.toError(ex);
+        }
+    }
+
+    @Override
+    public byte[][] submitBodiesRequest(String request) {
+        String key = this.address + ":" + this.port;
+        try {
+            return submit(key, request, Communicate.toFrames(request), () -> request, Communicate::readBodiesResponse);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public String submitOverwriteBatch(List<String> classNames, List<byte[]> bodies, String classloader) {
+        String key = this.address + ":" + this.port;
+        String command = AgentRequestAction.RequestAction.OVERWRITE_BATCH.toString();
+        try {
+            return submit(
+                    key, command, Communicate.toOverwriteBatchFrames(classNames, bodies, classloader),
+                    () -> Communicate.toOverwriteBatchText(classNames, bodies, classloader), Communicate::readResponse
+            );
+        } catch (IOException ex) {
+            return ErrorCandidate.toError(ex);
+        }
+    }
+
+    /**
+     * Sends the request over the session, or over new connection, if the agent does not support sessions.
+     *
+     * @param request the request, or at least its first line, deciding whether it can be repeated
+     * @param frames the request for binary protocol
+     * @param text the request for text protocol, only created if the agent speaks nothing else
+     * @return the response, or null if the agent could not be reached
+     * @throws IOException if the session failed while sending request which must not be repeated
+     */
+    private <T> T submit(
+            String key, String request, List<Communicate.Frame> frames, Supplier<String> text, Communicate.ResponseReader<T> reader
+    ) throws IOException {
+        if (SESSION_SUPPORT.getOrDefault(key, true)) {
+            AgentSession session = getSession(key);
+            if (session != null) {
+                try {
+                    return session.submit(frames, reader);
+                } catch (IOException ex) {
+                    Logger.getLogger().log(Logger.Level.DEBUG, ex);
+                    // part of the request may have reached the agent, so only requests not changing the target are sent again
+                    if (!isRepeatable(request) && !(ex instanceof AgentSession.NotSentException)) {
+                        throw ex;
+                    }
+                }
+            }
+        }
+        return submitOverNewConnection(key, frames, text, reader);
+    }
+
+    private static boolean isRepeatable(String request) {
+        String command = request.split("\\s", 2)[0];
+        return REPEATABLE.stream().anyMatch(action -> action.toString().equals(command));
+    }
+
+    private AgentSession getSession(String key) {
+        SessionHolder holder = SESSIONS.computeIfAbsent(key, k -> new SessionHolder());
+        synchronized (holder) {
+            if (holder.session != null && !holder.session.isClosed()) {
+                return holder.session;
+            }
+            holder.session = null;
+            AgentSession session;
+            try {
+                session = AgentSession.open(this.address, this.port);
+            } catch (IOException ex) {
+                Logger.getLogger().log(Logger.Level.DEBUG, ex);
+                forgetSupport(key);
+                return null;
+            }
+            if (session == null) {
+                Logger.getLogger().log(Logger.Level.DEBUG, "Agent on " + key + " do not support sessions");
+                SESSION_SUPPORT.put(key, false);
+                return null;
+            }
+            SESSION_SUPPORT.put(key, true);
+            holder.session = session;
+            return session;
+        }
+    }
+
+    /**
+     * Opens a socket and sends the request to the agent via socket.
+     * Binary protocol is used, unless the agent is known to not support it.
+     * Agent which do not support it, is detected by the handshake, and the request is repeated in text protocol.
+     */
+    private <T> T submitOverNewConnection(
+            String key, List<Communicate.Frame> frames, Supplier<String> text, Communicate.ResponseReader<T> reader
+    ) {
+        if (BINARY_SUPPORT.getOrDefault(key, true)) {
+            final Communicate comm = new Communicate(this.address, this.port, true);
+            try {
+                comm.sendFrames(frames);
+                if (comm.readHandshake()) {
+                    BINARY_SUPPORT.put(key, true);
+                    return reader.read(comm);
+                }
+                Logger.getLogger().log(Logger.Level.DEBUG, "Agent on " + key + " do not support binary protocol, falling back to text");
+                BINARY_SUPPORT.put(key, false);
+            } catch (IOException ex) {
+                Logger.getLogger().log(Logger.Level.DEBUG, ex);
+                if (BINARY_SUPPORT.containsKey(key)) {
+                    forgetSupport(key);
+                    return null;
+                }
+                //old agent may close the socket before the binary request is fully sent, try the text protocol
+            } finally {
+                comm.close();
+            }
+        }
         final Communicate comm = new Communicate(this.address, this.port);
         try {
-            comm.println(request);
-            return comm.readResponse();
+            comm.println(text.get());
+            return reader.read(comm);
         } catch (IOException ex) {
             Logger.getLogger().log(Logger.Level.DEBUG, ex);
+            forgetSupport(key);
             return null;
         } finally {
             comm.close();
@@ -68,4 +343,11 @@ public class CallDecompilerAgent implements DelegatingJrdAgent {
     public int cleanDelegatingAgents() {
         return delegationCandidates.cleanDelegatingAgents();
     }
+
+    /**
+     * Session to one address:port. Guarded by itself.
+     */
+    private static final class SessionHolder {
+        private AgentSession session;
+    }
 }
@@ -3,8 +3,14 @@ package org.jrd.backend.communication;
 import org.jrd.backend.core.AgentRequestAction;
 import org.jrd.backend.core.Logger;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -12,19 +18,49 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * This class opens a socket and contain methods for read and write to socket
  * IS/OS.
+ * The socket speaks either the legacy text protocol (one value per line, bodies Base64 encoded),
+ * or the binary protocol, where each value is a frame of one byte opcode, four bytes length and raw payload.
  */
 public class Communicate {
 
     public static final String NO_VALUE_OK_RESULT = "OK";
     public static final String NO_VALLUE_DONE_RESULT = "DONE";
+    /**
+     * Line switching the agent to binary protocol. Agent understanding it, answers by the same line.
+     */
+    public static final String BINARY_HANDSHAKE = "BINARY";
+
+    static final byte FRAME_TEXT = 'T';
+    static final byte FRAME_BYTES = 'B';
+    static final byte FRAME_END = 'E';
+    /**
+     * Limit of single frame, the same as the agent's one. Agent refuses longer request frames, so they are not sent,
+     * and never sends longer response frames, as no class is that large.
+     */
+    static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private static final List<String> COMMANDS_WITH_BODY = Arrays.asList(
+            AgentRequestAction.RequestAction.OVERWRITE.toString(), AgentRequestAction.RequestAction.ADD_CLASS.toString(),
+            AgentRequestAction.RequestAction.ADD_JAR.toString()
+    );
 
     private Socket commSocket;
     private BufferedReader commInput;
     private BufferedWriter commOutput;
+    private DataInputStream binaryInput;
+    private DataOutputStream binaryOutput;
+    private BlockingQueue<Frame> sessionResponse;
+    private final boolean binary;
+    private boolean endOfResponse;
 
     /**
      * Constructor creates a socket on given port and saves the streams into
@@ -34,6 +70,27 @@ public class Communicate {
      * @param port port where we open the socket
      */
     public Communicate(String host, int port) {
+        this(host, port, false);
+    }
+
+    /**
+     * Creates communication reading response of one request of {@link AgentSession}.
+     * Only {@link #readResponse()} can be used on such instance.
+     *
+     * @param sessionResponse where the session puts the frames of response, as they arrive
+     */
+    Communicate(BlockingQueue<Frame> sessionResponse) {
+        this.binary = true;
+        this.sessionResponse = sessionResponse;
+    }
+
+    /**
+     * @param host host name
+     * @param port port where we open the socket
+     * @param binary whether to use the binary protocol. See {@link #sendRequest(String)} and {@link #readHandshake()}
+     */
+    public Communicate(String host, int port, boolean binary) {
+        this.binary = binary;
         try {
             this.commSocket = new Socket(host, port);
         } catch (IOException ex) {
@@ -65,14 +122,26 @@ public class Communicate {
             return;
         }
 
-        this.commInput = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-        this.commOutput = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        if (binary) {
+            this.binaryInput = new DataInputStream(new BufferedInputStream(is));
+            this.binaryOutput = new DataOutputStream(new BufferedOutputStream(os));
+        } else {
+            this.commInput = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            this.commOutput = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
     }
 
     /**
      * Closes a socket.
      */
     public void close() {
+        if (this.commSocket == null) {
+            return;
+        }
         try {
             this.commSocket.close(); // also closes the in/out streams
         } catch (IOException e) {
@@ -81,11 +150,179 @@ public class Communicate {
             this.commSocket = null;
             this.commInput = null;
             this.commOutput = null;
+            this.binaryInput = null;
+            this.binaryOutput = null;
+        }
+    }
+
+    private String readLineOrTextFrame() throws IOException {
+        if (binary) {
+            byte[] payload = readFrame(FRAME_TEXT);
+            return payload == null ? null : new String(payload, StandardCharsets.UTF_8);
+        } else {
+            return this.commInput.readLine();
+        }
+    }
+
+    /**
+     * @return payload of next frame, or null if the response ended
+     */
+    private byte[] readFrame(byte expectedType) throws IOException {
+        Frame frame = readAnyFrame();
+        if (frame == null) {
+            return null;
+        }
+        if (frame.type != expectedType) {
+            throw new IOException("Expected frame " + (char) expectedType + " but got " + (char) frame.type);
+        }
+        return frame.payload;
+    }
+
+    /**
+     * @return next frame, or null if the response ended
+     * @throws IOException if the connection ended before the end of the response, so the response is truncated
+     */
+    private Frame readAnyFrame() throws IOException {
+        if (endOfResponse) {
+            return null;
+        }
+        Frame frame;
+        if (sessionResponse != null) {
+            try {
+                frame = sessionResponse.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            }
+        } else {
+            frame = Frame.read(binaryInput);
+        }
+        if (frame == null || frame == Frame.CONNECTION_LOST) {
+            throw new EOFException("Connection to agent ended before the end of response");
         }
+        if (frame.type == FRAME_END) {
+            endOfResponse = true;
+            return null;
+        }
+        return frame;
+    }
+
+    private String readBytesAsBase64() throws IOException {
+        if (binary) {
+            byte[] payload = readFrame(FRAME_BYTES);
+            if (payload == null) {
+                String message = "Agent returned null response.";
+                Logger.getLogger().log(Logger.Level.ALL, new RuntimeException(message));
+                return ErrorCandidate.toError(message);
+            }
+            //the api above works with base64 strings, so the encoding is done here, but do not travel the wire
+            return Base64.getEncoder().encodeToString(payload);
+        } else {
+            return trimReadLine();
+        }
+    }
+
+    /**
+     * Reads bytes, or error which the agent sent instead of them.
+     */
+    private String readBytesOrErrorAsBase64() throws IOException {
+        if (!binary) {
+            return trimReadLine();
+        }
+        Frame frame = readAnyFrame();
+        if (frame == null) {
+            return ErrorCandidate.toError("Agent returned null response.");
+        }
+        if (frame.type == FRAME_TEXT) {
+            return new String(frame.payload, StandardCharsets.UTF_8).replace('\n', ' ');
+        }
+        return Base64.getEncoder().encodeToString(frame.payload);
+    }
+
+    /**
+     * Reads pairs of class name and its bytes.
+     *
+     * @return lines of class name and Base64 encoded bytes, or class name and error, separated by space
+     */
+    private String readBodies() throws IOException {
+        StringBuilder str = new StringBuilder();
+        while (true) {
+            String className = readLineOrTextFrame();
+            if (className == null) {
+                break;
+            }
+            str.append(className.trim()).append(" ").append(readBytesOrErrorAsBase64()).append("\n");
+        }
+        return str.toString();
+    }
+
+    /**
+     * Reads response of BYTES_BATCH, keeping the bodies as they came. Only the text protocol needs them decoded.
+     *
+     * @return bodies in order of the request, null for classes the agent returned error for;
+     * null if the agent returned error instead of the response
+     * @throws IOException if the response is truncated or malformed
+     */
+    byte[][] readBodiesResponse() throws IOException {
+        if (!binary) {
+            return parseBodies(readResponse());
+        }
+        String header = trimReadLine();
+        ErrorCandidate errorCandidate = new ErrorCandidate(header);
+        if (errorCandidate.isError()) {
+            Logger.getLogger().log(Logger.Level.ALL, new RuntimeException("Agent returned error in response header: " + header));
+            return null;
+        }
+        if (!AgentRequestAction.RequestAction.BYTES_BATCH.toString().equals(header)) {
+            Logger.getLogger().log(Logger.Level.ALL, "Unexpected agent response header: '" + header + "'.");
+            return null;
+        }
+        List<byte[]> bodies = new ArrayList<>();
+        while (true) {
+            String className = readLineOrTextFrame();
+            if (className == null) {
+                break;
+            }
+            Frame frame = readAnyFrame();
+            if (frame == null) {
+                throw new IOException("Agent returned no bytes of " + className.trim());
+            }
+            if (frame.type == FRAME_TEXT) {
+                String error = new String(frame.payload, StandardCharsets.UTF_8);
+                Logger.getLogger().log(Logger.Level.DEBUG, "Bytes of " + className.trim() + " not obtained: " + error);
+                bodies.add(null);
+            } else {
+                bodies.add(frame.payload);
+            }
+        }
+        Logger.getLogger().log(Logger.Level.DEBUG, "Agent returned batch of bytes");
+        return bodies.toArray(new byte[0][]);
+    }
+
+    /**
+     * Decodes BYTES_BATCH response of the text protocol, see {@link #readResponse()}.
+     *
+     * @param reply lines of class name and its Base64 bytes or error
+     * @return bytes in order of the lines, null where the agent returned error; null if the whole reply is error
+     */
+    static byte[][] parseBodies(String reply) {
+        if (reply == null || new ErrorCandidate(reply).isError()) {
+            return null;
+        }
+        return Arrays.stream(reply.split("\n")).filter(s -> !s.isEmpty()).map(s -> {
+            String[] nameAndBody = s.split(" ", 2);
+            ErrorCandidate errorCandidate = new ErrorCandidate(nameAndBody.length > 1 ? nameAndBody[1] : "ERROR no bytes returned");
+            if (errorCandidate.isError()) {
+                Logger.getLogger()
+                        .log(Logger.Level.DEBUG, "Bytes of " + nameAndBody[0] + " not obtained: " + errorCandidate.getErrorMessage());
+                return null;
+            }
+            return Base64.getDecoder().decode(nameAndBody[1]);
+        }).toArray(byte[][]::new);
     }
 
     private String trimReadLine() throws IOException {
-        String line = this.commInput.readLine();
+        String line = readLineOrTextFrame();
 
         if (line == null) {
             String message = "Agent returned null response.";
@@ -131,13 +368,14 @@ public class Communicate {
                 return NO_VALUE_OK_RESULT;
             default: //this is ok, it jsut feeding of idiotic codestyle
         }
-        switch (AgentRequestAction.RequestAction.fromString(initLine)) {
+        AgentRequestAction.RequestAction action = AgentRequestAction.RequestAction.fromString(initLine);
+        switch (action) {
             case VERSION:
             case BYTES:
+            case BYTES_IF_CHANGED:
+            case BYTES_BATCH:
                 try {
-                    String bytes = trimReadLine();
-                    Logger.getLogger().log(Logger.Level.DEBUG, "Agent returned bytes: " + bytes);
-                    return bytes;
+                    return readValue(action);
                 } catch (IOException ex) {
                     Logger.getLogger().log(Logger.Level.ALL, ex);
                     return ErrorCandidate.toError(ex);
@@ -145,10 +383,14 @@ public class Communicate {
             case SEARCH_CLASSES:
             case OVERRIDES:
             case CLASSES:
+            case CLASSES_SINCE:
+            case STATS:
+            case BUDGET:
+            case CHECKSUMS:
                 StringBuilder str = new StringBuilder();
                 while (true) {
                     try {
-                        String s = this.commInput.readLine();
+                        String s = readLineOrTextFrame();
                         if (s == null) {
                             break;
                         }
@@ -158,6 +400,7 @@ public class Communicate {
                         }
                     } catch (IOException ex) {
                         Logger.getLogger().log(Logger.Level.ALL, ex);
+                        return ErrorCandidate.toError(ex);
                     }
                 }
                 Logger.getLogger().log(Logger.Level.DEBUG, "Agent successfully returned class names or overrides");
@@ -169,6 +412,33 @@ public class Communicate {
         }
     }
 
+    /**
+     * Reads the value following the response header.
+     */
+    private String readValue(AgentRequestAction.RequestAction action) throws IOException {
+        switch (action) {
+            case VERSION:
+                String version = trimReadLine();
+                Logger.getLogger().log(Logger.Level.DEBUG, "Agent returned version: " + version);
+                return version;
+            case BYTES:
+                String bytes = readBytesAsBase64();
+                Logger.getLogger().log(Logger.Level.DEBUG, "Agent returned bytes: " + bytes);
+                return bytes;
+            case BYTES_IF_CHANGED:
+                String generation = trimReadLine();
+                String bytesOrUnchanged = readBytesOrErrorAsBase64();
+                Logger.getLogger().log(Logger.Level.DEBUG, "Agent returned bytes of generation " + generation);
+                return generation + " " + bytesOrUnchanged;
+            case BYTES_BATCH:
+                String bodies = readBodies();
+                Logger.getLogger().log(Logger.Level.DEBUG, "Agent returned batch of bytes");
+                return bodies;
+            default:
+                throw new IllegalArgumentException("Not a value response: " + action);
+        }
+    }
+
     /**
      * Sends a line with request to agent.
      * @param line "CLASSES" or "BYTES className"
@@ -180,4 +450,196 @@ public class Communicate {
         this.commOutput.flush();
     }
 
+    /**
+     * Sends whole request to agent.
+     * In text protocol, the request is sent as it is.
+     * In binary protocol, the handshake line is sent first, then each line of request is sent as text frame,
+     * except the Base64 body of OVERWRITE, ADD_CLASS and ADD_JAR, and the bodies of OVERWRITE_BATCH, each of which is sent
+     * as raw bytes frame followed by the text frame with (still Base64 encoded) classloader.
+     * The request is terminated by end frame.
+     *
+     * @param request lines of request as for text protocol
+     * @throws IOException if the write operation fails
+     */
+    public void sendRequest(String request) throws IOException {
+        if (!binary) {
+            println(request);
+            return;
+        }
+        sendFrames(toFrames(request));
+    }
+
+    /**
+     * Sends the handshake line and the frames of request, see {@link #sendRequest(String)}. Binary protocol only.
+     */
+    void sendFrames(List<Frame> frames) throws IOException {
+        binaryOutput.write((BINARY_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+        for (Frame frame : frames) {
+            frame.write(binaryOutput);
+        }
+        binaryOutput.flush();
+    }
+
+    /**
+     * @return the request split to frames, terminated by end frame
+     */
+    static List<Frame> toFrames(String request) {
+        List<Frame> frames = new ArrayList<>();
+        String[] lines = request.split("\n");
+        String command = lines[0].split("\\s")[0];
+        boolean hasBody = COMMANDS_WITH_BODY.contains(command);
+        // batch is count line, followed by name and body line of each class
+        boolean hasBodies = AgentRequestAction.RequestAction.OVERWRITE_BATCH.toString().equals(command);
+        for (int i = 0; i < lines.length; i++) {
+            if (hasBody && i == 2 || hasBodies && i > 2 && i % 2 != 0) {
+                String[] bodyAndLoader = lines[i].split("\\s");
+                frames.add(new Frame(FRAME_BYTES, Base64.getDecoder().decode(bodyAndLoader[0])));
+                frames.add(Frame.text(bodyAndLoader.length > 1 ? bodyAndLoader[1] : ""));
+            } else {
+                frames.add(Frame.text(lines[i]));
+            }
+        }
+        frames.add(new Frame(FRAME_END, new byte[0]));
+        return frames;
+    }
+
+    /**
+     * @param classloader Base64 encoded classloader of all the classes, or null
+     * @return OVERWRITE_BATCH request as frames, with the bodies as they are, terminated by end frame
+     */
+    static List<Frame> toOverwriteBatchFrames(List<String> classNames, List<byte[]> bodies, String classloader) {
+        List<Frame> frames = new ArrayList<>();
+        frames.add(Frame.text(AgentRequestAction.RequestAction.OVERWRITE_BATCH.toString()));
+        frames.add(Frame.text(Integer.toString(classNames.size())));
+        for (int i = 0; i < classNames.size(); i++) {
+            frames.add(Frame.text(classNames.get(i)));
+            frames.add(new Frame(FRAME_BYTES, bodies.get(i)));
+            frames.add(Frame.text(classloader == null ? "" : classloader));
+        }
+        frames.add(new Frame(FRAME_END, new byte[0]));
+        return frames;
+    }
+
+    /**
+     * @param classloader Base64 encoded classloader of all the classes, or null
+     * @return OVERWRITE_BATCH request of the text protocol: count of classes, then name and Base64 encoded body of each of them
+     */
+    static String toOverwriteBatchText(List<String> classNames, List<byte[]> bodies, String classloader) {
+        StringBuilder request = new StringBuilder(AgentRequestAction.RequestAction.OVERWRITE_BATCH + "\n" + classNames.size());
+        for (int i = 0; i < classNames.size(); i++) {
+            request.append('\n').append(classNames.get(i)).append('\n').append(Base64.getEncoder().encodeToString(bodies.get(i)));
+            if (classloader != null) {
+                request.append(' ').append(classloader);
+            }
+        }
+        return request.toString();
+    }
+
+    /**
+     * Reads the agent's answer to binary handshake.
+     *
+     * @return true if agent switched to binary protocol, false if it is an old agent, not knowing it
+     * @throws IOException if the read operation fails
+     */
+    public boolean readHandshake() throws IOException {
+        return isHandshakeAccepted(BINARY_HANDSHAKE, readRawLine(binaryInput));
+    }
+
+    /**
+     * @return true if agent acknowledged the handshake, false if it is an old agent, not knowing the handshake command
+     * @throws IOException if the agent is known to be busy or otherwise failed
+     */
+    static boolean isHandshakeAccepted(String handshake, String reply) throws IOException {
+        if (handshake.equals(reply)) {
+            return true;
+        }
+        if (reply.contains("unknown command")) {
+            return false;
+        }
+        throw new IOException("Agent did not answer the " + handshake + " handshake: '" + reply + "'");
+    }
+
+    /**
+     * Reads line byte by byte, so no data following it are consumed.
+     */
+    static String readRawLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            int b = in.read();
+            if (b < 0 || b == '\n') {
+                break;
+            }
+            line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Reads response of request, in the form the caller needs it.
+     */
+    interface ResponseReader<T> {
+        T read(Communicate communicate) throws IOException;
+    }
+
+    /**
+     * One frame of binary protocol.
+     */
+    static final class Frame {
+        /**
+         * Put by {@link AgentSession} to responses still pending when its connection ends, never sent.
+         */
+        static final Frame CONNECTION_LOST = new Frame(FRAME_END, new byte[0]);
+
+        final byte type;
+        final byte[] payload;
+
+        Frame(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        static Frame text(String line) {
+            return new Frame(FRAME_TEXT, line.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            checkLength();
+            out.writeByte(type);
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+
+        /**
+         * @throws IOException if the agent would refuse the frame as too long
+         */
+        void checkLength() throws IOException {
+            if (payload.length > MAX_FRAME_LENGTH) {
+                throw new IOException("Frame of " + payload.length + " bytes is longer than allowed " + MAX_FRAME_LENGTH + " bytes");
+            }
+        }
+
+        /**
+         * @return the frame, or null on end of stream
+         */
+        static Frame read(DataInputStream in) throws IOException {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException ex) {
+                return null;
+            }
+            return new Frame(type, readPayload(in));
+        }
+
+        static byte[] readPayload(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return payload;
+        }
+    }
+
 }
@@ -2,6 +2,8 @@ package org.jrd.backend.communication;
 
 import org.jrd.backend.core.AgentRequestAction;
 import org.jrd.backend.core.ClassInfo;
+import org.jrd.backend.core.ClassesChecksums;
+import org.jrd.backend.core.ClassesQuery;
 import org.jrd.backend.core.Logger;
 import org.jrd.backend.data.ArchiveManager;
 import org.jrd.backend.data.VmInfo;
@@ -23,6 +25,7 @@ import java.util.Base64;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -131,9 +134,13 @@ public final class FsAgent implements DelegatingJrdAgent {
                     return readClasses(false);
                 case CLASSES_WITH_INFO:
                     return readClasses(true);
+                case CLASSES_QUERY:
+                    return readClasses(ClassesQuery.fromParams(q1.length > 1 ? q1[1] : ""));
                 case BYTES:
                     String classNameForBytes = q1[1];
                     return sendByteCode(classNameForBytes);
+                case BYTES_BATCH:
+                    return sendByteCodes(q1[1].trim().split("\\s+"));
                 case OVERWRITE:
                     String classNameForOverwrite = q1[1];
                     if (!originals.containsKey(classNameForOverwrite)) {
@@ -144,13 +151,24 @@ public final class FsAgent implements DelegatingJrdAgent {
                     String futureBody = q1[2].split("\\s+")[0];
                     uploadByteCode(classNameForOverwrite, futureBody);
                     return Communicate.NO_VALUE_OK_RESULT;
+                case OVERWRITE_BATCH:
+                    uploadByteCodes(q1);
+                    return Communicate.NO_VALUE_OK_RESULT;
                 case ADD_CLASS:
                     throw new RuntimeException("add class is not implemented in FS vm, and never will - where to add it?");
+                case CHECKSUMS:
+                    return readChecksums(q1[1], ClassesQuery.fromParams(q1.length > 2 ? q1[2] : ""));
+                case REFERENCES:
+                    throw new RuntimeException("References of classes are indexed only by agent");
                 case ADD_JAR:
                     throw new RuntimeException("Add jar is not implemented in FS vm, and never will - where to add it?");
                 case INIT_CLASS:
                     Logger.getLogger().log(Logger.Level.DEBUG, "Init class have no meaning in FS 'vm'");
                     return Communicate.NO_VALLUE_DONE_RESULT;
+                case STATS:
+                case BUDGET:
+                    // nothing runs in FS 'vm'
+                    return "";
                 case HALT:
                     return Communicate.NO_VALUE_OK_RESULT;
                 default:
@@ -170,6 +188,44 @@ public final class FsAgent implements DelegatingJrdAgent {
         }
     }
 
+    /**
+     * Writes all classes of OVERWRITE_BATCH request. If any of them can not be written, the already written ones are written back.
+     *
+     * @param lines the request: command, count of classes, and name and body of each of them
+     */
+    private void uploadByteCodes(String[] lines) {
+        int count = Integer.parseInt(lines[1].trim());
+        if (lines.length < 2 + count * 2) {
+            throw new RuntimeException("Only " + (lines.length - 2) / 2 + " of " + count + " classes provided to overwrite");
+        }
+        Map<String, String> previous = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String className = lines[2 + i * 2];
+            if (!previous.containsKey(className)) {
+                previous.put(className, sendByteCode(className));
+            }
+        }
+        List<String> written = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                String className = lines[2 + i * 2];
+                uploadByteCode(className, lines[3 + i * 2].split("\\s+")[0]);
+                written.add(className);
+            }
+        } catch (RuntimeException ex) {
+            for (String className : written) {
+                uploadByteCode(className, previous.get(className));
+            }
+            throw ex;
+        }
+        for (Map.Entry<String, String> original : previous.entrySet()) {
+            if (!originals.containsKey(original.getKey())) {
+                Logger.getLogger().log("backuping original bytecode of " + original.getKey());
+                originals.put(original.getKey(), original.getValue());
+            }
+        }
+    }
+
     private String sendByteCode(String clazz) {
         try {
             String s = new OperateOnCp<String>(cp, suffix).operateOnCp(clazz, new ReadingCpOperator());
@@ -179,12 +235,50 @@ public final class FsAgent implements DelegatingJrdAgent {
         }
     }
 
+    private String sendByteCodes(String[] classNames) {
+        StringBuilder bodies = new StringBuilder();
+        for (String classNameAndLoader : classNames) {
+            // classloaders have no meaning on FS
+            String className = classNameAndLoader.split(":")[0];
+            String body;
+            try {
+                body = sendByteCode(className);
+            } catch (RuntimeException ex) {
+                body = ErrorCandidate.toError(ex);
+            }
+            bodies.append(className).append(" ").append(body).append("\n");
+        }
+        return bodies.toString();
+    }
+
     private String readClasses(final boolean details) throws IOException {
         List<String> classes = new ArrayList<>();
         new OperateOnCp<Void>(cp, suffix).operateOnCp(null, new ListingCpOperator(classes, details));
         return String.join(";", classes);
     }
 
+    private String readClasses(ClassesQuery query) throws IOException {
+        return selectClasses(query).stream().map(c -> query.isInfo() ? c.toAgentLikeAnswer() : c.getName())
+                .collect(Collectors.joining(";"));
+    }
+
+    private List<ClassInfo> selectClasses(ClassesQuery query) throws IOException {
+        List<ClassInfo> classes = Arrays.stream(readClasses(query.isInfo()).split(";")).filter(s -> !s.isEmpty()).map(ClassInfo::new)
+                .collect(Collectors.toList());
+        return query.apply(classes);
+    }
+
+    private String readChecksums(String algorithm, ClassesQuery query) throws IOException {
+        ClassesChecksums.check(algorithm);
+        List<String> checksums = new ArrayList<>();
+        for (ClassInfo clazz : selectClasses(query)) {
+            byte[] body = Base64.getDecoder().decode(sendByteCode(clazz.getName()));
+            // classloaders have no meaning on FS
+            checksums.add(ClassesChecksums.toItem(clazz.getName(), "unknown", body, algorithm));
+        }
+        return String.join(";", checksums);
+    }
+
     private interface CpOperator<T> {
         T onDirEntry(File dir, File clazz) throws IOException;
 
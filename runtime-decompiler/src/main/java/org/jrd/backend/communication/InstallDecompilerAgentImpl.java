@@ -5,6 +5,7 @@ import com.sun.tools.attach.AgentLoadException;
 import com.sun.tools.attach.AttachNotSupportedException;
 import com.sun.tools.attach.VirtualMachine;
 import com.sun.tools.attach.VirtualMachineDescriptor;
+import org.jrd.backend.core.Logger;
 import org.jrd.backend.core.agentstore.AgentLiveliness;
 import org.jrd.backend.core.agentstore.AgentLoneliness;
 import org.jrd.backend.core.agentstore.KnownAgents;
@@ -12,6 +13,7 @@ import org.jrd.backend.data.Config;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * This is Byteman's install library copied, with small modifications. This is
@@ -25,8 +27,17 @@ import java.util.List;
  */
 public final class InstallDecompilerAgentImpl {
 
+    /**
+     * Agent attached with port 0 binds any free port, and publishes it in system property of this prefix and its port token.
+     */
+    private static final String PORT_PROPERTY_PREFIX = "org.jrd.agent.port.";
+
+    /**
+     * @param port port for the agent to listen on, 0 for any free port
+     * @return port the agent listens on
+     */
     @SuppressWarnings("ParameterNumber")
-    public static void install(
+    public static int install(
             String pid, boolean addToBoot, boolean setPolicy, String host, int port, AgentLoneliness loneliness, AgentLiveliness liveliness,
             String[] properties
     ) throws IllegalArgumentException, IOException, AttachNotSupportedException, AgentLoadException, AgentInitializationException {
@@ -49,12 +60,14 @@ public final class InstallDecompilerAgentImpl {
         install.attach();
         install.injectAgent();
         KnownAgents.getInstance().injected(install, liveliness);
-
+        return install.port;
     }
 
     private String agentJar;
     private final String id;
-    private final int port;
+    // the requested port, and once the agent is injected, the port it listens on
+    private int port;
+    private final String portToken = UUID.randomUUID().toString();
     private final String host;
     private final boolean addToBoot;
     private final boolean setPolicy;
@@ -151,8 +164,9 @@ public final class InstallDecompilerAgentImpl {
             if (host != null && host.length() != 0) {
                 agentOptions += ",address:" + host;
             }
-            if (port != 0) {
-                agentOptions += ",port:" + port;
+            agentOptions += ",port:" + port;
+            if (port == 0) {
+                agentOptions += ",porttoken:" + portToken;
             }
             if (addToBoot) {
                 agentOptions += ",boot:" + agentJar;
@@ -167,11 +181,31 @@ public final class InstallDecompilerAgentImpl {
                 agentOptions += ",loneliness:" + loneliness.toString();
             }
             vm.loadAgent(agentJar, agentOptions);
+            if (port == 0) {
+                port = readBoundPort();
+            }
         } finally {
             vm.detach();
         }
     }
 
+    /**
+     * The agent binds the port before loadAgent returns, as loadAgent waits for agentmain to finish.
+     * Agent older than this client does not know the port token; it refuses port 0, and binds its default port instead.
+     */
+    private int readBoundPort() throws IOException {
+        String boundPort = vm.getSystemProperties().getProperty(PORT_PROPERTY_PREFIX + portToken);
+        if (boundPort == null) {
+            Logger.getLogger().log(
+                    Logger.Level.ALL,
+                    "Agent did not publish its port, it is older than this client. Expecting it on default port " +
+                            CallDecompilerAgent.DEFAULT_PORT
+            );
+            return CallDecompilerAgent.DEFAULT_PORT;
+        }
+        return Integer.parseInt(boundPort);
+    }
+
     private void locateAgent() throws IOException {
         agentJar = config.getAgentExpandedPath();
     }
@@ -1,7 +1,31 @@
 package org.jrd.backend.communication;
 
+import java.util.List;
+
 public interface JrdAgent {
 
     String submitRequest(String request);
 
+    /**
+     * Sends BYTES_BATCH request. The bodies are decoded here from the text response;
+     * agents transporting raw bytes override it, so the bodies are never encoded.
+     *
+     * @return bodies in order of the request, null for classes the agent returned error for;
+     * null if the agent refused the request as whole
+     */
+    default byte[][] submitBodiesRequest(String request) {
+        return Communicate.parseBodies(submitRequest(request));
+    }
+
+    /**
+     * Sends OVERWRITE_BATCH request. The bodies are encoded here to the text request;
+     * agents transporting raw bytes override it, so the bodies are never encoded.
+     *
+     * @param classloader Base64 encoded classloader of all the classes, or null
+     * @return agents response
+     */
+    default String submitOverwriteBatch(List<String> classNames, List<byte[]> bodies, String classloader) {
+        return submitRequest(Communicate.toOverwriteBatchText(classNames, bodies, classloader));
+    }
+
 }
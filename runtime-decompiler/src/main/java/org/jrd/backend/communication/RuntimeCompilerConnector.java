@@ -8,6 +8,7 @@ import io.github.mkoncek.classpathless.api.IdentifiedBytecode;
 import io.github.mkoncek.classpathless.api.IdentifiedSource;
 import io.github.mkoncek.classpathless.api.MessagesListener;
 import org.jrd.backend.core.AgentRequestAction;
+import org.jrd.backend.core.ClassInfo;
 import org.jrd.backend.core.DecompilerRequestReceiver;
 import org.jrd.backend.core.Logger;
 import org.jrd.backend.core.VmDecompilerStatus;
@@ -26,6 +27,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 public class RuntimeCompilerConnector {
 
@@ -49,38 +51,47 @@ public class RuntimeCompilerConnector {
 
         @Override
         public Collection<IdentifiedBytecode> getClass(ClassIdentifier... classIdentifiers) {
+            List<ClassInfo> classes = Arrays.stream(classIdentifiers)
+                    .map(clazz -> new ClassInfo(clazz.getFullName(), null, null, null, null)).collect(Collectors.toList());
+            // all classes by one retransformation; only the missing ones are then initialized and obtained one by one
+            byte[][] bodies = Lib.obtainClassesBytes(vmInfo, classes, vmManager);
             List<IdentifiedBytecode> results = new ArrayList<>(classIdentifiers.length);
-            for (ClassIdentifier clazz : classIdentifiers) {
-                VmDecompilerStatus result;
-                try {
-                    result = Lib.obtainClass(vmInfo, clazz.getFullName(), vmManager, Optional.empty());
-                } catch (Exception ex) {
-                    Logger.getLogger().log(Logger.Level.DEBUG, ex);
-                    Logger.getLogger().log(Logger.Level.DEBUG, "Attempting to init the class and load again");
-                    try {
-                        Lib.initClass(vmInfo, vmManager, clazz.getFullName(), System.err);
-                    } catch (RuntimeException e) {
-                        Logger.getLogger().log(Logger.Level.DEBUG, "Init of class '" + clazz.getFullName() + "' failed, not obtaining.");
+            for (int i = 0; i < classIdentifiers.length; i++) {
+                ClassIdentifier clazz = classIdentifiers[i];
+                byte[] body = bodies[i];
+                if (body == null) {
+                    VmDecompilerStatus result = obtainAfterInit(clazz);
+                    if (result == null) {
                         continue;
                     }
-                    //if we are using host classes, the class may still by on host
-                    if (Config.getConfig().doUseHostSystemClasses()) {
-                        try {
-                            result = Lib.obtainClass(vmInfo, clazz.getFullName(), vmManager, Optional.empty());
-                        } catch (Exception consumedExceptionOnUseHostClasses) {
-                            Logger.getLogger().log(consumedExceptionOnUseHostClasses);
-                            continue;
-                        }
-                    } else {
-                        result = Lib.obtainClass(vmInfo, clazz.getFullName(), vmManager, Optional.empty());
-                    }
+                    body = Base64.getDecoder().decode(result.getLoadedClassBytes());
                 }
-                byte[] ba = Base64.getDecoder().decode(result.getLoadedClassBytes());
-                results.add(new IdentifiedBytecode(new ClassIdentifier(clazz.getFullName()), ba));
+                results.add(new IdentifiedBytecode(new ClassIdentifier(clazz.getFullName()), body));
             }
             return results;
         }
 
+        private VmDecompilerStatus obtainAfterInit(ClassIdentifier clazz) {
+            Logger.getLogger().log(Logger.Level.DEBUG, "Attempting to init the class and load again");
+            try {
+                Lib.initClass(vmInfo, vmManager, clazz.getFullName(), System.err);
+            } catch (RuntimeException e) {
+                Logger.getLogger().log(Logger.Level.DEBUG, "Init of class '" + clazz.getFullName() + "' failed, not obtaining.");
+                return null;
+            }
+            //if we are using host classes, the class may still by on host
+            if (Config.getConfig().doUseHostSystemClasses()) {
+                try {
+                    return Lib.obtainClass(vmInfo, clazz.getFullName(), vmManager, Optional.empty());
+                } catch (Exception consumedExceptionOnUseHostClasses) {
+                    Logger.getLogger().log(consumedExceptionOnUseHostClasses);
+                    return null;
+                }
+            } else {
+                return Lib.obtainClass(vmInfo, clazz.getFullName(), vmManager, Optional.empty());
+            }
+        }
+
         @Override
         public List<String> getClassPathListing() {
             AgentRequestAction request = DecompilationController.createRequest(vmInfo, AgentRequestAction.RequestAction.CLASSES);
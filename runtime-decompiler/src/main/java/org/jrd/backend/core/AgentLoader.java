@@ -9,9 +9,6 @@ import org.jrd.backend.communication.InstallDecompilerAgentImpl;
 import org.jrd.backend.data.cli.utils.AgentConfig;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * This class contains methods for attaching the agent.
@@ -19,11 +16,8 @@ import java.util.List;
 public class AgentLoader {
 
     static final int INVALID_PORT = -1;
-    private static final int PORT_MIN = 10900;
-    private static final int MAX_PORT_SLOTS = 200;
-    private static final int PORT_MAX = PORT_MIN + MAX_PORT_SLOTS;
-
-    private static final String AGENT_PORT_PROPERTY = "com.redhat.decompiler.thermostat.port";
+    // the agent binds any free port, and reports it back
+    private static final int ANY_PORT = 0;
 
     AgentLoader() {
     }
@@ -39,15 +33,17 @@ public class AgentLoader {
     }
 
     public static int attachImpl(int pid, AgentConfig aconf) {
-        int port = aconf.getPort().orElse(findPort());
-        String[] installProps = createProperties(port);
+        int port = aconf.getPort().orElse(ANY_PORT);
 
-        Logger.getLogger().log(Logger.Level.DEBUG, "Attempting to attach decompiler agent for VM '" + pid + "' on port '" + port + "'");
+        Logger.getLogger().log(
+                Logger.Level.DEBUG,
+                "Attempting to attach decompiler agent for VM '" + pid + "' on port '" + (port == ANY_PORT ? "any" : port) + "'"
+        );
 
         try {
-            InstallDecompilerAgentImpl.install(
+            port = InstallDecompilerAgentImpl.install(
                     Integer.toString(pid), false, false, CallDecompilerAgent.DEFAULT_ADDRESS, port, aconf.getLoneliness(),
-                    aconf.getLiveliness(), installProps
+                    aconf.getLiveliness(), new String[0]
             );
         } catch (IllegalArgumentException |
                 IOException |
@@ -64,28 +60,4 @@ public class AgentLoader {
             return INVALID_PORT;
         }
     }
-
-    private static int findPort() {
-        for (int i = PORT_MIN; i <= PORT_MAX; i++) {
-            try {
-                try (ServerSocket s = new ServerSocket(i)) {
-                    s.close();
-                    return i;
-                }
-            } catch (IOException e) {
-                Logger.getLogger()
-                        .log(Logger.Level.DEBUG, new RuntimeException("Could not open socket on port " + i + ". Trying again.", e));
-            }
-        }
-
-        throw new IllegalStateException("No ports available in range [" + PORT_MIN + "," + PORT_MAX + "]");
-    }
-
-    private static String[] createProperties(int port) {
-        List<String> properties = new ArrayList<>();
-
-        properties.add(AGENT_PORT_PROPERTY + "=" + port);
-
-        return properties.toArray(new String[]{});
-    }
 }
@@ -39,7 +39,10 @@ package org.jrd.backend.core;
 import org.jrd.backend.communication.DelegatingJrdAgent;
 import org.jrd.backend.data.VmInfo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -50,6 +53,7 @@ import java.util.TreeMap;
 public class AgentRequestAction {
 
     private final Map<String, String> parameters;
+    private List<byte[]> bodies;
 
     public enum RequestAction {
         HELLO(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
@@ -57,14 +61,25 @@ public class AgentRequestAction {
         CLASSES(DelegatingJrdAgent.CommandDelegationOptions.ALL),
         SEARCH_CLASSES(DelegatingJrdAgent.CommandDelegationOptions.ALL),
         BYTES(DelegatingJrdAgent.CommandDelegationOptions.FIRST_OK),
+        BYTES_IF_CHANGED(DelegatingJrdAgent.CommandDelegationOptions.FIRST_OK),
+        BYTES_BATCH(DelegatingJrdAgent.CommandDelegationOptions.FIRST_OK),
         HALT(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
         OVERWRITE(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
+        OVERWRITE_BATCH(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
         ADD_CLASS(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
         ADD_JAR(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
         INIT_CLASS(DelegatingJrdAgent.CommandDelegationOptions.ALL),
         OVERRIDES(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
         REMOVE_OVERRIDES(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
-        CLASSES_WITH_INFO(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY);
+        CLASSES_WITH_INFO(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
+        CLASSES_ENCODED(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
+        CLASSES_QUERY(DelegatingJrdAgent.CommandDelegationOptions.ALL),
+        CLASSES_SINCE(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
+        REFERENCES(DelegatingJrdAgent.CommandDelegationOptions.ALL),
+        STATS(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
+        BUDGET(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY),
+        CHECKSUMS(DelegatingJrdAgent.CommandDelegationOptions.ALL),
+        SUBSCRIBE(DelegatingJrdAgent.CommandDelegationOptions.MAIN_ONLY);
 
         private final DelegatingJrdAgent.CommandDelegationOptions delegation;
 
@@ -151,4 +166,16 @@ public class AgentRequestAction {
     public String getParameter(String name) {
         return parameters.get(name);
     }
+
+    /**
+     * @param bodies bytecode of classes of OVERWRITE_BATCH, in order of the class names. Kept as it is, as it is encoded
+     * only if the agent speaks text protocol only
+     */
+    public void setBodies(List<byte[]> bodies) {
+        this.bodies = new ArrayList<>(bodies);
+    }
+
+    public List<byte[]> getBodies() {
+        return bodies == null ? null : Collections.unmodifiableList(bodies);
+    }
 }
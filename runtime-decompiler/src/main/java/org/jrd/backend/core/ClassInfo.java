@@ -1,6 +1,7 @@
 package org.jrd.backend.core;
 
 import java.util.Objects;
+import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
 
 public class ClassInfo {
@@ -22,29 +23,27 @@ public class ClassInfo {
     }
 
     public ClassInfo(String classString) {
+        this(classString, UnaryOperator.identity());
+    }
+
+    /**
+     * @param interner returns shared instance of the location, classloader or module, so classes do not hold own copies of them
+     */
+    ClassInfo(String classString, UnaryOperator<String> interner) {
         String[] splitClassString = INFO_DELIMITER_PATTERN.split(classString);
         this.name = splitClassString[0];
+        // backwards compatibility, older agents do not send all the details
+        this.location = getDetail(splitClassString, 1, interner);
+        this.classLoader = getDetail(splitClassString, 2, interner);
+        this.module = getDetail(splitClassString, 3, interner);
+        this.moduleLoader = getDetail(splitClassString, 4, interner);
+    }
 
-        if (splitClassString.length >= 2 && !splitClassString[1].trim().isEmpty()) {
-            this.location = splitClassString[1];
-        } else { // backwards compatibility
-            this.location = "unknown";
-        }
-
-        if (splitClassString.length >= 3 && !splitClassString[2].trim().isEmpty()) {
-            this.classLoader = splitClassString[2];
-        } else { // backwards compatibility
-            this.classLoader = "unknown";
-        }
-        if (splitClassString.length >= 4 && !splitClassString[3].trim().isEmpty()) {
-            this.module = splitClassString[3];
-        } else { // backwards compatibility
-            this.module = "unknown";
-        }
-        if (splitClassString.length >= 5 && !splitClassString[4].trim().isEmpty()) {
-            this.moduleLoader = splitClassString[4];
-        } else { // backwards compatibility
-            this.moduleLoader = "unknown";
+    private static String getDetail(String[] splitClassString, int index, UnaryOperator<String> interner) {
+        if (splitClassString.length > index && !splitClassString[index].trim().isEmpty()) {
+            return interner.apply(splitClassString[index]);
+        } else {
+            return "unknown";
         }
     }
 
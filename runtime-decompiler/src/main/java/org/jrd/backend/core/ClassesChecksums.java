@@ -0,0 +1,135 @@
+package org.jrd.backend.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32C;
+
+/**
+ * Checksums of current bytecode of classes of one vm, as returned by CHECKSUMS command, and their comparison among vms.
+ * Classes are compared by name only, as classloaders differ among vms. Class loaded by several classloaders is represented
+ * by all its checksums.
+ */
+public final class ClassesChecksums {
+
+    public static final String CRC32C = "crc32c";
+    public static final String SHA256 = "sha256";
+    public static final String MISSING = "MISSING";
+
+    private static final String DELIMITER = "|";
+
+    // class name to its sorted checksums
+    private final Map<String, List<String>> checksums = new TreeMap<>();
+
+    private ClassesChecksums() {
+    }
+
+    /**
+     * @param listing items of CHECKSUMS response, as name|classloader|checksum, joined by ';'
+     * @return parsed checksums
+     * @throws IllegalArgumentException if an item is malformed
+     */
+    public static ClassesChecksums parse(String listing) {
+        ClassesChecksums parsed = new ClassesChecksums();
+        for (String item : listing.split(";")) {
+            if (item.isEmpty()) {
+                continue;
+            }
+            int nameEnd = item.indexOf(DELIMITER);
+            int checksumStart = item.lastIndexOf(DELIMITER);
+            if (nameEnd < 0 || nameEnd == checksumStart) {
+                throw new IllegalArgumentException("Malformed checksum " + item);
+            }
+            parsed.add(item.substring(0, nameEnd), item.substring(checksumStart + 1));
+        }
+        return parsed;
+    }
+
+    private void add(String className, String checksum) {
+        List<String> sums = checksums.computeIfAbsent(className, k -> new ArrayList<>(1));
+        sums.add(checksum);
+        Collections.sort(sums);
+    }
+
+    /**
+     * @return item of CHECKSUMS response, as the agent lists it
+     */
+    public static String toItem(String className, String classloader, byte[] body, String algorithm) {
+        return className + DELIMITER + classloader + DELIMITER + checksum(body, algorithm);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the algorithm is not known
+     */
+    public static void check(String algorithm) {
+        if (!CRC32C.equals(algorithm) && !SHA256.equals(algorithm)) {
+            throw new IllegalArgumentException("Unknown checksum algorithm: " + algorithm + ". Known are " + CRC32C + " and " + SHA256);
+        }
+    }
+
+    /**
+     * @return lowercase hexadecimal checksum of the body, same as the agent computes it
+     * @throws IllegalArgumentException if the algorithm is not known
+     */
+    public static String checksum(byte[] body, String algorithm) {
+        if (CRC32C.equals(algorithm)) {
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            return String.format("%08x", crc.getValue());
+        }
+        check(algorithm);
+        try {
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(body)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // every java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public Set<String> getClassNames() {
+        return Collections.unmodifiableSet(checksums.keySet());
+    }
+
+    /**
+     * @return checksums of the class, separated by comma, or {@link #MISSING}
+     */
+    public String get(String className) {
+        List<String> sums = checksums.get(className);
+        return sums == null ? MISSING : String.join(",", sums);
+    }
+
+    /**
+     * @param vms names of the vms, in order of their checksums
+     * @param sums checksums of each vm
+     * @return one line per class, whose checksums differ, or which is missing in some vm, sorted by class name
+     */
+    public static List<String> compare(List<String> vms, List<ClassesChecksums> sums) {
+        Set<String> allNames = new TreeSet<>();
+        for (ClassesChecksums vmSums : sums) {
+            allNames.addAll(vmSums.getClassNames());
+        }
+        List<String> differences = new ArrayList<>();
+        for (String className : allNames) {
+            String first = sums.get(0).get(className);
+            if (sums.stream().allMatch(vmSums -> first.equals(vmSums.get(className)))) {
+                continue;
+            }
+            StringBuilder difference = new StringBuilder(className).append(":");
+            for (int i = 0; i < sums.size(); i++) {
+                difference.append(" ").append(vms.get(i)).append("=").append(sums.get(i).get(className));
+            }
+            differences.add(difference.toString());
+        }
+        return differences;
+    }
+}
@@ -0,0 +1,94 @@
+package org.jrd.backend.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Classes defined and classloaders unloaded in the agent since given sequence, as returned by CLASSES_SINCE command.
+ * If the agent no longer knows what changed since the sequence, the delta is not complete, and all the classes must be listed again.
+ */
+public final class ClassesDelta {
+
+    private static final String RESET = "RESET";
+
+    private final long sequence;
+    private final boolean complete;
+    private final List<ClassInfo> defined;
+    private final Set<String> unloadedClassloaders;
+
+    private ClassesDelta(long sequence, boolean complete, List<ClassInfo> defined, Set<String> unloadedClassloaders) {
+        this.sequence = sequence;
+        this.complete = complete;
+        this.defined = defined;
+        this.unloadedClassloaders = unloadedClassloaders;
+    }
+
+    /**
+     * @param listing items of CLASSES_SINCE response, joined by ';'
+     * @return parsed delta
+     * @throws NumberFormatException if the listing does not start by sequence
+     */
+    public static ClassesDelta parse(String listing) {
+        String[] items = Arrays.stream(listing.split(";")).filter(s -> !s.isEmpty()).toArray(String[]::new);
+        long sequence = Long.parseLong(items[0]);
+        if (items.length > 1 && RESET.equals(items[1])) {
+            return new ClassesDelta(sequence, false, Collections.emptyList(), Collections.emptySet());
+        }
+        List<ClassInfo> defined = new ArrayList<>();
+        Set<String> unloaded = new HashSet<>();
+        for (int i = 1; i < items.length; i++) {
+            if (items[i].startsWith("+")) {
+                defined.add(new ClassInfo(items[i].substring(1)));
+            } else if (items[i].startsWith("-")) {
+                unloaded.add(items[i].substring(1));
+            }
+        }
+        return new ClassesDelta(sequence, true, defined, unloaded);
+    }
+
+    /**
+     * @param defined classes defined since the listing, eg. as pushed by the agent to subscription
+     * @return complete delta of the defined classes, with no sequence
+     */
+    public static ClassesDelta ofDefined(List<ClassInfo> defined) {
+        return new ClassesDelta(-1, true, defined, Collections.emptySet());
+    }
+
+    /**
+     * @return sequence of the last change included in this delta
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @param known classes listed as of the sequence this delta was asked for
+     * @return the classes, as of the sequence of this delta, sorted as full listing is
+     */
+    public ClassInfo[] applyTo(ClassInfo[] known) {
+        Map<String, ClassInfo> classes = new LinkedHashMap<>(known.length + defined.size());
+        for (ClassInfo clazz : known) {
+            classes.put(clazz.getName() + " " + clazz.getClassLoader(), clazz);
+        }
+        classes.values().removeIf(clazz -> unloadedClassloaders.contains(clazz.getClassLoader()));
+        for (ClassInfo clazz : defined) {
+            // class defined by now unloaded loader was unloaded too
+            if (!unloadedClassloaders.contains(clazz.getClassLoader())) {
+                classes.put(clazz.getName() + " " + clazz.getClassLoader(), clazz);
+            }
+        }
+        ClassInfo[] result = classes.values().toArray(new ClassInfo[0]);
+        Arrays.sort(result, new DecompilerRequestReceiver.ClassesComparator());
+        return result;
+    }
+}
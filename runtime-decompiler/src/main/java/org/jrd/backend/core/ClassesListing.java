@@ -0,0 +1,77 @@
+package org.jrd.backend.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Classes listed by CLASSES, CLASSES_WITH_INFO or CLASSES_ENCODED commands.
+ * <p>
+ * The encoded listing sends each location, classloader and module only once, as item starting by {@link #DEFINITION},
+ * and the classes then refer to them by their order, starting from 0. The parsed classes share the instances of their details
+ * in both formats, as there are few hundreds of such values for hundreds of thousands of classes.
+ */
+public final class ClassesListing {
+
+    private static final String DEFINITION = "=";
+    private static final String UNKNOWN = "unknown";
+    private static final Pattern INFO_DELIMITER_PATTERN = Pattern.compile("\\|");
+
+    private ClassesListing() {
+    }
+
+    /**
+     * @param listing items of the response, joined by ';'
+     * @return the listed classes, in order of the listing
+     */
+    public static ClassInfo[] parse(String listing) {
+        String[] items = listing.split(";");
+        // encoded listing of any class starts by definition of its location
+        if (items[0].startsWith(DEFINITION)) {
+            return parseEncoded(items);
+        }
+        Map<String, String> interned = new HashMap<>();
+        List<ClassInfo> classes = new ArrayList<>(items.length);
+        for (String item : items) {
+            // backwards compatibility, name is not empty
+            if (!item.isEmpty() && !item.startsWith("|")) {
+                classes.add(new ClassInfo(item, value -> interned.computeIfAbsent(value, v -> v)));
+            }
+        }
+        return classes.toArray(new ClassInfo[0]);
+    }
+
+    private static ClassInfo[] parseEncoded(String[] items) {
+        List<String> values = new ArrayList<>();
+        List<ClassInfo> classes = new ArrayList<>(items.length);
+        for (String item : items) {
+            if (item.startsWith(DEFINITION)) {
+                String value = item.substring(DEFINITION.length());
+                values.add(value.trim().isEmpty() ? UNKNOWN : value);
+            } else if (!item.isEmpty()) {
+                String[] nameAndIds = INFO_DELIMITER_PATTERN.split(item);
+                if (nameAndIds.length == 5) {
+                    classes.add(
+                            new ClassInfo(
+                                    nameAndIds[0], getValue(values, nameAndIds[1]), getValue(values, nameAndIds[2]),
+                                    getValue(values, nameAndIds[3]), getValue(values, nameAndIds[4])
+                            )
+                    );
+                } else {
+                    classes.add(new ClassInfo(nameAndIds[0], UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN));
+                }
+            }
+        }
+        return classes.toArray(new ClassInfo[0]);
+    }
+
+    private static String getValue(List<String> values, String id) {
+        try {
+            return values.get(Integer.parseInt(id));
+        } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Listing refers to undefined value " + id, ex);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.jrd.backend.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Predicates and paging of the class listing, evaluated by the agent, so only the matching classes are transferred.
+ * Agents not knowing the CLASSES_QUERY command are served by the same predicates, evaluated on the full listing by {@link #apply}.
+ */
+public class ClassesQuery {
+
+    private final List<Pattern> names;
+    private final boolean info;
+    private String module;
+    private String body;
+    private boolean constantPool;
+    private boolean lambdas = true;
+    private boolean arrays = true;
+    private int offset;
+    private int limit = -1;
+
+    /**
+     * @param names class name must match at least one of them; empty list matches all
+     * @param info whether to list details of classes
+     */
+    public ClassesQuery(List<Pattern> names, boolean info) {
+        this.names = new ArrayList<>(names);
+        this.info = info;
+    }
+
+    /**
+     * @param module name or regex of module the classes must be in. "unnamed" for classes in unnamed modules
+     */
+    public void setModule(String module) {
+        this.module = module;
+    }
+
+    /**
+     * Bodies are searched only by agent; such query can not be evaluated on the full listing.
+     * @param substring what the bodies of classes must contain, or null
+     * @param constantPoolOnly whether the substring must be in constant pool strings
+     */
+    public void setBody(String substring, boolean constantPoolOnly) {
+        this.body = substring;
+        this.constantPool = constantPoolOnly;
+    }
+
+    public boolean hasBody() {
+        return body != null && !body.isEmpty();
+    }
+
+    public void setLambdas(boolean lambdas) {
+        this.lambdas = lambdas;
+    }
+
+    public void setArrays(boolean arrays) {
+        this.arrays = arrays;
+    }
+
+    /**
+     * Paged listing is sorted by class name.
+     * @param skip how many of the matching classes to skip
+     * @param count how many classes to return at most, negative for all
+     */
+    public void setPage(int skip, int count) {
+        this.offset = Math.max(0, skip);
+        this.limit = count;
+    }
+
+    public boolean isInfo() {
+        return info;
+    }
+
+    /**
+     * @return the query in form of CLASSES_QUERY parameters line
+     */
+    public String toParams() {
+        List<String> params = new ArrayList<>();
+        for (Pattern name : names) {
+            params.add("name=" + toBase64(name.pattern()));
+        }
+        if (module != null) {
+            params.add("module=" + toBase64(module));
+        }
+        if (hasBody()) {
+            params.add("body=" + toBase64(body));
+            params.add("constantpool=" + constantPool);
+        }
+        params.add("lambdas=" + lambdas);
+        params.add("arrays=" + arrays);
+        params.add("info=" + info);
+        if (offset > 0 || limit >= 0) {
+            params.add("offset=" + offset);
+            params.add("limit=" + limit);
+        }
+        return String.join(" ", params);
+    }
+
+    /**
+     * @return query read from CLASSES_QUERY parameters line
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    @SuppressWarnings("CyclomaticComplexity") // switch over keys
+    public static ClassesQuery fromParams(String line) {
+        List<Pattern> names = new ArrayList<>();
+        List<String[]> params = new ArrayList<>();
+        for (String param : line.trim().split("\\s+")) {
+            if (param.isEmpty()) {
+                continue;
+            }
+            String[] keyAndValue = param.split("=", 2);
+            if (keyAndValue.length != 2) {
+                throw new IllegalArgumentException("bad query parameter " + param);
+            }
+            if ("name".equals(keyAndValue[0])) {
+                names.add(Pattern.compile(fromBase64(keyAndValue[1])));
+            } else {
+                params.add(keyAndValue);
+            }
+        }
+        boolean info = params.stream().anyMatch(p -> "info".equals(p[0]) && Boolean.parseBoolean(p[1]));
+        ClassesQuery query = new ClassesQuery(names, info);
+        int offset = 0;
+        int limit = -1;
+        String body = null;
+        boolean constantPool = false;
+        for (String[] param : params) {
+            switch (param[0]) {
+                case "module":
+                    query.setModule(fromBase64(param[1]));
+                    break;
+                case "lambdas":
+                    query.setLambdas(Boolean.parseBoolean(param[1]));
+                    break;
+                case "arrays":
+                    query.setArrays(Boolean.parseBoolean(param[1]));
+                    break;
+                case "body":
+                    body = fromBase64(param[1]);
+                    break;
+                case "constantpool":
+                    constantPool = Boolean.parseBoolean(param[1]);
+                    break;
+                case "info":
+                    break;
+                case "offset":
+                    offset = Integer.parseInt(param[1]);
+                    break;
+                case "limit":
+                    limit = Integer.parseInt(param[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown query parameter " + param[0]);
+            }
+        }
+        query.setPage(offset, limit);
+        query.setBody(body, constantPool);
+        return query;
+    }
+
+    /**
+     * Evaluates the query on listing, which was not filtered by agent.
+     * Module is matched only if the listing contains details.
+     *
+     * @param classes all classes
+     * @return matching classes, paged
+     * @throws IllegalStateException if the query searches bodies of classes
+     */
+    public List<ClassInfo> apply(List<ClassInfo> classes) {
+        if (hasBody()) {
+            throw new IllegalStateException("Bodies of classes can be searched only by agent");
+        }
+        List<ClassInfo> matching = new ArrayList<>();
+        for (ClassInfo clazz : classes) {
+            if (matches(clazz)) {
+                matching.add(clazz);
+            }
+        }
+        if (offset == 0 && limit < 0) {
+            return matching;
+        }
+        matching.sort(Comparator.comparing(ClassInfo::getName));
+        if (offset >= matching.size()) {
+            return Collections.emptyList();
+        }
+        int end = limit < 0 ? matching.size() : (int) Math.min(matching.size(), (long) offset + limit);
+        return new ArrayList<>(matching.subList(offset, end));
+    }
+
+    private boolean matches(ClassInfo clazz) {
+        String name = clazz.getName();
+        if (!arrays && name.startsWith("[")) {
+            return false;
+        }
+        if (!lambdas && name.contains("$$Lambda")) {
+            return false;
+        }
+        if (!names.isEmpty() && names.stream().noneMatch(pattern -> pattern.matcher(name).matches())) {
+            return false;
+        }
+        if (module == null || clazz.getModule() == null) {
+            return true;
+        }
+        // agent lists unnamed modules by their null name
+        String candidate = "null".equals(clazz.getModule()) ? "unnamed" : clazz.getModule();
+        return module.equals(candidate) || Pattern.compile(module).matcher(candidate).matches();
+    }
+
+    private static String toBase64(String s) {
+        return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String fromBase64(String s) {
+        return new String(Base64.getDecoder().decode(s), StandardCharsets.UTF_8);
+    }
+}
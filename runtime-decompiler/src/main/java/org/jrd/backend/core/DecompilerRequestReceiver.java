@@ -16,6 +16,7 @@ import org.jrd.backend.decompiling.PluginManager;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * This class manages the requests that are put in queue by the controller.
@@ -32,6 +33,7 @@ public class DecompilerRequestReceiver {
         this.vmManager = vmManager;
     }
 
+    @SuppressWarnings({"ExecutableStatementCount", "JavaNCSS"}) // switch over all actions
     public String processRequest(AgentRequestAction request) {
         String vmId = request.getParameter(AgentRequestAction.VM_ID_PARAM_NAME);
         String vmPidStr = request.getParameter(AgentRequestAction.VM_PID_PARAM_NAME);
@@ -67,7 +69,18 @@ public class DecompilerRequestReceiver {
                 String classNameForOverwrite = request.getParameter(AgentRequestAction.CLASS_NAME_PARAM);
                 String classFutureBody = request.getParameter(AgentRequestAction.CLASS_TO_OVERWRITE_BODY);
                 String classloader = request.getParameter(AgentRequestAction.CLASS_LOADER);
-                response = getOverwriteAction(action, hostname, port, vmId, vmPid, classNameForOverwrite, classFutureBody, classloader);
+                response = getOverwriteAction(
+                        hostname, port, vmId, vmPid,
+                        action + "\n" + classNameForOverwrite + "\n" + classFutureBody + (classloader == null ? "" : (" " + classloader))
+                );
+                break;
+            case OVERWRITE_BATCH:
+                String classNamesForOverwrite = request.getParameter(AgentRequestAction.CLASS_NAME_PARAM);
+                String batchClassloader = request.getParameter(AgentRequestAction.CLASS_LOADER);
+                response = getOverwriteBatchAction(
+                        hostname, port, vmId, vmPid, Arrays.asList(classNamesForOverwrite.trim().split("\\s+")), request.getBodies(),
+                        batchClassloader
+                );
                 break;
             case REMOVE_OVERRIDES:
                 String patern = request.getParameter(AgentRequestAction.CLASS_NAME_PARAM);
@@ -80,10 +93,26 @@ public class DecompilerRequestReceiver {
             case VERSION:
                 response = getVersionAction(hostname, port, vmId, vmPid);
                 break;
+            case STATS:
+                response = getListAsIsAction(hostname, port, vmId, vmPid, RequestAction.STATS.toString());
+                break;
+            case BUDGET:
+                String budget = request.getParameter(AgentRequestAction.CLASS_NAME_PARAM);
+                response = getListAsIsAction(hostname, port, vmId, vmPid, RequestAction.BUDGET + "\n" + budget);
+                break;
+            case CHECKSUMS:
+                String algorithmAndQuery = request.getParameter(AgentRequestAction.CLASS_NAME_PARAM);
+                String checksumsClassloader = request.getParameter(AgentRequestAction.CLASS_LOADER);
+                response = getListAsIsAction(
+                        hostname, port, vmId, vmPid,
+                        action + (checksumsClassloader == null ? "" : (" " + checksumsClassloader)) + "\n" + algorithmAndQuery
+                );
+                break;
             case BYTES:
+            case BYTES_BATCH:
                 String className = request.getParameter(AgentRequestAction.CLASS_NAME_PARAM);
                 String bytesClassloader = request.getParameter(AgentRequestAction.CLASS_LOADER);
-                response = getByteCodeAction(hostname, port, vmId, vmPid, className, bytesClassloader);
+                response = getByteCodeAction(action, hostname, port, vmId, vmPid, className, bytesClassloader);
                 break;
             case OVERRIDES:
             case CLASSES:
@@ -96,10 +125,16 @@ public class DecompilerRequestReceiver {
                 }
                 break;
             case SEARCH_CLASSES:
+            case CLASSES_QUERY:
+            case REFERENCES:
                 String substringAndRegex = request.getParameter(AgentRequestAction.CLASS_NAME_PARAM);
                 String searchClassloader = request.getParameter(AgentRequestAction.CLASS_LOADER);
                 response = getListActionSearch(hostname, port, vmId, vmPid, action, substringAndRegex, searchClassloader);
                 break;
+            case CLASSES_SINCE:
+                String sequence = request.getParameter(AgentRequestAction.CLASS_NAME_PARAM);
+                response = getClassesSinceAction(hostname, port, vmId, vmPid, sequence);
+                break;
             case HALT:
                 response = getHaltAction(hostname, port, vmId, vmPid);
                 break;
@@ -137,6 +172,25 @@ public class DecompilerRequestReceiver {
         return OK_RESPONSE;
     }
 
+    private String getClassesSinceAction(String hostname, int port, String vmId, int vmPid, String sequence) {
+        try {
+            ResponseWithPort reply = getResponse(hostname, port, vmId, vmPid, RequestAction.CLASSES_SINCE + "\n" + sequence);
+            ClassesDelta delta = ClassesDelta.parse(reply.response);
+
+            VmDecompilerStatus status = vmManager.getVmInfoByID(vmId).getVmDecompilerStatus();
+            status.setHostname(hostname);
+            status.setListenPort(reply.port);
+            status.setVmId(vmId);
+            status.setClassesDelta(delta);
+
+            vmManager.getVmInfoByID(vmId).replaceVmDecompilerStatus(status);
+        } catch (Exception ex) {
+            Logger.getLogger().log(Logger.Level.DEBUG, ex);
+            return TopLevelErrorCandidate.toError(ex);
+        }
+        return OK_RESPONSE;
+    }
+
     private String getListActionLoader(String hostname, int port, String vmId, int vmPid, RequestAction action, String listingClassloader) {
         try {
             ResponseWithPort reply = getResponse(hostname, port, vmId, vmPid, action.toString() + " " + listingClassloader);
@@ -206,6 +260,15 @@ public class DecompilerRequestReceiver {
             String hostname, int listenPort, String vmId, int vmPid, String requestBody, AgentAttachManager attachManager,
             VmManager vmManager
     ) {
+        AgentWithPort agent = getAgent(hostname, listenPort, vmId, vmPid, attachManager, vmManager);
+        String reply = agent.agent.submitRequest(requestBody);
+        checkReply(reply, requestBody);
+        return new ResponseWithPort(reply, agent.port);
+    }
+
+    private static
+            AgentWithPort
+            getAgent(String hostname, int listenPort, String vmId, int vmPid, AgentAttachManager attachManager, VmManager vmManager) {
         int actualListenPort = -1;
         JrdAgent nativeAgent;
         if (listenPort >= 0 || vmPid >= 0) {
@@ -220,7 +283,10 @@ public class DecompilerRequestReceiver {
             vmInfo.setVmDecompilerStatus(status);
             nativeAgent = FsAgent.get(vmInfo);
         }
-        String reply = nativeAgent.submitRequest(requestBody);
+        return new AgentWithPort(nativeAgent, actualListenPort);
+    }
+
+    private static void checkReply(String reply, String requestBody) {
         ErrorCandidate errorCandidate = new ErrorCandidate(reply);
         if (errorCandidate.isError()) {
             throw new RuntimeException(
@@ -228,19 +294,49 @@ public class DecompilerRequestReceiver {
                             requestBody.replace("\n", "\\n") + "'."
             );
         }
-        return new ResponseWithPort(reply, actualListenPort);
     }
 
+    private static final class AgentWithPort {
+        private final JrdAgent agent;
+        private final int port;
+
+        AgentWithPort(JrdAgent agent, int port) {
+            this.agent = agent;
+            this.port = port;
+        }
+    }
+
+    /**
+     * @param bodies bytecode of the classes, in order of the names, sent as it is, unless the agent speaks text protocol only
+     * @param classloader Base64 encoded classloader of all the classes, or null
+     */
     @SuppressWarnings("ParameterNumber") //unrefactorable
-    private String getOverwriteAction(
-            RequestAction action, String hostname, int listenPort, String vmId, int vmPid, String className, String newBody,
-            String classloader
+    private String getOverwriteBatchAction(
+            String hostname, int listenPort, String vmId, int vmPid, List<String> classNames, List<byte[]> bodies, String classloader
     ) {
         try {
-            ResponseWithPort reply = getResponse(
-                    hostname, listenPort, vmId, vmPid,
-                    action + "\n" + className + "\n" + newBody + (classloader == null ? "" : (" " + classloader))
-            );
+            if (bodies == null || bodies.size() != classNames.size()) {
+                throw new IllegalArgumentException(
+                        (bodies == null ? 0 : bodies.size()) + " bodies provided to overwrite " + classNames.size() + " classes"
+                );
+            }
+            AgentWithPort agent = getAgent(hostname, listenPort, vmId, vmPid, attachManager, vmManager);
+            checkReply(agent.agent.submitOverwriteBatch(classNames, bodies, classloader), RequestAction.OVERWRITE_BATCH + " " + classNames);
+            VmDecompilerStatus status = vmManager.getVmInfoByID(vmId).getVmDecompilerStatus();
+            status.setHostname(hostname);
+            status.setListenPort(agent.port);
+            status.setVmId(vmId);
+            vmManager.getVmInfoByID(vmId).replaceVmDecompilerStatus(status);
+        } catch (Exception ex) {
+            Logger.getLogger().log(Logger.Level.ALL, ex);
+            return TopLevelErrorCandidate.toError(ex);
+        }
+        return OK_RESPONSE;
+    }
+
+    private String getOverwriteAction(String hostname, int listenPort, String vmId, int vmPid, String requestBody) {
+        try {
+            ResponseWithPort reply = getResponse(hostname, listenPort, vmId, vmPid, requestBody);
             VmDecompilerStatus status = vmManager.getVmInfoByID(vmId).getVmDecompilerStatus();
             status.setHostname(hostname);
             status.setListenPort(reply.port);
@@ -270,6 +366,25 @@ public class DecompilerRequestReceiver {
         return OK_RESPONSE;
     }
 
+    /**
+     * Listing, eg. of stats or budget, is kept as it is, in order the agent listed it, separated by ';'.
+     */
+    private String getListAsIsAction(String hostname, int listenPort, String vmId, int vmPid, String requestBody) {
+        try {
+            ResponseWithPort reply = getResponse(hostname, listenPort, vmId, vmPid, requestBody);
+            VmDecompilerStatus status = vmManager.getVmInfoByID(vmId).getVmDecompilerStatus();
+            status.setHostname(hostname);
+            status.setListenPort(reply.port);
+            status.setVmId(vmId);
+            status.setLoadedClassBytes(reply.response);
+            vmManager.getVmInfoByID(vmId).replaceVmDecompilerStatus(status);
+        } catch (Exception ex) {
+            Logger.getLogger().log(Logger.Level.ALL, ex);
+            return TopLevelErrorCandidate.toError(ex);
+        }
+        return OK_RESPONSE;
+    }
+
     private String getRemoveOverrideAction(String hostname, int listenPort, String vmId, int vmPid, String fqn) {
         return getNoReplyValue(hostname, listenPort, vmId, vmPid, fqn, RequestAction.REMOVE_OVERRIDES);
     }
@@ -293,17 +408,39 @@ public class DecompilerRequestReceiver {
         return OK_RESPONSE;
     }
 
-    private String getByteCodeAction(String hostname, int listenPort, String vmId, int vmPid, String className, String classloader) {
+    /**
+     * @param action BYTES, or BYTES_BATCH with class names separated by space
+     */
+    @SuppressWarnings("ParameterNumber") //unrefactorable
+    private String getByteCodeAction(
+            RequestAction action, String hostname, int listenPort, String vmId, int vmPid, String className, String classloader
+    ) {
+        String requestBody = action + (classloader == null ? "" : (" " + classloader)) + "\n" + className;
         try {
-            ResponseWithPort reply = getResponse(
-                    hostname, listenPort, vmId, vmPid,
-                    RequestAction.BYTES + (classloader == null ? "" : (" " + classloader)) + "\n" + className
-            );
+            int port;
+            byte[][] bodies = null;
+            String bytes = null;
+            if (action == RequestAction.BYTES_BATCH) {
+                AgentWithPort agent = getAgent(hostname, listenPort, vmId, vmPid, attachManager, vmManager);
+                bodies = agent.agent.submitBodiesRequest(requestBody);
+                if (bodies == null) {
+                    throw new RuntimeException("Agent returned no bodies for request '" + requestBody.replace("\n", "\\n") + "'.");
+                }
+                port = agent.port;
+            } else {
+                ResponseWithPort reply = getResponse(hostname, listenPort, vmId, vmPid, requestBody);
+                bytes = reply.response;
+                port = reply.port;
+            }
             VmDecompilerStatus status = vmManager.getVmInfoByID(vmId).getVmDecompilerStatus();
             status.setHostname(hostname);
-            status.setListenPort(reply.port);
+            status.setListenPort(port);
             status.setVmId(vmId);
-            status.setLoadedClassBytes(reply.response);
+            if (action == RequestAction.BYTES_BATCH) {
+                status.setLoadedClassesBytes(bodies);
+            } else {
+                status.setLoadedClassBytes(bytes);
+            }
             vmManager.getVmInfoByID(vmId).replaceVmDecompilerStatus(status);
         } catch (Exception ex) {
             Logger.getLogger().log(Logger.Level.ALL, ex);
@@ -345,6 +482,8 @@ public class DecompilerRequestReceiver {
         } catch (Exception e) {
             Logger.getLogger().log(Logger.Level.ALL, new RuntimeException("Exception when calling halt action", e));
         } finally {
+            // also if the agent is not known, eg. detached by host and port only
+            CallDecompilerAgent.forget(hostname, listenPort);
             KnownAgents.getInstance().markDead(hostname, listenPort, vmPid);
             if (removeVmDecompilerStatus) {
                 vmManager.getVmInfoByID(vmId).removeVmDecompilerStatus();
@@ -366,12 +505,10 @@ public class DecompilerRequestReceiver {
     }
 
     private ClassInfo[] parseClasses(String classes) {
-        // filter: not null && backwards compatibility && name is not empty
-        return Arrays.stream(classes.split(";")).filter(s -> s != null && !s.isEmpty() && !s.startsWith("|")).map(ClassInfo::new)
-                .toArray(ClassInfo[]::new);
+        return ClassesListing.parse(classes);
     }
 
-    private static class ClassesComparator implements Comparator<ClassInfo>, Serializable {
+    static class ClassesComparator implements Comparator<ClassInfo>, Serializable {
 
         @SuppressWarnings({"ReturnCount", "CyclomaticComplexity"}) // comparator syntax
         @SuppressFBWarnings(
@@ -17,6 +17,8 @@ public class VmDecompilerStatus {
     private int listenPort;
     private ClassInfo[] loadedClasses;
     private String loadedClassBytes;
+    private byte[][] loadedClassesBytes;
+    private ClassesDelta classesDelta;
     private BytemanCompanion bytemanCompanion;
 
     public VmDecompilerStatus() {
@@ -25,6 +27,7 @@ public class VmDecompilerStatus {
 
     public VmDecompilerStatus(boolean reused) {
         this.loadedClassBytes = "";
+        this.loadedClassesBytes = new byte[][]{};
         this.loadedClasses = new ClassInfo[]{};
         this.reused = reused;
     }
@@ -65,6 +68,14 @@ public class VmDecompilerStatus {
         return Arrays.stream(loadedClasses).map(ClassInfo::getName).toArray(String[]::new);
     }
 
+    public void setClassesDelta(ClassesDelta classesDelta) {
+        this.classesDelta = classesDelta;
+    }
+
+    public ClassesDelta getClassesDelta() {
+        return classesDelta;
+    }
+
     public ClassInfo[] getLoadedClasses() {
         return Arrays.copyOf(loadedClasses, loadedClasses.length);
     }
@@ -73,6 +84,17 @@ public class VmDecompilerStatus {
         loadedClassBytes = value;
     }
 
+    /**
+     * @return bytes of classes obtained by one batch, null for classes which were not obtained
+     */
+    public byte[][] getLoadedClassesBytes() {
+        return Arrays.copyOf(loadedClassesBytes, loadedClassesBytes.length);
+    }
+
+    public void setLoadedClassesBytes(byte[][] value) {
+        loadedClassesBytes = Arrays.copyOf(value, value.length);
+    }
+
     public boolean isReused() {
         return reused;
     }
@@ -3,6 +3,7 @@ package org.jrd.backend.core.agentstore;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import org.jrd.backend.communication.CallDecompilerAgent;
 import org.jrd.backend.communication.InstallDecompilerAgentImpl;
 import org.jrd.backend.core.AgentAttachManager;
 import org.jrd.backend.core.DecompilerRequestReceiver;
@@ -68,6 +69,7 @@ public final class KnownAgents {
         for (KnownAgent agent : matchingAgents) {
             if (action) {
                 agent.markKilled();
+                CallDecompilerAgent.forget(agent.getHost(), agent.getPort());
                 Logger.getLogger().log("killing " + agent.toString());
             } else {
                 Logger.getLogger().log("not killing " + agent.toString());
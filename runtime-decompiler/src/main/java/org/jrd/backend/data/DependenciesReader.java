@@ -21,7 +21,10 @@ public class DependenciesReader {
     }
 
     public Collection<String> resolve(String clazz, String base64body) {
-        byte[] bbytes = Base64.getDecoder().decode(base64body);
+        return resolve(clazz, Base64.getDecoder().decode(base64body));
+    }
+
+    public Collection<String> resolve(String clazz, byte[] bbytes) {
         Collection<String> deps = io.github.mkoncek.classpathless.util.BytecodeExtractor
                 .extractDependencies(new IdentifiedBytecode(new ClassIdentifier(clazz), bbytes), getClassesProvider());
         return deps;
@@ -13,6 +13,7 @@ import org.jrd.backend.data.cli.utils.Saving;
 import org.jrd.backend.data.cli.workers.AddClasses;
 import org.jrd.backend.data.cli.workers.Api;
 import org.jrd.backend.data.cli.workers.AttachDetach;
+import org.jrd.backend.data.cli.workers.Checksums;
 import org.jrd.backend.data.cli.workers.Classes;
 import org.jrd.backend.data.cli.workers.Compile;
 import org.jrd.backend.data.cli.workers.Decompile;
@@ -24,6 +25,7 @@ import org.jrd.backend.data.cli.workers.Overrides;
 import org.jrd.backend.data.cli.workers.OverwriteAndUpload;
 import org.jrd.backend.data.cli.workers.Patch;
 import org.jrd.backend.data.cli.workers.PrintBytes;
+import org.jrd.backend.data.cli.workers.Stats;
 import org.jrd.backend.decompiling.PluginManager;
 import org.kcc.CompletionItem;
 import org.kcc.wordsets.ConnectedKeywords;
@@ -182,10 +184,25 @@ public class Cli {
                     VmInfo vmInfo00 = new Overrides(filteredArgs, getVmManager()).removeOverrides();
                     operatedOn.add(vmInfo00);
                     break;
+                case STATS:
+                    VmInfo vmInfoStats = new Stats(filteredArgs, getVmManager()).printStats();
+                    operatedOn.add(vmInfoStats);
+                    break;
+                case BUDGET:
+                    VmInfo vmInfoBudget = new Stats(filteredArgs, getVmManager()).setBudget();
+                    operatedOn.add(vmInfoBudget);
+                    break;
                 case SEARCH:
                     VmInfo vmInfoSearch = new Classes(filteredArgs, getVmManager(), isHex, saving, classloader).searchClasses();
                     operatedOn.add(vmInfoSearch);
                     break;
+                case REFERENCES:
+                    VmInfo vmInfoReferences = new Classes(filteredArgs, getVmManager(), isHex, saving, classloader).findReferences();
+                    operatedOn.add(vmInfoReferences);
+                    break;
+                case CHECKSUMS:
+                    new Checksums(filteredArgs, getVmManager(), classloader).checksums(operatedOn);
+                    break;
                 case LIST_CLASSES:
                     VmInfo vmInfo1 = new Classes(filteredArgs, getVmManager(), isHex, saving, classloader)
                             .listClasses(false, false, Optional.empty());
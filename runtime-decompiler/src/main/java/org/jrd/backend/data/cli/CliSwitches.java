@@ -18,10 +18,14 @@ public final class CliSwitches {
     public static final String LIST_JVMS = "-listjvms";
     public static final String LIST_OVERRIDES = "-listoverrides";
     public static final String REMOVE_OVERRIDES = "-removeoverrides";
+    public static final String STATS = "-stats";
+    public static final String BUDGET = "-budget";
     public static final String LIST_PLUGINS = "-listplugins";
     public static final String LIST_AGENTS = "-listagents";
     public static final String LIST_CLASSES = "-listclasses";
     public static final String SEARCH = "-search";
+    public static final String REFERENCES = "-references";
+    public static final String CHECKSUMS = "-checksums";
     public static final String LIST_CLASSESDETAILS = "-listdetails";
     public static final String LIST_CLASSESBYTECODEVERSIONS = "-listbytecodeversions";
     public static final String LIST_CLASSESDETAILSBYTECODEVERSIONS = "-listdetailsversions";
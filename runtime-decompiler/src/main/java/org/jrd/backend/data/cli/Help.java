@@ -40,9 +40,14 @@ public final class Help {
     public static final String LIST_OVERRIDES_FORMAT = LIST_OVERRIDES + " <PUC>";
     public static final String LIST_CLASSLOADERS_FORMAT = LIST_CLASSLOADERS + " <PUC> [classRegex]";
     public static final String REMOVE_OVERRIDES_FORMAT = REMOVE_OVERRIDES + " <PUC> removalRegex";
+    public static final String STATS_FORMAT = STATS + " <PUC>";
+    public static final String BUDGET_FORMAT = BUDGET + " <PUC> [retransforms=classesPerSecond] [scanslice=classes] [scanpause=millis]";
     public static final String LIST_PLUGINS_FORMAT = LIST_PLUGINS;
     public static final String LIST_CLASSES_FORMAT = LIST_CLASSES + BASE_SHARED_OPTIONAL_FORMAT;
     public static final String SEARCH_FORMAT = SEARCH + BASE_SHARED_FORMAT + " searchedSubstring true/false (with/without details)";
+    public static final String REFERENCES_FORMAT =
+            REFERENCES + " <PUC> class/method/field/string referenced true/false (with/without details)";
+    public static final String CHECKSUMS_FORMAT = CHECKSUMS + " crc32c/sha256 <CLASS REGEX> <PUC>...";
     public static final String LIST_CLASSESDETAILS_FORMAT = LIST_CLASSESDETAILS + BASE_SHARED_OPTIONAL_FORMAT;
     public static final String LIST_CLASSESBYTECODEVERSIONS_FORMAT = LIST_CLASSESBYTECODEVERSIONS + BASE_SHARED_OPTIONAL_FORMAT;
     public static final String LIST_CLASSESDETAILSVERSIONS_FORMAT = LIST_CLASSESDETAILSBYTECODEVERSIONS + BASE_SHARED_OPTIONAL_FORMAT;
@@ -81,6 +86,15 @@ public final class Help {
     private static final String LIST_PLUGINS_TEXT = "List all currently configured decompiler plugins and their statuses.";
     private static final String LIST_OVERRIDES_TEXT = "List all currently overwritten classes";
     private static final String REMOVE_OVERRIDES_TEXT = "remove all matching overwrittes of classes";
+    private static final String STATS_TEXT = "Print counters and latencies of agent: retransformations, served bytes, clients, overrides," +
+            " cached bytecode and each command.\nLatencies are in microseconds, percentiles are upper bounds of power of two buckets.\n" +
+            "The cached bytecode is bounded by cachemb:megabytes agent argument, 32 by default, zero disables the cache.";
+    private static final String BUDGET_TEXT =
+            "Limit the work of agent in busy target, and print the resulting budget. Zero is unlimited.\n" +
+                    "retransforms - classes retransformed per second to obtain their bytecode (overwrites are not limited)\n" +
+                    "scanslice - classes walked through by listing or search before each pause\n" +
+                    "scanpause - milliseconds of the pause after each slice and each searched batch\n" +
+                    "The same budget can be set when agent is attached, eg. by retransforms:100,scanslice:500,scanpause:5 agent arguments.";
     private static final String LIST_CLASSESBYTECODEVERSIONS_TEXT = "list all classes with bytecode version (slow!)";
     private static final String LIST_CLASSESDETAILSVERSIONS_TEXT = "list all classes with details and bytecode version (slow!)";
     private static final String LIST_CLASSLOADERS_TEXT = "list and count all classloaders visible by agent";
@@ -88,6 +102,13 @@ public final class Help {
             SAVE_LIKE + " " + Saving.EXACT + "' or '" + SAVE_LIKE + " " + Saving.DEFAULT + "' are allowed as saving modifiers.";
     private static final String SEARCH_TEXT = "Will search ascii/utf8 substring in regex-subset binaries in remote vm.\n" +
             "To search in decompiled classes use grep.You can misuses " + HEX + " to include bytecode level";
+    private static final String REFERENCES_TEXT = "Will list classes whose constant pool refers to the class, method, field or string.\n" +
+            "Methods and fields are given by owner and name, without descriptor, eg. java.util.HashMap.put or java.lang.System.out.\n" +
+            "First use indexes all loaded classes in the remote vm, within its budget, later classes are indexed as they load.\n" +
+            "The index is kept from the attach by cpindex:true agent argument.";
+    private static final String CHECKSUMS_TEXT = "Print checksums of current bytecode of matching classes, computed by the agent.\n" +
+            "With more PUCs, print only classes whose checksums differ, or which are missing in some of the vms.\n" +
+            "Classes are compared by name, as classloaders differ among vms; fetch bytes only of the differing ones.";
     private static final String LIST_CLASSESDETAILS_TEXT = "Similar to " + LIST_CLASSES + ", only more details are printed about classes.";
     private static final String COMPILE_TEXT = "Compile local files against runtime classpath, specified by " + CP + ".\n" + "Use " + P +
             " to utilize some plugins' (like jasm or jcoder) bundled compilers.\n" + "Use " + R +
@@ -186,12 +207,16 @@ public final class Help {
         ALL_OPTIONS.put(LIST_AGENTS_FORMAT, LIST_AGENTS_TEXT);
         ALL_OPTIONS.put(LIST_OVERRIDES_FORMAT, LIST_OVERRIDES_TEXT);
         ALL_OPTIONS.put(REMOVE_OVERRIDES_FORMAT, REMOVE_OVERRIDES_TEXT);
+        ALL_OPTIONS.put(STATS_FORMAT, STATS_TEXT);
+        ALL_OPTIONS.put(BUDGET_FORMAT, BUDGET_TEXT);
         ALL_OPTIONS.put(LIST_CLASSES_FORMAT, LIST_CLASSES_TEXT);
         ALL_OPTIONS.put(LIST_CLASSLOADERS_FORMAT, LIST_CLASSLOADERS_TEXT);
         ALL_OPTIONS.put(LIST_CLASSESDETAILS_FORMAT, LIST_CLASSESDETAILS_TEXT);
         ALL_OPTIONS.put(LIST_CLASSESBYTECODEVERSIONS_FORMAT, LIST_CLASSESBYTECODEVERSIONS_TEXT);
         ALL_OPTIONS.put(LIST_CLASSESDETAILSVERSIONS_FORMAT, LIST_CLASSESDETAILSVERSIONS_TEXT);
         ALL_OPTIONS.put(SEARCH_FORMAT, SEARCH_TEXT);
+        ALL_OPTIONS.put(REFERENCES_FORMAT, REFERENCES_TEXT);
+        ALL_OPTIONS.put(CHECKSUMS_FORMAT, CHECKSUMS_TEXT);
         ALL_OPTIONS.put(BASE64_FORMAT, BASE64_TEXT);
         ALL_OPTIONS.put(BYTES_FORMAT, BYTES_TEXT);
         ALL_OPTIONS.put(DEPS_FORMAT, DEPS_TEXT);
@@ -227,10 +252,11 @@ public final class Help {
         );
     }
 
-    private static final String[] UNSAVABLE_OPTIONS = new String[]{HELP, H, COMPLETION, REVERT, HEX, BOOT_CLASS_LOADER, SYSTEM_CLASS_LOADER,
-            OVERWRITE, INIT, REMOVE_OVERRIDES, ADD_CLASS, ADD_CLASSES, ADD_JAR, LIST_OVERRIDES, LIST_CLASSLOADERS};
+    private static final String[] UNSAVABLE_OPTIONS =
+            new String[]{HELP, H, COMPLETION, REVERT, HEX, BOOT_CLASS_LOADER, SYSTEM_CLASS_LOADER, OVERWRITE, INIT, REMOVE_OVERRIDES,
+                    ADD_CLASS, ADD_CLASSES, ADD_JAR, LIST_OVERRIDES, LIST_CLASSLOADERS, STATS, BUDGET, CHECKSUMS};
     private static final String[] SAVABLE_OPTIONS = new String[]{LIST_CLASSES, LIST_CLASSESDETAILS, BYTES, BASE64, DEPS, COMPILE, DECOMPILE,
-            PATCH, API, LIST_JVMS, LIST_PLUGINS, LIST_CLASSESBYTECODEVERSIONS, LIST_CLASSESDETAILSBYTECODEVERSIONS, SEARCH};
+            PATCH, API, LIST_JVMS, LIST_PLUGINS, LIST_CLASSESBYTECODEVERSIONS, LIST_CLASSESDETAILSBYTECODEVERSIONS, SEARCH, REFERENCES};
 
     private static final int LONGEST_FORMAT_LENGTH = Stream.of(ALL_OPTIONS.keySet(), SAVING_OPTIONS.keySet()).flatMap(Collection::stream)
             .map(String::length).max(Integer::compare).orElse(30) + 1; // at least one space between format and text
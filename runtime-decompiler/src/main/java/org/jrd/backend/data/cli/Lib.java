@@ -5,6 +5,8 @@ import org.jrd.backend.communication.ErrorCandidate;
 import org.jrd.backend.core.AgentAttachManager;
 import org.jrd.backend.core.AgentRequestAction;
 import org.jrd.backend.core.ClassInfo;
+import org.jrd.backend.core.ClassesChecksums;
+import org.jrd.backend.core.ClassesQuery;
 import org.jrd.backend.core.DecompilerRequestReceiver;
 import org.jrd.backend.core.Logger;
 import org.jrd.backend.core.VmDecompilerStatus;
@@ -31,7 +33,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.BiFunction;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -171,12 +175,7 @@ public final class Lib {
                         .map(a -> new ClassInfo(a, null, null, null, null)).collect(Collectors.toList());
             }
         } else {
-            if (details) {
-                allClasses = Arrays.stream(obtainClassesDetails(vmInfo, vmManager, classloader)).collect(Collectors.toList());
-            } else {
-                allClasses = Arrays.stream(obtainClasses(vmInfo, vmManager, classloader)).map(a -> new ClassInfo(a, null, null, null, null))
-                        .collect(Collectors.toList());
-            }
+            allClasses = queryClasses(vmInfo, vmManager, new ClassesQuery(filter, details), classloader);
         }
         List<ClassInfo> filteredClasses = new ArrayList<>(allClasses.size());
         for (ClassInfo clazz : allClasses) {
@@ -187,6 +186,69 @@ public final class Lib {
         return filteredClasses;
     }
 
+    /**
+     * Lists only classes matching the query, filtered (and paged) already by agent.
+     * If the agent does not support queries, the full listing is obtained and filtered here.
+     */
+    public static List<ClassInfo> queryClasses(VmInfo vmInfo, VmManager vmManager, ClassesQuery query, Optional<String> classloader) {
+        AgentRequestAction request;
+        if (classloader.isPresent()) {
+            request = DecompilationController.createRequest(
+                    vmInfo, AgentRequestAction.RequestAction.CLASSES_QUERY, query.toParams(), optionalLoaderToParam(classloader)
+            );
+        } else {
+            request = DecompilationController.createRequest(vmInfo, AgentRequestAction.RequestAction.CLASSES_QUERY, query.toParams());
+        }
+        String response = DecompilationController.submitRequest(vmManager, request);
+        if (DecompilerRequestReceiver.OK_RESPONSE.equals(response)) {
+            if (query.isInfo()) {
+                return Arrays.asList(vmInfo.getVmDecompilerStatus().getLoadedClasses());
+            }
+            return Arrays.stream(vmInfo.getVmDecompilerStatus().getLoadedClassNames()).map(a -> new ClassInfo(a, null, null, null, null))
+                    .collect(Collectors.toList());
+        }
+        if (!response.contains("unknown command")) {
+            throw new RuntimeException(DecompilationController.CLASSES_NOPE);
+        }
+        Logger.getLogger().log(Logger.Level.DEBUG, "Agent do not support class queries, filtering full listing");
+        List<ClassInfo> allClasses;
+        if (query.isInfo()) {
+            allClasses = Arrays.asList(obtainClassesDetails(vmInfo, vmManager, classloader));
+        } else {
+            allClasses = Arrays.stream(obtainClasses(vmInfo, vmManager, classloader)).map(a -> new ClassInfo(a, null, null, null, null))
+                    .collect(Collectors.toList());
+        }
+        return query.apply(allClasses);
+    }
+
+    /**
+     * Lists classes referring to the constant, as found by constant pool index of the agent.
+     *
+     * @param kind class, method, field or string
+     * @param value the referenced constant, eg. java.util.HashMap.put for method, without its descriptor
+     */
+    public static
+            List<ClassInfo>
+            findReferences(VmInfo vmInfo, VmManager vmManager, String kind, String value, boolean details, Optional<String> classloader) {
+        String params = kind + "=" + Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8)) + " info=" + details;
+        AgentRequestAction request;
+        if (classloader.isPresent()) {
+            request = DecompilationController
+                    .createRequest(vmInfo, AgentRequestAction.RequestAction.REFERENCES, params, optionalLoaderToParam(classloader));
+        } else {
+            request = DecompilationController.createRequest(vmInfo, AgentRequestAction.RequestAction.REFERENCES, params);
+        }
+        String response = DecompilationController.submitRequest(vmManager, request);
+        if (!DecompilerRequestReceiver.OK_RESPONSE.equals(response)) {
+            throw new RuntimeException("Agent failed to find references: " + response);
+        }
+        if (details) {
+            return Arrays.asList(vmInfo.getVmDecompilerStatus().getLoadedClasses());
+        }
+        return Arrays.stream(vmInfo.getVmDecompilerStatus().getLoadedClassNames()).map(a -> new ClassInfo(a, null, null, null, null))
+                .collect(Collectors.toList());
+    }
+
     public static int[] getByteCodeVersions(ClassInfo clazz, VmInfo vmInfo, VmManager vmManager, Optional<String> classloader) {
         VmDecompilerStatus result = obtainClass(vmInfo, clazz.getName(), vmManager, classloader);
         byte[] source = Base64.getDecoder().decode(result.getLoadedClassBytes());
@@ -254,6 +316,61 @@ public final class Lib {
         }
     }
 
+    /**
+     * @return counters, gauges and latency histograms of the agent, one per item, as "name value"
+     */
+    public static String[] obtainStats(VmInfo vmInfo, VmManager manager) {
+        AgentRequestAction request = DecompilationController.createRequest(vmInfo, AgentRequestAction.RequestAction.STATS);
+        String response = DecompilationController.submitRequest(manager, request);
+        if (DecompilerRequestReceiver.OK_RESPONSE.equals(response)) {
+            return Arrays.stream(vmInfo.getVmDecompilerStatus().getLoadedClassBytes().split(";")).filter(s -> !s.isEmpty())
+                    .toArray(String[]::new);
+        } else {
+            throw new RuntimeException("Agent failed to return stats: " + response);
+        }
+    }
+
+    /**
+     * @param settings budgets to change, as key=value pairs separated by space; empty only reads the budget
+     * @return whole budget of the agent after the change, one per item, as "key=value"
+     */
+    public static String[] setBudget(VmInfo vmInfo, VmManager manager, String settings) {
+        AgentRequestAction request = DecompilationController.createRequest(vmInfo, AgentRequestAction.RequestAction.BUDGET, settings);
+        String response = DecompilationController.submitRequest(manager, request);
+        if (DecompilerRequestReceiver.OK_RESPONSE.equals(response)) {
+            return Arrays.stream(vmInfo.getVmDecompilerStatus().getLoadedClassBytes().split(";")).filter(s -> !s.isEmpty())
+                    .toArray(String[]::new);
+        } else {
+            throw new RuntimeException("Agent failed to set budget: " + response);
+        }
+    }
+
+    /**
+     * Checksums of current bytecode of classes matching the query, so classes of many vms can be compared without their bytecode.
+     *
+     * @param algorithm {@link ClassesChecksums#CRC32C} or {@link ClassesChecksums#SHA256}
+     */
+    public static
+            ClassesChecksums
+            obtainChecksums(VmInfo vmInfo, VmManager manager, String algorithm, ClassesQuery query, Optional<String> classloader) {
+        String params = algorithm + "\n" + query.toParams();
+        AgentRequestAction request;
+        if (classloader.isPresent()) {
+            request = DecompilationController
+                    .createRequest(vmInfo, AgentRequestAction.RequestAction.CHECKSUMS, params, optionalLoaderToParam(classloader));
+        } else {
+            request = DecompilationController.createRequest(vmInfo, AgentRequestAction.RequestAction.CHECKSUMS, params);
+        }
+        String response = DecompilationController.submitRequest(manager, request);
+        if (response.contains("unknown command")) {
+            throw new RuntimeException("Agent of " + vmInfo.getVmId() + " does not support checksums: " + response);
+        }
+        if (!DecompilerRequestReceiver.OK_RESPONSE.equals(response)) {
+            throw new RuntimeException("Agent failed to return checksums: " + response);
+        }
+        return ClassesChecksums.parse(vmInfo.getVmDecompilerStatus().getLoadedClassBytes());
+    }
+
     public static void removeOverrides(VmInfo vmInfo, VmManager manager, String fqnAndLoader) {
         AgentRequestAction.RequestAction requestType = AgentRequestAction.RequestAction.REMOVE_OVERRIDES;
         AgentRequestAction request = DecompilationController.createRequest(vmInfo, requestType, fqnAndLoader);
@@ -319,6 +436,48 @@ public final class Lib {
         }
     }
 
+    /**
+     * Obtains bytecode of many classes by one request, so the agent retransforms all of them at once.
+     * If the agent does not know such request, the classes are obtained one by one.
+     *
+     * @param classes names and classloaders of classes. Classloader can be null
+     * @return bytecode, in order of classes, null for classes which were not obtained
+     */
+    public static byte[][] obtainClassesBytes(VmInfo vmInfo, List<ClassInfo> classes, VmManager manager) {
+        if (classes.isEmpty()) {
+            return new byte[0][];
+        }
+        String classNames = classes.stream().map(clazz -> {
+            if (clazz.getClassLoader() == null) {
+                return clazz.getName();
+            } else {
+                return clazz.getName() + ":" + DecompilationController.stringToBase64(clazz.getClassLoader());
+            }
+        }).collect(Collectors.joining(" "));
+        AgentRequestAction request =
+                DecompilationController.createRequest(vmInfo, AgentRequestAction.RequestAction.BYTES_BATCH, classNames);
+        String response = DecompilationController.submitRequest(manager, request);
+        if (DecompilerRequestReceiver.OK_RESPONSE.equals(response)) {
+            byte[][] bodies = vmInfo.getVmDecompilerStatus().getLoadedClassesBytes();
+            if (bodies.length == classes.size()) {
+                return bodies;
+            }
+        }
+        Logger.getLogger().log(Logger.Level.DEBUG, "Batch of bytes not obtained, obtaining classes one by one");
+        byte[][] bodies = new byte[classes.size()][];
+        for (int i = 0; i < bodies.length; i++) {
+            ClassInfo clazz = classes.get(i);
+            try {
+                bodies[i] = Base64.getDecoder().decode(
+                        obtainClass(vmInfo, clazz.getName(), manager, Optional.ofNullable(clazz.getClassLoader())).getLoadedClassBytes()
+                );
+            } catch (RuntimeException ex) {
+                Logger.getLogger().log(Logger.Level.DEBUG, ex);
+            }
+        }
+        return bodies;
+    }
+
     public static VmDecompilerStatus obtainVersion(VmInfo vmInfo, VmManager manager) {
         AgentRequestAction request = DecompilationController.createRequest(vmInfo, AgentRequestAction.RequestAction.VERSION);
         String response = DecompilationController.submitRequest(manager, request);
@@ -384,6 +543,72 @@ public final class Lib {
         return response;
     }
 
+    /**
+     * Overwrites all the classes at once, so the target sees either all of them changed, or none.
+     * Agents not knowing OVERWRITE_BATCH get the classes one by one, see {@link #uploadOneByOne}.
+     *
+     * @param classesBytes bytecode by class name
+     * @return {@link DecompilerRequestReceiver#OK_RESPONSE} or error
+     */
+    public static String uploadClasses(VmInfo vmInfo, Map<String, byte[]> classesBytes, VmManager vmManager, Optional<String> classloader) {
+        String classNames = String.join(" ", classesBytes.keySet());
+        AgentRequestAction request;
+        if (classloader.isPresent()) {
+            request = DecompilationController.createRequest(
+                    vmInfo, AgentRequestAction.RequestAction.OVERWRITE_BATCH, classNames, optionalLoaderToParam(classloader)
+            );
+        } else {
+            request = DecompilationController.createRequest(vmInfo, AgentRequestAction.RequestAction.OVERWRITE_BATCH, classNames);
+        }
+        request.setBodies(new ArrayList<>(classesBytes.values()));
+        String response = DecompilationController.submitRequest(vmManager, request);
+        if (!response.contains("unknown command")) {
+            return response;
+        }
+        Logger.getLogger().log(
+                Logger.Level.ALL,
+                "Warning: agent does not support batch overwrite, uploading " + classesBytes.size() +
+                        " classes one by one. The upload is not atomic, the target may run with some of them changed."
+        );
+        List<ClassInfo> classes = classesBytes.keySet().stream()
+                .map(name -> new ClassInfo(name, null, classloader.orElse(null), null, null)).collect(Collectors.toList());
+        byte[][] previous = obtainClassesBytes(vmInfo, classes, vmManager);
+        return uploadOneByOne(
+                classesBytes, previous,
+                (name, body) -> uploadClass(vmInfo, name, Base64.getEncoder().encodeToString(body), vmManager, classloader)
+        );
+    }
+
+    /**
+     * Overwrites the classes one by one. When one of them fails, the already overwritten ones get their previous bytecode back,
+     * so the target is not left with part of the change.
+     *
+     * @param previous bytecode of the classes before the upload, in order of classesBytes, null where it was not obtained
+     * @param upload overwrites class of given name by given bytecode, returning the reply of agent
+     * @return {@link DecompilerRequestReceiver#OK_RESPONSE} or the error of the failed class
+     */
+    static String uploadOneByOne(Map<String, byte[]> classesBytes, byte[][] previous, BiFunction<String, byte[], String> upload) {
+        List<String> names = new ArrayList<>(classesBytes.keySet());
+        for (int i = 0; i < names.size(); i++) {
+            String reply = upload.apply(names.get(i), classesBytes.get(names.get(i)));
+            if (!DecompilerRequestReceiver.OK_RESPONSE.equals(reply)) {
+                rollback(names.subList(0, i), previous, upload);
+                return reply;
+            }
+        }
+        return DecompilerRequestReceiver.OK_RESPONSE;
+    }
+
+    private static void rollback(List<String> overwritten, byte[][] previous, BiFunction<String, byte[], String> upload) {
+        for (int i = overwritten.size() - 1; i >= 0; i--) {
+            String name = overwritten.get(i);
+            String reply = previous[i] == null ? "previous bytecode was not obtained" : upload.apply(name, previous[i]);
+            if (!DecompilerRequestReceiver.OK_RESPONSE.equals(reply)) {
+                Logger.getLogger().log(Logger.Level.ALL, "Warning: " + name + " stays overwritten, it was not rolled back: " + reply);
+            }
+        }
+    }
+
     public static String addClass(VmInfo vmInfo, String className, String clazzBytesInBase64, VmManager vmManager) {
         AgentRequestAction request =
                 DecompilationController.createRequest(vmInfo, AgentRequestAction.RequestAction.ADD_CLASS, className, clazzBytesInBase64);
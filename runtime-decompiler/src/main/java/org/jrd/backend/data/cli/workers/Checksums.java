@@ -0,0 +1,61 @@
+package org.jrd.backend.data.cli.workers;
+
+import org.jrd.backend.core.ClassesChecksums;
+import org.jrd.backend.core.ClassesQuery;
+import org.jrd.backend.data.VmInfo;
+import org.jrd.backend.data.VmManager;
+import org.jrd.backend.data.cli.CliUtils;
+import org.jrd.backend.data.cli.Help;
+import org.jrd.backend.data.cli.Lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+public class Checksums {
+
+    private final List<String> filteredArgs;
+    private final VmManager vmManager;
+    private final String classloader;
+
+    public Checksums(List<String> filteredArgs, VmManager vmManager, String classloader) {
+        this.filteredArgs = filteredArgs;
+        this.vmManager = vmManager;
+        this.classloader = classloader;
+    }
+
+    /**
+     * Prints checksums of single vm, or differences among several vms.
+     *
+     * @param operatedOn each vm is added once it is resolved, so it is detached even if later one fails
+     */
+    public void checksums(List<VmInfo> operatedOn) {
+        if (filteredArgs.size() < 4) {
+            throw new IllegalArgumentException("Incorrect argument count! Please use '" + Help.CHECKSUMS_FORMAT + "'.");
+        }
+        String algorithm = filteredArgs.get(1);
+        ClassesChecksums.check(algorithm);
+        ClassesQuery query = new ClassesQuery(Collections.singletonList(Pattern.compile(filteredArgs.get(2))), false);
+        List<String> pucs = filteredArgs.subList(3, filteredArgs.size());
+        List<ClassesChecksums> sums = new ArrayList<>(pucs.size());
+        for (String puc : pucs) {
+            VmInfo vmInfo = CliUtils.getVmInfo(puc, vmManager);
+            operatedOn.add(vmInfo);
+            sums.add(Lib.obtainChecksums(vmInfo, vmManager, algorithm, query, Optional.ofNullable(classloader)));
+        }
+        if (sums.size() == 1) {
+            for (String className : sums.get(0).getClassNames()) {
+                System.out.println(className + " " + sums.get(0).get(className));
+            }
+            return;
+        }
+        List<String> differences = ClassesChecksums.compare(pucs, sums);
+        for (String difference : differences) {
+            System.out.println(difference);
+        }
+        int total = (int) sums.stream().flatMap(s -> s.getClassNames().stream()).distinct().count();
+        System.out.println(differences.size() + " of " + total + " classes differ among " + pucs.size() + " vms");
+    }
+}
@@ -48,6 +48,19 @@ public class Classes {
         return listClasses(details, hex, Optional.of(substring));
     }
 
+    public VmInfo findReferences() throws IOException {
+        if (filteredArgs.size() != 5) {
+            throw new IllegalArgumentException("Incorrect argument count! Please use '" + Help.REFERENCES_FORMAT + "'.");
+        }
+        VmInfo vmInfo = getVmInfo();
+        boolean details = Boolean.parseBoolean(filteredArgs.get(4));
+        List<ClassInfo> classes =
+                Lib.findReferences(vmInfo, vmManager, filteredArgs.get(2), filteredArgs.get(3), details, Optional.ofNullable(classloader));
+        classes.sort(Comparator.comparing(ClassInfo::getName));
+        printClasses(vmInfo, classes, details, hex);
+        return vmInfo;
+    }
+
     public VmInfo listClasses(boolean details, boolean bytecodeVersion, Optional<String> search) throws IOException {
         if (filteredArgs.size() < 2) {
             throw new IllegalArgumentException("Incorrect argument count! Please use '" + Help.LIST_CLASSES_FORMAT + "'.");
@@ -122,6 +135,10 @@ public class Classes {
             VmInfo vmInfo, List<Pattern> filter, boolean details, boolean bytecodeVersion, Optional<String> search
     ) throws IOException {
         List<ClassInfo> classes = Lib.obtainFilteredClasses(vmInfo, vmManager, filter, details, search, Optional.ofNullable(classloader));
+        printClasses(vmInfo, classes, details, bytecodeVersion);
+    }
+
+    private void printClasses(VmInfo vmInfo, List<ClassInfo> classes, boolean details, boolean bytecodeVersion) throws IOException {
         if (saving.shouldSave()) {
             if (saving.getLike().equals(Saving.DEFAULT) || saving.getLike().equals(Saving.EXACT)) {
                 try (
@@ -19,9 +19,9 @@ import org.jrd.frontend.utility.CommonUtils;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -145,26 +145,17 @@ public class Compile {
         }
 
         if (shouldUpload) {
-            int failCount = 0;
+            Map<String, byte[]> toUpload = new LinkedHashMap<>();
             for (IdentifiedBytecode bytecode : allBytecode) {
                 String className = bytecode.getClassIdentifier().getFullName();
                 Logger.getLogger().log("Uploading class '" + className + "'.");
-
-                String response = Lib.uploadClass(
-                        targetVm, className, Base64.getEncoder().encodeToString(bytecode.getFile()), vmManager,
-                        Optional.ofNullable(classloader)
-                );
-
-                if (DecompilerRequestReceiver.OK_RESPONSE.equals(response)) {
-                    Logger.getLogger().log(Logger.Level.ALL, "Successfully uploaded class '" + className + "'.");
-                } else {
-                    failCount++;
-                    Logger.getLogger().log(Logger.Level.ALL, "Failed to upload class '" + className + "'.");
-                }
+                toUpload.put(className, bytecode.getFile());
             }
-
-            if (failCount > 0) {
-                throw new RuntimeException("Failed to upload " + failCount + " classes out of " + allBytecode.size() + " total.");
+            // all classes are overwritten at once, or none of them
+            String response = Lib.uploadClasses(targetVm, toUpload, vmManager, Optional.ofNullable(classloader));
+            if (!DecompilerRequestReceiver.OK_RESPONSE.equals(response)) {
+                Logger.getLogger().log(Logger.Level.ALL, "Failed to upload classes: " + response);
+                throw new RuntimeException("Failed to upload " + allBytecode.size() + " classes.");
             } else {
                 Logger.getLogger().log("Successfully uploaded all " + allBytecode.size() + " classes.");
             }
@@ -34,6 +34,7 @@ import java.util.Base64;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -334,6 +335,8 @@ public class Patch {
         }
         List<String> failures = new ArrayList<>();
         List<String> passes = new ArrayList<>();
+        // existing classes are overwritten all at once, so the patch is applied whole, or not at all
+        Map<String, byte[]> toOverwrite = new LinkedHashMap<>();
         for (Map.Entry<Integer, Map<String, String>> toUploadWithBytecode : binariesToUpload.entrySet()) {
             Integer bytecodeLevel = toUploadWithBytecode.getKey();
             System.out.println("Upload group of bytecode level: " + (bytecodeLevel == null ? "default:" : "" + bytecodeLevel));
@@ -374,7 +377,8 @@ public class Patch {
                     }
                 } else {
                     System.out.println("Overwriting class: " + className);
-                    reply = Lib.uploadClass(vmInfo, className, toUpload.getValue(), vmManager, Optional.ofNullable(classloader));
+                    toOverwrite.put(className, Base64.getDecoder().decode(toUpload.getValue()));
+                    continue;
                 }
                 ErrorCandidate ec = new ErrorCandidate(reply);
                 if (ec.isError() || reply.startsWith("error ")/*fix me, why the or is needed?*/) {
@@ -386,6 +390,19 @@ public class Patch {
                 }
             }
         }
+        if (!toOverwrite.isEmpty()) {
+            String reply = Lib.uploadClasses(vmInfo, toOverwrite, vmManager, Optional.ofNullable(classloader));
+            ErrorCandidate ec = new ErrorCandidate(reply);
+            if (ec.isError() || reply.startsWith("error ")) {
+                System.out.println(
+                        "failed to overwrite " + toOverwrite.size() + " classes - " + reply.replaceAll("for request 'OVERWRITE.*", "")
+                );
+                failures.addAll(toOverwrite.keySet());
+            } else {
+                System.out.println("Overwritten " + toOverwrite.size() + " classes.");
+                passes.addAll(toOverwrite.keySet());
+            }
+        }
         if (failures.isEmpty()) {
             System.out.println("All looks good");
         } else {
@@ -2,7 +2,7 @@ package org.jrd.backend.data.cli.workers;
 
 import org.jrd.backend.communication.RuntimeCompilerConnector;
 import org.jrd.backend.core.ClassInfo;
-import org.jrd.backend.core.VmDecompilerStatus;
+import org.jrd.backend.core.Logger;
 import org.jrd.backend.data.DependenciesReader;
 import org.jrd.backend.data.VmInfo;
 import org.jrd.backend.data.VmManager;
@@ -72,13 +72,19 @@ public class PrintBytes {
                     vmInfo, vmManager, Arrays.asList(Pattern.compile(clazzRegex)), true, Optional.empty(), Optional.ofNullable(classloader)
             );
 
-            for (ClassInfo clazz : classes) {
+            byte[][] bodies = Lib.obtainClassesBytes(vmInfo, classes, vmManager);
+            for (int j = 0; j < classes.size(); j++) {
+                ClassInfo clazz = classes.get(j);
+                byte[] body = bodies[j];
                 classCount++;
-                VmDecompilerStatus result =
-                        Lib.obtainClass(vmInfo, clazz.getName(), vmManager, Optional.ofNullable(clazz.getClassLoader()));
+                if (body == null) {
+                    Logger.getLogger().log(Logger.Level.ALL, "Bytes of " + clazz.getName() + " not obtained.");
+                    failCount++;
+                    continue;
+                }
                 byte[] bytes;
                 if (operation.equals(BYTES)) {
-                    bytes = Base64.getDecoder().decode(result.getLoadedClassBytes());
+                    bytes = body;
                 } else if (operation.equals(DEPS)) {
                     Collection<String> deps = new DependenciesReader(new ModelProvider() {
                         @Override
@@ -96,10 +102,10 @@ public class PrintBytes {
                             return args.getClassesProvider();
                         }
                     }, new LoadingDialogProvider() {
-                    }).resolve(clazz.getName(), result.getLoadedClassBytes());
+                    }).resolve(clazz.getName(), body);
                     bytes = deps.stream().collect(Collectors.joining("\n")).getBytes(StandardCharsets.UTF_8);
                 } else {
-                    bytes = result.getLoadedClassBytes().getBytes(StandardCharsets.UTF_8);
+                    bytes = Base64.getEncoder().encodeToString(body).getBytes(StandardCharsets.UTF_8);
                 }
 
                 if (!new Shared(isHex, saving).outOrSave(clazz.getName(), ".class", bytes, operation.equals(BYTES))) {
@@ -0,0 +1,43 @@
+package org.jrd.backend.data.cli.workers;
+
+import org.jrd.backend.data.VmInfo;
+import org.jrd.backend.data.VmManager;
+import org.jrd.backend.data.cli.CliUtils;
+import org.jrd.backend.data.cli.Help;
+import org.jrd.backend.data.cli.Lib;
+
+import java.util.List;
+
+public class Stats {
+
+    private final List<String> filteredArgs;
+    private final VmManager vmManager;
+
+    public Stats(List<String> filteredArgs, VmManager vmManager) {
+        this.filteredArgs = filteredArgs;
+        this.vmManager = vmManager;
+    }
+
+    public VmInfo printStats() {
+        if (filteredArgs.size() != 2) {
+            throw new RuntimeException("expected one param: " + Help.STATS_FORMAT);
+        }
+        VmInfo vmInfo = CliUtils.getVmInfo(filteredArgs.get(1), vmManager);
+        for (String stat : Lib.obtainStats(vmInfo, vmManager)) {
+            System.out.println(stat);
+        }
+        return vmInfo;
+    }
+
+    public VmInfo setBudget() {
+        if (filteredArgs.size() < 2) {
+            throw new RuntimeException("expected at least one param: " + Help.BUDGET_FORMAT);
+        }
+        VmInfo vmInfo = CliUtils.getVmInfo(filteredArgs.get(1), vmManager);
+        String settings = String.join(" ", filteredArgs.subList(2, filteredArgs.size()));
+        for (String budget : Lib.setBudget(vmInfo, vmManager, settings)) {
+            System.out.println(budget);
+        }
+        return vmInfo;
+    }
+}
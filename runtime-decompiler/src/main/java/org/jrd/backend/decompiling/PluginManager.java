@@ -4,6 +4,7 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import org.jrd.backend.communication.RuntimeCompilerConnector;
+import org.jrd.backend.core.ClassInfo;
 import org.jrd.backend.core.Logger;
 import org.jrd.backend.core.VmDecompilerStatus;
 import org.jrd.backend.data.Config;
@@ -31,7 +32,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -44,6 +45,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * Executes manages external decompiler wrapper plugins.
@@ -196,30 +198,17 @@ public class PluginManager {
                             .extractNestedClasses(bytecode, new RuntimeCompilerConnector.JrdClassesProvider(vmInfo, vmManager));
                     Set<String> setdeps = new HashSet<>(deps1.size() + inners.size());
                     setdeps.addAll(deps1);
+                    List<String> decompilableDeps = new ArrayList<>(setdeps.size());
                     for (String clazz : setdeps) {
-                        addAndInitDepndenceClass(vmInfo, vmManager, otherClasses, clazz, classloader);
+                        if (initDepndenceClass(vmInfo, vmManager, clazz)) {
+                            decompilableDeps.add(clazz);
+                        }
                     }
+                    addDependenceClasses(vmInfo, vmManager, otherClasses, decompilableDeps, classloader);
                 } else if (dd == Config.DepndenceNumbers.ALL_INNERS) {
                     Set<String> inners = io.github.mkoncek.classpathless.util.BytecodeExtractor
                             .extractNestedClasses(bytecode, new RuntimeCompilerConnector.JrdClassesProvider(vmInfo, vmManager));
-                    for (String clazz : inners) {
-                        String bytecodeInners = null;
-                        if (classloader.isPresent()) {
-                            try {
-                                bytecodeInners = Lib.obtainClass(vmInfo, clazz, vmManager, classloader).getLoadedClassBytes();
-                            } catch (Exception ex) {
-                                Logger.getLogger().log(ex);
-                            }
-                        }
-                        try {
-                            if (bytecode == null) {
-                                bytecodeInners = Lib.obtainClass(vmInfo, clazz, vmManager, Optional.empty()).getLoadedClassBytes();
-                            }
-                            otherClasses.put(clazz, Base64.getDecoder().decode(bytecodeInners));
-                        } catch (Exception ex) {
-                            Logger.getLogger().log(ex);
-                        }
-                    }
+                    addDependenceClasses(vmInfo, vmManager, otherClasses, new ArrayList<>(inners), classloader);
                 } else {
                     //just the one class, no additon to inners
                     //maybe the getDecompileMethodNoInners to be called, or to get rid of it?
@@ -238,35 +227,51 @@ public class PluginManager {
         }
     }
 
-    private void addAndInitDepndenceClass(
-            VmInfo vmInfo, VmManager vmManager, Map<String, byte[]> otherClasses, String clazz, Optional<String> classloader
+    /**
+     * @return false if the class can not be decompiled at all
+     */
+    private boolean initDepndenceClass(VmInfo vmInfo, VmManager vmManager, String clazz) {
+        if (isLambdaForm(clazz) || isArrayForm(clazz) || isUndecompilableLambda(clazz)) {
+            return false;
+        }
+        try {
+            //some clqsses can not be init, but stil lmay be loaded if already init...
+            Lib.initClass(vmInfo, vmManager, clazz, System.err);
+        } catch (Exception eex) {
+            Logger.getLogger().log(eex);
+        }
+        return true;
+    }
+
+    /**
+     * Obtains all the classes by single batch. Those not found in the classloader, are then searched in any classloader.
+     */
+    private void addDependenceClasses(
+            VmInfo vmInfo, VmManager vmManager, Map<String, byte[]> otherClasses, List<String> classes, Optional<String> classloader
     ) {
-        if (!(isLambdaForm(clazz) || isArrayForm(clazz) || isUndecompilableLambda(clazz))) {
-            try {
-                try {
-                    //some clqsses can not be init, but stil lmay be loaded if already init...
-                    Lib.initClass(vmInfo, vmManager, clazz, System.err);
-                } catch (Exception eex) {
-                    Logger.getLogger().log(eex);
-                }
-                String bytecode = null;
-                if (classloader.isPresent()) {
-                    try {
-                        bytecode = Lib.obtainClass(vmInfo, clazz, vmManager, classloader).getLoadedClassBytes();
-                    } catch (Exception ex) {
-                        Logger.getLogger().log(ex);
-                    }
-                }
-                if (bytecode == null) {
-                    bytecode = Lib.obtainClass(vmInfo, clazz, vmManager, Optional.empty()).getLoadedClassBytes();
+        byte[][] bodies = Lib.obtainClassesBytes(vmInfo, toClassInfos(classes, classloader.orElse(null)), vmManager);
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < bodies.length; i++) {
+            if (bodies[i] == null) {
+                missing.add(classes.get(i));
+            } else {
+                otherClasses.put(classes.get(i), bodies[i]);
+            }
+        }
+        if (classloader.isPresent() && !missing.isEmpty()) {
+            byte[][] anyLoaderBodies = Lib.obtainClassesBytes(vmInfo, toClassInfos(missing, null), vmManager);
+            for (int i = 0; i < anyLoaderBodies.length; i++) {
+                if (anyLoaderBodies[i] != null) {
+                    otherClasses.put(missing.get(i), anyLoaderBodies[i]);
                 }
-                otherClasses.put(clazz, Base64.getDecoder().decode(bytecode));
-            } catch (Exception ex) {
-                Logger.getLogger().log(ex);
             }
         }
     }
 
+    private static List<ClassInfo> toClassInfos(List<String> classes, String classloader) {
+        return classes.stream().map(clazz -> new ClassInfo(clazz, null, classloader, null, null)).collect(Collectors.toList());
+    }
+
     public static class BundledCompilerStatus {
         private final boolean isEmbedded;
         private final String status;
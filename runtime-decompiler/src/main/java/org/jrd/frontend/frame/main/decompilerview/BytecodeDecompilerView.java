@@ -1,7 +1,9 @@
 package org.jrd.frontend.frame.main.decompilerview;
 
+import org.jrd.backend.communication.AgentEventListener;
 import org.jrd.backend.completion.ClassesAndMethodsProvider;
 import org.jrd.backend.core.ClassInfo;
+import org.jrd.backend.core.ClassesDelta;
 import org.jrd.backend.core.Logger;
 import org.jrd.backend.data.BytemanCompanion;
 import org.jrd.backend.data.Config;
@@ -148,6 +150,7 @@ public class BytecodeDecompilerView {
     private DependenciesReader dependenciesReader;
 
     private ClassInfo[] loadedClasses;
+    private volatile LiveClassList liveClassList;
     private ClassInfo lastDecompiledClass = new ClassInfo("", "unknown", "unknown", "unknown", "unknown");
     private String lastFqn = "java.lang.Override";
     private String lastAddedFqn = "fully.qualified.name";
@@ -884,6 +887,28 @@ public class BytecodeDecompilerView {
         SwingUtilities.invokeLater(() -> updateClassList());
     }
 
+    /**
+     * Creates listener adding classes defined in the vm to the list, as the agent pushes them.
+     * Only the last created listener updates the list.
+     *
+     * @param onOverflow called, when the agent dropped some events, and the classes must be listed again
+     */
+    public AgentEventListener createLiveClassList(Runnable onOverflow) {
+        LiveClassList previous = liveClassList;
+        if (previous != null) {
+            previous.stop();
+        }
+        liveClassList = new LiveClassList(this::addLoadedClasses, onOverflow);
+        return liveClassList;
+    }
+
+    private void addLoadedClasses(List<ClassInfo> defined) {
+        if (loadedClasses != null) {
+            loadedClasses = ClassesDelta.ofDefined(defined).applyTo(loadedClasses);
+            updateClassList();
+        }
+    }
+
     /**
      * Sets the decompiled code into JTextArea
      *
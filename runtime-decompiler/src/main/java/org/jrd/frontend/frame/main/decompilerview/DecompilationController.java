@@ -5,6 +5,7 @@ import io.github.mkoncek.classpathless.api.ClassIdentifier;
 import io.github.mkoncek.classpathless.api.IdentifiedBytecode;
 
 import org.fife.ui.rsyntaxtextarea.RSyntaxTextArea;
+import org.jrd.backend.communication.AgentSubscription;
 import org.jrd.backend.communication.CallDecompilerAgent;
 import org.jrd.backend.communication.FsAgent;
 import org.jrd.backend.communication.RuntimeCompilerConnector;
@@ -15,6 +16,7 @@ import org.jrd.backend.core.AgentAttachManager;
 import org.jrd.backend.core.AgentRequestAction;
 import org.jrd.backend.core.AgentRequestAction.RequestAction;
 import org.jrd.backend.core.ClassInfo;
+import org.jrd.backend.core.ClassesDelta;
 import org.jrd.backend.core.DecompilerRequestReceiver;
 import org.jrd.backend.core.Logger;
 import org.jrd.backend.core.VmDecompilerStatus;
@@ -77,6 +79,9 @@ public class DecompilationController implements ModelProvider, LoadingDialogProv
     private PluginConfigurationEditorController pluginConfigurationEditorController;
     private LoadingDialog loadingDialog;
     private VmInfo vmInfo;
+    private volatile KnownClasses knownClasses;
+    private AgentSubscription subscription;
+    private VmInfo subscribedVm;
     private boolean isVerbose;
 
     public DecompilationController(MainFrameView mainFrameView, boolean isVerbose) {
@@ -278,6 +283,7 @@ public class DecompilationController implements ModelProvider, LoadingDialogProv
         clearOtherList(vmList);
         if (selectedVmInfo != null) {
             new Thread(() -> {
+                unsubscribe();
                 this.vmInfo = selectedVmInfo;
                 new LoadClassNames().loadClassNames(null, false);
             }).start();
@@ -398,15 +404,17 @@ public class DecompilationController implements ModelProvider, LoadingDialogProv
          */
         public void loadClassNames(String classloader, boolean useLoader) {
             showLoadingDialog("Loading classes");
-            AgentRequestAction request;
+            String response;
             if (useLoader && classloader != null) {
-                request = createRequest(RequestAction.CLASSES_WITH_INFO, stringToBase64(classloader));
+                // listing of one classloader only is not tracked
+                knownClasses = null;
+                unsubscribe();
+                response = submitRequest(createRequest(RequestAction.CLASSES_WITH_INFO, stringToBase64(classloader)));
+                if (DecompilerRequestReceiver.OK_RESPONSE.equals(response)) {
+                    bytecodeDecompilerView.reloadClassList(vmInfo.getVmDecompilerStatus().getLoadedClasses());
+                }
             } else {
-                request = createRequest(RequestAction.CLASSES_WITH_INFO);
-            }
-            String response = submitRequest(request);
-            if (DecompilerRequestReceiver.OK_RESPONSE.equals(response)) {
-                bytecodeDecompilerView.reloadClassList(vmInfo.getVmDecompilerStatus().getLoadedClasses());
+                response = loadAllClassNames();
             }
             hideLoadingDialog();
             if (new TopLevelErrorCandidate(response).isError()) {
@@ -417,6 +425,86 @@ public class DecompilationController implements ModelProvider, LoadingDialogProv
         }
     }
 
+    /**
+     * Lists all classes. If the classes of this vm were listed already, only the classes defined and unloaded since are asked for.
+     */
+    private String loadAllClassNames() {
+        KnownClasses known = knownClasses;
+        Long sequence = null;
+        if (vmInfo.getType() != VmInfo.Type.FS) {
+            String since = known != null && known.vm == vmInfo ? Long.toString(known.sequence) : "-1";
+            if (DecompilerRequestReceiver.OK_RESPONSE.equals(submitRequest(createRequest(RequestAction.CLASSES_SINCE, since)))) {
+                ClassesDelta delta = vmInfo.getVmDecompilerStatus().getClassesDelta();
+                if (delta.isComplete() && known != null && known.vm == vmInfo) {
+                    ClassInfo[] classes = delta.applyTo(known.classes);
+                    knownClasses = new KnownClasses(vmInfo, delta.getSequence(), classes);
+                    bytecodeDecompilerView.reloadClassList(classes);
+                    subscribe(vmInfo);
+                    return DecompilerRequestReceiver.OK_RESPONSE;
+                }
+                sequence = delta.getSequence();
+            }
+        }
+        // sequence is obtained before listing, so nothing defined meanwhile is missed by the next refresh
+        String response = submitRequest(createRequest(RequestAction.CLASSES_WITH_INFO));
+        if (DecompilerRequestReceiver.OK_RESPONSE.equals(response)) {
+            ClassInfo[] classes = vmInfo.getVmDecompilerStatus().getLoadedClasses();
+            knownClasses = sequence == null ? null : new KnownClasses(vmInfo, sequence, classes);
+            bytecodeDecompilerView.reloadClassList(classes);
+            subscribe(vmInfo);
+        } else {
+            knownClasses = null;
+        }
+        return response;
+    }
+
+    /**
+     * Keeps the listed classes of the vm up to date by events its agent pushes, instead of listing them again.
+     * Agent too old to push them is left alone, and refreshed only by listing.
+     */
+    private synchronized void subscribe(VmInfo vm) {
+        boolean subscribed = subscription != null && !subscription.isClosed() && subscribedVm == vm;
+        if (subscribed || vm.getType() == VmInfo.Type.FS) {
+            return;
+        }
+        unsubscribe();
+        VmDecompilerStatus status = vm.getVmDecompilerStatus();
+        try {
+            subscription = AgentSubscription.subscribe(
+                    status.getHostname(), status.getListenPort(), bytecodeDecompilerView.createLiveClassList(
+                            // lost events are caught up by the listing since the last known sequence
+                            () -> new Thread(() -> loadAllClassNames()).start()
+                    )
+            );
+            subscribedVm = vm;
+        } catch (IOException ex) {
+            Logger.getLogger().log(Logger.Level.DEBUG, ex);
+        }
+    }
+
+    private synchronized void unsubscribe() {
+        if (subscription != null) {
+            subscription.close();
+            subscription = null;
+            subscribedVm = null;
+        }
+    }
+
+    /**
+     * Classes of vm, as listed at given sequence of its class journal.
+     */
+    private static final class KnownClasses {
+        private final VmInfo vm;
+        private final long sequence;
+        private final ClassInfo[] classes;
+
+        KnownClasses(VmInfo vm, long sequence, ClassInfo[] classes) {
+            this.vm = vm;
+            this.sequence = sequence;
+            this.classes = classes;
+        }
+    }
+
     private void searchInClasses(String substringAndRegex) {
         showLoadingDialog("Searching classes. Do not abort.");
         AgentRequestAction request = createRequest(RequestAction.SEARCH_CLASSES, substringAndRegex);
@@ -683,6 +771,7 @@ public class DecompilationController implements ModelProvider, LoadingDialogProv
         if (vmInfo == null || vmInfo.getType() == VmInfo.Type.REMOTE || vmInfo.getType() == VmInfo.Type.FS) {
             return;
         }
+        unsubscribe();
         try {
             AgentRequestAction request = createRequest(RequestAction.HALT, "");
             String response = submitRequest(request);
@@ -719,6 +808,7 @@ public class DecompilationController implements ModelProvider, LoadingDialogProv
         switch (action) {
             case VERSION:
             case OVERRIDES:
+            case STATS:
             case HALT:
                 request = AgentRequestAction.create(vmInfo, hostname, listenPort, action);
                 break;
@@ -731,9 +821,16 @@ public class DecompilationController implements ModelProvider, LoadingDialogProv
                 }
                 break;
             case SEARCH_CLASSES:
+            case CLASSES_QUERY:
+            case REFERENCES:
+            case CLASSES_SINCE:
             case REMOVE_OVERRIDES:
             case INIT_CLASS:
+            case BUDGET:
+            case CHECKSUMS:
             case BYTES:
+            case BYTES_BATCH:
+            case OVERWRITE_BATCH:
                 if (commands.length == 1) {
                     request = AgentRequestAction.createFromName(vmInfo, hostname, listenPort, action, commands[0]);
                 } else {
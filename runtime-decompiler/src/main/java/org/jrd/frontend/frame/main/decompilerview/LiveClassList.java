@@ -0,0 +1,77 @@
+package org.jrd.frontend.frame.main.decompilerview;
+
+import org.jrd.backend.communication.AgentEvent;
+import org.jrd.backend.communication.AgentEventListener;
+import org.jrd.backend.core.ClassInfo;
+import org.jrd.backend.core.Logger;
+
+import javax.swing.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Collects classes defined in the vm, as its agent pushes them, and passes them to the class list in the Swing event thread.
+ * Events come in bursts, eg. when application loads a library, so they are passed at most once per {@link #COALESCE_MILLIS}.
+ */
+final class LiveClassList implements AgentEventListener {
+
+    private static final int COALESCE_MILLIS = 500;
+
+    private final Consumer<List<ClassInfo>> classList;
+    private final Runnable onOverflow;
+    private final ConcurrentLinkedQueue<ClassInfo> defined = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean stopped;
+
+    LiveClassList(Consumer<List<ClassInfo>> classList, Runnable onOverflow) {
+        this.classList = classList;
+        this.onOverflow = onOverflow;
+    }
+
+    /**
+     * Events which are still coming, eg. of previously selected vm, are ignored from now on.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void onEvent(AgentEvent event) {
+        if (stopped || event.getKind() != AgentEvent.Kind.DEFINED) {
+            return;
+        }
+        defined.add(new ClassInfo(event.getClassName(), "unknown", event.getClassloader(), "unknown", "unknown"));
+        if (scheduled.compareAndSet(false, true)) {
+            Timer timer = new Timer(COALESCE_MILLIS, e -> passDefined());
+            timer.setRepeats(false);
+            timer.start();
+        }
+    }
+
+    private void passDefined() {
+        scheduled.set(false);
+        List<ClassInfo> classes = new ArrayList<>();
+        ClassInfo clazz;
+        while ((clazz = defined.poll()) != null) {
+            classes.add(clazz);
+        }
+        if (!stopped && !classes.isEmpty()) {
+            classList.accept(classes);
+        }
+    }
+
+    @Override
+    public void onOverflow() {
+        if (!stopped) {
+            onOverflow.run();
+        }
+    }
+
+    @Override
+    public void onClosed(Exception cause) {
+        Logger.getLogger().log(Logger.Level.DEBUG, "Subscription to agent ended" + (cause == null ? "" : (": " + cause)));
+    }
+}
@@ -22,6 +22,9 @@ public class JrdApiKeywords implements CompletionItem.CompletionItemSet {
             "They represents Class' public fields/methods, so you can access them globally.\n" +
             "Theirs main reason is as you would expect - to have field/method per instance.\n" +
             "Thats why al those methods have Object object as first parameter - the owner object.\n\n";
+    private static final String WEAK_LOCAL = "WeakLocal fields and methods are same as Local ones, but the owner object is held weakly " +
+            "and compared by identity.\n" + "Once the owner is garbage collected, its fields/methods are dropped, so they do not leak.\n" +
+            "Do not store the owner itself in them, it would be never collected.\n\n";
     private static final String CLAZZS = "Clazzs fields and methods are bound to class.\n" +
             "They represents Class' public static fields/methods, so you can access them globally.\n" +
             "Theirs main reason is if you really needs two methods/fields of same name in several classes.\n" +
@@ -135,6 +138,46 @@ public class JrdApiKeywords implements CompletionItem.CompletionItemSet {
             INTRO + CLAZZS + SAFE + CLAZZS_FINAL), new CompletionItem("org.jrd.agent.api.Variables.Clazzs.removeAll(String);",
             INTRO + CLAZZS + SAFE + CLAZZS_FINAL + "This calls classForName on String."), new CompletionItem(
             "(String)(org.jrd.agent.api.Variables.dumpAll());", "Will dump to String all safe variables currently declared"),
+            new CompletionItem(
+                    "(Object)(org.jrd.agent.api.Variables.WeakLocal.create(Object, String, Object));",
+                    INTRO + WEAK_LOCAL + SAFE + "Will create local field/method of weakly held owner"
+            ),
+            new CompletionItem(
+                    "(Object)(org.jrd.agent.api.Variables.WeakLocal.get(Object, String));",
+                    INTRO + WEAK_LOCAL + SAFE + "Will get local field/method of weakly held owner"
+            ),
+            new CompletionItem(
+                    "(Object)(org.jrd.agent.api.Variables.WeakLocal.getOrCreate(Object, String, Object));",
+                    INTRO + WEAK_LOCAL + SAFE + "Will get or create local field/method of weakly held owner"
+            ),
+            new CompletionItem(
+                    "(Object)(org.jrd.agent.api.Variables.WeakLocal.remove(Object, String));",
+                    INTRO + WEAK_LOCAL + SAFE + "Will remove local field/method of weakly held owner"
+            ),
+            new CompletionItem(
+                    "(Object)(org.jrd.agent.api.Variables.WeakLocal.set(Object, String, Object));",
+                    INTRO + WEAK_LOCAL + SAFE + "Will set local field/method of weakly held owner"
+            ),
+            new CompletionItem(
+                    "(Object)(org.jrd.agent.api.Variables.WeakLocal.setNoReplace(Object, String, Object));",
+                    INTRO + WEAK_LOCAL + SAFE + "Will set not yet declared local field/method of weakly held owner"
+            ),
+            new CompletionItem(
+                    "(String)(org.jrd.agent.api.Variables.WeakLocal.dump());",
+                    INTRO + WEAK_LOCAL + SAFE + "Will dump to String all safe, weak local variables/methods currently declared"
+            ),
+            new CompletionItem(
+                    "(String)(org.jrd.agent.api.Variables.WeakLocal.dump(Object...));",
+                    INTRO + WEAK_LOCAL + SAFE + "Will dump to String all safe, weak local variables/methods currently declared in selected Object...s"
+            ),
+            new CompletionItem(
+                    "org.jrd.agent.api.Variables.WeakLocal.destroy();",
+                    INTRO + WEAK_LOCAL + SAFE + "Will remove all safe, weak local variables/methods currently declared"
+            ),
+            new CompletionItem(
+                    "org.jrd.agent.api.Variables.WeakLocal.removeAll(Object);",
+                    INTRO + WEAK_LOCAL + SAFE + "Will remove all safe, weak local variables/methods bound to given Object"
+            ),
             new CompletionItem("(Object)(org.jrd.agent.api.UnsafeVariables.Local.create(Object, String, Object));", UNSAFE),
             new CompletionItem("(Object)(org.jrd.agent.api.UnsafeVariables.Local.get(Object, String));", UNSAFE), new CompletionItem(
             "(Object)(org.jrd.agent.api.UnsafeVariables.Local.getOrCreate(Object, String, Object));", UNSAFE), new CompletionItem(
@@ -143,7 +186,17 @@ public class JrdApiKeywords implements CompletionItem.CompletionItemSet {
             "(Object)(org.jrd.agent.api.UnsafeVariables.Local.setNoReplace(Object, String, Object));", UNSAFE), new CompletionItem(
             "(String)(org.jrd.agent.api.UnsafeVariables.Local.dump());", UNSAFE), new CompletionItem(
             "org.jrd.agent.api.UnsafeVariables.Local.destroy();", UNSAFE), new CompletionItem(
-            "org.jrd.agent.api.UnsafeVariables.Local.removeAll(Object);", UNSAFE), new CompletionItem(
+            "org.jrd.agent.api.UnsafeVariables.Local.removeAll(Object);", UNSAFE),
+            new CompletionItem("(Object)(org.jrd.agent.api.UnsafeVariables.WeakLocal.create(Object, String, Object));", UNSAFE + WEAK_LOCAL),
+            new CompletionItem("(Object)(org.jrd.agent.api.UnsafeVariables.WeakLocal.get(Object, String));", UNSAFE + WEAK_LOCAL),
+            new CompletionItem("(Object)(org.jrd.agent.api.UnsafeVariables.WeakLocal.getOrCreate(Object, String, Object));", UNSAFE + WEAK_LOCAL),
+            new CompletionItem("(Object)(org.jrd.agent.api.UnsafeVariables.WeakLocal.remove(Object, String));", UNSAFE + WEAK_LOCAL),
+            new CompletionItem("(Object)(org.jrd.agent.api.UnsafeVariables.WeakLocal.set(Object, String, Object));", UNSAFE + WEAK_LOCAL),
+            new CompletionItem("(Object)(org.jrd.agent.api.UnsafeVariables.WeakLocal.setNoReplace(Object, String, Object));", UNSAFE + WEAK_LOCAL),
+            new CompletionItem("(String)(org.jrd.agent.api.UnsafeVariables.WeakLocal.dump());", UNSAFE + WEAK_LOCAL),
+            new CompletionItem("org.jrd.agent.api.UnsafeVariables.WeakLocal.destroy();", UNSAFE + WEAK_LOCAL),
+            new CompletionItem("org.jrd.agent.api.UnsafeVariables.WeakLocal.removeAll(Object);", UNSAFE + WEAK_LOCAL),
+            new CompletionItem(
             "(Object)(org.jrd.agent.api.UnsafeVariables.Global.create(String, Object));", UNSAFE), new CompletionItem(
             "(Object)(org.jrd.agent.api.UnsafeVariables.Global.get(String));", UNSAFE), new CompletionItem(
             "(Object)(org.jrd.agent.api.UnsafeVariables.Global.getOrCreate(String, Object));", UNSAFE), new CompletionItem(
@@ -0,0 +1,166 @@
+package org.jrd.backend.communication;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AgentSessionTest {
+
+    private static final String DIE = "DIE";
+
+    private ServerSocket server;
+    private final AtomicInteger connections = new AtomicInteger();
+    // requests are answered in batches of this size, the last one first
+    private volatile int batch = 1;
+
+    @BeforeEach
+    void startAgent() throws IOException {
+        server = new ServerSocket(0);
+        Thread acceptor = new Thread(this::accept);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket client = server.accept();
+                connections.incrementAndGet();
+                Thread serving = new Thread(() -> serve(client));
+                serving.setDaemon(true);
+                serving.start();
+            } catch (IOException ex) {
+                return;
+            }
+        }
+    }
+
+    @AfterEach
+    void stopAgent() throws IOException {
+        server.close();
+    }
+
+    /**
+     * Answers each request as VERSION request, by its first line prefixed by "echo ".
+     */
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            assertEquals(AgentSession.SESSION_HANDSHAKE, Communicate.readRawLine(in));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write((AgentSession.SESSION_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+            List<Integer> ids = new ArrayList<>();
+            List<String> commands = new ArrayList<>();
+            while (true) {
+                byte type = in.readByte();
+                int id = in.readInt();
+                byte[] payload = Communicate.Frame.readPayload(in);
+                if (type != Communicate.FRAME_END) {
+                    ids.add(id);
+                    commands.add(new String(payload, StandardCharsets.UTF_8));
+                    continue;
+                }
+                if (commands.contains(DIE)) {
+                    return;
+                }
+                if (ids.size() >= batch) {
+                    for (int i = ids.size() - 1; i >= 0; i--) {
+                        writeFrame(out, Communicate.FRAME_TEXT, ids.get(i), "VERSION".getBytes(StandardCharsets.UTF_8));
+                        writeFrame(out, Communicate.FRAME_TEXT, ids.get(i), ("echo " + commands.get(i)).getBytes(StandardCharsets.UTF_8));
+                        writeFrame(out, Communicate.FRAME_END, ids.get(i), new byte[0]);
+                    }
+                    out.flush();
+                    ids.clear();
+                    commands.clear();
+                }
+            }
+        } catch (IOException ex) {
+            // client closed the session
+        }
+    }
+
+    private static void writeFrame(DataOutputStream out, byte type, int id, byte[] payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(id);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    @Test
+    void testResponsesAreRoutedById() throws Exception {
+        batch = 2;
+        AgentSession session = AgentSession.open("localhost", server.getLocalPort());
+        ExecutorService submitters = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = submitters.submit(() -> session.submitRequest("FIRST"));
+            Future<String> second = submitters.submit(() -> session.submitRequest("SECOND"));
+
+            assertEquals("echo FIRST", first.get());
+            assertEquals("echo SECOND", second.get());
+            assertEquals(1, connections.get());
+        } finally {
+            submitters.shutdown();
+            session.close();
+        }
+    }
+
+    @Test
+    void testLostConnectionFailsPendingRequest() throws IOException {
+        AgentSession session = AgentSession.open("localhost", server.getLocalPort());
+
+        String reply = session.submitRequest(DIE);
+
+        assertTrue(new ErrorCandidate(reply).isError(), reply);
+        assertTrue(session.isClosed());
+        assertThrows(AgentSession.NotSentException.class, () -> session.submitRequest("VERSION"));
+    }
+
+    @Test
+    void testIdleSessionIsClosed() throws IOException, InterruptedException {
+        AgentSession session = AgentSession.open("localhost", server.getLocalPort(), 100);
+        assertEquals("echo VERSION", session.submitRequest("VERSION"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!session.isClosed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertTrue(session.isClosed());
+        assertThrows(AgentSession.NotSentException.class, () -> session.submitRequest("VERSION"));
+    }
+
+    @Test
+    void testForgottenAgentGetsNewSession() {
+        CallDecompilerAgent agent = new CallDecompilerAgent(server.getLocalPort(), "localhost");
+        try {
+            assertEquals("echo VERSION", agent.submitRequest("VERSION"));
+            assertEquals("echo HELLO", agent.submitRequest("HELLO"));
+            assertEquals(1, connections.get());
+
+            CallDecompilerAgent.forget("localhost", server.getLocalPort());
+
+            assertEquals("echo VERSION", agent.submitRequest("VERSION"));
+            assertEquals(2, connections.get());
+        } finally {
+            CallDecompilerAgent.forget("localhost", server.getLocalPort());
+        }
+    }
+}
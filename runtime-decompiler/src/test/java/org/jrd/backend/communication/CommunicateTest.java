@@ -0,0 +1,238 @@
+package org.jrd.backend.communication;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommunicateTest {
+
+    private static final byte[] BODY = {(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, '\n', 0x7F};
+
+    private static byte[] write(List<Communicate.Frame> frames) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Communicate.Frame frame : frames) {
+            frame.write(out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static List<Communicate.Frame> read(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        List<Communicate.Frame> frames = new ArrayList<>();
+        Communicate.Frame frame;
+        while ((frame = Communicate.Frame.read(in)) != null) {
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static String text(Communicate.Frame frame) {
+        assertEquals(Communicate.FRAME_TEXT, frame.type);
+        return new String(frame.payload, StandardCharsets.UTF_8);
+    }
+
+    private static Communicate response(Communicate.Frame... frames) {
+        BlockingQueue<Communicate.Frame> queue = new LinkedBlockingQueue<>(List.of(frames));
+        return new Communicate(queue);
+    }
+
+    private static String readResponse(Communicate.Frame... frames) {
+        return response(frames).readResponse();
+    }
+
+    private static Communicate.Frame end() {
+        return new Communicate.Frame(Communicate.FRAME_END, new byte[0]);
+    }
+
+    @Test
+    void testLinesAreTextFrames() throws IOException {
+        List<Communicate.Frame> frames = read(write(Communicate.toFrames("CLASSES_SINCE\n12345\n")));
+
+        assertEquals(3, frames.size());
+        assertEquals("CLASSES_SINCE", text(frames.get(0)));
+        assertEquals("12345", text(frames.get(1)));
+        assertEquals(Communicate.FRAME_END, frames.get(2).type);
+        assertEquals(0, frames.get(2).payload.length);
+    }
+
+    @Test
+    void testBodyIsSentAsRawBytes() throws IOException {
+        String loader = Base64.getEncoder().encodeToString("app".getBytes(StandardCharsets.UTF_8));
+        String request = "OVERWRITE\ncom.example.Foo\n" + Base64.getEncoder().encodeToString(BODY) + " " + loader;
+
+        List<Communicate.Frame> frames = read(write(Communicate.toFrames(request)));
+
+        assertEquals(5, frames.size());
+        assertEquals("OVERWRITE", text(frames.get(0)));
+        assertEquals("com.example.Foo", text(frames.get(1)));
+        assertEquals(Communicate.FRAME_BYTES, frames.get(2).type);
+        assertArrayEquals(BODY, frames.get(2).payload);
+        assertEquals(loader, text(frames.get(3)));
+        assertEquals(Communicate.FRAME_END, frames.get(4).type);
+    }
+
+    @Test
+    void testBatchBodiesAreSentAsRawBytes() throws IOException {
+        String body = Base64.getEncoder().encodeToString(BODY);
+        String request = "OVERWRITE_BATCH\n2\ncom.example.Foo\n" + body + "\ncom.example.Bar\n" + body;
+
+        List<Communicate.Frame> frames = read(write(Communicate.toFrames(request)));
+
+        assertEquals(9, frames.size());
+        assertEquals("2", text(frames.get(1)));
+        assertEquals("com.example.Foo", text(frames.get(2)));
+        assertArrayEquals(BODY, frames.get(3).payload);
+        assertEquals("", text(frames.get(4)));
+        assertEquals("com.example.Bar", text(frames.get(5)));
+        assertArrayEquals(BODY, frames.get(6).payload);
+        assertEquals("", text(frames.get(7)));
+    }
+
+    @Test
+    void testEndOfStreamBetweenFrames() throws IOException {
+        assertNull(Communicate.Frame.read(new DataInputStream(new ByteArrayInputStream(new byte[0]))));
+    }
+
+    @Test
+    void testTruncatedFrameFails() throws IOException {
+        byte[] whole = write(List.of(new Communicate.Frame(Communicate.FRAME_BYTES, BODY)));
+        byte[] truncated = new byte[whole.length - 2];
+        System.arraycopy(whole, 0, truncated, 0, truncated.length);
+
+        assertThrows(EOFException.class, () -> read(truncated));
+    }
+
+    @Test
+    void testInvalidFrameLengthFails() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(Communicate.FRAME_BYTES);
+        out.writeInt(-1);
+        out.flush();
+
+        assertThrows(IOException.class, () -> read(bytes.toByteArray()));
+    }
+
+    @Test
+    void testResponseIsReadUntilEndFrame() {
+        String response = readResponse(
+                Communicate.Frame.text("CLASSES"), Communicate.Frame.text("com.example.Foo"), Communicate.Frame.text("com.example.Bar"),
+                new Communicate.Frame(Communicate.FRAME_END, new byte[0])
+        );
+
+        assertEquals("com.example.Foo;com.example.Bar;", response);
+    }
+
+    @Test
+    void testBytesAreEncodedForCaller() {
+        String response = readResponse(
+                Communicate.Frame.text("BYTES"), new Communicate.Frame(Communicate.FRAME_BYTES, BODY),
+                new Communicate.Frame(Communicate.FRAME_END, new byte[0])
+        );
+
+        assertArrayEquals(BODY, Base64.getDecoder().decode(response));
+    }
+
+    @Test
+    void testTruncatedListingIsError() {
+        String response = readResponse(
+                Communicate.Frame.text("CLASSES"), Communicate.Frame.text("com.example.Foo"), Communicate.Frame.CONNECTION_LOST
+        );
+
+        assertTrue(new ErrorCandidate(response).isError(), response);
+    }
+
+    @Test
+    void testTruncatedBytesAreError() {
+        String response = readResponse(Communicate.Frame.text("BYTES"), Communicate.Frame.CONNECTION_LOST);
+
+        assertTrue(new ErrorCandidate(response).isError(), response);
+    }
+
+    @Test
+    void testOverwriteBatchIsNotEncoded() throws IOException {
+        List<String> names = List.of("com.example.Foo", "com.example.Bar");
+        List<byte[]> bodies = List.of(BODY, new byte[]{1, 2});
+        String loader = Base64.getEncoder().encodeToString("app".getBytes(StandardCharsets.UTF_8));
+
+        List<Communicate.Frame> frames = read(write(Communicate.toOverwriteBatchFrames(names, bodies, loader)));
+        // the same frames as of the text request, which bodies are encoded, and decoded back
+        List<Communicate.Frame> fromText = Communicate.toFrames(Communicate.toOverwriteBatchText(names, bodies, loader));
+
+        assertEquals(fromText.size(), frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertEquals(fromText.get(i).type, frames.get(i).type);
+            assertArrayEquals(fromText.get(i).payload, frames.get(i).payload);
+        }
+        assertEquals("OVERWRITE_BATCH", text(frames.get(0)));
+        assertArrayEquals(BODY, frames.get(3).payload);
+        assertEquals(loader, text(frames.get(4)));
+        assertArrayEquals(new byte[]{1, 2}, frames.get(6).payload);
+    }
+
+    @Test
+    void testBodiesAreReadRaw() throws IOException {
+        byte[][] bodies = response(
+                Communicate.Frame.text("BYTES_BATCH"), Communicate.Frame.text("com.example.Foo"),
+                new Communicate.Frame(Communicate.FRAME_BYTES, BODY), Communicate.Frame.text("com.example.Missing"),
+                Communicate.Frame.text("ERROR class not found"), end()
+        ).readBodiesResponse();
+
+        assertEquals(2, bodies.length);
+        assertArrayEquals(BODY, bodies[0]);
+        assertNull(bodies[1]);
+    }
+
+    @Test
+    void testErrorInsteadOfBodies() throws IOException {
+        assertNull(response(Communicate.Frame.text("ERROR unknown command"), end()).readBodiesResponse());
+    }
+
+    @Test
+    void testTruncatedBodiesFail() {
+        Communicate communicate = response(
+                Communicate.Frame.text("BYTES_BATCH"), Communicate.Frame.text("com.example.Foo"), Communicate.Frame.CONNECTION_LOST
+        );
+
+        assertThrows(IOException.class, communicate::readBodiesResponse);
+    }
+
+    @Test
+    void testTextBodiesAreDecoded() {
+        String reply = "com.example.Foo " + Base64.getEncoder().encodeToString(BODY) + "\ncom.example.Missing ERROR class not found\n";
+
+        byte[][] bodies = Communicate.parseBodies(reply);
+
+        assertEquals(2, bodies.length);
+        assertArrayEquals(BODY, bodies[0]);
+        assertNull(bodies[1]);
+        assertNull(Communicate.parseBodies("ERROR unknown command"));
+        assertNull(Communicate.parseBodies(null));
+    }
+
+    @Test
+    void testTooLongFrameIsNotSent() {
+        Communicate.Frame frame = new Communicate.Frame(Communicate.FRAME_BYTES, new byte[Communicate.MAX_FRAME_LENGTH + 1]);
+
+        assertThrows(IOException.class, () -> frame.write(new DataOutputStream(new ByteArrayOutputStream())));
+    }
+}
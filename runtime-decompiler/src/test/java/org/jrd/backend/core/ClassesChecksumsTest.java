@@ -0,0 +1,63 @@
+package org.jrd.backend.core;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+class ClassesChecksumsTest {
+
+    @Test
+    void checksumsAreSameAsAgentComputes() {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        byte[] abc = "abc".getBytes(StandardCharsets.US_ASCII);
+
+        Assertions.assertEquals("e3069283", ClassesChecksums.checksum(check, ClassesChecksums.CRC32C));
+        Assertions.assertEquals(
+                "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", ClassesChecksums.checksum(abc, ClassesChecksums.SHA256)
+        );
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ClassesChecksums.checksum(abc, "md5"));
+    }
+
+    @Test
+    void itemIsParsedBack() {
+        byte[] body = {1, 2, 3};
+        String item = ClassesChecksums.toItem("a.B", "app|with|delimiters", body, ClassesChecksums.CRC32C);
+
+        ClassesChecksums parsed = ClassesChecksums.parse(item + ";");
+
+        Assertions.assertEquals(Collections.singleton("a.B"), parsed.getClassNames());
+        Assertions.assertEquals(ClassesChecksums.checksum(body, ClassesChecksums.CRC32C), parsed.get("a.B"));
+        Assertions.assertEquals(ClassesChecksums.MISSING, parsed.get("a.C"));
+    }
+
+    @Test
+    void checksumsOfAllLoadersAreSorted() {
+        ClassesChecksums first = ClassesChecksums.parse("a.B|app|22;a.B|plugin|11");
+        ClassesChecksums second = ClassesChecksums.parse("a.B|other|11;a.B|app|22;");
+
+        Assertions.assertEquals("11,22", first.get("a.B"));
+        Assertions.assertEquals(first.get("a.B"), second.get("a.B"));
+    }
+
+    @Test
+    void malformedItemFails() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ClassesChecksums.parse("a.B|11"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ClassesChecksums.parse("a.B"));
+    }
+
+    @Test
+    void onlyDifferencesAreCompared() {
+        List<ClassesChecksums> sums = Arrays.asList(
+                ClassesChecksums.parse("a.Same|app|11;a.Changed|app|22;a.Partial|app|33"),
+                ClassesChecksums.parse("a.Same|app|11;a.Changed|app|23")
+        );
+
+        List<String> differences = ClassesChecksums.compare(Arrays.asList("vm1", "vm2"), sums);
+
+        Assertions.assertEquals(Arrays.asList("a.Changed: vm1=22 vm2=23", "a.Partial: vm1=33 vm2=MISSING"), differences);
+    }
+}
@@ -0,0 +1,65 @@
+package org.jrd.backend.core;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+class ClassesDeltaTest {
+
+    private static final ClassInfo[] KNOWN = {new ClassInfo("a.A|/a.jar|app|unnamed|app"),
+            new ClassInfo("b.B|/b.jar|plugin|unnamed|plugin"), new ClassInfo("c.C|/c.jar|app|unnamed|app")};
+
+    private static List<String> namesAndLoaders(ClassInfo[] classes) {
+        return Arrays.stream(classes).map(clazz -> clazz.getName() + " " + clazz.getClassLoader()).collect(Collectors.toList());
+    }
+
+    @Test
+    void deltaIsParsed() {
+        ClassesDelta delta = ClassesDelta.parse("42;+d.D|/d.jar|app|unnamed|app;-plugin;");
+
+        Assertions.assertEquals(42, delta.getSequence());
+        Assertions.assertTrue(delta.isComplete());
+        Assertions.assertEquals(Arrays.asList("a.A app", "c.C app", "d.D app"), namesAndLoaders(delta.applyTo(KNOWN)));
+    }
+
+    @Test
+    void resetIsNotComplete() {
+        ClassesDelta delta = ClassesDelta.parse("7;RESET;");
+
+        Assertions.assertEquals(7, delta.getSequence());
+        Assertions.assertFalse(delta.isComplete());
+    }
+
+    @Test
+    void emptyDeltaKeepsClasses() {
+        ClassesDelta delta = ClassesDelta.parse("3");
+
+        Assertions.assertEquals(namesAndLoaders(KNOWN), namesAndLoaders(delta.applyTo(KNOWN)));
+    }
+
+    @Test
+    void classOfUnloadedLoaderIsNotAdded() {
+        ClassesDelta delta = ClassesDelta.parse("5;+e.E|/e.jar|gone|unnamed|gone;-gone");
+
+        Assertions.assertEquals(namesAndLoaders(KNOWN), namesAndLoaders(delta.applyTo(KNOWN)));
+    }
+
+    @Test
+    void redefinedClassIsListedOnce() {
+        ClassesDelta delta = ClassesDelta.ofDefined(Collections.singletonList(new ClassInfo("a.A|/new.jar|app|unnamed|app")));
+
+        ClassInfo[] classes = delta.applyTo(KNOWN);
+
+        Assertions.assertEquals(namesAndLoaders(KNOWN), namesAndLoaders(classes));
+        Assertions.assertEquals("/new.jar", classes[0].getLocation());
+    }
+
+    @Test
+    void listingWithoutSequenceFails() {
+        Assertions.assertThrows(NumberFormatException.class, () -> ClassesDelta.parse("+a.A|/a.jar|app|unnamed|app"));
+    }
+}
@@ -0,0 +1,58 @@
+package org.jrd.backend.core;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class ClassesListingTest {
+
+    private static void assertClass(ClassInfo clazz, String name, String location, String loader, String module, String moduleLoader) {
+        Assertions.assertEquals(name, clazz.getName());
+        Assertions.assertEquals(location, clazz.getLocation());
+        Assertions.assertEquals(loader, clazz.getClassLoader());
+        Assertions.assertEquals(module, clazz.getModule());
+        Assertions.assertEquals(moduleLoader, clazz.getModuleLoader());
+    }
+
+    @Test
+    void encodedListingIsResolved() {
+        // as written by the agent: each value defined once, before the first class referring to it
+        String listing = "=unknown;=bootstrap;=java.base;java.lang.String|0|1|2|1;java.lang.Integer|0|1|2|1;" +
+                "=/app.jar;=app;=unnamed;a.B|3|4|5|4;";
+
+        ClassInfo[] classes = ClassesListing.parse(listing);
+
+        Assertions.assertEquals(3, classes.length);
+        assertClass(classes[0], "java.lang.String", "unknown", "bootstrap", "java.base", "bootstrap");
+        assertClass(classes[1], "java.lang.Integer", "unknown", "bootstrap", "java.base", "bootstrap");
+        assertClass(classes[2], "a.B", "/app.jar", "app", "unnamed", "app");
+        Assertions.assertSame(classes[0].getModule(), classes[1].getModule());
+    }
+
+    @Test
+    void encodedListingWithUndefinedValueFails() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ClassesListing.parse("=unknown;a.B|0|1|0|0"));
+    }
+
+    @Test
+    void encodedAndPlainListingsAreSame() {
+        ClassInfo[] encoded = ClassesListing.parse("=/app.jar;=app;=unnamed;a.B|0|1|2|1;a.C|0|1|2|1");
+        ClassInfo[] plain = ClassesListing.parse("a.B|/app.jar|app|unnamed|app;a.C|/app.jar|app|unnamed|app;");
+
+        Assertions.assertEquals(plain.length, encoded.length);
+        for (int i = 0; i < plain.length; i++) {
+            assertClass(
+                    encoded[i], plain[i].getName(), plain[i].getLocation(), plain[i].getClassLoader(), plain[i].getModule(),
+                    plain[i].getModuleLoader()
+            );
+        }
+        Assertions.assertSame(plain[0].getLocation(), plain[1].getLocation());
+    }
+
+    @Test
+    void plainListingOfNamesIsParsed() {
+        ClassInfo[] classes = ClassesListing.parse("a.B;a.C;");
+
+        Assertions.assertEquals(2, classes.length);
+        Assertions.assertEquals("a.C", classes[1].getName());
+    }
+}
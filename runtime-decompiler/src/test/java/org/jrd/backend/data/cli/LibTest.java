@@ -1,10 +1,13 @@
 package org.jrd.backend.data.cli;
 
+import org.jrd.backend.core.DecompilerRequestReceiver;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 class LibTest {
 
@@ -106,4 +109,54 @@ class LibTest {
         Assertions.assertArrayEquals(new String[]{"a"}, s);
     }
 
+    /**
+     * Uploads a, c and b to the target classes by name, overwriting of b fails.
+     */
+    private static Map<String, String> uploadOneByOne(Map<String, String> target, byte[][] previous) {
+        Map<String, byte[]> classesBytes = new LinkedHashMap<>();
+        classesBytes.put("a", "new a".getBytes(StandardCharsets.UTF_8));
+        classesBytes.put("c", "new c".getBytes(StandardCharsets.UTF_8));
+        classesBytes.put("b", "new b".getBytes(StandardCharsets.UTF_8));
+        String reply = Lib.uploadOneByOne(classesBytes, previous, (name, body) -> {
+            if ("b".equals(name)) {
+                return "error: b can not be overwritten";
+            }
+            target.put(name, new String(body, StandardCharsets.UTF_8));
+            return DecompilerRequestReceiver.OK_RESPONSE;
+        });
+        Assertions.assertEquals("error: b can not be overwritten", reply);
+        return target;
+    }
+
+    @Test
+    void uploadOneByOneRollsBackOnFailure() {
+        Map<String, String> target = new LinkedHashMap<>(Map.of("a", "old a", "b", "old b", "c", "old c"));
+        byte[][] previous = {"old a".getBytes(StandardCharsets.UTF_8), "old c".getBytes(StandardCharsets.UTF_8), null};
+
+        Assertions.assertEquals(Map.of("a", "old a", "b", "old b", "c", "old c"), uploadOneByOne(target, previous));
+    }
+
+    @Test
+    void uploadOneByOneKeepsClassWithoutPreviousBytecode() {
+        Map<String, String> target = new LinkedHashMap<>(Map.of("a", "old a", "b", "old b", "c", "old c"));
+        byte[][] previous = {null, "old c".getBytes(StandardCharsets.UTF_8), null};
+
+        Assertions.assertEquals(Map.of("a", "new a", "b", "old b", "c", "old c"), uploadOneByOne(target, previous));
+    }
+
+    @Test
+    void uploadOneByOneUploadsAll() {
+        Map<String, byte[]> classesBytes = new LinkedHashMap<>();
+        classesBytes.put("a", "new a".getBytes(StandardCharsets.UTF_8));
+        classesBytes.put("b", "new b".getBytes(StandardCharsets.UTF_8));
+        Map<String, String> target = new LinkedHashMap<>();
+
+        String reply = Lib.uploadOneByOne(classesBytes, new byte[2][], (name, body) -> {
+            target.put(name, new String(body, StandardCharsets.UTF_8));
+            return DecompilerRequestReceiver.OK_RESPONSE;
+        });
+
+        Assertions.assertEquals(DecompilerRequestReceiver.OK_RESPONSE, reply);
+        Assertions.assertEquals(Map.of("a", "new a", "b", "new b"), target);
+    }
 }